@@ -0,0 +1,85 @@
+package com.autostreams.pulsar;
+
+import com.autostreams.pulsar.benchmark.InJvmPulsar;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.pulsar.client.api.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the receive, dispatch and acknowledge loop of a {@link ConsumerWorker}, against an
+ * in-JVM consumer that always has messages available. The handler does no work, so the
+ * results show the overhead of the worker itself.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumerWorkerBenchmark {
+    @Param({"DIRECT", "UNORDERED"})
+    private DispatchMode dispatchMode;
+
+    @Param({"100"})
+    private int batchSize;
+
+    private final LongAdder acknowledged = new LongAdder();
+    private MessageDispatcher dispatcher;
+    private ConsumerWorker worker;
+
+    /**
+     * Create a worker around an in-JVM stand-in for the Pulsar client.
+     */
+    @Setup
+    public void setUp() {
+        Message<ByteBuffer> message = InJvmPulsar.message(new byte[256]);
+
+        this.dispatcher = new MessageDispatcher(ignored -> { }, this.dispatchMode, 4, 1000);
+        this.worker = new ConsumerWorker(
+            InJvmPulsar.client(message, this.batchSize, this.acknowledged),
+            this.dispatcher,
+            ConsumerMetrics.noop()
+        );
+        this.worker.initialize();
+    }
+
+    /**
+     * Stop the dispatcher threads.
+     */
+    @TearDown
+    public void tearDown() {
+        this.dispatcher.close();
+    }
+
+    /**
+     * Receive, dispatch and acknowledge a single message.
+     */
+    @Benchmark
+    public void receiveSingle() {
+        this.worker.receiveAndProcessMessage();
+    }
+
+    /**
+     * Receive, dispatch and acknowledge a batch of messages.
+     */
+    @Benchmark
+    public void receiveBatch() {
+        this.worker.receiveAndProcessBatch();
+    }
+}
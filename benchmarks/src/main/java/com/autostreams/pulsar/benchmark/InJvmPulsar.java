@@ -0,0 +1,207 @@
+package com.autostreams.pulsar.benchmark;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+/**
+ * In-JVM stand-in for the Pulsar client, so the benchmarks can run without a broker.
+ * Stand-ins are dynamic proxies of the Pulsar client interfaces, answering the calls made on
+ * the hot paths and returning neutral defaults for everything else.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public final class InJvmPulsar {
+    public static final String TOPIC = "persistent://public/default/benchmark";
+    public static final MessageId MESSAGE_ID = proxy(MessageId.class, Map.of());
+
+    private InJvmPulsar() {
+    }
+
+    /**
+     * Create a producer that acknowledges every send on the given executor, standing in for
+     * the broker.
+     *
+     * @param broker the executor completing sends, or null to complete them immediately.
+     * @param sent counter of sent messages.
+     * @return the stand-in producer.
+     */
+    public static Producer<byte[]> producer(Executor broker, LongAdder sent) {
+        Function<Object[], Object> send = args -> {
+            sent.increment();
+            if (broker == null) {
+                return CompletableFuture.completedFuture(MESSAGE_ID);
+            }
+
+            return CompletableFuture.supplyAsync(() -> MESSAGE_ID, broker);
+        };
+
+        TypedMessageBuilder<?> messageBuilder = proxy(TypedMessageBuilder.class,
+            Map.of("sendAsync", send));
+
+        return proxy(Producer.class, Map.of(
+            "sendAsync", send,
+            "newMessage", args -> messageBuilder,
+            "getTopic", args -> TOPIC,
+            "isConnected", args -> true
+        ));
+    }
+
+    /**
+     * Create a client whose consumers always have the given message available.
+     *
+     * @param message the message every receive returns.
+     * @param batchSize the number of messages every batch receive returns.
+     * @param acknowledged counter of acknowledgement calls.
+     * @return the stand-in client.
+     */
+    public static PulsarClient client(Message<ByteBuffer> message, int batchSize,
+                                      LongAdder acknowledged) {
+        Messages<ByteBuffer> batch = messages(Collections.nCopies(batchSize, message));
+        Function<Object[], Object> acknowledge = args -> {
+            acknowledged.increment();
+            return null;
+        };
+        Function<Object[], Object> acknowledgeAsync = args -> {
+            acknowledged.increment();
+            return CompletableFuture.completedFuture(null);
+        };
+
+        Consumer<ByteBuffer> consumer = proxy(Consumer.class, Map.of(
+            "receive", args -> message,
+            "receiveAsync", args -> CompletableFuture.completedFuture(message),
+            "batchReceive", args -> batch,
+            "batchReceiveAsync", args -> CompletableFuture.completedFuture(batch),
+            "acknowledge", acknowledge,
+            "acknowledgeCumulative", acknowledge,
+            "acknowledgeAsync", acknowledgeAsync,
+            "getTopic", args -> TOPIC
+        ));
+
+        ConsumerBuilder<ByteBuffer> consumerBuilder = proxy(ConsumerBuilder.class, Map.of(
+            "subscribe", args -> consumer,
+            "subscribeAsync", args -> CompletableFuture.completedFuture(consumer)
+        ));
+
+        return proxy(PulsarClient.class, Map.of("newConsumer", args -> consumerBuilder));
+    }
+
+    /**
+     * Create a received message carrying the given payload.
+     *
+     * @param payload the payload of the message.
+     * @return the stand-in message.
+     */
+    public static Message<ByteBuffer> message(byte[] payload) {
+        long publishTime = System.currentTimeMillis();
+
+        return proxy(Message.class, Map.of(
+            "getValue", args -> ByteBuffer.wrap(payload),
+            "getData", args -> payload,
+            "size", args -> payload.length,
+            "getMessageId", args -> MESSAGE_ID,
+            "getTopicName", args -> TOPIC,
+            "getPublishTime", args -> publishTime,
+            "getProperties", args -> Map.of()
+        ));
+    }
+
+    /**
+     * Create a batch of received messages.
+     *
+     * @param messages the messages of the batch.
+     * @return the stand-in batch.
+     */
+    private static Messages<ByteBuffer> messages(List<Message<ByteBuffer>> messages) {
+        List<Message<ByteBuffer>> copy = new ArrayList<>(messages);
+
+        return proxy(Messages.class, Map.of(
+            "size", args -> copy.size(),
+            "iterator", args -> copy.iterator()
+        ));
+    }
+
+    /**
+     * Create a dynamic proxy of an interface.
+     *
+     * @param type the interface to implement.
+     * @param answers answers to calls, keyed by method name.
+     * @param <T> the type of the interface.
+     * @return the proxy.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(InJvmPulsar.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+                Function<Object[], Object> answer = answers.get(method.getName());
+                if (answer != null) {
+                    return answer.apply(args);
+                }
+
+                return defaultAnswer(proxy, method, args);
+            });
+    }
+
+    /**
+     * Answer a call that has no explicit answer. Builder style methods return the proxy
+     * itself, asynchronous methods return a completed future and the rest return the default
+     * value of their return type.
+     *
+     * @param proxy the proxy the method was called on.
+     * @param method the called method.
+     * @param args the arguments of the call.
+     * @return the answer.
+     */
+    private static Object defaultAnswer(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "InJvmPulsar" + proxy.getClass().getInterfaces()[0].getSimpleName();
+            default:
+                break;
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType != Object.class && returnType.isInstance(proxy)) {
+            return proxy;
+        }
+        if (returnType == CompletableFuture.class) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class) {
+            return 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        if (returnType == double.class) {
+            return 0.0;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.autostreams.pulsar.dataprovider;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the line based framing that {@link DataProducerInitializer} adds to the data
+ * provider pipeline, run on an embedded channel without any network IO. Outbound measures encoding of a line as
+ * sent by the data provider, inbound measures splitting a buffer of lines into strings.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineFramingBenchmark {
+    @Param({"64", "1024"})
+    private int lineLength;
+
+    @Param({"100"})
+    private int linesPerRead;
+
+    private EmbeddedChannel channel;
+    private String line;
+    private ByteBuf lines;
+
+    /**
+     * Create an embedded channel with the data provider framing.
+     */
+    @Setup
+    public void setUp() {
+        this.channel = new EmbeddedChannel();
+        DataProducerInitializer.addFraming(this.channel.pipeline());
+        this.line = "x".repeat(this.lineLength);
+        this.lines = Unpooled.copiedBuffer(
+            (this.line + "\r\n").repeat(this.linesPerRead), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Close the embedded channel.
+     */
+    @TearDown
+    public void tearDown() {
+        this.channel.finishAndReleaseAll();
+        this.lines.release();
+    }
+
+    /**
+     * Encode a single line the way the data provider sends it.
+     *
+     * @param blackhole sink for the encoded buffer.
+     */
+    @Benchmark
+    public void encodeLine(Blackhole blackhole) {
+        this.channel.writeOutbound(this.line + "\r\n");
+        ByteBuf encoded = this.channel.readOutbound();
+        blackhole.consume(encoded.readableBytes());
+        encoded.release();
+    }
+
+    /**
+     * Decode a buffer of lines into strings.
+     *
+     * @param blackhole sink for the decoded lines.
+     */
+    @Benchmark
+    public void decodeLines(Blackhole blackhole) {
+        this.channel.writeInbound(this.lines.retainedDuplicate());
+        Object decoded;
+        while ((decoded = this.channel.readInbound()) != null) {
+            blackhole.consume(decoded);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.autostreams.pulsar.producer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning the producer properties into the configuration map passed to the Pulsar
+ * client, including the environment variable lookups.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProducerConfigBenchmark {
+    private final Properties properties = new Properties();
+    private Map<String, String> propertiesMap;
+
+    /**
+     * Fill the properties with the defaults of producer.properties.
+     */
+    @Setup
+    public void setUp() {
+        this.properties.setProperty("topicName", "Testtopic");
+        this.properties.setProperty("sendTimeoutMs", "30000");
+        this.properties.setProperty("blockIfQueueFull", "true");
+        this.properties.setProperty("maxPendingMessages", "1000");
+        this.properties.setProperty("maxPendingMessagesAcrossPartitions", "50000");
+        this.properties.setProperty("batchingEnabled", "true");
+        this.properties.setProperty("batchingMaxMessages", "1000");
+        this.properties.setProperty("batchingMaxBytes", "131072");
+        this.properties.setProperty("batchingMaxPublishDelayMicros", "1000");
+        this.properties.setProperty("messageRoutingMode", "RoundRobinPartition");
+        this.properties.setProperty("hashingScheme", "Murmur3_32Hash");
+        this.properties.setProperty("cryptoFailureAction", "FAIL");
+        this.properties.setProperty("compressionType", "NONE");
+
+        this.propertiesMap = PulsarProducer.convertPropertiesToMap(this.properties);
+    }
+
+    /**
+     * Convert the loaded properties to a string map.
+     *
+     * @return the converted map.
+     */
+    @Benchmark
+    public HashMap<String, String> convertPropertiesToMap() {
+        return PulsarProducer.convertPropertiesToMap(this.properties);
+    }
+
+    /**
+     * Transform the string map to the typed configuration map.
+     *
+     * @return the transformed map.
+     */
+    @Benchmark
+    public HashMap<String, Object> transformProducerPropertiesMap() {
+        return PulsarProducer.transformProducerPropertiesMap(this.propertiesMap);
+    }
+}
@@ -0,0 +1,97 @@
+package com.autostreams.pulsar.producer;
+
+import com.autostreams.pulsar.benchmark.InJvmPulsar;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of {@link PulsarProducer#onMessage}, from the data receiver
+ * handing over a line until the send is handed to the Pulsar client. Sends are acknowledged
+ * either inline or by a separate broker thread, which exercises the send window.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PulsarProducerBenchmark {
+    @Param({"INLINE", "BROKER_THREAD"})
+    private String acknowledgement;
+
+    @Param({"64", "1024"})
+    private int payloadSize;
+
+    @Param({"1000"})
+    private int sendWindow;
+
+    private final LongAdder sent = new LongAdder();
+    private ExecutorService broker;
+    private PulsarProducer pulsarProducer;
+    private String line;
+    private byte[] payload;
+
+    /**
+     * Create the producer around an in-JVM stand-in for the Pulsar client.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("BROKER_THREAD".equals(this.acknowledgement)) {
+            this.broker = Executors.newSingleThreadExecutor();
+        }
+
+        this.pulsarProducer = new PulsarProducer(
+            InJvmPulsar.producer(this.broker, this.sent),
+            new SendWindow(this.sendWindow),
+            ProducerMetrics.noop()
+        );
+        this.line = "x".repeat(this.payloadSize);
+        this.payload = this.line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stop the stand-in broker thread.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (this.broker != null) {
+            this.broker.shutdownNow();
+        }
+    }
+
+    /**
+     * Send a line as delivered by the string based data receiver.
+     */
+    @Benchmark
+    public void onMessageString() {
+        this.pulsarProducer.onMessage(this.line);
+    }
+
+    /**
+     * Send a raw payload as delivered by a byte based data receiver.
+     */
+    @Benchmark
+    public void onMessageBytes() {
+        this.pulsarProducer.onMessage(ByteBuffer.wrap(this.payload));
+    }
+}
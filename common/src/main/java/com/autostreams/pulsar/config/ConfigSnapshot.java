@@ -0,0 +1,181 @@
+package com.autostreams.pulsar.config;
+
+import static com.autostreams.utils.fileutils.FileUtils.loadPropertiesFromFile;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the properties files of a service. Every file is read from the
+ * classpath, and then overlaid with the file of the same name in the configuration directory,
+ * if there is one. Environment variables are not part of the snapshot, and keep taking
+ * precedence over it where the service reads them.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ConfigSnapshot {
+    private final Map<String, Properties> files;
+
+    /**
+     * Create a snapshot of loaded properties files.
+     *
+     * @param files the properties of every file, by file name.
+     */
+    private ConfigSnapshot(Map<String, Properties> files) {
+        this.files = files;
+    }
+
+    /**
+     * Load a snapshot of properties files.
+     *
+     * @param directory the configuration directory overriding the files on the classpath.
+     * @param fileNames the names of the properties files.
+     * @return the loaded snapshot.
+     * @throws IOException if a file in the configuration directory could not be read.
+     */
+    public static ConfigSnapshot load(Path directory, List<String> fileNames) throws IOException {
+        Map<String, Properties> files = new HashMap<>();
+
+        for (String fileName : fileNames) {
+            Properties properties = new Properties();
+            Properties bundled = loadPropertiesFromFile(fileName);
+            if (bundled != null) {
+                properties.putAll(bundled);
+            }
+
+            Path file = directory.resolve(fileName);
+            if (Files.isRegularFile(file)) {
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+            }
+
+            files.put(fileName, properties);
+        }
+
+        return new ConfigSnapshot(files);
+    }
+
+    /**
+     * Get a copy of the properties of a file.
+     *
+     * @param fileName the name of the properties file.
+     * @return the properties of the file, empty if the file is not part of the snapshot.
+     */
+    public Properties getProperties(String fileName) {
+        Properties copy = new Properties();
+        copy.putAll(this.files.getOrDefault(fileName, new Properties()));
+
+        return copy;
+    }
+
+    /**
+     * Get a property of a file, trimmed.
+     *
+     * @param fileName the name of the properties file.
+     * @param key the key of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     */
+    public String getString(String fileName, String key, String defaultValue) {
+        Properties properties = this.files.get(fileName);
+        String value = properties == null ? null : properties.getProperty(key);
+
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get an integer property of a file.
+     *
+     * @param fileName the name of the properties file.
+     * @param key the key of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     */
+    public int getInt(String fileName, String key, int defaultValue) {
+        return Integer.parseInt(this.getString(fileName, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Get a long property of a file.
+     *
+     * @param fileName the name of the properties file.
+     * @param key the key of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     */
+    public long getLong(String fileName, String key, long defaultValue) {
+        return Long.parseLong(this.getString(fileName, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Get a boolean property of a file.
+     *
+     * @param fileName the name of the properties file.
+     * @param key the key of the property.
+     * @param defaultValue the value to use if the property is not set.
+     * @return the value of the property.
+     */
+    public boolean getBoolean(String fileName, String key, boolean defaultValue) {
+        return Boolean.parseBoolean(this.getString(fileName, key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Get the keys of a file whose values differ from an earlier snapshot, including keys
+     * that were added or removed.
+     *
+     * @param previous the earlier snapshot.
+     * @param fileName the name of the properties file.
+     * @return the changed keys.
+     */
+    public Set<String> changedKeys(ConfigSnapshot previous, String fileName) {
+        Properties before = previous.files.getOrDefault(fileName, new Properties());
+        Properties after = this.files.getOrDefault(fileName, new Properties());
+
+        Set<String> changed = new HashSet<>();
+        for (String key : before.stringPropertyNames()) {
+            if (!Objects.equals(before.getProperty(key), after.getProperty(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : after.stringPropertyNames()) {
+            if (!before.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Check whether another snapshot holds the same properties.
+     *
+     * @param other the object to compare with.
+     * @return true if the other object is a snapshot with the same properties.
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ConfigSnapshot snapshot && this.files.equals(snapshot.files);
+    }
+
+    /**
+     * Get the hash code of the properties of the snapshot.
+     *
+     * @return the hash code.
+     */
+    @Override
+    public int hashCode() {
+        return this.files.hashCode();
+    }
+}
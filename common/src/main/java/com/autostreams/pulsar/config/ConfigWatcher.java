@@ -0,0 +1,185 @@
+package com.autostreams.pulsar.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the current snapshot of the properties files of a service, and reloads it when files
+ * in the configuration directory change. Every reload that changes the snapshot is handed to
+ * the listeners along with the previous snapshot, so that they can apply what changed.
+ *
+ * <p>The whole directory is watched rather than the files themselves, so that files replaced
+ * by a rename, as editors and Kubernetes config maps do, are picked up as well.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ConfigWatcher implements Closeable {
+    private static final long SETTLE_MILLIS = 250;
+    private final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+    private final Path directory;
+    private final List<String> fileNames;
+    private final List<BiConsumer<ConfigSnapshot, ConfigSnapshot>> listeners =
+        new CopyOnWriteArrayList<>();
+    private volatile ConfigSnapshot current;
+    private WatchService watchService;
+
+    /**
+     * Create a configuration watcher and load the first snapshot. Call {@link #start()} to
+     * start watching.
+     *
+     * @param directory the configuration directory overriding the files on the classpath.
+     * @param fileNames the names of the properties files.
+     * @throws IOException if a file in the configuration directory could not be read.
+     */
+    public ConfigWatcher(Path directory, List<String> fileNames) throws IOException {
+        this.directory = directory;
+        this.fileNames = List.copyOf(fileNames);
+        this.current = ConfigSnapshot.load(directory, this.fileNames);
+    }
+
+    /**
+     * Get the directory of a service's configuration: the directory named by the
+     * CONFIG_DIRECTORY environment variable, or "config" in the working directory.
+     *
+     * @return the configuration directory.
+     */
+    public static Path getConfigDirectory() {
+        return Path.of(System.getenv().getOrDefault("CONFIG_DIRECTORY", "config"));
+    }
+
+    /**
+     * Get the current snapshot.
+     *
+     * @return the current snapshot.
+     */
+    public ConfigSnapshot current() {
+        return this.current;
+    }
+
+    /**
+     * Add a listener receiving the previous and the current snapshot after every change.
+     *
+     * @param listener the listener to add.
+     */
+    public void addListener(BiConsumer<ConfigSnapshot, ConfigSnapshot> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Start watching the configuration directory, if it exists.
+     *
+     * @throws IOException if the directory could not be watched.
+     */
+    public void start() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            logger.info("No configuration directory at {}, configuration is not reloaded",
+                this.directory.toAbsolutePath());
+            return;
+        }
+
+        this.watchService = this.directory.getFileSystem().newWatchService();
+        this.directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching {} for configuration changes", this.directory.toAbsolutePath());
+    }
+
+    /**
+     * Wait for changes in the configuration directory until the watcher is closed. Changes
+     * are left to settle before reloading, so that a file written in several steps is read
+     * once it is complete.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = this.watchService.take();
+                key.pollEvents();
+                key.reset();
+
+                WatchKey next;
+                while ((next = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS))
+                    != null) {
+                    next.pollEvents();
+                    next.reset();
+                }
+
+                this.reload();
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.debug("Stopped watching {}", this.directory);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reload the snapshot, and hand it to the listeners if it changed. A file that cannot be
+     * read or applied leaves the previous snapshot in place, or only partly applied.
+     */
+    private void reload() {
+        ConfigSnapshot previous = this.current;
+        ConfigSnapshot reloaded;
+        try {
+            reloaded = ConfigSnapshot.load(this.directory, this.fileNames);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Unable to reload the configuration, keeping the current one");
+            e.printStackTrace();
+            return;
+        }
+
+        if (reloaded.equals(previous)) {
+            return;
+        }
+
+        this.current = reloaded;
+        for (String fileName : this.fileNames) {
+            Set<String> changed = reloaded.changedKeys(previous, fileName);
+            if (!changed.isEmpty()) {
+                logger.info("Reloaded {}, changed: {}", fileName, changed);
+            }
+        }
+
+        for (BiConsumer<ConfigSnapshot, ConfigSnapshot> listener : this.listeners) {
+            try {
+                listener.accept(previous, reloaded);
+            } catch (RuntimeException e) {
+                logger.error("Unable to apply the reloaded configuration");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop watching the configuration directory.
+     */
+    @Override
+    public void close() {
+        if (this.watchService == null) {
+            return;
+        }
+
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            logger.error("Unable to stop watching {}", this.directory);
+            e.printStackTrace();
+        }
+    }
+}
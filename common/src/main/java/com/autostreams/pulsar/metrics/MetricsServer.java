@@ -0,0 +1,109 @@
+package com.autostreams.pulsar.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP endpoint publishing the metrics of a Prometheus meter registry at "/metrics",
+ * for Prometheus to scrape. Plain text documents can be served next to the metrics.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class MetricsServer {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+    private final PrometheusMeterRegistry registry;
+    private final HttpServer server;
+
+    /**
+     * Create a metrics server. Call {@link #start()} to start serving.
+     *
+     * @param registry the registry to publish the metrics of.
+     * @param port the port to listen on.
+     * @throws IOException if the port could not be bound.
+     */
+    public MetricsServer(PrometheusMeterRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", this::scrape);
+    }
+
+    /**
+     * Create a Prometheus meter registry with JVM and processor metrics bound to it.
+     *
+     * @return the created registry.
+     */
+    public static PrometheusMeterRegistry createRegistry() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+        new ProcessorMetrics().bindTo(registry);
+
+        return registry;
+    }
+
+    /**
+     * Serve a plain text document at a path next to the metrics.
+     *
+     * @param path the path to serve the document at.
+     * @param document produces the document for every request.
+     */
+    public void serveText(String path, Supplier<String> document) {
+        this.server.createContext(path, exchange -> {
+            byte[] body = document.get().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+    }
+
+    /**
+     * Start serving metrics.
+     */
+    public void start() {
+        this.server.start();
+        logger.info("Serving metrics on port {}", this.server.getAddress().getPort());
+    }
+
+    /**
+     * Stop serving metrics.
+     */
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    /**
+     * Answer a scrape request with the current metrics in the Prometheus text format.
+     *
+     * @param exchange the request and response of the scrape.
+     * @throws IOException if the response could not be written.
+     */
+    private void scrape(HttpExchange exchange) throws IOException {
+        byte[] body = this.registry.scrape().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+}
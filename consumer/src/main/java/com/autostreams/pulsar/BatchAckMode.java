@@ -0,0 +1,20 @@
+package com.autostreams.pulsar;
+
+/**
+ * The ways a consumer worker can acknowledge a batch of received messages.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public enum BatchAckMode {
+    /**
+     * Acknowledge the last message of each topic partition in the batch cumulatively.
+     * Only supported by Exclusive and Failover subscriptions.
+     */
+    CUMULATIVE,
+
+    /**
+     * Acknowledge every message id in the batch individually in a single request.
+     */
+    LIST
+}
@@ -5,10 +5,25 @@
 
 package com.autostreams.pulsar;
 
+import com.autostreams.pulsar.config.ConfigSnapshot;
+import com.autostreams.pulsar.config.ConfigWatcher;
+import com.autostreams.pulsar.metrics.MetricsServer;
 import com.autostreams.utils.datareceiver.StreamsServer;
-import com.autostreams.utils.fileutils.FileUtils;
-import java.util.ArrayList;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pulsar.client.api.PulsarClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,8 +35,19 @@ import org.slf4j.LoggerFactory;
  */
 public class ConsumerMaster implements StreamsServer<String> {
     private static final String CONFIG_NAME = "masterconfig.properties";
-    private final ArrayList<ConsumerWorker> workers = new ArrayList<>();
+    private final List<ConsumerWorker> workers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextWorkerId = new AtomicInteger();
     private final Logger logger = LoggerFactory.getLogger(ConsumerMaster.class);
+    private PulsarClientPool clientPool;
+    private MessageDispatcher dispatcher;
+    private ExecutionMode executionMode = ExecutionMode.THREAD;
+    private ExecutorService workerExecutor = null;
+    private MeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private MetricsServer metricsServer = null;
+    private WorkerAutoscaler autoscaler = null;
+    private PrefetchGovernor governor = null;
+    private LatencyTracer tracer = null;
+    private ConfigWatcher config = null;
 
     /**
      * Initializes the Consumer Master, starts generation of workers.
@@ -29,38 +55,451 @@ public class ConsumerMaster implements StreamsServer<String> {
      * @param consumerCount amount of consumers to generate
      */
     public void init(int consumerCount) {
-        this.generateWorkers(consumerCount);
+        logger.info("Attempting to load properties from file");
+        try {
+            this.config = new ConfigWatcher(ConfigWatcher.getConfigDirectory(),
+                    List.of(CONFIG_NAME, ConsumerPropertyLoader.CONFIG_NAME));
+        } catch (IOException ioe) {
+            logger.error("Exception occurred during loading of the configuration");
+            ioe.printStackTrace();
+            return;
+        }
+        Properties props = this.config.current().getProperties(CONFIG_NAME);
+
+        try {
+            this.clientPool = new PulsarClientPool(
+                    new ConsumerPropertyLoader(this.config.current()).getHost(), props);
+        } catch (PulsarClientException pce) {
+            logger.error("Exception occurred during construction of Pulsar clients");
+            pce.printStackTrace();
+            return;
+        }
+
+        this.startMetrics(props);
+        this.startTracing(props);
+        this.dispatcher = this.createDispatcher(props);
+        this.createWorkerExecutor(props);
+
+        if (Boolean.parseBoolean(props.getProperty("autoscaler.enabled", "false").trim())) {
+            if (this.isPartitioned()) {
+                logger.warn("The autoscaler is disabled, since partitioned dispatch subscribes "
+                        + "with a single worker");
+            } else {
+                this.autoscaler = new WorkerAutoscaler(this, props);
+            }
+        }
+
+        if (Boolean.parseBoolean(props.getProperty("prefetch.enabled", "false").trim())) {
+            this.governor = new PrefetchGovernor(this, props, this.meterRegistry);
+        }
+
+        this.generateWorkers(consumerCount, props);
+        this.watchConfig();
+    }
+
+    /**
+     * Starts applying changes of the configuration files while the consumer runs.
+     */
+    private void watchConfig() {
+        this.config.addListener(this::onConfigChanged);
+        try {
+            this.config.start();
+        } catch (IOException ioe) {
+            logger.error("Exception occurred during start of the configuration watcher");
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a changed configuration. A change of the consumer configuration replaces the
+     * workers one at a time, since the settings of a Pulsar consumer are fixed when it
+     * subscribes. The worker count and the autoscaler settings are applied in place, and
+     * other master settings need a restart to apply.
+     *
+     * @param previous the configuration before the change
+     * @param current the configuration after the change
+     */
+    private void onConfigChanged(ConfigSnapshot previous, ConfigSnapshot current) {
+        Properties props = current.getProperties(CONFIG_NAME);
+
+        for (String key : current.changedKeys(previous, CONFIG_NAME)) {
+            if (key.equals("consumers.count") && this.isPartitioned()) {
+                logger.warn("Ignoring the change of {}, partitioned dispatch subscribes with a "
+                        + "single worker", key);
+            } else if (key.equals("consumers.count") && this.autoscaler == null) {
+                this.resizeWorkers(current.getInt(CONFIG_NAME, key, 1),
+                        this.getDrainTimeoutMillis(props));
+            } else if (key.startsWith("autoscaler.") && !key.equals("autoscaler.enabled")
+                    && !key.equals("autoscaler.intervalSeconds") && this.autoscaler != null) {
+                this.autoscaler.reconfigure(props);
+            } else if (!key.equals("workers.drainTimeoutSeconds")) {
+                logger.warn("Restart the consumer to apply the change of {}", key);
+            }
+        }
+
+        if (!current.changedKeys(previous, ConsumerPropertyLoader.CONFIG_NAME).isEmpty()) {
+            this.replaceWorkers(
+                    isExclusive(previous) || isExclusive(current),
+                    this.getDrainTimeoutMillis(props));
+        }
+    }
+
+    /**
+     * Checks whether a configuration subscribes with an exclusive subscription, which allows
+     * only a single consumer at a time.
+     *
+     * @param snapshot the configuration to check
+     * @return true if the subscription is exclusive
+     */
+    private static boolean isExclusive(ConfigSnapshot snapshot) {
+        Map<String, Object> consumerConfiguration =
+                new ConsumerPropertyLoader(snapshot).getConsumerConfiguration();
+
+        return Objects.equals("Exclusive",
+                String.valueOf(consumerConfiguration.get("subscriptionType")).trim());
+    }
+
+    /**
+     * Gets the longest time to wait for a replaced or removed worker to drain.
+     *
+     * @param props properties loaded from the master configuration file
+     * @return the drain timeout in milliseconds
+     */
+    private long getDrainTimeoutMillis(Properties props) {
+        return TimeUnit.SECONDS.toMillis(Long.parseLong(
+                props.getProperty("workers.drainTimeoutSeconds", "30").trim()));
+    }
+
+    /**
+     * Creates the meter registry of the workers and starts serving it, if metrics are enabled.
+     *
+     * @param props properties loaded from the master configuration file
+     */
+    private void startMetrics(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("metrics.enabled", "true").trim())) {
+            return;
+        }
+
+        PrometheusMeterRegistry registry = MetricsServer.createRegistry();
+        this.meterRegistry = registry;
+
+        try {
+            this.metricsServer = new MetricsServer(registry,
+                    Integer.parseInt(props.getProperty("metrics.port", "9465").trim()));
+            this.metricsServer.start();
+        } catch (IOException ioe) {
+            logger.error("Exception occurred during start of the metrics server");
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts recording the latency of traced messages per hop, if tracing is enabled. The
+     * latency is logged periodically and served at "/latency" next to the metrics.
+     *
+     * @param props properties loaded from the master configuration file
+     */
+    private void startTracing(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("tracing.enabled", "false").trim())) {
+            return;
+        }
+
+        this.tracer = new LatencyTracer(Long.parseLong(
+                props.getProperty("tracing.reportIntervalSeconds", "60").trim()));
+        this.tracer.start();
+
+        if (this.metricsServer != null) {
+            this.metricsServer.serveText("/latency", this.tracer::query);
+        }
+    }
+
+    /**
+     * Creates the executor that runs the workers, depending on the configured execution mode.
+     * Virtual threads are looked up reflectively, so the consumer still runs on runtimes
+     * without them by falling back to the async mode.
+     *
+     * @param props properties loaded from the master configuration file
+     */
+    private void createWorkerExecutor(Properties props) {
+        this.executionMode = ExecutionMode.valueOf(
+                props.getProperty("workers.executionMode", "THREAD").trim());
+
+        if (this.executionMode == ExecutionMode.VIRTUAL) {
+            try {
+                this.workerExecutor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not available, falling back to async mode");
+                this.executionMode = ExecutionMode.ASYNC;
+            }
+        }
+
+        if (this.executionMode == ExecutionMode.ASYNC) {
+            int threads = Integer.parseInt(props.getProperty("workers.asyncThreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+            this.workerExecutor = Executors.newFixedThreadPool(threads);
+        }
+
+        logger.info("Workers are executed in {} mode", this.executionMode);
+    }
+
+    /**
+     * Creates the dispatcher that workers hand received messages to. In partitioned mode,
+     * lanes retry a failed message a few times by default, keeping its partition ordered,
+     * before leaving it for redelivery, so that a message the handler always fails on does
+     * not hold back its partition for good. The other modes leave a failed message for
+     * redelivery right away.
+     *
+     * @param props properties loaded from the master configuration file
+     * @return the created dispatcher
+     */
+    private MessageDispatcher createDispatcher(Properties props) {
+        MessageHandler handler = this.loadMessageHandler(props);
+        handler.initialize(props);
+
+        DispatchMode dispatchMode = DispatchMode.valueOf(
+                props.getProperty("handler.dispatchMode", "DIRECT").trim());
+        String defaultLaneAttempts = dispatchMode == DispatchMode.PARTITIONED ? "5" : "1";
+
+        MessageDispatcher messageDispatcher = new MessageDispatcher(
+                handler,
+                dispatchMode,
+                Integer.parseInt(props.getProperty("handler.threads", "4").trim()),
+                Integer.parseInt(props.getProperty("handler.queueSize", "1000").trim()),
+                Integer.parseInt(
+                        props.getProperty("handler.laneAttempts", defaultLaneAttempts).trim()),
+                new JitteredRedeliveryBackoff(
+                        Long.parseLong(props.getProperty("handler.laneRetryMinMillis", "100")
+                                .trim()),
+                        Long.parseLong(props.getProperty("handler.laneRetryMaxMillis", "10000")
+                                .trim()),
+                        2, 0.2));
+        messageDispatcher.bindMetrics(this.meterRegistry);
+
+        return messageDispatcher;
+    }
+
+    /**
+     * Checks whether messages are dispatched on a lane per topic partition, which needs a
+     * single worker, since the lanes only keep partitions in order within one consumer.
+     *
+     * @return true if the dispatcher is in partitioned mode
+     */
+    private boolean isPartitioned() {
+        return this.dispatcher != null
+                && this.dispatcher.getDispatchMode() == DispatchMode.PARTITIONED;
+    }
+
+    /**
+     * Loads the message handler. A handler named by the "handler.class" property is
+     * preferred, then the first handler found through the ServiceLoader, and otherwise the
+     * logging handler.
+     *
+     * @param props properties loaded from the master configuration file
+     * @return the loaded message handler
+     */
+    private MessageHandler loadMessageHandler(Properties props) {
+        String className = props.getProperty("handler.class", "").trim();
+        if (!className.isEmpty()) {
+            try {
+                return Class.forName(className)
+                        .asSubclass(MessageHandler.class)
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalStateException("Could not load message handler " + className, e);
+            }
+        }
+
+        return ServiceLoader.load(MessageHandler.class)
+                .findFirst()
+                .orElseGet(LoggingMessageHandler::new);
     }
 
     /**
      * Generates workers belonging to the master.
      *
      * @param consumerCount amount of workers to create
+     * @param props properties loaded from the master configuration file
      */
-    private void generateWorkers(int consumerCount) {
+    private void generateWorkers(int consumerCount, Properties props) {
         if (consumerCount == 0) {
-            logger.info("Attempting to load properties from file");
-
-            Properties props = FileUtils.loadPropertiesFromFile(CONFIG_NAME);
             consumerCount = Integer.parseInt(props.getProperty("consumers.count"));
         }
+        if (this.autoscaler != null) {
+            consumerCount = this.autoscaler.bound(consumerCount);
+        }
+        if (this.isPartitioned() && consumerCount != 1) {
+            logger.warn("Partitioned dispatch subscribes with a single worker, ignoring the "
+                    + "{} workers ordered", consumerCount);
+            consumerCount = 1;
+        }
 
         logger.info("Consumer generation started. {} workers ordered", consumerCount);
         for (int i = 0; i < consumerCount; i++) {
-            ConsumerWorker cw = new ConsumerWorker();
-            cw.initialize();
+            workers.add(this.createWorker(consumerCount));
+        }
+    }
 
-            workers.add(cw);
+    /**
+     * Creates and initializes a worker, without starting it. With the prefetch governor
+     * enabled, the receiver queue of the worker is sized to its share of the prefetch budget.
+     *
+     * @param workerCount the number of workers the master will have, including this one
+     * @return the created worker
+     */
+    private ConsumerWorker createWorker(int workerCount) {
+        String name = "worker-" + this.nextWorkerId.getAndIncrement();
+        ConsumerPropertyLoader propertyLoader = new ConsumerPropertyLoader(this.config.current());
+        ConsumerWorker cw = new ConsumerWorker(this.clientPool.next(), this.dispatcher,
+                new ConsumerMetrics(this.meterRegistry, name, this.tracer), propertyLoader);
+
+        if (this.governor != null) {
+            int configuredSize = Integer.parseInt(String.valueOf(propertyLoader
+                    .getConsumerConfiguration()
+                    .getOrDefault("receiverQueueSize", "1000")).trim());
+            cw.limitPrefetch(this.governor.receiverQueueSize(workerCount, configuredSize),
+                    this.governor.isAutoScaledReceiverQueue());
         }
+        cw.initialize();
+
+        return cw;
     }
 
     /**
-     * Starts the workers of the master.
+     * Starts the workers of the master, and the autoscaler if it is enabled.
      */
     public void startWorkers() {
         for (ConsumerWorker worker : workers) {
-            worker.start();
+            worker.start(this.executionMode, this.workerExecutor);
+        }
+
+        if (this.autoscaler != null) {
+            this.autoscaler.start();
+        }
+
+        if (this.governor != null) {
+            this.governor.start();
+        }
+    }
+
+    /**
+     * Creates, starts and adds a worker to the master.
+     */
+    synchronized void addWorker() {
+        workers.add(this.createStartedWorker(workers.size() + 1));
+    }
+
+    /**
+     * Creates and starts a worker, without adding it to the master.
+     *
+     * @param workerCount the number of workers the master will have, including this one
+     * @return the started worker
+     */
+    private ConsumerWorker createStartedWorker(int workerCount) {
+        ConsumerWorker worker = this.createWorker(workerCount);
+        worker.start(this.executionMode, this.workerExecutor);
+
+        return worker;
+    }
+
+    /**
+     * Removes the most recently added worker from the master, draining it before it is
+     * closed.
+     *
+     * @param drainTimeoutMillis the longest time to wait for the worker to drain
+     */
+    synchronized void removeWorker(long drainTimeoutMillis) {
+        if (workers.isEmpty()) {
+            return;
+        }
+
+        retireWorker(workers.remove(workers.size() - 1), drainTimeoutMillis);
+    }
+
+    /**
+     * Drains and closes a worker that has been taken out of the master.
+     *
+     * @param worker the worker to retire
+     * @param drainTimeoutMillis the longest time to wait for the worker to drain
+     */
+    private static void retireWorker(ConsumerWorker worker, long drainTimeoutMillis) {
+        worker.drain(drainTimeoutMillis);
+        worker.getMetrics().close();
+    }
+
+    /**
+     * Adds or removes workers until the master has the given number of workers.
+     *
+     * @param count the number of workers to have
+     * @param drainTimeoutMillis the longest time to wait for a removed worker to drain
+     */
+    private synchronized void resizeWorkers(int count, long drainTimeoutMillis) {
+        logger.info("Resizing from {} to {} workers", workers.size(), count);
+        while (workers.size() < count) {
+            this.addWorker();
+        }
+        while (workers.size() > count) {
+            this.removeWorker(drainTimeoutMillis);
+        }
+    }
+
+    /**
+     * Replaces every worker by a worker created from the current configuration, one at a
+     * time so that the other workers keep consuming meanwhile. The replacing worker is started
+     * before the replaced one is drained, except for exclusive subscriptions, which do not
+     * allow both to be subscribed at once.
+     *
+     * @param exclusive whether the replaced or the replacing workers subscribe exclusively
+     * @param drainTimeoutMillis the longest time to wait for a replaced worker to drain
+     */
+    private synchronized void replaceWorkers(boolean exclusive, long drainTimeoutMillis) {
+        logger.info("Replacing {} workers to apply the changed consumer configuration",
+                workers.size());
+
+        for (ConsumerWorker worker : List.copyOf(workers)) {
+            int index = workers.indexOf(worker);
+            if (exclusive) {
+                retireWorker(worker, drainTimeoutMillis);
+                workers.set(index, this.createStartedWorker(workers.size()));
+            } else {
+                workers.set(index, this.createStartedWorker(workers.size()));
+                retireWorker(worker, drainTimeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Gets the current number of workers.
+     *
+     * @return the number of workers
+     */
+    int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Gets the current workers.
+     *
+     * @return a copy of the list of workers
+     */
+    List<ConsumerWorker> getWorkers() {
+        return List.copyOf(workers);
+    }
+
+    /**
+     * Samples the combined load of all workers since the previous sample.
+     *
+     * @return the combined load of the workers
+     */
+    ConsumerMetrics.Load sampleWorkerLoad() {
+        ConsumerMetrics.Load load = new ConsumerMetrics.Load(0, 0, 0, 0, 0);
+        for (ConsumerWorker worker : workers) {
+            load = load.plus(worker.getMetrics().sampleLoad());
         }
+
+        return load;
     }
 
     /**
@@ -74,12 +513,139 @@ public class ConsumerMaster implements StreamsServer<String> {
     }
 
     /**
-     * Shuts down all workers associated with this master.
+     * Shuts down all workers associated with this master, draining them first. The workers
+     * stop receiving, wait up to the drain timeout for their handlers to process the messages
+     * in flight and for the acknowledgements to complete, and then close their consumers. The
+     * time and counts of every phase are logged.
      */
     @Override
     public void onShutdown() {
-        for (ConsumerWorker worker : workers) {
+        long drainTimeoutMillis = this.config == null
+                ? TimeUnit.SECONDS.toMillis(30)
+                : this.getDrainTimeoutMillis(this.config.current().getProperties(CONFIG_NAME));
+        List<ConsumerWorker> drained = List.copyOf(workers);
+        logger.info("Draining {} workers within {} ms", drained.size(), drainTimeoutMillis);
+        long drainStartNanos = System.nanoTime();
+        long deadline = drainStartNanos + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+
+        long phaseStartNanos = System.nanoTime();
+        this.stopInput(drained);
+        logger.info("Stopped receiving in {} ms, {} messages in process",
+                elapsedMillis(phaseStartNanos), countInProcess(drained));
+
+        phaseStartNanos = System.nanoTime();
+        boolean processed = true;
+        for (ConsumerWorker worker : drained) {
+            processed &= worker.awaitProcessed(deadline);
+        }
+        logger.info("Finished in-flight handlers in {} ms, {} messages left in process",
+                elapsedMillis(phaseStartNanos), countInProcess(drained));
+        if (!processed) {
+            logger.warn("Timed out waiting for handlers, messages in process are redelivered");
+        }
+
+        phaseStartNanos = System.nanoTime();
+        int pendingAcks = 0;
+        for (ConsumerWorker worker : drained) {
+            worker.awaitAcknowledged(deadline);
+            pendingAcks += worker.getMetrics().getPendingAcks();
+        }
+        logger.info("Committed acknowledgements in {} ms, {} acknowledgements left pending",
+                elapsedMillis(phaseStartNanos), pendingAcks);
+
+        phaseStartNanos = System.nanoTime();
+        this.closeClients(drained);
+        logger.info("Closed consumers and clients in {} ms", elapsedMillis(phaseStartNanos));
+
+        if (this.tracer != null) {
+            this.tracer.stop();
+        }
+
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+        }
+
+        logger.info("Consumer Master shut down in {} ms", elapsedMillis(drainStartNanos));
+    }
+
+    /**
+     * Stops everything that receives messages or changes the workers: the configuration
+     * watcher, the autoscaler, the prefetch governor and the receive loops of the workers.
+     *
+     * @param drained the workers to stop
+     */
+    private void stopInput(List<ConsumerWorker> drained) {
+        if (this.config != null) {
+            this.config.close();
+        }
+
+        if (this.autoscaler != null) {
+            this.autoscaler.stop();
+        }
+
+        if (this.governor != null) {
+            this.governor.stop();
+        }
+
+        for (ConsumerWorker worker : drained) {
+            worker.stopReceiving();
+        }
+    }
+
+    /**
+     * Closes the consumers of the workers, then the executor, dispatcher and clients they
+     * share.
+     *
+     * @param drained the workers to close
+     */
+    private void closeClients(List<ConsumerWorker> drained) {
+        for (ConsumerWorker worker : drained) {
             worker.stop();
         }
+
+        if (this.workerExecutor != null) {
+            this.workerExecutor.shutdown();
+            try {
+                if (!this.workerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    this.workerExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for workers to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.dispatcher != null) {
+            this.dispatcher.close();
+        }
+
+        if (this.clientPool != null) {
+            this.clientPool.close();
+        }
+    }
+
+    /**
+     * Counts the messages that workers have dispatched and not yet processed.
+     *
+     * @param counted the workers to count the messages of
+     * @return the number of messages in process
+     */
+    private static int countInProcess(List<ConsumerWorker> counted) {
+        int inProcess = 0;
+        for (ConsumerWorker worker : counted) {
+            inProcess += worker.getMetrics().getInProcess();
+        }
+
+        return inProcess;
+    }
+
+    /**
+     * Gets the time passed since a point in time.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} at the point in time
+     * @return the time passed in milliseconds
+     */
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
     }
 }
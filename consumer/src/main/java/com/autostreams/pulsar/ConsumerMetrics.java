@@ -0,0 +1,429 @@
+package com.autostreams.pulsar;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.Message;
+
+/**
+ * Metrics of a consumer worker: received and redelivered messages, end-to-end latency from
+ * the publish time of messages, handler and acknowledgement latency, and the backlog held by
+ * the worker, along with the statistics the Pulsar client collects itself. Every metric is
+ * tagged with the name of the worker. The load of the worker can also be sampled, for the
+ * autoscaler to decide on the number of workers.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ConsumerMetrics {
+    private final MeterRegistry registry;
+    private final String worker;
+    private final List<Meter> meters = new ArrayList<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder lagMillis = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder handlerNanos = new LongAdder();
+    private final Counter redelivered;
+    private final Counter failed;
+    private final Timer endToEndLatency;
+    private final Timer handlerLatency;
+    private final Timer ackLatency;
+    private final AtomicInteger inProcess = new AtomicInteger();
+    private final AtomicInteger pendingAcks = new AtomicInteger();
+    private final LatencyTracer tracer;
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicInteger paused = new AtomicInteger();
+    private volatile Consumer<?> consumer = null;
+    private boolean prefetchBound = false;
+    private boolean closed = false;
+    private Load sampled = new Load(0, 0, 0, 0, 0);
+
+    /**
+     * Creates the metrics of a worker and registers them.
+     *
+     * @param registry the registry to register the metrics in
+     * @param worker the name of the worker, used as the "worker" tag
+     */
+    public ConsumerMetrics(MeterRegistry registry, String worker) {
+        this(registry, worker, null);
+    }
+
+    /**
+     * Creates the metrics of a worker and registers them, also passing received messages on
+     * to a latency tracer.
+     *
+     * @param registry the registry to register the metrics in
+     * @param worker the name of the worker, used as the "worker" tag
+     * @param tracer the tracer recording the latency of traced messages, or null
+     */
+    public ConsumerMetrics(MeterRegistry registry, String worker, LatencyTracer tracer) {
+        this.registry = registry;
+        this.worker = worker;
+        this.tracer = tracer;
+
+        this.meters.add(FunctionCounter.builder("pulsar.consumer.received", this.received,
+                        LongAdder::sum)
+                .description("Messages received from the broker")
+                .tag("worker", worker)
+                .register(registry));
+        this.redelivered = Counter.builder("pulsar.consumer.redelivered")
+                .description("Received messages that had been delivered before")
+                .tag("worker", worker)
+                .register(registry);
+        this.meters.add(this.redelivered);
+        this.failed = Counter.builder("pulsar.consumer.failed")
+                .description("Messages the handler failed to process, left for redelivery")
+                .tag("worker", worker)
+                .register(registry);
+        this.meters.add(this.failed);
+        this.endToEndLatency = latencyTimer("pulsar.consumer.end.to.end.latency",
+                "Time from the publish time of a message until it was received", registry);
+        this.handlerLatency = latencyTimer("pulsar.consumer.handler.latency",
+                "Time from dispatching a message until the handler processed it", registry);
+        this.ackLatency = latencyTimer("pulsar.consumer.ack.latency",
+                "Time for the client to complete an acknowledgement", registry);
+
+        this.meters.add(Gauge.builder("pulsar.consumer.in.process", this.inProcess,
+                        AtomicInteger::get)
+                .description("Messages dispatched to the handler and not yet processed")
+                .tag("worker", worker)
+                .register(registry));
+    }
+
+    /**
+     * Creates worker metrics that are not published anywhere.
+     *
+     * @return the created metrics
+     */
+    public static ConsumerMetrics noop() {
+        return new ConsumerMetrics(new CompositeMeterRegistry(), "noop");
+    }
+
+    /**
+     * Creates a timer with a percentile histogram, tagged with the name of the worker.
+     *
+     * @param name the name of the timer
+     * @param description the description of the timer
+     * @param registry the registry to register the timer in
+     * @return the created timer
+     */
+    private Timer latencyTimer(String name, String description, MeterRegistry registry) {
+        Timer timer = Timer.builder(name)
+                .description(description)
+                .tag("worker", this.worker)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(registry);
+        this.meters.add(timer);
+
+        return timer;
+    }
+
+    /**
+     * Publishes the backlog of a consumer and the statistics collected by the Pulsar client
+     * for it. The client only refreshes its statistics once per stats interval.
+     *
+     * @param consumer the consumer of the worker
+     */
+    public void bindConsumer(Consumer<?> consumer) {
+        this.consumer = consumer;
+
+        this.meters.add(Gauge.builder("pulsar.consumer.receiver.queue", consumer,
+                        c -> toDouble(c.getStats().getMsgNumInReceiverQueue()))
+                .description("Messages prefetched into the receiver queue and not yet received")
+                .tag("worker", this.worker)
+                .register(this.registry));
+
+        this.statsGauge("pulsar.consumer.stats.receive.rate", consumer,
+                ConsumerStats::getRateMsgsReceived);
+        this.statsGauge("pulsar.consumer.stats.receive.bytes.rate", consumer,
+                ConsumerStats::getRateBytesReceived);
+
+        this.statsCounter("pulsar.consumer.stats.acks.sent", consumer,
+                ConsumerStats::getTotalAcksSent);
+        this.statsCounter("pulsar.consumer.stats.acks.failed", consumer,
+                ConsumerStats::getTotalAcksFailed);
+        this.statsCounter("pulsar.consumer.stats.receive.failed", consumer,
+                ConsumerStats::getTotalReceivedFailed);
+    }
+
+    /**
+     * Registers a gauge reading a value off the statistics of a consumer.
+     *
+     * @param name the name of the gauge
+     * @param consumer the consumer to read the statistics of
+     * @param value the value of the statistics to publish
+     */
+    private void statsGauge(String name, Consumer<?> consumer,
+                            ToDoubleFunction<ConsumerStats> value) {
+        this.meters.add(Gauge.builder(name, consumer, c -> value.applyAsDouble(c.getStats()))
+                .description("Statistics of the last stats interval of the Pulsar client")
+                .tag("worker", this.worker)
+                .register(this.registry));
+    }
+
+    /**
+     * Registers a counter reading a total off the statistics of a consumer.
+     *
+     * @param name the name of the counter
+     * @param consumer the consumer to read the statistics of
+     * @param value the total of the statistics to publish
+     */
+    private void statsCounter(String name, Consumer<?> consumer,
+                              ToDoubleFunction<ConsumerStats> value) {
+        this.meters.add(FunctionCounter.builder(name, consumer,
+                        c -> value.applyAsDouble(c.getStats()))
+                .description("Totals counted by the Pulsar client")
+                .tag("worker", this.worker)
+                .register(this.registry));
+    }
+
+    /**
+     * Converts a possibly missing statistic to a gauge value.
+     *
+     * @param value the statistic, or null if the client does not collect it
+     * @return the statistic, or NaN if it is missing
+     */
+    private static double toDouble(Number value) {
+        return value == null ? Double.NaN : value.doubleValue();
+    }
+
+    /**
+     * Records a message received from the broker and about to be dispatched.
+     *
+     * @param message the received message
+     */
+    void recordReceived(Message<?> message) {
+        this.received.increment();
+        this.receivedBytes.add(message.size());
+        this.inProcess.incrementAndGet();
+
+        if (message.getRedeliveryCount() > 0) {
+            this.redelivered.increment();
+        }
+
+        long latencyMillis = Math.max(System.currentTimeMillis() - message.getPublishTime(), 0);
+        this.lagMillis.add(latencyMillis);
+        this.endToEndLatency.record(latencyMillis, TimeUnit.MILLISECONDS);
+
+        if (this.tracer != null) {
+            this.tracer.record(message);
+        }
+    }
+
+    /**
+     * Records a message that the handler has processed, successfully or not.
+     *
+     * @param dispatchNanos the value of {@link System#nanoTime()} when it was dispatched
+     */
+    void recordProcessed(long dispatchNanos) {
+        long latencyNanos = System.nanoTime() - dispatchNanos;
+
+        this.inProcess.decrementAndGet();
+        this.processed.increment();
+        this.handlerNanos.add(latencyNanos);
+        this.handlerLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a message that the handler failed to process, and that is left for redelivery.
+     */
+    void recordFailed() {
+        this.failed.increment();
+    }
+
+    /**
+     * Records an asynchronous acknowledgement that has been requested and not yet completed.
+     */
+    void recordAckRequested() {
+        this.pendingAcks.incrementAndGet();
+    }
+
+    /**
+     * Records a requested asynchronous acknowledgement that has completed, successfully or
+     * not.
+     */
+    void recordAckCompleted() {
+        this.pendingAcks.decrementAndGet();
+    }
+
+    /**
+     * Gets the number of asynchronous acknowledgements that have not yet completed.
+     *
+     * @return the number of pending acknowledgements
+     */
+    int getPendingAcks() {
+        return this.pendingAcks.get();
+    }
+
+    /**
+     * Records a completed acknowledgement.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when it was requested
+     */
+    void recordAck(long startNanos) {
+        this.ackLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the number of messages dispatched to the handler and not yet processed.
+     *
+     * @return the number of messages in process
+     */
+    int getInProcess() {
+        return this.inProcess.get();
+    }
+
+    /**
+     * Gets the number of messages prefetched into the receiver queue and not yet received.
+     *
+     * @return the number of prefetched messages, or 0 if no consumer is bound
+     */
+    int getReceiverQueue() {
+        Consumer<?> boundConsumer = this.consumer;
+        Integer receiverQueue = boundConsumer == null
+                ? null
+                : boundConsumer.getStats().getMsgNumInReceiverQueue();
+
+        return receiverQueue == null ? 0 : receiverQueue;
+    }
+
+    /**
+     * Gets the number of messages received since the worker was created.
+     *
+     * @return the number of received messages
+     */
+    long getReceived() {
+        return this.received.sum();
+    }
+
+    /**
+     * Gets the payload bytes received since the worker was created.
+     *
+     * @return the number of received bytes
+     */
+    long getReceivedBytes() {
+        return this.receivedBytes.sum();
+    }
+
+    /**
+     * Gets the number of messages processed since the worker was created.
+     *
+     * @return the number of processed messages
+     */
+    long getProcessed() {
+        return this.processed.sum();
+    }
+
+    /**
+     * Records the memory held by the worker as governed by the prefetch governor. The gauges
+     * are registered on the first record, so they are only published while it governs.
+     *
+     * @param prefetched the bytes prefetched or in process, estimated from the message size
+     * @param allocated the bytes of the prefetch budget allocated to the worker
+     * @param isPaused whether the worker is paused for holding more than its allocation
+     */
+    synchronized void recordPrefetch(long prefetched, long allocated, boolean isPaused) {
+        if (this.closed) {
+            return;
+        }
+
+        this.prefetchedBytes.set(prefetched);
+        this.allocatedBytes.set(allocated);
+        this.paused.set(isPaused ? 1 : 0);
+
+        if (this.prefetchBound) {
+            return;
+        }
+        this.prefetchBound = true;
+
+        this.meters.add(Gauge.builder("pulsar.consumer.prefetch", this.prefetchedBytes,
+                        AtomicLong::get)
+                .description("Bytes prefetched or in process, estimated from the message size")
+                .tag("worker", this.worker)
+                .baseUnit("bytes")
+                .register(this.registry));
+        this.meters.add(Gauge.builder("pulsar.consumer.prefetch.allocated",
+                        this.allocatedBytes, AtomicLong::get)
+                .description("Bytes of the prefetch budget allocated to the worker")
+                .tag("worker", this.worker)
+                .baseUnit("bytes")
+                .register(this.registry));
+        this.meters.add(Gauge.builder("pulsar.consumer.paused", this.paused,
+                        AtomicInteger::get)
+                .description("1 while the worker is paused for exceeding its allocation")
+                .tag("worker", this.worker)
+                .register(this.registry));
+    }
+
+    /**
+     * Samples the load of the worker since the previous sample.
+     *
+     * @return the load since the previous sample, with the backlog at the time of sampling
+     */
+    synchronized Load sampleLoad() {
+        Load total = new Load(this.received.sum(), this.lagMillis.sum(), this.processed.sum(),
+                this.handlerNanos.sum(), 0);
+        Load previous = this.sampled;
+        this.sampled = total;
+
+        int backlog = this.inProcess.get() + this.getReceiverQueue();
+
+        return new Load(total.received() - previous.received(),
+                total.lagMillis() - previous.lagMillis(),
+                total.processed() - previous.processed(),
+                total.handlerNanos() - previous.handlerNanos(),
+                backlog);
+    }
+
+    /**
+     * Removes the metrics of the worker from the registry, once the worker has been removed.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        for (Meter meter : this.meters) {
+            this.registry.remove(meter);
+        }
+        this.meters.clear();
+    }
+
+    /**
+     * Load of one or more workers over a sampling interval.
+     *
+     * @param received messages received
+     * @param lagMillis sum of the time from publish until receive of the received messages
+     * @param processed messages processed by the handler
+     * @param handlerNanos sum of the handler latency of the processed messages
+     * @param backlog messages prefetched or in process at the end of the interval
+     */
+    record Load(long received, long lagMillis, long processed, long handlerNanos, int backlog) {
+        /**
+         * Adds up the load of two workers.
+         *
+         * @param other the load of the other worker
+         * @return the combined load
+         */
+        Load plus(Load other) {
+            return new Load(this.received + other.received, this.lagMillis + other.lagMillis,
+                    this.processed + other.processed, this.handlerNanos + other.handlerNanos,
+                    this.backlog + other.backlog);
+        }
+    }
+}
@@ -1,23 +1,30 @@
 package com.autostreams.pulsar;
 
-import com.autostreams.utils.fileutils.FileUtils;
+import com.autostreams.pulsar.config.ConfigSnapshot;
+import com.autostreams.pulsar.config.ConfigWatcher;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 /**
  * Represents an object responsible for handling and loading configurations for the consumer.
+ * The configuration is read from a snapshot of the configuration file, loaded once rather
+ * than on every call.
  *
  * @version 1.0
  * @since 1.0
  */
 public class ConsumerPropertyLoader {
-    private static final String CONFIG_NAME = "consumerconfig.properties";
+    static final String CONFIG_NAME = "consumerconfig.properties";
     private final ArrayList<ConfigurationNamePair> configVariableKeys = new ArrayList<>();
+    private final ArrayList<ConfigurationNamePair> workerVariableKeys = new ArrayList<>();
     private final Set<String> topics = new HashSet<>();
+    private final ConfigSnapshot snapshot;
     private static final String HOST_PROPERTY_VARIABLE_NAME = "url";
     private static final String HOST_ENVIRONMENT_VARIABLE_NAME = "PULSAR_BROKER_URL";
 
@@ -25,6 +32,28 @@ public class ConsumerPropertyLoader {
                                          String environmentVariableName) {
     }
 
+    /**
+     * Creates a property loader reading the configuration file once, from the configuration
+     * directory if it is there and otherwise from the classpath.
+     */
+    public ConsumerPropertyLoader() {
+        try {
+            this.snapshot = ConfigSnapshot.load(ConfigWatcher.getConfigDirectory(),
+                    List.of(CONFIG_NAME));
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Could not load " + CONFIG_NAME, ioe);
+        }
+    }
+
+    /**
+     * Creates a property loader reading the configuration from a snapshot.
+     *
+     * @param snapshot the snapshot of the configuration files
+     */
+    public ConsumerPropertyLoader(ConfigSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     /**
      * Gets the available consumer configuration. Environment variables are prioritized over
      * the .properties file, meaning that if both exist the environment variables will be used.
@@ -39,7 +68,7 @@ public class ConsumerPropertyLoader {
         if (canSetValuesFromEnvironmentVariables()) {
             consumerConfiguration = this.getConfigurationFromEnvironment();
         } else {
-            Properties properties = FileUtils.loadPropertiesFromFile(CONFIG_NAME);
+            Properties properties = this.snapshot.getProperties(CONFIG_NAME);
             consumerConfiguration = this.getConfigurationFromPropertiesFile(properties);
         }
 
@@ -50,6 +79,10 @@ public class ConsumerPropertyLoader {
      * Sets keys for the .properties file and environment variables.
      */
     private void setConfigVariableKeys() {
+        if (!this.configVariableKeys.isEmpty()) {
+            return;
+        }
+
         this.addPropertyPair("topicNames", "TOPIC_NAMES");
         this.addPropertyPair("subscriptionName", "SUBSCRIPTION_NAME");
         this.addPropertyPair("consumerName", "CONSUMER_NAME");
@@ -74,17 +107,76 @@ public class ConsumerPropertyLoader {
         this.configVariableKeys.add(pairToAdd);
     }
 
+    /**
+     * Gets the worker configuration, meaning settings that control how the worker receives and
+     * acknowledges messages rather than settings passed on to the Pulsar consumer. Every key is
+     * resolved on its own: an environment variable is used if it exists, otherwise the value in
+     * the .properties file. Keys that are set in neither place are left out of the result.
+     *
+     * @return String-String map containing configuration keys and their values
+     */
+    public Map<String, String> getWorkerConfiguration() {
+        this.setWorkerVariableKeys();
+
+        HashMap<String, String> workerConfiguration = new HashMap<>();
+        Properties properties = this.snapshot.getProperties(CONFIG_NAME);
+
+        for (ConfigurationNamePair configNamePair : this.workerVariableKeys) {
+            String value = System.getenv().getOrDefault(configNamePair.environmentVariableName,
+                    properties.getProperty(configNamePair.propertyVariableName));
+
+            if (value != null) {
+                workerConfiguration.put(configNamePair.propertyVariableName, value.trim());
+            }
+        }
+
+        return workerConfiguration;
+    }
+
+    /**
+     * Sets keys for the worker settings in the .properties file and environment variables.
+     */
+    private void setWorkerVariableKeys() {
+        if (!this.workerVariableKeys.isEmpty()) {
+            return;
+        }
+
+        this.addWorkerPair("receiveMode", "RECEIVE_MODE");
+        this.addWorkerPair("batchReceiveMaxMessages", "BATCH_RECEIVE_MAX_MESSAGES");
+        this.addWorkerPair("batchReceiveMaxBytes", "BATCH_RECEIVE_MAX_BYTES");
+        this.addWorkerPair("batchReceiveTimeoutMillis", "BATCH_RECEIVE_TIMEOUT_MILLIS");
+        this.addWorkerPair("batchAckMode", "BATCH_ACK_MODE");
+        this.addWorkerPair("redeliveryBackoffMinMillis", "REDELIVERY_BACKOFF_MIN_MILLIS");
+        this.addWorkerPair("redeliveryBackoffMaxMillis", "REDELIVERY_BACKOFF_MAX_MILLIS");
+        this.addWorkerPair("redeliveryBackoffMultiplier", "REDELIVERY_BACKOFF_MULTIPLIER");
+        this.addWorkerPair("redeliveryBackoffJitter", "REDELIVERY_BACKOFF_JITTER");
+        this.addWorkerPair("maxRedeliverCount", "MAX_REDELIVER_COUNT");
+        this.addWorkerPair("deadLetterTopic", "DEAD_LETTER_TOPIC");
+        this.addWorkerPair("retryEnabled", "RETRY_ENABLED");
+        this.addWorkerPair("retryLetterTopic", "RETRY_LETTER_TOPIC");
+    }
+
+    /**
+     * Adds a pair of variable names to the collection of worker variable names.
+     *
+     * @param propertyVariableName .properties variety of variable name
+     * @param environmentVariableName Environment variable variety of variable name
+     */
+    private void addWorkerPair(String propertyVariableName, String environmentVariableName) {
+        this.workerVariableKeys.add(new ConfigurationNamePair(propertyVariableName,
+                environmentVariableName));
+    }
+
     /**
      * Attempts to set the host string based on available configurations.
      */
     public String getHost() {
         String host;
-        Properties properties = FileUtils.loadPropertiesFromFile(CONFIG_NAME);
 
         if (canSetValueFromEnvironmentVariable(HOST_ENVIRONMENT_VARIABLE_NAME)) {
             host = System.getenv().get(HOST_ENVIRONMENT_VARIABLE_NAME);
         } else {
-            host = properties.getProperty(HOST_PROPERTY_VARIABLE_NAME);
+            host = this.snapshot.getString(CONFIG_NAME, HOST_PROPERTY_VARIABLE_NAME, null);
         }
 
         return host;
@@ -5,11 +5,28 @@
 package com.autostreams.pulsar;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.apache.pulsar.client.api.BatchReceivePolicy;
 import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.DeadLetterPolicy;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
 import org.apache.pulsar.client.api.PulsarClient;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.RedeliveryBackoff;
 import org.apache.pulsar.client.api.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,16 +38,53 @@ import org.slf4j.LoggerFactory;
  * @since 0.1
  */
 public class ConsumerWorker implements Runnable {
+    private static final int RECEIVE_TIMEOUT_MILLIS = 1000;
+    private static final long RECEIVE_RETRY_MILLIS = 1000;
+    private static final String RECONSUME_TIMES_PROPERTY = "RECONSUMETIMES";
     private final Logger logger = LoggerFactory.getLogger(ConsumerWorker.class);
-    private Consumer<String> consumer = null;
-    private boolean running = false;
+    private Consumer<ByteBuffer> consumer = null;
+    private volatile boolean running = false;
+    private volatile boolean receiving = false;
     private final ConsumerPropertyLoader propertyLoader;
+    private final PulsarClient client;
+    private final MessageDispatcher dispatcher;
+    private final ConsumerMetrics metrics;
+    private ReceiveMode receiveMode = ReceiveMode.SINGLE;
+    private BatchAckMode batchAckMode = BatchAckMode.CUMULATIVE;
+    private Executor asyncExecutor = null;
+    private int receiverQueueSize = 0;
+    private boolean autoScaledReceiverQueue = false;
+    private RedeliveryBackoff redeliveryBackoff = null;
+    private boolean retryEnabled = false;
+    private boolean cumulativeLaneAcks = false;
+    private final Set<String> partitionsWithGaps = ConcurrentHashMap.newKeySet();
 
     /**
      * Public constructor for the consumer worker class.
+     *
+     * @param client Pulsar client shared with other workers, owned by the Consumer Master
+     * @param dispatcher dispatcher handing received messages to the message handler
+     * @param metrics metrics of the worker
+     */
+    public ConsumerWorker(PulsarClient client, MessageDispatcher dispatcher,
+                          ConsumerMetrics metrics) {
+        this(client, dispatcher, metrics, new ConsumerPropertyLoader());
+    }
+
+    /**
+     * Constructor for a consumer worker configured from a given property loader.
+     *
+     * @param client Pulsar client shared with other workers, owned by the Consumer Master
+     * @param dispatcher dispatcher handing received messages to the message handler
+     * @param metrics metrics of the worker
+     * @param propertyLoader loader of the configuration of the consumer
      */
-    public ConsumerWorker() {
-        propertyLoader = new ConsumerPropertyLoader();
+    public ConsumerWorker(PulsarClient client, MessageDispatcher dispatcher,
+                          ConsumerMetrics metrics, ConsumerPropertyLoader propertyLoader) {
+        this.propertyLoader = propertyLoader;
+        this.client = client;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
     }
 
     /**
@@ -55,10 +109,34 @@ public class ConsumerWorker implements Runnable {
     }
 
     /**
-     * Attempts to gracefully stop the consumer.
+     * Starts the consumer using the given execution mode.
+     *
+     * @param executionMode how the worker is executed
+     * @param executor executor running the worker, ignored in thread mode. In virtual mode it
+     *                 must start a new virtual thread per task, and in async mode it runs the
+     *                 receive callbacks of the worker.
+     */
+    public void start(ExecutionMode executionMode, Executor executor) {
+        switch (executionMode) {
+            case VIRTUAL -> executor.execute(this);
+            case ASYNC -> {
+                this.asyncExecutor = executor;
+                this.receiveAsync();
+            }
+            default -> this.start();
+        }
+    }
+
+    /**
+     * Attempts to gracefully stop the consumer. The Pulsar client is shared and closed by the
+     * Consumer Master.
      */
     public void stop() {
         running = false;
+        if (consumer == null) {
+            return;
+        }
+
         try {
             consumer.close();
         } catch (PulsarClientException pce) {
@@ -66,46 +144,669 @@ public class ConsumerWorker implements Runnable {
         }
     }
 
+    /**
+     * Gracefully stops the worker. The worker stops receiving, waits for the messages it has
+     * dispatched to be processed and acknowledged, and then closes the consumer. Messages
+     * prefetched into the receiver queue are redelivered to the remaining consumers of the
+     * subscription.
+     *
+     * @param timeoutMillis the longest time to wait for dispatched messages to be processed
+     */
+    public void drain(long timeoutMillis) {
+        this.stopReceiving();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!this.awaitProcessed(deadline)) {
+            logger.warn("Timed out draining worker, {} message(s) will be redelivered",
+                    this.metrics.getInProcess());
+        }
+        this.awaitAcknowledged(deadline);
+
+        this.stop();
+    }
+
+    /**
+     * Stops receiving messages, without waiting for the worker to leave its receive loop.
+     */
+    void stopReceiving() {
+        running = false;
+    }
+
+    /**
+     * Waits for the worker to leave its receive loop and for the messages it has dispatched
+     * to be processed.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most
+     * @return true if no messages are in process, false if the wait timed out
+     */
+    boolean awaitProcessed(long deadlineNanos) {
+        return this.awaitUntil(() -> !receiving && this.metrics.getInProcess() == 0,
+                deadlineNanos);
+    }
+
+    /**
+     * Waits for the asynchronous acknowledgements of processed messages to complete.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most
+     * @return true if no acknowledgements are pending, false if the wait timed out
+     */
+    boolean awaitAcknowledged(long deadlineNanos) {
+        return this.awaitUntil(() -> this.metrics.getPendingAcks() == 0, deadlineNanos);
+    }
+
+    /**
+     * Waits for a condition to hold, checking it every 10 milliseconds.
+     *
+     * @param condition the condition to wait for
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most
+     * @return true if the condition holds, false if the wait timed out or was interrupted
+     */
+    private boolean awaitUntil(BooleanSupplier condition, long deadlineNanos) {
+        try {
+            while (!condition.getAsBoolean() && System.nanoTime() < deadlineNanos) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while draining worker");
+            Thread.currentThread().interrupt();
+        }
+
+        return condition.getAsBoolean();
+    }
+
+    /**
+     * Limits the messages the consumer prefetches, overriding the configured receiver queue
+     * size. Only applies to a consumer created after the call, so call it before
+     * {@link #initialize()}.
+     *
+     * @param receiverQueueSize the receiver queue size of the consumer
+     * @param autoScaled whether the client grows the receiver queue up to that size as it is
+     *                   consumed, instead of filling it right away
+     */
+    void limitPrefetch(int receiverQueueSize, boolean autoScaled) {
+        this.receiverQueueSize = receiverQueueSize;
+        this.autoScaledReceiverQueue = autoScaled;
+    }
+
+    /**
+     * Stops the consumer from requesting more messages from the broker. Messages already
+     * prefetched are still received.
+     */
+    void pause() {
+        if (consumer != null) {
+            consumer.pause();
+        }
+    }
+
+    /**
+     * Lets a paused consumer request messages from the broker again.
+     */
+    void resume() {
+        if (consumer != null) {
+            consumer.resume();
+        }
+    }
+
+    /**
+     * Gets the metrics of the worker.
+     *
+     * @return the metrics of the worker
+     */
+    ConsumerMetrics getMetrics() {
+        return this.metrics;
+    }
+
     /**
      * Creates the consumer object, and sets required configuration before consumption.
      *
      * @throws IOException if there is a problem getting the config file for the worker
      */
     private void createConsumer() throws IOException {
-        String host = propertyLoader.getHost();
         Map<String, Object> consumerProperties = propertyLoader.getConsumerConfiguration();
+        Map<String, String> workerProperties = propertyLoader.getWorkerConfiguration();
+
+        ConsumerBuilder<ByteBuffer> consumerBuilder = this.client.newConsumer(Schema.BYTEBUFFER)
+            .loadConf(consumerProperties);
+        if (this.receiverQueueSize > 0) {
+            consumerBuilder.receiverQueueSize(this.receiverQueueSize);
+        }
+        if (this.autoScaledReceiverQueue) {
+            this.enableAutoScaledReceiverQueue(consumerBuilder);
+        }
+
+        this.configureRedelivery(consumerBuilder, workerProperties);
+
+        this.receiveMode = ReceiveMode.valueOf(
+                workerProperties.getOrDefault("receiveMode", ReceiveMode.SINGLE.name()));
+        if (this.receiveMode == ReceiveMode.BATCH) {
+            this.configureBatchReceive(consumerBuilder, consumerProperties, workerProperties);
+        } else {
+            this.configureLaneAcks(consumerProperties);
+        }
+
+        this.consumer = consumerBuilder.subscribe();
+        this.metrics.bindConsumer(this.consumer);
+
+        logger.info("Consumer created, topic subscribed to in {} receive mode", this.receiveMode);
+    }
+
+    /**
+     * Applies the backoff of negatively acknowledged messages, and the dead letter and retry
+     * letter topics. A message that has been redelivered more than the max redeliver count is
+     * sent to the dead letter topic instead, so that a poison message does not keep coming
+     * back. With retries enabled, failed messages are sent to the retry letter topic to be
+     * redelivered after the backoff, instead of being negatively acknowledged.
+     *
+     * @param consumerBuilder builder of the consumer to configure
+     * @param workerProperties configuration of the worker
+     */
+    private void configureRedelivery(ConsumerBuilder<ByteBuffer> consumerBuilder,
+                                     Map<String, String> workerProperties) {
+        this.redeliveryBackoff = new JitteredRedeliveryBackoff(
+                Long.parseLong(
+                        workerProperties.getOrDefault("redeliveryBackoffMinMillis", "1000")),
+                Long.parseLong(
+                        workerProperties.getOrDefault("redeliveryBackoffMaxMillis", "60000")),
+                Double.parseDouble(
+                        workerProperties.getOrDefault("redeliveryBackoffMultiplier", "2")),
+                Double.parseDouble(
+                        workerProperties.getOrDefault("redeliveryBackoffJitter", "0.2")));
+        consumerBuilder.negativeAckRedeliveryBackoff(this.redeliveryBackoff);
+
+        int maxRedeliverCount = Integer.parseInt(
+                workerProperties.getOrDefault("maxRedeliverCount", "0"));
+        this.retryEnabled = Boolean.parseBoolean(
+                workerProperties.getOrDefault("retryEnabled", "false"));
+        if (maxRedeliverCount <= 0) {
+            if (this.retryEnabled) {
+                logger.warn("Retries need a max redeliver count above 0, retries are disabled");
+                this.retryEnabled = false;
+            }
+            return;
+        }
+
+        DeadLetterPolicy.Builder deadLetterPolicy = DeadLetterPolicy.builder()
+                .maxRedeliverCount(maxRedeliverCount);
+        String deadLetterTopic = workerProperties.getOrDefault("deadLetterTopic", "");
+        if (!deadLetterTopic.isEmpty()) {
+            deadLetterPolicy.deadLetterTopic(deadLetterTopic);
+        }
+        String retryLetterTopic = workerProperties.getOrDefault("retryLetterTopic", "");
+        if (!retryLetterTopic.isEmpty()) {
+            deadLetterPolicy.retryLetterTopic(retryLetterTopic);
+        }
+
+        consumerBuilder.deadLetterPolicy(deadLetterPolicy.build())
+                .enableRetry(this.retryEnabled);
+    }
+
+    /**
+     * Enables auto scaled receiver queues. The option is looked up reflectively, since it is
+     * only available in Pulsar clients from 2.11, and the receiver queue is filled right away
+     * otherwise.
+     *
+     * @param consumerBuilder builder of the consumer to configure
+     */
+    private void enableAutoScaledReceiverQueue(ConsumerBuilder<ByteBuffer> consumerBuilder) {
+        try {
+            ConsumerBuilder.class
+                    .getMethod("autoScaledReceiverQueueSizeEnabled", boolean.class)
+                    .invoke(consumerBuilder, true);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Auto scaled receiver queues are not supported by the Pulsar client");
+        }
+    }
 
-        PulsarClient client = PulsarClient
-                .builder()
-                .serviceUrl(host)
+    /**
+     * Applies the batch receive policy and selects how batches are acknowledged.
+     *
+     * @param consumerBuilder builder of the consumer to configure
+     * @param consumerProperties configuration passed on to the Pulsar consumer
+     * @param workerProperties configuration of the worker
+     */
+    private void configureBatchReceive(ConsumerBuilder<ByteBuffer> consumerBuilder,
+                                       Map<String, Object> consumerProperties,
+                                       Map<String, String> workerProperties) {
+        BatchReceivePolicy batchReceivePolicy = BatchReceivePolicy.builder()
+                .maxNumMessages(Integer.parseInt(
+                        workerProperties.getOrDefault("batchReceiveMaxMessages", "100")))
+                .maxNumBytes(Integer.parseInt(
+                        workerProperties.getOrDefault("batchReceiveMaxBytes", "10485760")))
+                .timeout(Integer.parseInt(
+                        workerProperties.getOrDefault("batchReceiveTimeoutMillis", "100")),
+                        TimeUnit.MILLISECONDS)
                 .build();
 
-        this.consumer = client.newConsumer(Schema.STRING)
-            .loadConf(consumerProperties)
-            .subscribe();
+        consumerBuilder.batchReceivePolicy(batchReceivePolicy);
+
+        this.batchAckMode = BatchAckMode.valueOf(
+                workerProperties.getOrDefault("batchAckMode", BatchAckMode.CUMULATIVE.name()));
+
+        String subscriptionType = String.valueOf(consumerProperties.get("subscriptionType"));
+        if (this.batchAckMode == BatchAckMode.CUMULATIVE
+                && ("Shared".equals(subscriptionType) || "Key_Shared".equals(subscriptionType))) {
+            logger.warn("Cumulative acknowledgement is not supported by {} subscriptions, "
+                    + "acknowledging batches as lists instead", subscriptionType);
+            this.batchAckMode = BatchAckMode.LIST;
+        }
+    }
+
+    /**
+     * Selects cumulative acknowledgement of single messages when the dispatcher handles every
+     * topic partition on a lane of its own. A lane completes the messages of a partition in
+     * order, so acknowledging a message cumulatively also acknowledges the messages before it
+     * in the partition, saving a request per message.
+     *
+     * @param consumerProperties configuration passed on to the Pulsar consumer
+     */
+    private void configureLaneAcks(Map<String, Object> consumerProperties) {
+        if (this.dispatcher.getDispatchMode() != DispatchMode.PARTITIONED) {
+            return;
+        }
+
+        String subscriptionType = String.valueOf(consumerProperties.get("subscriptionType"));
+        if ("Shared".equals(subscriptionType) || "Key_Shared".equals(subscriptionType)) {
+            logger.warn("Cumulative acknowledgement is not supported by {} subscriptions, "
+                    + "acknowledging partitioned messages individually instead", subscriptionType);
+            return;
+        }
 
-        logger.info("Consumer created, topic subscribed to");
+        this.cumulativeLaneAcks = true;
     }
 
     /**
      * Listens for messages from the broker, and acknowledges said messages.
      */
     private void receive() {
+        if (this.receiveMode == ReceiveMode.BATCH) {
+            this.receiveBatches();
+        } else {
+            this.receiveSingle();
+        }
+    }
+
+    /**
+     * Receives one message at a time, and acknowledges each message once the message handler
+     * has processed it.
+     */
+    private void receiveSingle() {
+        while (running) {
+            receiveAndProcessMessage();
+        }
+    }
+
+    /**
+     * Receives a single message, blocking until one is available or the receive times out,
+     * and dispatches it to the handler. The timeout lets a stopped worker leave its loop
+     * while no messages arrive.
+     */
+    void receiveAndProcessMessage() {
+        try {
+            logger.trace("Waiting to receive message...");
+            Message<ByteBuffer> message =
+                    this.consumer.receive(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (message == null) {
+                return;
+            }
+            this.processMessage(message);
+
+        } catch (PulsarClientException e) {
+            this.waitAfterFailedReceive(e);
+        }
+    }
+
+    /**
+     * Waits before the next receive after a receive failed, so that a consumer that keeps
+     * failing does not spin the worker. Nothing was received, so there is nothing to
+     * negatively acknowledge.
+     *
+     * @param e the cause of the failure
+     */
+    private void waitAfterFailedReceive(PulsarClientException e) {
+        if (!running) {
+            return;
+        }
+
+        logger.error("Failed to receive from the broker, retrying in 1 second", e);
+        try {
+            TimeUnit.MILLISECONDS.sleep(RECEIVE_RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Dispatches a received message to the handler, and acknowledges it once processed.
+     *
+     * @param message the received message
+     */
+    private void processMessage(Message<ByteBuffer> message) {
+        this.metrics.recordReceived(message);
+        long dispatchNanos = System.nanoTime();
+
+        this.dispatcher.dispatch(message).whenComplete((ignored, throwable) -> {
+            this.metrics.recordProcessed(dispatchNanos);
+            this.completeMessage(message, throwable);
+        });
+    }
+
+    /**
+     * Acknowledges a message that the handler has processed, or negatively acknowledges it if
+     * the handler failed. With cumulative lane acknowledgement, a processed message is
+     * acknowledged cumulatively, unless the handler gave up on an earlier message of its
+     * partition, which a cumulative acknowledgement would also cover. Such a partition is
+     * acknowledged individually from then on.
+     *
+     * @param message the processed message
+     * @param throwable the cause of the handler failure, or null if the handler succeeded
+     */
+    private void completeMessage(Message<ByteBuffer> message, Throwable throwable) {
+        if (throwable == null) {
+            long ackNanos = System.nanoTime();
+            this.metrics.recordAckRequested();
+            CompletableFuture<Void> ack = this.cumulativeLaneAcks
+                    && !this.partitionsWithGaps.contains(message.getTopicName())
+                    ? this.consumer.acknowledgeCumulativeAsync(message)
+                    : this.consumer.acknowledgeAsync(message);
+            ack.whenComplete((ignored, ackThrowable) -> {
+                this.metrics.recordAckCompleted();
+                if (ackThrowable == null) {
+                    this.metrics.recordAck(ackNanos);
+                }
+            });
+        } else {
+            logger.error("Handler failed to process message {}", message.getMessageId(),
+                    throwable);
+            if (this.cumulativeLaneAcks && this.partitionsWithGaps.add(message.getTopicName())) {
+                logger.warn("Acknowledging {} individually, since a message was left for "
+                        + "redelivery", message.getTopicName());
+            }
+            this.redeliver(message);
+        }
+    }
+
+    /**
+     * Leaves a message that the handler failed to process for redelivery after the backoff.
+     * With retries enabled the message is sent to the retry letter topic, and otherwise it is
+     * negatively acknowledged. Either way the worker goes on with the next message, and once
+     * the max redeliver count is exceeded the message goes to the dead letter topic.
+     *
+     * @param message the message to redeliver
+     */
+    private void redeliver(Message<ByteBuffer> message) {
+        this.metrics.recordFailed();
+
+        if (!this.retryEnabled) {
+            this.consumer.negativeAcknowledge(message);
+            return;
+        }
+
+        long delayMillis = this.redeliveryBackoff.next(getAttempts(message));
+        this.metrics.recordAckRequested();
+        this.consumer.reconsumeLaterAsync(message, delayMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, throwable) -> {
+                    this.metrics.recordAckCompleted();
+                    if (throwable != null) {
+                        logger.error("Failed to send message {} to the retry letter topic",
+                                message.getMessageId(), throwable);
+                        this.consumer.negativeAcknowledge(message);
+                    }
+                });
+    }
+
+    /**
+     * Gets how many times a message has been delivered before, either redelivered by the
+     * broker or sent to the retry letter topic.
+     *
+     * @param message the message to check
+     * @return the number of earlier deliveries
+     */
+    private static int getAttempts(Message<ByteBuffer> message) {
+        int reconsumeTimes = 0;
+        if (message.hasProperty(RECONSUME_TIMES_PROPERTY)) {
+            try {
+                reconsumeTimes = Integer.parseInt(message.getProperty(RECONSUME_TIMES_PROPERTY));
+            } catch (NumberFormatException e) {
+                reconsumeTimes = 0;
+            }
+        }
+
+        return Math.max(message.getRedeliveryCount(), reconsumeTimes);
+    }
+
+    /**
+     * Receives messages in batches bounded by the batch receive policy, and acknowledges every
+     * batch with a single request once the message handler has processed all its messages.
+     */
+    private void receiveBatches() {
         while (running) {
-            Message<String> message = null;
+            receiveAndProcessBatch();
+        }
+    }
 
+    /**
+     * Receives a single batch, blocking until the batch receive policy is met, and dispatches
+     * it to the handler.
+     */
+    void receiveAndProcessBatch() {
+        Messages<ByteBuffer> messages = null;
+
+        try {
+            messages = this.consumer.batchReceive();
+            this.processBatch(messages);
+
+        } catch (PulsarClientException e) {
+            if (messages == null) {
+                this.waitAfterFailedReceive(e);
+                return;
+            }
+            consumer.negativeAcknowledge(messages);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Dispatches a received batch to the handler, and acknowledges it once processed.
+     *
+     * @param messages the received batch of messages
+     * @throws PulsarClientException if the acknowledgement could not be sent
+     */
+    private void processBatch(Messages<ByteBuffer> messages) throws PulsarClientException {
+        if (messages.size() == 0) {
+            return;
+        }
+
+        logger.debug("Consumer received batch of {} messages", messages.size());
+        this.completeBatch(messages, this.dispatchBatch(messages));
+    }
+
+    /**
+     * Requests the next message or batch from the broker without blocking. The received
+     * message or batch is processed on the async executor, which then requests the next one.
+     */
+    private void receiveAsync() {
+        if (!running) {
+            return;
+        }
+
+        if (this.receiveMode == ReceiveMode.BATCH) {
+            this.consumer.batchReceiveAsync()
+                .whenCompleteAsync(this::onBatchReceived, this.asyncExecutor);
+        } else {
+            this.consumer.receiveAsync()
+                .whenCompleteAsync(this::onMessageReceived, this.asyncExecutor);
+        }
+    }
+
+    /**
+     * Processes a message received asynchronously, then requests the next message.
+     *
+     * @param message the received message, or null if receiving failed
+     * @param throwable the cause of the failure, or null if a message was received
+     */
+    private void onMessageReceived(Message<ByteBuffer> message, Throwable throwable) {
+        if (throwable != null) {
+            this.onReceiveFailed(throwable);
+            return;
+        }
+        if (!running) {
+            logger.debug("Worker stopped, leaving message {} for redelivery",
+                    message.getMessageId());
+            return;
+        }
+
+        this.processMessage(message);
+        this.receiveAsync();
+    }
+
+    /**
+     * Processes a batch received asynchronously, then requests the next batch.
+     *
+     * @param messages the received batch, or null if receiving failed
+     * @param throwable the cause of the failure, or null if a batch was received
+     */
+    private void onBatchReceived(Messages<ByteBuffer> messages, Throwable throwable) {
+        if (throwable != null) {
+            this.onReceiveFailed(throwable);
+            return;
+        }
+        if (!running) {
+            logger.debug("Worker stopped, leaving batch of {} messages for redelivery",
+                    messages.size());
+            return;
+        }
+
+        try {
+            this.processBatch(messages);
+        } catch (PulsarClientException e) {
+            consumer.negativeAcknowledge(messages);
+            e.printStackTrace();
+        }
+
+        this.receiveAsync();
+    }
+
+    /**
+     * Handles a failed asynchronous receive by retrying after a delay, unless the worker has
+     * been stopped.
+     *
+     * @param throwable the cause of the failure
+     */
+    private void onReceiveFailed(Throwable throwable) {
+        if (!running) {
+            return;
+        }
+
+        logger.error("Failed to receive from the broker, retrying in 1 second", throwable);
+        CompletableFuture.runAsync(this::receiveAsync,
+            CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS, this.asyncExecutor));
+    }
+
+    /**
+     * Dispatches every message of a batch to the handler, and waits for all of them to be
+     * processed.
+     *
+     * @param messages the batch of messages to dispatch
+     * @return the messages of the batch that the handler failed to process
+     */
+    private List<Message<ByteBuffer>> dispatchBatch(Messages<ByteBuffer> messages) {
+        List<Message<ByteBuffer>> dispatched = new ArrayList<>(messages.size());
+        List<CompletableFuture<Void>> results = new ArrayList<>(messages.size());
+        long dispatchNanos = System.nanoTime();
+        for (Message<ByteBuffer> message : messages) {
+            this.metrics.recordReceived(message);
+            dispatched.add(message);
+            results.add(this.dispatcher.dispatch(message));
+        }
+
+        List<Message<ByteBuffer>> failed = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
             try {
-                logger.info("Waiting to receive message...");
-                message = this.consumer.receive();
+                results.get(i).join();
+            } catch (CompletionException e) {
+                logger.error("Handler failed to process message {}",
+                        dispatched.get(i).getMessageId(), e.getCause());
+                failed.add(dispatched.get(i));
+            }
+            this.metrics.recordProcessed(dispatchNanos);
+        }
+
+        return failed;
+    }
 
-                this.consumer.acknowledge(message);
-                logger.info("Consumer received message {}", message.getValue());
+    /**
+     * Acknowledges a processed batch. If the handler failed on some messages, those are
+     * negatively acknowledged and the rest are acknowledged individually, since a cumulative
+     * acknowledgement would also cover the failed messages. With cumulative batch
+     * acknowledgement, the partitions of the failed messages are acknowledged individually
+     * from then on, since a cumulative acknowledgement of a later batch would cover them too.
+     *
+     * @param messages the processed batch of messages
+     * @param failed the messages of the batch that the handler failed to process
+     * @throws PulsarClientException if the acknowledgement could not be sent
+     */
+    private void completeBatch(Messages<ByteBuffer> messages, List<Message<ByteBuffer>> failed)
+            throws PulsarClientException {
+        if (failed.isEmpty()) {
+            this.acknowledgeBatch(messages);
+            return;
+        }
 
-            } catch (PulsarClientException e) {
-                consumer.negativeAcknowledge(message);
-                e.printStackTrace();
+        List<MessageId> succeeded = new ArrayList<>(messages.size() - failed.size());
+        for (Message<ByteBuffer> message : messages) {
+            if (!failed.contains(message)) {
+                succeeded.add(message.getMessageId());
             }
         }
+
+        if (!succeeded.isEmpty()) {
+            this.consumer.acknowledge(succeeded);
+        }
+
+        for (Message<ByteBuffer> message : failed) {
+            if (this.batchAckMode == BatchAckMode.CUMULATIVE
+                    && this.partitionsWithGaps.add(message.getTopicName())) {
+                logger.warn("Acknowledging {} individually, since a message was left for "
+                        + "redelivery", message.getTopicName());
+            }
+            this.redeliver(message);
+        }
+    }
+
+    /**
+     * Acknowledges a batch of messages according to the configured batch acknowledgement mode.
+     * Cumulative acknowledgement is done per topic partition, since a batch received from a
+     * partitioned or multi-topic consumer may span several partitions. A partition with a
+     * message left for redelivery is acknowledged individually instead.
+     *
+     * @param messages the batch of messages to acknowledge
+     * @throws PulsarClientException if the acknowledgement could not be sent
+     */
+    private void acknowledgeBatch(Messages<ByteBuffer> messages) throws PulsarClientException {
+        long ackNanos = System.nanoTime();
+        if (this.batchAckMode == BatchAckMode.LIST) {
+            this.consumer.acknowledge(messages);
+            this.metrics.recordAck(ackNanos);
+            return;
+        }
+
+        Map<String, Message<ByteBuffer>> lastMessagePerTopic = new HashMap<>();
+        List<MessageId> individual = new ArrayList<>();
+        for (Message<ByteBuffer> message : messages) {
+            if (this.partitionsWithGaps.contains(message.getTopicName())) {
+                individual.add(message.getMessageId());
+            } else {
+                lastMessagePerTopic.put(message.getTopicName(), message);
+            }
+        }
+
+        if (!individual.isEmpty()) {
+            this.consumer.acknowledge(individual);
+        }
+        for (Message<ByteBuffer> message : lastMessagePerTopic.values()) {
+            this.consumer.acknowledgeCumulative(message);
+        }
+        this.metrics.recordAck(ackNanos);
     }
 
     /**
@@ -114,7 +815,12 @@ public class ConsumerWorker implements Runnable {
      */
     @Override
     public void run() {
-        receive();
+        receiving = true;
+        try {
+            receive();
+        } finally {
+            receiving = false;
+        }
     }
 
 }
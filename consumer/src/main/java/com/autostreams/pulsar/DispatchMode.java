@@ -0,0 +1,33 @@
+package com.autostreams.pulsar;
+
+/**
+ * The ways received messages can be dispatched to the message handler.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public enum DispatchMode {
+    /**
+     * Handle messages on the worker thread that received them.
+     */
+    DIRECT,
+
+    /**
+     * Handle messages on a pool of single threaded lanes. Messages with the same ordering key,
+     * key, or, when unkeyed, topic partition always use the same lane and are handled in order.
+     */
+    ORDERED,
+
+    /**
+     * Handle messages on a pool of single threaded lanes, one lane per topic partition while
+     * there are at least as many lanes as partitions. Messages of a partition always use the
+     * same lane and are handled in order, and a message the handler fails on is retried in its
+     * lane, holding back the rest of the partition, until it is handled.
+     */
+    PARTITIONED,
+
+    /**
+     * Handle messages on a bounded pool of threads without any ordering guarantees.
+     */
+    UNORDERED
+}
@@ -0,0 +1,26 @@
+package com.autostreams.pulsar;
+
+/**
+ * The ways consumer workers can be executed.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public enum ExecutionMode {
+    /**
+     * Run every worker on its own platform thread, blocking while waiting for messages.
+     */
+    THREAD,
+
+    /**
+     * Run every worker on its own virtual thread. Requires a Java runtime with virtual thread
+     * support, and falls back to {@link #ASYNC} on runtimes without it.
+     */
+    VIRTUAL,
+
+    /**
+     * Run all workers as an event loop on a small fixed pool of threads, receiving messages
+     * asynchronously instead of blocking a thread per worker.
+     */
+    ASYNC
+}
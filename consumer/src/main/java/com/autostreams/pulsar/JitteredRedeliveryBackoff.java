@@ -0,0 +1,58 @@
+package com.autostreams.pulsar;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.pulsar.client.api.RedeliveryBackoff;
+
+/**
+ * Exponential redelivery backoff with jitter. The delay starts at a minimum, grows by a
+ * multiplier with every redelivery up to a maximum, and is spread randomly by a share of
+ * itself, so that messages that failed together are not all redelivered at the same time.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class JitteredRedeliveryBackoff implements RedeliveryBackoff, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * Creates a redelivery backoff.
+     *
+     * @param minDelayMillis the delay of the first redelivery
+     * @param maxDelayMillis the longest delay, before jitter
+     * @param multiplier the factor the delay grows by with every redelivery
+     * @param jitter the share of the delay it is randomly spread by, between 0 and 1
+     */
+    public JitteredRedeliveryBackoff(long minDelayMillis, long maxDelayMillis, double multiplier,
+                                     double jitter) {
+        if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis || multiplier < 1
+                || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Redelivery backoff needs 0 <= min <= max, "
+                    + "a multiplier of at least 1 and a jitter between 0 and 1");
+        }
+
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Gets the delay before redelivering a message.
+     *
+     * @param redeliveryCount how many times the message has been redelivered
+     * @return the delay in milliseconds
+     */
+    @Override
+    public long next(int redeliveryCount) {
+        double delay = Math.min(this.maxDelayMillis,
+                this.minDelayMillis * Math.pow(this.multiplier, Math.max(0, redeliveryCount)));
+        double spread = delay * this.jitter;
+
+        return Math.round(delay - spread + ThreadLocalRandom.current().nextDouble() * 2 * spread);
+    }
+}
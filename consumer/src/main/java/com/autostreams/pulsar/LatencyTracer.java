@@ -0,0 +1,261 @@
+package com.autostreams.pulsar;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.pulsar.client.api.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the latency of traced messages per hop of the pipeline in HDR histograms. The
+ * producer stamps traced messages with the time the data provider sent the line, the time the
+ * producer received it and the time the producer handed it to the Pulsar client, in
+ * microseconds since the epoch. Along with the publish time set by the broker and the time the
+ * message is received here, these split the end-to-end latency into hops.
+ *
+ * <p>The hops are measured across the clocks of different hosts, so they are only as accurate
+ * as the clocks are synchronized, and negative latencies caused by clock skew are recorded as
+ * 0. The publish time only has millisecond resolution.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class LatencyTracer {
+    static final String PROVIDER_SENT_PROPERTY = "trace.provider.sent";
+    static final String PRODUCER_RECEIVED_PROPERTY = "trace.producer.received";
+    static final String PRODUCER_SENT_PROPERTY = "trace.producer.sent";
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Logger logger = LoggerFactory.getLogger(LatencyTracer.class);
+    private final Map<Hop, HopHistograms> hops = new EnumMap<>(Hop.class);
+    private final long reportIntervalSeconds;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * A hop of the pipeline that the latency of traced messages is recorded for.
+     */
+    enum Hop {
+        PROVIDER_TO_PRODUCER("provider-to-producer"),
+        PRODUCER_QUEUE("producer-queue"),
+        PRODUCER_TO_BROKER("producer-to-broker"),
+        BROKER_TO_CONSUMER("broker-to-consumer"),
+        TOTAL("total");
+
+        private final String label;
+
+        /**
+         * Creates a hop.
+         *
+         * @param label the name of the hop in reports
+         */
+        Hop(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Creates a latency tracer. Call {@link #start()} to start reporting.
+     *
+     * @param reportIntervalSeconds the interval between reports in the log
+     */
+    public LatencyTracer(long reportIntervalSeconds) {
+        if (reportIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Report interval needs to be above 0");
+        }
+
+        this.reportIntervalSeconds = reportIntervalSeconds;
+        for (Hop hop : Hop.values()) {
+            this.hops.put(hop, new HopHistograms());
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "latency-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts logging the latency of the hops periodically.
+     */
+    public void start() {
+        this.scheduler.scheduleAtFixedRate(this::report, this.reportIntervalSeconds,
+                this.reportIntervalSeconds, TimeUnit.SECONDS);
+
+        logger.info("Tracing message latency, reporting every {} seconds",
+                this.reportIntervalSeconds);
+    }
+
+    /**
+     * Stops reporting, logging the latency of the hops since the last report once more.
+     */
+    public void stop() {
+        this.scheduler.shutdownNow();
+        this.report();
+    }
+
+    /**
+     * Records the latency of every hop of a received message. Messages without trace
+     * properties are ignored.
+     *
+     * @param message the received message
+     */
+    void record(Message<?> message) {
+        String producerReceived = message.getProperty(PRODUCER_RECEIVED_PROPERTY);
+        if (producerReceived == null) {
+            return;
+        }
+
+        long receivedMicros = currentMicros();
+        long providerSentMicros;
+        long producerReceivedMicros;
+        long producerSentMicros;
+        try {
+            String providerSent = message.getProperty(PROVIDER_SENT_PROPERTY);
+            providerSentMicros = providerSent == null ? 0 : Long.parseLong(providerSent);
+            producerReceivedMicros = Long.parseLong(producerReceived);
+            producerSentMicros = Long.parseLong(message.getProperty(PRODUCER_SENT_PROPERTY));
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring malformed trace of message {}", message.getMessageId());
+            return;
+        }
+        long publishMicros = TimeUnit.MILLISECONDS.toMicros(message.getPublishTime());
+
+        if (providerSentMicros > 0) {
+            this.record(Hop.PROVIDER_TO_PRODUCER, producerReceivedMicros - providerSentMicros);
+        }
+        this.record(Hop.PRODUCER_QUEUE, producerSentMicros - producerReceivedMicros);
+        this.record(Hop.PRODUCER_TO_BROKER, publishMicros - producerSentMicros);
+        this.record(Hop.BROKER_TO_CONSUMER, receivedMicros - publishMicros);
+        this.record(Hop.TOTAL, receivedMicros
+                - (providerSentMicros > 0 ? providerSentMicros : producerReceivedMicros));
+    }
+
+    /**
+     * Records the latency of a hop, bounded to the trackable range.
+     *
+     * @param hop the hop to record the latency of
+     * @param latencyMicros the latency in microseconds
+     */
+    private void record(Hop hop, long latencyMicros) {
+        this.hops.get(hop).recorder.recordValue(
+                Math.max(0, Math.min(latencyMicros, HIGHEST_TRACKABLE_MICROS)));
+    }
+
+    /**
+     * Logs the latency of every hop since the previous report.
+     */
+    private synchronized void report() {
+        this.collect();
+
+        for (Hop hop : Hop.values()) {
+            HopHistograms histograms = this.hops.get(hop);
+            if (histograms.interval.getTotalCount() > 0) {
+                logger.info("Latency {}: {}", hop.label, describe(histograms.interval));
+            }
+            histograms.interval.reset();
+        }
+    }
+
+    /**
+     * Describes the latency of every hop, both since the tracer started and since the
+     * previous report, as served by the query endpoint.
+     *
+     * @return a table of latency percentiles per hop in milliseconds
+     */
+    public synchronized String query() {
+        this.collect();
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("# since start\n");
+        for (Hop hop : Hop.values()) {
+            builder.append(hop.label).append(": ")
+                    .append(describe(this.hops.get(hop).total)).append('\n');
+        }
+
+        builder.append("# since last report\n");
+        for (Hop hop : Hop.values()) {
+            builder.append(hop.label).append(": ")
+                    .append(describe(this.hops.get(hop).interval)).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Moves the values recorded since the previous collection into the histograms of the
+     * current report interval and of the whole run.
+     */
+    private void collect() {
+        for (HopHistograms histograms : this.hops.values()) {
+            histograms.recycled = histograms.recorder.getIntervalHistogram(histograms.recycled);
+            histograms.interval.add(histograms.recycled);
+            histograms.total.add(histograms.recycled);
+        }
+    }
+
+    /**
+     * Describes the count and percentiles of a histogram.
+     *
+     * @param histogram the histogram of latencies in microseconds
+     * @return the count, percentiles and maximum of the histogram in milliseconds
+     */
+    private static String describe(Histogram histogram) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("count=").append(histogram.getTotalCount());
+        for (double percentile : PERCENTILES) {
+            builder.append(String.format(Locale.ROOT, " p%s=%.3f", formatPercentile(percentile),
+                    histogram.getValueAtPercentile(percentile) / 1000.0));
+        }
+        builder.append(String.format(Locale.ROOT, " max=%.3f ms",
+                histogram.getMaxValue() / 1000.0));
+
+        return builder.toString();
+    }
+
+    /**
+     * Formats a percentile without a trailing fraction if it is whole.
+     *
+     * @param percentile the percentile to format
+     * @return the formatted percentile, such as "99" or "99.9"
+     */
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile)
+                ? Long.toString((long) percentile)
+                : Double.toString(percentile);
+    }
+
+    /**
+     * Gets the current time in microseconds since the epoch.
+     *
+     * @return the current time in microseconds
+     */
+    private static long currentMicros() {
+        Instant now = Instant.now();
+
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    /**
+     * The histograms of a single hop.
+     */
+    private static final class HopHistograms {
+        private final Recorder recorder =
+                new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final Histogram interval =
+                new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final Histogram total =
+                new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private Histogram recycled = null;
+    }
+}
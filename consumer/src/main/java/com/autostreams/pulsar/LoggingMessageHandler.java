@@ -0,0 +1,31 @@
+package com.autostreams.pulsar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.pulsar.client.api.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default message handler, used when no other handler is configured. Logs received messages.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class LoggingMessageHandler implements MessageHandler {
+    private final Logger logger = LoggerFactory.getLogger(LoggingMessageHandler.class);
+
+    /**
+     * Logs the value of a received message. The payload is only decoded to text when debug
+     * logging is enabled.
+     *
+     * @param message the message to log
+     */
+    @Override
+    public void handle(Message<ByteBuffer> message) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Consumer received message {}",
+                    StandardCharsets.UTF_8.decode(message.getValue().duplicate()));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.autostreams.pulsar;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.RedeliveryBackoff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches received messages to a message handler according to a dispatch mode. Executors
+ * have bounded queues, and submitting to a full queue blocks the calling worker, so a slow
+ * handler slows down receiving instead of buffering messages without bound.
+ *
+ * <p>In the lane modes, a message the handler fails on can be retried in its lane before it
+ * is given up on. The lane waits for the retries, so later messages of the lane are not
+ * handled before it, keeping their order strict.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class MessageDispatcher {
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+    private static final String PARTITION_SUFFIX = "-partition-";
+    private final Logger logger = LoggerFactory.getLogger(MessageDispatcher.class);
+    private final MessageHandler handler;
+    private final DispatchMode dispatchMode;
+    private final ThreadPoolExecutor[] executors;
+    private final int laneAttempts;
+    private final RedeliveryBackoff laneBackoff;
+    private final LongAdder[] handled;
+    private final LongAdder[] retried;
+    private volatile boolean closing = false;
+
+    /**
+     * Creates a message dispatcher that does not retry messages in their lane.
+     *
+     * @param handler the handler to dispatch messages to
+     * @param dispatchMode how messages are dispatched to the handler
+     * @param threads number of handler threads, ignored in direct mode
+     * @param queueSize capacity of the queue of each executor, ignored in direct mode
+     */
+    public MessageDispatcher(MessageHandler handler, DispatchMode dispatchMode,
+                             int threads, int queueSize) {
+        this(handler, dispatchMode, threads, queueSize, 1,
+                new JitteredRedeliveryBackoff(100, 10000, 2, 0.2));
+    }
+
+    /**
+     * Creates a message dispatcher.
+     *
+     * @param handler the handler to dispatch messages to
+     * @param dispatchMode how messages are dispatched to the handler
+     * @param threads number of handler threads, ignored in direct mode
+     * @param queueSize capacity of the queue of each executor, ignored in direct mode
+     * @param laneAttempts how many times a lane tries to handle a message before giving up
+     *         on it, or 0 to try until it is handled. Only applies to the lane modes
+     * @param laneBackoff the delay before a lane retries a message
+     */
+    public MessageDispatcher(MessageHandler handler, DispatchMode dispatchMode,
+                             int threads, int queueSize, int laneAttempts,
+                             RedeliveryBackoff laneBackoff) {
+        if (laneAttempts < 0) {
+            throw new IllegalArgumentException("Lane attempts need to be at least 0");
+        }
+
+        this.handler = handler;
+        this.dispatchMode = dispatchMode;
+        this.laneAttempts = laneAttempts;
+        this.laneBackoff = laneBackoff;
+
+        switch (dispatchMode) {
+            case ORDERED, PARTITIONED -> {
+                this.executors = new ThreadPoolExecutor[threads];
+                for (int i = 0; i < threads; i++) {
+                    this.executors[i] = createExecutor(1, queueSize);
+                }
+            }
+            case UNORDERED -> this.executors = new ThreadPoolExecutor[] {
+                createExecutor(threads, queueSize)
+            };
+            default -> this.executors = new ThreadPoolExecutor[0];
+        }
+
+        this.handled = new LongAdder[this.executors.length];
+        this.retried = new LongAdder[this.executors.length];
+        for (int i = 0; i < this.executors.length; i++) {
+            this.handled[i] = new LongAdder();
+            this.retried[i] = new LongAdder();
+        }
+
+        logger.info("Dispatching messages to {} in {} mode",
+                handler.getClass().getSimpleName(), dispatchMode);
+    }
+
+    /**
+     * Creates an executor with a bounded queue that blocks submitters while the queue is full.
+     *
+     * @param threads number of threads of the executor
+     * @param queueSize capacity of the queue of the executor
+     * @return the created executor
+     */
+    private static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new BlockingSubmitPolicy());
+    }
+
+    /**
+     * Gets how messages are dispatched to the handler.
+     *
+     * @return the dispatch mode
+     */
+    public DispatchMode getDispatchMode() {
+        return this.dispatchMode;
+    }
+
+    /**
+     * Publishes the depth of the queue of every lane, and the messages every lane has handled
+     * and retried. Every metric is tagged with the index of the lane.
+     *
+     * @param registry the registry to register the metrics in
+     */
+    public void bindMetrics(MeterRegistry registry) {
+        if (this.dispatchMode != DispatchMode.ORDERED
+                && this.dispatchMode != DispatchMode.PARTITIONED) {
+            return;
+        }
+
+        for (int i = 0; i < this.executors.length; i++) {
+            String lane = String.valueOf(i);
+            Gauge.builder("pulsar.consumer.lane.queue", this.executors[i],
+                            executor -> executor.getQueue().size())
+                    .description("Messages waiting in the queue of the lane")
+                    .tag("lane", lane)
+                    .register(registry);
+            FunctionCounter.builder("pulsar.consumer.lane.handled", this.handled[i],
+                            LongAdder::sum)
+                    .description("Messages the handler processed on the lane")
+                    .tag("lane", lane)
+                    .register(registry);
+            FunctionCounter.builder("pulsar.consumer.lane.retried", this.retried[i],
+                            LongAdder::sum)
+                    .description("Times the lane retried a message the handler failed on")
+                    .tag("lane", lane)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Dispatches a message to the handler.
+     *
+     * @param message the message to dispatch
+     * @return a future completed when the handler has processed the message, or completed
+     *         exceptionally if the handler failed. In the lane modes, the future is completed
+     *         on the thread of the lane, so callbacks run in the order of the lane
+     */
+    public CompletableFuture<Void> dispatch(Message<ByteBuffer> message) {
+        if (this.dispatchMode == DispatchMode.DIRECT) {
+            try {
+                this.handler.handle(message);
+                return COMPLETED;
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        int lane = this.selectLane(message);
+        this.executors[lane].execute(() -> this.handle(message, lane, result));
+
+        return result;
+    }
+
+    /**
+     * Handles a message on an executor, retrying it in its lane while the lane attempts allow.
+     *
+     * @param message the message to handle
+     * @param lane the index of the executor handling the message
+     * @param result the future to complete once the message is handled or given up on
+     */
+    private void handle(Message<ByteBuffer> message, int lane, CompletableFuture<Void> result) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.handler.handle(message);
+                this.handled[lane].increment();
+                result.complete(null);
+                return;
+            } catch (Exception e) {
+                if (!this.retryInLane(message, lane, attempt, e)) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits before retrying a message in its lane, if the lane attempts allow another try.
+     *
+     * @param message the message the handler failed on
+     * @param lane the index of the lane
+     * @param attempt how many times the handler has tried the message
+     * @param cause the cause of the last failure
+     * @return true if the message is to be tried again
+     */
+    private boolean retryInLane(Message<ByteBuffer> message, int lane, int attempt,
+                                Exception cause) {
+        if (this.dispatchMode == DispatchMode.UNORDERED || this.closing
+                || (this.laneAttempts > 0 && attempt >= this.laneAttempts)) {
+            return false;
+        }
+
+        long delayMillis = this.laneBackoff.next(attempt - 1);
+        logger.warn("Handler failed on message {} in lane {} after {} attempt(s), retrying "
+                + "in {} ms: {}", message.getMessageId(), lane, attempt, delayMillis,
+                cause.toString());
+        this.retried[lane].increment();
+        try {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return !this.closing;
+    }
+
+    /**
+     * Selects the executor to handle a message on. In ordered mode, the lane is selected from
+     * the ordering key, the key, or the topic partition of the message, in that order. In
+     * partitioned mode, the lane is selected from the topic partition only, placing the
+     * partitions of a topic on consecutive lanes.
+     *
+     * @param message the message to handle
+     * @return the index of the executor to handle the message on
+     */
+    private int selectLane(Message<ByteBuffer> message) {
+        if (this.executors.length == 1) {
+            return 0;
+        }
+
+        if (this.dispatchMode == DispatchMode.PARTITIONED) {
+            return Math.floorMod(partitionHash(message.getTopicName()), this.executors.length);
+        }
+
+        int hash;
+        if (message.hasOrderingKey()) {
+            hash = Arrays.hashCode(message.getOrderingKey());
+        } else if (message.hasKey()) {
+            hash = message.getKey().hashCode();
+        } else {
+            hash = message.getTopicName().hashCode();
+        }
+
+        return Math.floorMod(hash, this.executors.length);
+    }
+
+    /**
+     * Hashes a topic partition, so that the partitions of a topic get consecutive hashes.
+     *
+     * @param topicName the name of the topic partition, such as
+     *         "persistent://tenant/namespace/topic-partition-3"
+     * @return the hash of the topic plus the index of the partition
+     */
+    static int partitionHash(String topicName) {
+        int suffix = topicName.lastIndexOf(PARTITION_SUFFIX);
+        if (suffix < 0) {
+            return topicName.hashCode();
+        }
+
+        try {
+            int partition = Integer.parseInt(
+                    topicName.substring(suffix + PARTITION_SUFFIX.length()));
+            return topicName.substring(0, suffix).hashCode() + partition;
+        } catch (NumberFormatException e) {
+            return topicName.hashCode();
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits for queued messages to be handled and closes the handler.
+     * Messages being retried in a lane are given up on.
+     */
+    public void close() {
+        this.closing = true;
+        for (ThreadPoolExecutor executor : this.executors) {
+            executor.shutdown();
+        }
+
+        try {
+            for (ThreadPoolExecutor executor : this.executors) {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for message handlers to finish");
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for message handlers to finish");
+            Thread.currentThread().interrupt();
+        }
+
+        this.handler.close();
+    }
+
+    /**
+     * Rejection policy that blocks the submitting thread until there is room in the queue.
+     */
+    private static class BlockingSubmitPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Message dispatcher is closed");
+            }
+
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while dispatching message", e);
+            }
+        }
+    }
+}
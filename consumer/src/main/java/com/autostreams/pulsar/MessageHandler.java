@@ -0,0 +1,43 @@
+package com.autostreams.pulsar;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import org.apache.pulsar.client.api.Message;
+
+/**
+ * Service provider interface for processing messages received by the consumer workers.
+ * Implementations are loaded by the Consumer Master, either by class name through the
+ * "handler.class" key in masterconfig.properties or through {@link java.util.ServiceLoader}.
+ * A message is acknowledged only after its handler has returned without throwing.
+ *
+ * <p>Depending on the dispatch mode, a handler may be called from several threads at the
+ * same time and must then be thread safe.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public interface MessageHandler {
+    /**
+     * Prepares the handler for use. Called once before any message is handled.
+     *
+     * @param properties the properties loaded from masterconfig.properties
+     */
+    default void initialize(Properties properties) {
+    }
+
+    /**
+     * Processes a received message. The value of the message is the raw payload, wrapped in
+     * a buffer without being decoded or copied into a String.
+     *
+     * @param message the message to process
+     * @throws Exception if the message could not be processed, causing it to be negatively
+     *                   acknowledged
+     */
+    void handle(Message<ByteBuffer> message) throws Exception;
+
+    /**
+     * Releases resources held by the handler. Called once after the last message is handled.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,246 @@
+package com.autostreams.pulsar;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the memory held by messages prefetched into the receiver queues of all workers, or
+ * dispatched and not yet processed, to a global budget. At every interval the budget is
+ * allocated across the workers in proportion to how many bytes their handlers processed, with
+ * a floor so that an idle worker can still start receiving. Workers holding more than their
+ * allocation are paused, which stops their consumers from asking the broker for more
+ * messages, and resumed once they have worked their backlog down. Workers with slow handlers
+ * thereby keep less prefetched, while workers with fast handlers keep their queues full.
+ *
+ * <p>The receiver queue of a Pulsar consumer is sized when it subscribes, so new workers get
+ * a receiver queue sized to their share of the budget at the observed message size.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class PrefetchGovernor {
+    private static final double MIN_SHARE = 0.1;
+    private static final double RESUME_RATIO = 0.5;
+    private final Logger logger = LoggerFactory.getLogger(PrefetchGovernor.class);
+    private final ConsumerMaster master;
+    private final ScheduledExecutorService scheduler;
+    private final Map<ConsumerWorker, WorkerState> states = new HashMap<>();
+    private final long budgetBytes;
+    private final long intervalMillis;
+    private final int minReceiverQueueSize;
+    private final long expectedMessageBytes;
+    private final boolean autoScaledReceiverQueue;
+    private volatile long meanMessageBytes;
+    private volatile long prefetchedBytes = 0;
+
+    /**
+     * Prefetch state of a worker between intervals.
+     */
+    private static final class WorkerState {
+        private long received = 0;
+        private long receivedBytes = 0;
+        private long processed = 0;
+        private long meanBytes = 0;
+        private boolean paused = false;
+    }
+
+    /**
+     * Creates a prefetch governor. Call {@link #start()} to start governing.
+     *
+     * @param master the master owning the workers to govern
+     * @param props properties loaded from the master configuration file
+     * @param registry the registry to publish the memory usage in
+     */
+    public PrefetchGovernor(ConsumerMaster master, Properties props, MeterRegistry registry) {
+        this.master = master;
+        this.budgetBytes = Long.parseLong(
+                props.getProperty("prefetch.budgetMegaBytes", "256").trim()) * 1024 * 1024;
+        this.intervalMillis = Long.parseLong(
+                props.getProperty("prefetch.intervalMillis", "1000").trim());
+        this.minReceiverQueueSize = Integer.parseInt(
+                props.getProperty("prefetch.minReceiverQueueSize", "10").trim());
+        this.expectedMessageBytes = Long.parseLong(
+                props.getProperty("prefetch.expectedMessageBytes", "1024").trim());
+        this.autoScaledReceiverQueue = Boolean.parseBoolean(
+                props.getProperty("prefetch.autoScaledReceiverQueue", "true").trim());
+        this.meanMessageBytes = this.expectedMessageBytes;
+
+        if (this.budgetBytes <= 0 || this.intervalMillis <= 0 || this.minReceiverQueueSize < 1
+                || this.expectedMessageBytes <= 0) {
+            throw new IllegalArgumentException("Prefetch budget, interval, minimum receiver "
+                    + "queue size and expected message size need to be above 0");
+        }
+
+        Gauge.builder("pulsar.consumer.prefetch.budget", this, g -> g.budgetBytes)
+                .description("Bytes all workers may hold prefetched or in process")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("pulsar.consumer.prefetch.total", this, g -> g.prefetchedBytes)
+                .description("Bytes all workers hold prefetched or in process, estimated from "
+                        + "the mean message size")
+                .baseUnit("bytes")
+                .register(registry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prefetch-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts governing the prefetched memory of the workers.
+     */
+    public void start() {
+        this.scheduler.scheduleWithFixedDelay(this::governSafely, this.intervalMillis,
+                this.intervalMillis, TimeUnit.MILLISECONDS);
+
+        logger.info("Governing prefetched messages within {} MB every {} ms",
+                this.budgetBytes / (1024 * 1024), this.intervalMillis);
+    }
+
+    /**
+     * Stops governing the prefetched memory of the workers.
+     */
+    public void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Checks whether workers should enable auto scaled receiver queues, which the Pulsar
+     * client grows from a single message up to the receiver queue size as it is consumed.
+     *
+     * @return true if receiver queues are auto scaled
+     */
+    public boolean isAutoScaledReceiverQueue() {
+        return this.autoScaledReceiverQueue;
+    }
+
+    /**
+     * Gets the receiver queue size of a new worker: its equal share of the budget at the
+     * mean message size, bounded by the configured receiver queue size.
+     *
+     * @param workers the number of workers including the new one
+     * @param configuredSize the receiver queue size in the consumer configuration
+     * @return the receiver queue size of the new worker
+     */
+    public int receiverQueueSize(int workers, int configuredSize) {
+        long share = this.budgetBytes / Math.max(1, workers);
+        long size = share / Math.max(1, this.meanMessageBytes);
+
+        return (int) Math.max(Math.min(this.minReceiverQueueSize, configuredSize),
+                Math.min(configuredSize, size));
+    }
+
+    /**
+     * Governs the workers, logging instead of throwing any failure so that later intervals
+     * still run.
+     */
+    private void governSafely() {
+        try {
+            this.govern();
+        } catch (RuntimeException e) {
+            logger.error("Exception occurred during governing of prefetched messages");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Estimates the prefetched bytes of every worker, allocates the budget across the workers
+     * and pauses or resumes them accordingly.
+     */
+    private void govern() {
+        List<ConsumerWorker> workers = this.master.getWorkers();
+        this.states.keySet().retainAll(workers);
+        if (workers.isEmpty()) {
+            return;
+        }
+
+        int count = workers.size();
+        long[] prefetched = new long[count];
+        long[] drained = new long[count];
+        long totalPrefetched = 0;
+        long totalDrained = 0;
+        long totalReceived = 0;
+        long totalReceivedBytes = 0;
+
+        for (int i = 0; i < count; i++) {
+            ConsumerMetrics metrics = workers.get(i).getMetrics();
+            WorkerState state = this.states.computeIfAbsent(workers.get(i),
+                    ignored -> new WorkerState());
+
+            long received = metrics.getReceived();
+            long receivedBytes = metrics.getReceivedBytes();
+            long processed = metrics.getProcessed();
+            if (received > state.received) {
+                state.meanBytes = (receivedBytes - state.receivedBytes)
+                        / (received - state.received);
+                totalReceived += received - state.received;
+                totalReceivedBytes += receivedBytes - state.receivedBytes;
+            }
+            long meanBytes = state.meanBytes > 0 ? state.meanBytes : this.meanMessageBytes;
+
+            int backlog = metrics.getReceiverQueue() + metrics.getInProcess();
+            prefetched[i] = backlog * meanBytes;
+            drained[i] = (processed - state.processed) * meanBytes;
+            totalPrefetched += prefetched[i];
+            totalDrained += drained[i];
+
+            state.received = received;
+            state.receivedBytes = receivedBytes;
+            state.processed = processed;
+        }
+
+        if (totalReceived > 0) {
+            this.meanMessageBytes = Math.max(1, totalReceivedBytes / totalReceived);
+        }
+        this.prefetchedBytes = totalPrefetched;
+
+        long floor = (long) (this.budgetBytes * MIN_SHARE / count);
+        long shared = this.budgetBytes - floor * count;
+        for (int i = 0; i < count; i++) {
+            long allocated = floor + (totalDrained == 0
+                    ? shared / count
+                    : (long) ((double) shared * drained[i] / totalDrained));
+            this.apply(workers.get(i), prefetched[i], allocated);
+        }
+
+        logger.debug("Prefetched {} of {} bytes across {} workers, mean message size {} bytes",
+                totalPrefetched, this.budgetBytes, count, this.meanMessageBytes);
+    }
+
+    /**
+     * Pauses a worker holding more than its allocation, and resumes a paused worker once it
+     * holds less than half of it.
+     *
+     * @param worker the worker to govern
+     * @param prefetched the bytes the worker holds prefetched or in process
+     * @param allocated the bytes allocated to the worker
+     */
+    private void apply(ConsumerWorker worker, long prefetched, long allocated) {
+        WorkerState state = this.states.get(worker);
+
+        if (!state.paused && prefetched > allocated) {
+            worker.pause();
+            state.paused = true;
+            logger.debug("Paused worker holding {} of {} allocated bytes", prefetched,
+                    allocated);
+        } else if (state.paused && prefetched <= allocated * RESUME_RATIO) {
+            worker.resume();
+            state.paused = false;
+            logger.debug("Resumed worker holding {} of {} allocated bytes", prefetched,
+                    allocated);
+        }
+
+        worker.getMetrics().recordPrefetch(prefetched, allocated, state.paused);
+    }
+}
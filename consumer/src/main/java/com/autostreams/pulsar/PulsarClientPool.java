@@ -0,0 +1,93 @@
+package com.autostreams.pulsar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.SizeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small pool of Pulsar clients shared by all consumer workers of a Consumer Master. Every
+ * client owns its own IO threads, listener threads, connections and memory limit, so sharing
+ * a few clients keeps those from growing with the number of workers.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class PulsarClientPool {
+    private final Logger logger = LoggerFactory.getLogger(PulsarClientPool.class);
+    private final List<PulsarClient> clients = new ArrayList<>();
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    /**
+     * Creates the clients of the pool. If a client could not be created, the clients created
+     * before it are closed, so their threads and connections do not outlive the pool.
+     *
+     * @param host service url of the Pulsar broker
+     * @param props properties loaded from the master configuration file
+     * @throws PulsarClientException if a client could not be created
+     */
+    public PulsarClientPool(String host, Properties props) throws PulsarClientException {
+        int poolSize = Integer.parseInt(props.getProperty("client.poolSize", "1").trim());
+        int ioThreads = Integer.parseInt(props.getProperty("client.ioThreads", "1").trim());
+        int listenerThreads = Integer.parseInt(
+                props.getProperty("client.listenerThreads", "1").trim());
+        int connectionsPerBroker = Integer.parseInt(
+                props.getProperty("client.connectionsPerBroker", "1").trim());
+        long memoryLimitMegaBytes = Long.parseLong(
+                props.getProperty("client.memoryLimitMegaBytes", "0").trim());
+        long statsIntervalSeconds = Long.parseLong(
+                props.getProperty("client.statsIntervalSeconds", "10").trim());
+
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                this.clients.add(PulsarClient.builder()
+                        .serviceUrl(host)
+                        .ioThreads(ioThreads)
+                        .listenerThreads(listenerThreads)
+                        .connectionsPerBroker(connectionsPerBroker)
+                        .memoryLimit(memoryLimitMegaBytes, SizeUnit.MEGA_BYTES)
+                        .statsInterval(statsIntervalSeconds, TimeUnit.SECONDS)
+                        .build());
+            }
+        } catch (PulsarClientException | RuntimeException e) {
+            logger.error("Failed to create Pulsar client {} of {}, closing the created ones",
+                    this.clients.size() + 1, poolSize);
+            this.close();
+            throw e;
+        }
+
+        logger.info("Created {} Pulsar client(s) with {} IO thread(s), {} listener thread(s) and "
+                + "{} connection(s) per broker", poolSize, ioThreads, listenerThreads,
+                connectionsPerBroker);
+    }
+
+    /**
+     * Gets a client from the pool. Clients are handed out in round robin order.
+     *
+     * @return a client from the pool
+     */
+    public PulsarClient next() {
+        int index = Math.floorMod(this.nextClient.getAndIncrement(), this.clients.size());
+
+        return this.clients.get(index);
+    }
+
+    /**
+     * Closes every client in the pool.
+     */
+    public void close() {
+        for (PulsarClient client : this.clients) {
+            try {
+                client.close();
+            } catch (PulsarClientException pce) {
+                logger.error("An error occurred while closing a Pulsar client");
+            }
+        }
+    }
+}
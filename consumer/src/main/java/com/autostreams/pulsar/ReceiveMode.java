@@ -0,0 +1,20 @@
+package com.autostreams.pulsar;
+
+/**
+ * The ways a consumer worker can receive messages from the broker.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public enum ReceiveMode {
+    /**
+     * Receive and acknowledge one message at a time.
+     */
+    SINGLE,
+
+    /**
+     * Receive messages in batches bounded by a batch receive policy, acknowledging each batch
+     * as a whole.
+     */
+    BATCH
+}
@@ -0,0 +1,194 @@
+package com.autostreams.pulsar;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Grows and shrinks the workers of a Consumer Master between configured bounds. At every
+ * interval the load of the workers is sampled: how far behind the publish time messages are
+ * received, the backlog prefetched or in process per worker, and how busy the workers are,
+ * estimated from the receive rate and handler latency. Workers are added as soon as any of
+ * them is too high, and removed one at a time once all of them have been low for a number of
+ * intervals in a row. Removed workers are drained before they are closed.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class WorkerAutoscaler {
+    private final Logger logger = LoggerFactory.getLogger(WorkerAutoscaler.class);
+    private final ConsumerMaster master;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalSeconds;
+    private volatile int minWorkers;
+    private volatile int maxWorkers;
+    private volatile long scaleUpLagMillis;
+    private volatile long scaleDownLagMillis;
+    private volatile int scaleUpBacklog;
+    private volatile double targetUtilization;
+    private volatile int scaleDownIntervals;
+    private volatile long drainTimeoutMillis;
+    private int calmIntervals = 0;
+
+    /**
+     * Creates an autoscaler. Call {@link #start()} to start scaling.
+     *
+     * @param master the master owning the workers to scale
+     * @param props properties loaded from the master configuration file
+     */
+    public WorkerAutoscaler(ConsumerMaster master, Properties props) {
+        this.master = master;
+        this.intervalSeconds = Long.parseLong(
+                props.getProperty("autoscaler.intervalSeconds", "10").trim());
+        this.reconfigure(props);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "worker-autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Applies the bounds and thresholds of the autoscaler, taking effect from the next
+     * interval. The interval itself is only read when the autoscaler is created. Nothing is
+     * applied if the bounds are invalid.
+     *
+     * @param props properties loaded from the master configuration file
+     */
+    public void reconfigure(Properties props) {
+        int min = Integer.parseInt(props.getProperty("autoscaler.minWorkers", "1").trim());
+        int max = Integer.parseInt(props.getProperty("autoscaler.maxWorkers", "8").trim());
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Autoscaler bounds need to satisfy "
+                    + "1 <= autoscaler.minWorkers <= autoscaler.maxWorkers");
+        }
+
+        this.minWorkers = min;
+        this.maxWorkers = max;
+        this.scaleUpLagMillis = Long.parseLong(
+                props.getProperty("autoscaler.scaleUpLagMillis", "5000").trim());
+        this.scaleDownLagMillis = Long.parseLong(
+                props.getProperty("autoscaler.scaleDownLagMillis", "500").trim());
+        this.scaleUpBacklog = Integer.parseInt(
+                props.getProperty("autoscaler.scaleUpBacklogPerWorker", "500").trim());
+        this.targetUtilization = Double.parseDouble(
+                props.getProperty("autoscaler.targetUtilization", "0.75").trim());
+        this.scaleDownIntervals = Integer.parseInt(
+                props.getProperty("autoscaler.scaleDownIntervals", "3").trim());
+        this.drainTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                props.getProperty("autoscaler.drainTimeoutSeconds", "30").trim()));
+    }
+
+    /**
+     * Bounds a worker count to the minimum and maximum number of workers.
+     *
+     * @param workers the worker count to bound
+     * @return the bounded worker count
+     */
+    public int bound(int workers) {
+        return Math.max(this.minWorkers, Math.min(this.maxWorkers, workers));
+    }
+
+    /**
+     * Starts sampling the load of the workers and scaling them.
+     */
+    public void start() {
+        this.master.sampleWorkerLoad();
+        this.scheduler.scheduleWithFixedDelay(this::evaluate, this.intervalSeconds,
+                this.intervalSeconds, TimeUnit.SECONDS);
+
+        logger.info("Autoscaling workers between {} and {} every {} seconds",
+                this.minWorkers, this.maxWorkers, this.intervalSeconds);
+    }
+
+    /**
+     * Stops scaling the workers. A scaling step in progress is allowed to finish.
+     */
+    public void stop() {
+        this.scheduler.shutdown();
+        try {
+            if (!this.scheduler.awaitTermination(this.drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                this.scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the autoscaler to stop");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Samples the load of the workers and adds or removes workers accordingly.
+     */
+    private void evaluate() {
+        try {
+            int workers = this.master.getWorkerCount();
+            ConsumerMetrics.Load load = this.master.sampleWorkerLoad();
+            int desired = this.desiredWorkers(workers, load);
+
+            for (int i = workers; i < desired; i++) {
+                this.master.addWorker();
+            }
+            for (int i = workers; i > desired; i--) {
+                this.master.removeWorker(this.drainTimeoutMillis);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Exception occurred during autoscaling of workers");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decides on the number of workers for the sampled load.
+     *
+     * @param workers the current number of workers
+     * @param load the load of all workers over the last interval
+     * @return the number of workers to scale to
+     */
+    int desiredWorkers(int workers, ConsumerMetrics.Load load) {
+        long meanLagMillis = load.received() == 0 ? 0 : load.lagMillis() / load.received();
+        int backlogPerWorker = workers == 0 ? load.backlog() : load.backlog() / workers;
+        double meanHandlerNanos = load.processed() == 0
+                ? 0
+                : (double) load.handlerNanos() / load.processed();
+        double busyWorkers = load.received() * meanHandlerNanos
+                / TimeUnit.SECONDS.toNanos(this.intervalSeconds);
+        double utilization = workers == 0 ? 0 : busyWorkers / workers;
+
+        logger.debug("Workers: {}, receive rate: {}/s, mean lag: {} ms, backlog per worker: {}, "
+                + "utilization: {}", workers, load.received() / this.intervalSeconds,
+                meanLagMillis, backlogPerWorker, utilization);
+
+        if (meanLagMillis > this.scaleUpLagMillis
+                || backlogPerWorker > this.scaleUpBacklog
+                || utilization > this.targetUtilization) {
+            this.calmIntervals = 0;
+
+            int needed = (int) Math.ceil(busyWorkers / this.targetUtilization);
+            int desired = this.bound(Math.max(workers + 1, needed));
+            if (desired > workers) {
+                logger.info("Scaling up from {} to {} workers, mean lag: {} ms, "
+                        + "backlog per worker: {}, utilization: {}", workers, desired,
+                        meanLagMillis, backlogPerWorker, utilization);
+            }
+            return desired;
+        }
+
+        boolean calm = meanLagMillis < this.scaleDownLagMillis
+                && workers > 1
+                && busyWorkers / (workers - 1) < this.targetUtilization;
+        this.calmIntervals = calm ? this.calmIntervals + 1 : 0;
+
+        if (this.calmIntervals >= this.scaleDownIntervals && workers > this.minWorkers) {
+            this.calmIntervals = 0;
+            logger.info("Scaling down from {} to {} workers, mean lag: {} ms, utilization: {}",
+                    workers, workers - 1, meanLagMillis, utilization);
+            return workers - 1;
+        }
+
+        return this.bound(workers);
+    }
+}
@@ -1,5 +1,6 @@
-package com.autostreams.pulsar;
+package com.autostreams.pulsar.consumer;
 
+import com.autostreams.pulsar.ConsumerMaster;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -28,6 +29,8 @@ public class Main {
         ConsumerMaster consumerMaster = new ConsumerMaster();
         consumerMaster.init(consumerCount);
         consumerMaster.startWorkers();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(consumerMaster::onShutdown));
     }
 
     /**
@@ -0,0 +1,132 @@
+package com.autostreams.pulsar;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.autostreams.pulsar.config.ConfigSnapshot;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.pulsar.client.api.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of how a worker acknowledges the messages the handler processed or failed on.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class ConsumerWorkerTest {
+    private static final Set<String> FAILING = Set.of("p0-2");
+
+    @TempDir
+    Path directory;
+
+    private final InMemoryPulsar pulsar = new InMemoryPulsar();
+
+    /**
+     * With a lane per partition, messages are acknowledged cumulatively until one of their
+     * partition is left for redelivery, after which that partition is acknowledged
+     * individually while the other partitions stay cumulative.
+     */
+    @Test
+    void laneGoesToIndividualAcksAfterANack() throws IOException {
+        MessageDispatcher dispatcher = new MessageDispatcher(ConsumerWorkerTest::handle,
+                DispatchMode.PARTITIONED, 2, 10, 1, new JitteredRedeliveryBackoff(0, 0, 1, 0));
+        ConsumerWorker worker = this.createWorker(dispatcher, "SINGLE");
+
+        this.pulsar.enqueue(InMemoryPulsar.message(0, 1));
+        this.pulsar.enqueue(InMemoryPulsar.message(0, 2));
+        this.pulsar.enqueue(InMemoryPulsar.message(1, 1));
+        this.pulsar.enqueue(InMemoryPulsar.message(0, 3));
+        for (int i = 0; i < 4; i++) {
+            worker.receiveAndProcessMessage();
+        }
+        dispatcher.close();
+        assertTrue(worker.awaitAcknowledged(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)));
+
+        List<String> acks = this.pulsar.takeAcks();
+        assertEquals(List.of("cumulative p0-1", "negative p0-2", "individual p0-3"),
+                ofPartition(acks, 0));
+        assertEquals(List.of("cumulative p1-1"), ofPartition(acks, 1));
+    }
+
+    /**
+     * With cumulative batch acknowledgement, a batch with a failed message is acknowledged
+     * individually, and later batches keep acknowledging the partition of the failed message
+     * individually, so that the failed message is not covered before it is redelivered.
+     */
+    @Test
+    void batchGoesToIndividualAcksAfterANack() throws IOException {
+        MessageDispatcher dispatcher = new MessageDispatcher(ConsumerWorkerTest::handle,
+                DispatchMode.DIRECT, 1, 10);
+        ConsumerWorker worker = this.createWorker(dispatcher, "BATCH");
+
+        this.pulsar.enqueueBatch(InMemoryPulsar.message(0, 1), InMemoryPulsar.message(0, 2),
+                InMemoryPulsar.message(1, 1));
+        worker.receiveAndProcessBatch();
+        assertEquals(List.of("individual [p0-1, p1-1]", "negative p0-2"),
+                this.pulsar.takeAcks());
+
+        this.pulsar.enqueueBatch(InMemoryPulsar.message(0, 3), InMemoryPulsar.message(1, 2));
+        worker.receiveAndProcessBatch();
+        assertEquals(List.of("individual [p0-3]", "cumulative p1-2"), this.pulsar.takeAcks());
+    }
+
+    /**
+     * Handles a message, failing on the messages meant to fail.
+     *
+     * @param message the message to handle
+     */
+    private static void handle(Message<ByteBuffer> message) {
+        if (FAILING.contains(message.getMessageId().toString())) {
+            throw new IllegalStateException("Failing on " + message.getMessageId());
+        }
+    }
+
+    /**
+     * Creates and initializes a worker consuming from the in-memory stand-in.
+     *
+     * @param dispatcher the dispatcher of the worker
+     * @param receiveMode how the worker receives messages
+     * @return the initialized worker
+     * @throws IOException if the configuration could not be written
+     */
+    private ConsumerWorker createWorker(MessageDispatcher dispatcher, String receiveMode)
+            throws IOException {
+        Files.writeString(this.directory.resolve(ConsumerPropertyLoader.CONFIG_NAME), String.join(
+                "\n",
+                "topicNames=topic",
+                "subscriptionName=subscription",
+                "subscriptionType=Exclusive",
+                "receiveMode=" + receiveMode,
+                "batchAckMode=CUMULATIVE"));
+        ConsumerPropertyLoader propertyLoader = new ConsumerPropertyLoader(ConfigSnapshot.load(
+                this.directory, List.of(ConsumerPropertyLoader.CONFIG_NAME)));
+
+        ConsumerWorker worker = new ConsumerWorker(this.pulsar.client(), dispatcher,
+                ConsumerMetrics.noop(), propertyLoader);
+        worker.initialize();
+
+        return worker;
+    }
+
+    /**
+     * Selects the acknowledgements of a partition.
+     *
+     * @param acks the recorded acknowledgements
+     * @param partition the index of the partition
+     * @return the acknowledgements of messages of the partition, in order
+     */
+    private static List<String> ofPartition(List<String> acks, int partition) {
+        return acks.stream()
+                .filter(ack -> ack.contains("p" + partition + "-"))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,207 @@
+package com.autostreams.pulsar;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.PulsarClient;
+
+/**
+ * In-memory stand-in for the Pulsar client, so that workers can be tested without a broker.
+ * Its consumer hands out queued messages and batches, and records every acknowledgement as
+ * text, such as "cumulative p0-2" or "individual [p0-1, p1-1]". Stand-ins are dynamic proxies
+ * of the Pulsar client interfaces, returning neutral defaults for calls they do not answer.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class InMemoryPulsar {
+    private final Queue<Object> received = new ConcurrentLinkedQueue<>();
+    private final Queue<String> acks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a message of a topic partition, whose id reads as the partition and sequence.
+     *
+     * @param partition the index of the partition of the topic
+     * @param sequence the sequence of the message within its partition
+     * @return the stand-in message
+     */
+    static Message<ByteBuffer> message(int partition, int sequence) {
+        String id = "p" + partition + "-" + sequence;
+        MessageId messageId = proxy(MessageId.class, Map.of("toString", args -> id));
+        byte[] payload = id.getBytes();
+
+        return proxy(Message.class, Map.of(
+                "getValue", args -> ByteBuffer.wrap(payload),
+                "getData", args -> payload,
+                "size", args -> payload.length,
+                "getMessageId", args -> messageId,
+                "getTopicName", args -> "persistent://public/default/topic-partition-"
+                        + partition,
+                "getProperties", args -> Map.of(),
+                "toString", args -> id
+        ));
+    }
+
+    /**
+     * Queues a message for the consumer to receive.
+     *
+     * @param message the message to receive
+     */
+    void enqueue(Message<ByteBuffer> message) {
+        this.received.add(message);
+    }
+
+    /**
+     * Queues a batch of messages for the consumer to receive in one batch receive.
+     *
+     * @param messages the messages of the batch
+     */
+    @SafeVarargs
+    final void enqueueBatch(Message<ByteBuffer>... messages) {
+        List<Message<ByteBuffer>> batch = List.of(messages);
+        this.received.add(proxy(Messages.class, Map.of(
+                "size", args -> batch.size(),
+                "iterator", args -> batch.iterator()
+        )));
+    }
+
+    /**
+     * Takes the acknowledgements recorded so far.
+     *
+     * @return the recorded acknowledgements, in the order they were made
+     */
+    List<String> takeAcks() {
+        List<String> taken = new ArrayList<>();
+        for (String ack = this.acks.poll(); ack != null; ack = this.acks.poll()) {
+            taken.add(ack);
+        }
+
+        return taken;
+    }
+
+    /**
+     * Creates a client whose consumers receive the queued messages and batches.
+     *
+     * @return the stand-in client
+     */
+    PulsarClient client() {
+        Consumer<ByteBuffer> consumer = proxy(Consumer.class, Map.of(
+                "receive", args -> this.received.poll(),
+                "batchReceive", args -> this.received.poll(),
+                "acknowledge", args -> this.record("individual", args[0]),
+                "acknowledgeAsync", args -> this.recordAsync("individual", args[0]),
+                "acknowledgeCumulative", args -> this.record("cumulative", args[0]),
+                "acknowledgeCumulativeAsync", args -> this.recordAsync("cumulative", args[0]),
+                "negativeAcknowledge", args -> this.record("negative", args[0])
+        ));
+
+        ConsumerBuilder<ByteBuffer> consumerBuilder = proxy(ConsumerBuilder.class, Map.of(
+                "subscribe", args -> consumer
+        ));
+
+        return proxy(PulsarClient.class, Map.of("newConsumer", args -> consumerBuilder));
+    }
+
+    /**
+     * Records an acknowledgement.
+     *
+     * @param kind the kind of acknowledgement
+     * @param acknowledged the acknowledged message, message id or list of message ids
+     * @return null, the result of a synchronous acknowledgement
+     */
+    private Object record(String kind, Object acknowledged) {
+        this.acks.add(kind + " " + acknowledged);
+
+        return null;
+    }
+
+    /**
+     * Records an acknowledgement made asynchronously.
+     *
+     * @param kind the kind of acknowledgement
+     * @param acknowledged the acknowledged message or message id
+     * @return a completed future, the result of an asynchronous acknowledgement
+     */
+    private Object recordAsync(String kind, Object acknowledged) {
+        this.record(kind, acknowledged);
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Creates a dynamic proxy of an interface.
+     *
+     * @param type the interface to implement
+     * @param answers answers to calls, keyed by method name
+     * @param <T> the type of the interface
+     * @return the proxy
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(InMemoryPulsar.class.getClassLoader(),
+                new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    Function<Object[], Object> answer = answers.get(method.getName());
+                    if (answer != null) {
+                        return answer.apply(args);
+                    }
+
+                    return defaultAnswer(proxy, method, args);
+                });
+    }
+
+    /**
+     * Answers a call that has no explicit answer. Builder style methods return the proxy
+     * itself, asynchronous methods return a completed future and the rest return the default
+     * value of their return type.
+     *
+     * @param proxy the proxy the method was called on
+     * @param method the called method
+     * @param args the arguments of the call
+     * @return the answer
+     */
+    private static Object defaultAnswer(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                break;
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType != Object.class && returnType.isInstance(proxy)) {
+            return proxy;
+        }
+        if (returnType == CompletableFuture.class) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class) {
+            return 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        if (returnType == double.class) {
+            return 0.0;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+package com.autostreams.pulsar;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of how the dispatcher places messages on lanes and retries them there.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class MessageDispatcherTest {
+    private static final String TOPIC = "persistent://public/default/topic";
+
+    /**
+     * The partitions of a topic hash to consecutive values, and any other topic name to its
+     * own hash.
+     */
+    @Test
+    void partitionsOfATopicHashToConsecutiveValues() {
+        int first = MessageDispatcher.partitionHash(TOPIC + "-partition-0");
+        for (int partition = 1; partition < 8; partition++) {
+            assertEquals(first + partition,
+                    MessageDispatcher.partitionHash(TOPIC + "-partition-" + partition));
+        }
+
+        assertEquals(TOPIC.hashCode(), MessageDispatcher.partitionHash(TOPIC));
+        assertEquals((TOPIC + "-partition-x").hashCode(),
+                MessageDispatcher.partitionHash(TOPIC + "-partition-x"));
+    }
+
+    /**
+     * With at least as many lanes as partitions, every partition is handled on a lane of its
+     * own, and always on the same one.
+     */
+    @Test
+    void partitionsAreHandledOnLanesOfTheirOwn() {
+        Map<String, Set<String>> lanesPerTopic = new ConcurrentHashMap<>();
+        MessageDispatcher dispatcher = new MessageDispatcher(
+                message -> lanesPerTopic.computeIfAbsent(message.getTopicName(),
+                        topic -> ConcurrentHashMap.newKeySet())
+                        .add(Thread.currentThread().getName()),
+                DispatchMode.PARTITIONED, 4, 100);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int sequence = 0; sequence < 10; sequence++) {
+            for (int partition = 0; partition < 4; partition++) {
+                results.add(dispatcher.dispatch(InMemoryPulsar.message(partition, sequence)));
+            }
+        }
+        results.forEach(CompletableFuture::join);
+        dispatcher.close();
+
+        Set<String> lanes = new HashSet<>();
+        for (Set<String> lanesOfTopic : lanesPerTopic.values()) {
+            assertEquals(1, lanesOfTopic.size());
+            lanes.addAll(lanesOfTopic);
+        }
+        assertEquals(4, lanesPerTopic.size());
+        assertEquals(4, lanes.size());
+    }
+
+    /**
+     * A failed message is retried in its lane before the next message of the lane is
+     * handled.
+     */
+    @Test
+    void laneRetriesAMessageBeforeHandlingTheNext() {
+        List<String> handled = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger(2);
+        MessageDispatcher dispatcher = createDispatcher(message -> {
+            String id = message.getMessageId().toString();
+            if (id.equals("p0-1") && failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("Failing on " + id);
+            }
+            handled.add(id);
+        });
+
+        CompletableFuture<Void> first = dispatcher.dispatch(InMemoryPulsar.message(0, 1));
+        CompletableFuture<Void> second = dispatcher.dispatch(InMemoryPulsar.message(0, 2));
+        second.join();
+        dispatcher.close();
+
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertEquals(List.of("p0-1", "p0-2"), handled);
+    }
+
+    /**
+     * A message the handler keeps failing on is given up on after the lane attempts, and does
+     * not hold back the rest of its lane.
+     */
+    @Test
+    void laneGivesUpAfterItsAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> handled = new ArrayList<>();
+        MessageDispatcher dispatcher = createDispatcher(message -> {
+            String id = message.getMessageId().toString();
+            if (id.equals("p0-1")) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("Failing on " + id);
+            }
+            handled.add(id);
+        });
+
+        CompletableFuture<Void> poison = dispatcher.dispatch(InMemoryPulsar.message(0, 1));
+        CompletableFuture<Void> next = dispatcher.dispatch(InMemoryPulsar.message(0, 2));
+        next.join();
+        dispatcher.close();
+
+        assertTrue(poison.isCompletedExceptionally());
+        assertEquals(3, attempts.get());
+        assertEquals(List.of("p0-2"), handled);
+    }
+
+    /**
+     * Creates a partitioned dispatcher with a single lane, trying a message three times
+     * without waiting in between.
+     *
+     * @param handler the handler to dispatch messages to
+     * @return the created dispatcher
+     */
+    private static MessageDispatcher createDispatcher(MessageHandler handler) {
+        return new MessageDispatcher(handler, DispatchMode.PARTITIONED, 1, 10, 3,
+                new JitteredRedeliveryBackoff(0, 0, 1, 0));
+    }
+}
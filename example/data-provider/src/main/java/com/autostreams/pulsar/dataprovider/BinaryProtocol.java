@@ -0,0 +1,27 @@
+package com.autostreams.pulsar.dataprovider;
+
+/**
+ * Constants of the binary protocol offered by the ingest server of the producer. After the
+ * server has sent {@link #OFFER}, a data provider switches to the protocol by sending
+ * {@link #HELLO}, and then sends frames of records instead of lines.
+ *
+ * <p>All numbers are big endian. A frame is a 4 byte length followed by that many bytes: a
+ * 1 byte type and the body. The body of a {@link #BATCH} frame is a 4 byte record count,
+ * followed by every record as a 4 byte length and the record. A record is a 1 byte set of
+ * flags, the 8 byte event time in milliseconds since the epoch if {@link #FLAG_EVENT_TIME} is
+ * set, and then the payload. The producer also accepts a key and properties, which this data
+ * provider does not send.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class BinaryProtocol {
+    static final String OFFER = "streams_protocol binary/1";
+    static final byte[] HELLO = {0, 'A', 'S', 'B', 1};
+    static final int BATCH = 2;
+    static final int FLAG_EVENT_TIME = 4;
+    static final int BATCH_HEADER_BYTES = Integer.BYTES + 1 + Integer.BYTES;
+    static final int RECORD_HEADER_BYTES = Integer.BYTES + 1 + Long.BYTES;
+
+    private BinaryProtocol() {}
+}
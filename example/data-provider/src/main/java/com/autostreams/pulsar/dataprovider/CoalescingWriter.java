@@ -0,0 +1,218 @@
+package com.autostreams.pulsar.dataprovider;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces lines written to a channel into batches in pooled direct buffers, writing and
+ * flushing a batch once it is full or its oldest line has waited for the batch delay. A batch
+ * is only written while the channel is writable, so that a slow receiver blocks the writer
+ * instead of growing the outbound buffer of the channel without bound.
+ *
+ * <p>Over the binary protocol, every batch is a single batch frame, and every line a record
+ * without its line delimiter, carrying the time it was written as its event time.
+ *
+ * <p>A writer is used by a single thread.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class CoalescingWriter {
+    private static final long WRITABILITY_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int TRACE_HEADER_BYTES = 24;
+    private static final String TRACE_PREFIX = "~t:";
+
+    private final Channel channel;
+    private final boolean binary;
+    private final int batchBytes;
+    private final long batchDelayNanos;
+    private final Completion completion;
+    private ByteBuf buffer = null;
+    private long[] intendedNanos = null;
+    private int pending = 0;
+    private long firstWriteNanos = 0;
+    private volatile long blockedNanos = 0;
+
+    /**
+     * Callback receiving the outcome of a written batch.
+     */
+    @FunctionalInterface
+    interface Completion {
+
+        /**
+         * Handle the outcome of a written batch.
+         *
+         * @param intendedNanos the intended send times of the lines of the batch.
+         * @param lines the number of lines in the batch.
+         * @param bytes the size of the batch in bytes.
+         * @param cause the cause of the failure, or null if the batch was written.
+         */
+        void complete(long[] intendedNanos, int lines, int bytes, Throwable cause);
+    }
+
+    /**
+     * Create a coalescing writer.
+     *
+     * @param channel the channel to write to.
+     * @param binary true to write batch frames of the binary protocol instead of lines.
+     * @param batchBytes the size of a batch in bytes, or 0 to flush every line on its own.
+     * @param batchDelayNanos the longest time a line waits in a batch before it is flushed.
+     * @param completion the callback receiving the outcome of every written batch.
+     */
+    CoalescingWriter(Channel channel, boolean binary, int batchBytes, long batchDelayNanos,
+                     Completion completion) {
+        this.channel = channel;
+        this.binary = binary;
+        this.batchBytes = batchBytes;
+        this.batchDelayNanos = batchDelayNanos;
+        this.completion = completion;
+    }
+
+    /**
+     * Add a line to the current batch, flushing the batch first if the line does not fit, and
+     * after if the batch is full.
+     *
+     * @param line the line to write, including its line delimiter.
+     * @param intendedNanos the value of {@link System#nanoTime()} the line was meant to be
+     *                      sent at.
+     * @param traceMicros the send time to write in a trace header in front of the line, in
+     *                    microseconds since the epoch, or 0 for no trace header.
+     */
+    void write(byte[] line, long intendedNanos, long traceMicros) {
+        int lineBytes = (this.binary
+            ? BinaryProtocol.RECORD_HEADER_BYTES + line.length - PayloadPool.LINE_DELIMITER_BYTES
+            : line.length) + (traceMicros > 0 ? TRACE_HEADER_BYTES : 0);
+        if (this.buffer != null && this.buffer.readableBytes() + lineBytes > this.batchBytes) {
+            this.flush();
+        }
+
+        if (this.buffer == null) {
+            int headerBytes = this.binary ? BinaryProtocol.BATCH_HEADER_BYTES : 0;
+            this.buffer = this.channel.alloc().directBuffer(
+                Math.max(this.batchBytes, headerBytes + lineBytes));
+            this.intendedNanos = new long[16];
+            this.firstWriteNanos = System.nanoTime();
+            if (this.binary) {
+                this.buffer.writeInt(0);
+                this.buffer.writeByte(BinaryProtocol.BATCH);
+                this.buffer.writeInt(0);
+            }
+        }
+
+        int recordStart = this.buffer.writerIndex();
+        if (this.binary) {
+            this.buffer.writeInt(0);
+            this.buffer.writeByte(BinaryProtocol.FLAG_EVENT_TIME);
+            this.buffer.writeLong(System.currentTimeMillis());
+        }
+
+        if (traceMicros > 0) {
+            ByteBufUtil.writeAscii(this.buffer, TRACE_PREFIX);
+            ByteBufUtil.writeAscii(this.buffer, Long.toString(traceMicros));
+            this.buffer.writeByte(';');
+        }
+
+        if (this.binary) {
+            this.buffer.writeBytes(line, 0, line.length - PayloadPool.LINE_DELIMITER_BYTES);
+            this.buffer.setInt(recordStart,
+                this.buffer.writerIndex() - recordStart - Integer.BYTES);
+        } else {
+            this.buffer.writeBytes(line);
+        }
+
+        if (this.pending == this.intendedNanos.length) {
+            this.intendedNanos = Arrays.copyOf(this.intendedNanos, this.pending * 2);
+        }
+        this.intendedNanos[this.pending++] = intendedNanos;
+
+        if (this.buffer.readableBytes() >= this.batchBytes) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Check whether there are lines waiting in the current batch.
+     *
+     * @return true if a batch is pending.
+     */
+    boolean hasPending() {
+        return this.pending > 0;
+    }
+
+    /**
+     * Get the time the current batch needs to be flushed by.
+     *
+     * @return the value of {@link System#nanoTime()} to flush the pending batch at.
+     */
+    long getFlushDeadline() {
+        return this.firstWriteNanos + this.batchDelayNanos;
+    }
+
+    /**
+     * Write and flush the current batch, waiting for the channel to become writable first.
+     * A batch frame gets its length and record count before it is written.
+     */
+    void flush() {
+        if (this.pending == 0) {
+            return;
+        }
+
+        this.awaitWritable();
+
+        ByteBuf batch = this.buffer;
+        long[] batchIntendedNanos = this.intendedNanos;
+        int lines = this.pending;
+        int bytes = batch.readableBytes();
+        if (this.binary) {
+            batch.setInt(0, bytes - Integer.BYTES);
+            batch.setInt(Integer.BYTES + 1, lines);
+        }
+        this.buffer = null;
+        this.intendedNanos = null;
+        this.pending = 0;
+
+        this.channel.writeAndFlush(batch).addListener(future ->
+            this.completion.complete(batchIntendedNanos, lines, bytes, future.cause()));
+    }
+
+    /**
+     * Wait while the outbound buffer of the channel is above its high water mark.
+     */
+    private void awaitWritable() {
+        if (this.channel.isWritable()) {
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        while (!this.channel.isWritable()
+            && this.channel.isActive()
+            && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(WRITABILITY_PAUSE_NANOS);
+        }
+        this.blockedNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Get the total time the writer has waited for the channel to become writable.
+     *
+     * @return the time blocked by back-pressure in nanoseconds.
+     */
+    long getBlockedNanos() {
+        return this.blockedNanos;
+    }
+
+    /**
+     * Release the current batch without writing it.
+     */
+    void discard() {
+        if (this.buffer != null) {
+            this.buffer.release();
+            this.buffer = null;
+        }
+        this.pending = 0;
+    }
+}
@@ -7,6 +7,10 @@ package com.autostreams.pulsar.dataprovider;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +24,7 @@ public class DataProducerHandler extends SimpleChannelInboundHandler<String> {
     private static final String SHUTDOWN_COMMAND = "streams_command_shutdown";
 
     private final Logger logger = LoggerFactory.getLogger(DataProducerHandler.class);
+    private final CompletableFuture<Void> binaryOffer = new CompletableFuture<>();
     DataProvider dataProvider;
 
     DataProducerHandler(DataProvider dataProvider) {
@@ -27,7 +32,29 @@ public class DataProducerHandler extends SimpleChannelInboundHandler<String> {
     }
 
     /**
-     * Read message received from a server.
+     * Wait for the server to offer the binary protocol.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most.
+     * @return true if the binary protocol was offered, false if the wait timed out or was
+     *         interrupted.
+     */
+    boolean awaitBinaryOffer(long deadlineNanos) {
+        try {
+            this.binaryOffer.get(Math.max(0, deadlineNanos - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Read message received from a server. A shutdown command drains the DataProducer on
+     * another thread, since draining waits for writes done by the event loop. An offer of the
+     * binary protocol is handed to the thread negotiating the protocol.
      *
      * @param context the interaction context to the pipeline.
      * @param message the message to read.
@@ -36,8 +63,11 @@ public class DataProducerHandler extends SimpleChannelInboundHandler<String> {
     public void channelRead0(ChannelHandlerContext context, String message) {
         logger.debug("Received message: {}", message);
 
-        if (SHUTDOWN_COMMAND.equalsIgnoreCase(message)) {
-            this.dataProvider.shutdown();
+        if (BinaryProtocol.OFFER.equals(message)) {
+            this.binaryOffer.complete(null);
+        } else if (SHUTDOWN_COMMAND.equalsIgnoreCase(message)) {
+            Thread drainer = new Thread(this.dataProvider::shutdown, "data-provider-shutdown");
+            drainer.start();
         }
     }
 
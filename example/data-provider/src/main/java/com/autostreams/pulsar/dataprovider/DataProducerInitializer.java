@@ -35,9 +35,18 @@ public class DataProducerInitializer extends ChannelInitializer<SocketChannel> {
     public void initChannel(SocketChannel channel) {
         ChannelPipeline pipeline = channel.pipeline();
 
+        addFraming(pipeline);
+        pipeline.addLast(new DataProducerHandler(this.dataProvider));
+    }
+
+    /**
+     * Add the line based framing and string codecs to a pipeline.
+     *
+     * @param pipeline the pipeline to add the framing to.
+     */
+    static void addFraming(ChannelPipeline pipeline) {
         pipeline.addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
         pipeline.addLast(new StringDecoder());
         pipeline.addLast(new StringEncoder());
-        pipeline.addLast(new DataProducerHandler(this.dataProvider));
     }
 }
\ No newline at end of file
@@ -9,17 +9,29 @@ import com.autostreams.utils.fileutils.FileUtils;
 import com.thedeanda.lorem.Lorem;
 import com.thedeanda.lorem.LoremIpsum;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Data producer (client) that connects to a producer (server) in order to send messages.
+ * Messages are sent by a load generator over one or more connections, at the rate of a
+ * configured load profile.
  *
  * @version 1.0
  * @since 1.0
@@ -31,6 +43,10 @@ public final class DataProvider {
 
     private static final String HOST_ENVIRONMENT_VARIABLE_NAME = "PRODUCER_URL";
     private static final String PORT_ENVIRONMENT_VARIABLE_NAME = "PRODUCER_PORT";
+    private static final String TRACE_PROPERTIES_VARIABLE_NAME = "trace.enabled";
+    private static final String TRACE_ENVIRONMENT_VARIABLE_NAME = "TRACE_ENABLED";
+    private static final int MIN_WORDS = 7;
+    private static final int MAX_WORDS = 12;
 
     private String host = "127.0.0.1";
     private Integer port = 8992;
@@ -39,9 +55,13 @@ public final class DataProvider {
     private final Bootstrap bootstrap = new Bootstrap();
     private final Lorem lorem = LoremIpsum.getInstance();
     private EventLoopGroup group = new NioEventLoopGroup();
-    private boolean running = true;
-    private ChannelFuture channelFuture = null;
-    private int messagesPerSecond = 1;
+    private volatile boolean running = true;
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+    private final Set<Channel> binaryChannels = ConcurrentHashMap.newKeySet();
+    private volatile LoadGenerator loadGenerator = null;
+    private double messagesPerSecond = 1;
+    private boolean tracing = false;
+    private boolean shutDown = false;
 
     /**
      * Default constructors that uses environment or properties variables.
@@ -60,6 +80,29 @@ public final class DataProvider {
         } else if (canSetValuesFromPropertiesFile()) {
             setValuesFromPropertiesFile();
         }
+
+        tracing = Boolean.parseBoolean(getConfigValue(
+            TRACE_ENVIRONMENT_VARIABLE_NAME, TRACE_PROPERTIES_VARIABLE_NAME, "false"));
+        messagesPerSecond = Double.parseDouble(getConfigValue("LOAD_RATE", "load.rate", "1"));
+    }
+
+    /**
+     * Get a value from environment variables or properties.
+     * Note: The environment variable is prioritized over the property.
+     *
+     * @param environmentName the name of the environment variable.
+     * @param propertyName the name of the property.
+     * @param defaultValue the value to use if the value is set in neither place.
+     * @return the value.
+     */
+    private static String getConfigValue(String environmentName, String propertyName,
+                                         String defaultValue) {
+        Properties props = FileUtils.loadPropertiesFromFile(CONFIG_PROPERTIES_FILE_NAME);
+
+        return System.getenv().getOrDefault(
+            environmentName,
+            props.getProperty(propertyName, defaultValue)
+        ).trim();
     }
 
     /**
@@ -117,47 +160,96 @@ public final class DataProvider {
     }
 
     /**
-     * Initialize the DataProducer.
+     * Initialize the DataProducer, opening the configured number of connections and
+     * negotiating the protocol of each.
      *
      * @return true on success, false if else
      */
     public boolean initialize() {
         setUpBootstrapGroup();
 
-        logger.info("Connecting to: {}:{}", host, port);
-        return tryToConnect();
+        int connections = Integer.parseInt(
+            getConfigValue("LOAD_CONNECTIONS", "load.connections", "1"));
+        logger.info("Connecting to: {}:{} with {} connection(s)", host, port, connections);
+
+        for (int i = 0; i < connections; i++) {
+            Channel channel = tryToConnect();
+            if (channel == null) {
+                return false;
+            }
+            channels.add(channel);
+        }
+
+        negotiateProtocol();
+
+        return true;
     }
 
     /**
-     * Set up the bootstrap group.
+     * Negotiate the protocol of the connections. With the binary protocol configured, every
+     * connection whose server offers it within the handshake timeout switches to it, and the
+     * others keep sending lines.
+     */
+    private void negotiateProtocol() {
+        if (!"BINARY".equalsIgnoreCase(getConfigValue("PROTOCOL", "protocol", "BINARY"))) {
+            logger.info("Sending lines over all connections");
+            return;
+        }
+
+        long timeoutMillis = Long.parseLong(getConfigValue("PROTOCOL_HANDSHAKE_TIMEOUT_MILLIS",
+            "protocol.handshake.timeout.millis", "1000"));
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        for (Channel channel : channels) {
+            DataProducerHandler handler = channel.pipeline().get(DataProducerHandler.class);
+            if (handler != null && handler.awaitBinaryOffer(deadlineNanos)) {
+                channel.writeAndFlush(Unpooled.wrappedBuffer(BinaryProtocol.HELLO));
+                binaryChannels.add(channel);
+            }
+        }
+
+        if (binaryChannels.size() < channels.size()) {
+            logger.warn("Binary protocol not offered within {} ms, sending lines over {} of {} "
+                + "connection(s)", timeoutMillis, channels.size() - binaryChannels.size(),
+                channels.size());
+        } else {
+            logger.info("Sending binary frames over all connections");
+        }
+    }
+
+    /**
+     * Set up the bootstrap group. The write buffer water marks bound the data waiting to be
+     * written to every connection, above which the load generator waits.
      */
     private void setUpBootstrapGroup() {
         bootstrap.group(group)
             .channel(NioSocketChannel.class)
+            .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                Integer.parseInt(getConfigValue("LOAD_WRITE_BUFFER_LOW_BYTES",
+                    "load.write.buffer.low.bytes", "262144")),
+                Integer.parseInt(getConfigValue("LOAD_WRITE_BUFFER_HIGH_BYTES",
+                    "load.write.buffer.high.bytes", "1048576"))
+            ))
             .handler(new DataProducerInitializer(this));
     }
 
     /**
-     * Tries to connect to the data receiver.
+     * Tries to connect to the data receiver, retrying until connected.
      *
-     * @return true if successfully connected, false if else.
+     * @return the connected channel, or null if interrupted.
      */
-    private boolean tryToConnect() {
-        boolean connected = false;
-        while (!connected) {
+    private Channel tryToConnect() {
+        while (true) {
             try {
-                this.channelFuture = bootstrap.connect(host, port).sync();
-                connected = true;
+                return bootstrap.connect(host, port).sync().channel();
             } catch (InterruptedException e) {
                 handleConnectionInterruptedException(e);
 
-                return false;
+                return null;
             } catch (Exception e) {
                 handleConnectionException(e);
             }
         }
-
-        return true;
     }
 
     /**
@@ -189,29 +281,82 @@ public final class DataProvider {
     }
 
     /**
-     * Execute the DataProducer.
+     * Execute the DataProducer, running the configured load profile until it ends or the
+     * DataProducer is shut down.
      */
     public void run() {
-        while (this.running) {
-            String line = getRandomString();
-            sendMessageToReceiver(line);
-            sleepForMilliseconds(1000 / messagesPerSecond);
+        PayloadPool payloadPool = createPayloadPool();
+        LoadGenerator generator = new LoadGenerator(channels, binaryChannels, payloadPool,
+            createLoadProfile(),
+            Long.parseLong(getConfigValue("LOAD_REPORT_INTERVAL_SECONDS",
+                "load.report.interval.seconds", "10")),
+            tracing,
+            Integer.parseInt(getConfigValue("LOAD_BATCH_BYTES", "load.batch.bytes", "65536")),
+            Long.parseLong(getConfigValue("LOAD_BATCH_DELAY_MICROS",
+                "load.batch.delay.micros", "1000")));
+
+        this.loadGenerator = generator;
+        if (!this.running) {
+            return;
+        }
+
+        generator.run();
+
+        if (this.running) {
+            shutdown();
         }
     }
 
     /**
-     * Sends a message to the data receiver.
+     * Create the load profile from environment variables or properties.
+     *
+     * @return the created load profile.
+     */
+    private LoadProfile createLoadProfile() {
+        return new LoadProfile(
+            LoadProfile.Type.valueOf(getConfigValue("LOAD_PROFILE", "load.profile", "CONSTANT")),
+            messagesPerSecond,
+            Double.parseDouble(getConfigValue("LOAD_RATE_END", "load.rate.end", "0")),
+            Double.parseDouble(getConfigValue("LOAD_STEP_RATE", "load.step.rate", "0")),
+            Long.parseLong(getConfigValue("LOAD_STEP_SECONDS", "load.step.seconds", "60")),
+            Long.parseLong(getConfigValue("LOAD_DURATION_SECONDS", "load.duration.seconds", "0"))
+        );
+    }
+
+    /**
+     * Generate the pool of payloads to send, from environment variables or properties.
+     * The WORDS distribution generates lines of 7 to 12 lorem ipsum words, and the other
+     * distributions lines of lorem ipsum text with sizes drawn from them.
      *
-     * @param message the message to send to the data receiver.
+     * @return the generated payload pool.
      */
-    private void sendMessageToReceiver(String message) {
-        if (this.channelFuture != null) {
-            this.channelFuture = this.channelFuture.channel().writeAndFlush(message + "\r\n");
+    private PayloadPool createPayloadPool() {
+        String distribution = getConfigValue("LOAD_PAYLOAD_DISTRIBUTION",
+            "load.payload.distribution", "WORDS");
+        int poolSize = Integer.parseInt(getConfigValue("LOAD_PAYLOAD_POOL_SIZE",
+            "load.payload.pool.size", "1024"));
+
+        if ("WORDS".equals(distribution)) {
+            return PayloadPool.ofWords(lorem, poolSize, MIN_WORDS, MAX_WORDS);
         }
+
+        PayloadSizeDistribution sizes = PayloadSizeDistribution.create(
+            distribution,
+            Integer.parseInt(getConfigValue("LOAD_PAYLOAD_BYTES", "load.payload.bytes", "100")),
+            Integer.parseInt(getConfigValue("LOAD_PAYLOAD_MIN_BYTES",
+                "load.payload.min.bytes", "1")),
+            Integer.parseInt(getConfigValue("LOAD_PAYLOAD_MAX_BYTES",
+                "load.payload.max.bytes", "8000")),
+            Integer.parseInt(getConfigValue("LOAD_PAYLOAD_STDDEV_BYTES",
+                "load.payload.stddev.bytes", "20"))
+        );
+
+        return PayloadPool.ofSizes(lorem, poolSize, sizes, new Random());
     }
 
     /**
-     * Sets the number of messages per second.
+     * Sets the number of messages per second, overriding the configured start rate of the
+     * load profile.
      * NOTE: Needs to be greater than 0.
      *
      * @param messagesPerSecond number of messages per second
@@ -225,72 +370,150 @@ public final class DataProvider {
     }
 
     /**
-     * Shutdown the DataProducer.
+     * Shutdown the DataProducer, draining it first. The load generator stops and flushes its
+     * pending batches, the data written to the channels is waited for up to the drain
+     * timeout, and then the channels and the event loop group are closed. The time and counts
+     * of every phase are logged. Only the first call shuts down the DataProducer.
+     * NOTE: Waits for the event loop, so must not be called on it.
      */
-    public void shutdown() {
+    public synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
         this.running = false;
 
-        logger.info("Shutting down");
-        shutdownChannelFuture();
-        shutdownGroup();
+        long drainTimeoutMillis = Long.parseLong(
+            getConfigValue("DRAIN_TIMEOUT_MILLIS", "drain.timeout.millis", "10000"));
+        logger.info("Shutting down, draining within {} ms", drainTimeoutMillis);
+        long drainStartNanos = System.nanoTime();
+        long deadlineNanos = drainStartNanos + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        LoadGenerator generator = loadGenerator;
+
+        long phaseStartNanos = System.nanoTime();
+        boolean stopped = true;
+        if (generator != null) {
+            generator.stop();
+            stopped = generator.awaitStopped(deadlineNanos);
+        }
+        logger.info("Stopped the load generator in {} ms{}", elapsedMillis(phaseStartNanos),
+            stopped ? "" : ", timed out waiting for it");
+
+        phaseStartNanos = System.nanoTime();
+        long sent = generator == null ? 0 : generator.getSent();
+        long failed = generator == null ? 0 : generator.getFailed();
+        boolean flushed = flushChannels(deadlineNanos);
+        logger.info("Flushed the channels in {} ms: {} lines written, {} failed{}",
+            elapsedMillis(phaseStartNanos),
+            generator == null ? 0 : generator.getSent() - sent,
+            generator == null ? 0 : generator.getFailed() - failed,
+            flushed ? "" : ", timed out with data left unwritten");
+
+        phaseStartNanos = System.nanoTime();
+        int closed = channels.size();
+        shutdownChannels(deadlineNanos);
+        shutdownGroup(deadlineNanos);
+        logger.info("Closed {} channel(s) in {} ms", closed, elapsedMillis(phaseStartNanos));
+
+        logger.info("Shut down in {} ms", elapsedMillis(drainStartNanos));
+    }
+
+    /**
+     * Wait for the data written to the channels to be written to the network. An empty write
+     * completes once every write before it has completed.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most.
+     * @return true if every channel was flushed, false if the wait timed out or was
+     *         interrupted.
+     */
+    private boolean flushChannels(long deadlineNanos) {
+        List<ChannelFuture> flushes = new ArrayList<>();
+        for (Channel channel : channels) {
+            if (channel.isActive()) {
+                flushes.add(channel.writeAndFlush(Unpooled.EMPTY_BUFFER));
+            }
+        }
+
+        try {
+            for (ChannelFuture flush : flushes) {
+                if (!flush.await(remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while flushing the channels");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
     }
 
     /**
-     * Shutdown the event loop group.
+     * Shutdown the event loop group, waiting for it to terminate.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most.
      */
-    private void shutdownGroup() {
+    private void shutdownGroup(long deadlineNanos) {
         if (group != null) {
             logger.debug("Closing group");
-            group.shutdownGracefully();
+            try {
+                group.shutdownGracefully(0, remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS)
+                    .await(remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while closing the group");
+                Thread.currentThread().interrupt();
+            }
             group = null;
         }
     }
 
     /**
-     * Shutdown the channel future.
+     * Shutdown the channels, waiting for them to close.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most.
      */
-    private void shutdownChannelFuture() {
-        if (channelFuture != null) {
-            logger.debug("Closing channel future");
-            channelFuture.channel().close();
-            channelFuture = null;
+    private void shutdownChannels(long deadlineNanos) {
+        for (Channel channel : channels) {
+            logger.debug("Closing channel {}", channel);
+            try {
+                channel.close().await(remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while closing channel {}", channel);
+                Thread.currentThread().interrupt();
+            }
         }
+        channels.clear();
     }
 
     /**
-     * Generate a random lorem ipsum string.
+     * Get the time left until a deadline.
      *
-     * @return a random lorem ipsum string of min <= n <= max amount of n words.
+     * @param deadlineNanos the value of {@link System#nanoTime()} of the deadline.
+     * @return the time left in milliseconds, at least 0.
      */
-    private String getRandomString() {
-        String line = lorem.getWords(7, 12);
-        logger.trace("String created: {}", line);
-
-        return line;
+    private static long remainingMillis(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
     }
 
     /**
-     * Sleep for a specified amount of seconds.
+     * Get the time passed since a point in time.
      *
-     * @param seconds the amount of time to sleep in seconds.
+     * @param startNanos the value of {@link System#nanoTime()} at the point in time.
+     * @return the time passed in milliseconds.
      */
-    private static void sleepForSeconds(int seconds) {
-        try {
-            TimeUnit.SECONDS.sleep(seconds);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            Thread.currentThread().interrupt();
-        }
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
     }
 
     /**
-     * Sleep for a specified amount of milliseconds.
+     * Sleep for a specified amount of seconds.
      *
-     * @param milliseconds the amount of time to sleep in seconds.
+     * @param seconds the amount of time to sleep in seconds.
      */
-    private void sleepForMilliseconds(int milliseconds) {
+    private static void sleepForSeconds(int seconds) {
         try {
-            TimeUnit.MILLISECONDS.sleep(milliseconds);
+            TimeUnit.SECONDS.sleep(seconds);
         } catch (InterruptedException e) {
             e.printStackTrace();
             Thread.currentThread().interrupt();
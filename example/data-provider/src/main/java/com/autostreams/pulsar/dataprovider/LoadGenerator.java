@@ -0,0 +1,377 @@
+package com.autostreams.pulsar.dataprovider;
+
+import io.netty.channel.Channel;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open-loop load generator sending lines from a payload pool over several channels at the
+ * rate of a load profile. Every message has an intended send time derived from the profile,
+ * and is sent at that time whether or not earlier messages have completed. A generator that
+ * falls behind catches up by sending immediately, and the time it fell behind is recorded as
+ * send lag rather than silently lowering the rate.
+ *
+ * <p>Latency is measured from the intended send time until the write of the message
+ * completed, so that a stalled receiver shows up as latency of every message it delayed.
+ * Lines are coalesced into batches before they are written, and a pacer that is blocked by
+ * back-pressure from its channel falls behind, which shows up as send lag.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class LoadGenerator {
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private final List<Channel> channels;
+    private final Set<Channel> binaryChannels;
+    private final PayloadPool payloadPool;
+    private final LoadProfile profile;
+    private final long reportIntervalSeconds;
+    private final boolean tracing;
+    private final int batchBytes;
+    private final long batchDelayNanos;
+    private final List<Thread> pacers = new CopyOnWriteArrayList<>();
+    private final List<CoalescingWriter> writers = new CopyOnWriteArrayList<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Recorder sendLag =
+        new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    private final Recorder latency =
+        new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    private final Histogram totalSendLag =
+        new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    private final Histogram totalLatency =
+        new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    private Histogram intervalSendLag = null;
+    private Histogram intervalLatency = null;
+    private long reportedSent = 0;
+    private long reportedBytes = 0;
+    private long reportedBlockedNanos = 0;
+    private long reportedNanos;
+    private volatile boolean running = true;
+    private long startNanos;
+
+    /**
+     * Create a load generator. Call {@link #run()} to run the load test.
+     *
+     * @param channels the connected channels to send over.
+     * @param binaryChannels the channels that use the binary protocol instead of lines.
+     * @param payloadPool the lines to send.
+     * @param profile the target rate over time.
+     * @param reportIntervalSeconds the interval between progress reports in the log.
+     * @param tracing true to prefix every line with a trace header holding its send time.
+     * @param batchBytes the size of the batches lines are coalesced into, or 0 to flush
+     *                   every line on its own.
+     * @param batchDelayMicros the longest time a line waits in a batch before it is flushed.
+     */
+    LoadGenerator(List<Channel> channels, Set<Channel> binaryChannels, PayloadPool payloadPool,
+                  LoadProfile profile, long reportIntervalSeconds, boolean tracing,
+                  int batchBytes, long batchDelayMicros) {
+        if (reportIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Report interval needs to be above 0");
+        }
+
+        this.channels = List.copyOf(channels);
+        this.binaryChannels = Set.copyOf(binaryChannels);
+        this.payloadPool = payloadPool;
+        this.profile = profile;
+        this.reportIntervalSeconds = reportIntervalSeconds;
+        this.tracing = tracing;
+        this.batchBytes = batchBytes;
+        this.batchDelayNanos = TimeUnit.MICROSECONDS.toNanos(batchDelayMicros);
+    }
+
+    /**
+     * Run the load test until the profile ends or the generator is stopped, then log a
+     * summary of the results.
+     */
+    void run() {
+        logger.info("Load profile: {}, {} connection(s), {} payloads of {} bytes on average",
+            this.profile, this.channels.size(), this.payloadPool.size(),
+            String.format(Locale.ROOT, "%.1f", this.payloadPool.getMeanBytes()));
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "load-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        this.startNanos = System.nanoTime();
+        this.reportedNanos = this.startNanos;
+        for (int i = 0; i < this.channels.size(); i++) {
+            int lane = i;
+            Thread pacer = new Thread(() -> this.pace(lane), "load-pacer-" + lane);
+            this.pacers.add(pacer);
+            pacer.start();
+        }
+        reporter.scheduleAtFixedRate(this::report, this.reportIntervalSeconds,
+            this.reportIntervalSeconds, TimeUnit.SECONDS);
+
+        for (Thread pacer : this.pacers) {
+            try {
+                pacer.join();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for the load test to finish");
+                Thread.currentThread().interrupt();
+                this.stop();
+            }
+        }
+
+        reporter.shutdownNow();
+        this.report();
+        this.summarize();
+    }
+
+    /**
+     * Stop the load test. Messages already handed to the channels are still written.
+     */
+    void stop() {
+        this.running = false;
+        for (Thread pacer : this.pacers) {
+            pacer.interrupt();
+        }
+    }
+
+    /**
+     * Wait for the pacers to finish after the load test was stopped. Every pacer writes and
+     * flushes its pending batch before it finishes.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait until at most.
+     * @return true if every pacer finished, false if the wait timed out or was interrupted.
+     */
+    boolean awaitStopped(long deadlineNanos) {
+        try {
+            for (Thread pacer : this.pacers) {
+                long remainingMillis =
+                    TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                pacer.join(remainingMillis);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the load test to stop");
+            Thread.currentThread().interrupt();
+        }
+
+        return this.pacers.stream().noneMatch(Thread::isAlive);
+    }
+
+    /**
+     * Get the number of lines written to the channels.
+     *
+     * @return the number of written lines.
+     */
+    long getSent() {
+        return this.sent.sum();
+    }
+
+    /**
+     * Get the number of lines that failed to be written to the channels.
+     *
+     * @return the number of failed lines.
+     */
+    long getFailed() {
+        return this.failed.sum();
+    }
+
+    /**
+     * Send messages over one channel at its share of the target rate. The channels take
+     * turns, so together they send the messages in sequence at the full target rate.
+     *
+     * @param lane the index of the channel to send over.
+     */
+    private void pace(int lane) {
+        Channel channel = this.channels.get(lane);
+        CoalescingWriter writer = new CoalescingWriter(channel,
+            this.binaryChannels.contains(channel), this.batchBytes, this.batchDelayNanos,
+            this::onBatchComplete);
+        this.writers.add(writer);
+
+        int lanes = this.channels.size();
+        long sequence = lane;
+        long intendedNanos = this.startNanos
+            + (long) (lane * TimeUnit.SECONDS.toNanos(1) / this.profile.rateAt(0));
+
+        while (this.running) {
+            long elapsedNanos = intendedNanos - this.startNanos;
+            if (this.profile.isFinished(elapsedNanos)) {
+                break;
+            }
+
+            if (!waitUntil(intendedNanos, writer)) {
+                break;
+            }
+
+            this.sendLag.recordValue(
+                this.toRecordedMicros(System.nanoTime() - intendedNanos));
+            writer.write(this.payloadPool.get(sequence), intendedNanos,
+                this.tracing ? currentMicros() : 0);
+
+            sequence += lanes;
+            intendedNanos += (long) (lanes * TimeUnit.SECONDS.toNanos(1)
+                / this.profile.rateAt(elapsedNanos));
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Wait until an intended send time, parking for most of the wait and spinning for the
+     * last microseconds to send close to the intended time. A pending batch is flushed as
+     * soon as its delay will have run out by the intended send time, so that no line waits in
+     * a batch for longer than the batch delay.
+     *
+     * @param deadlineNanos the value of {@link System#nanoTime()} to wait for.
+     * @param writer the writer holding the pending batch.
+     * @return true if the time was reached, false if the generator was stopped.
+     */
+    private boolean waitUntil(long deadlineNanos, CoalescingWriter writer) {
+        long remainingNanos;
+        do {
+            if (!this.running) {
+                return false;
+            }
+
+            if (writer.hasPending()
+                && writer.getFlushDeadline() <= Math.max(deadlineNanos, System.nanoTime())) {
+                writer.flush();
+            }
+
+            remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos > SPIN_NANOS) {
+                LockSupport.parkNanos(remainingNanos - SPIN_NANOS);
+            } else if (remainingNanos > 0) {
+                Thread.onSpinWait();
+            }
+        } while (remainingNanos > 0);
+
+        return this.running;
+    }
+
+    /**
+     * Record the outcome of a written batch.
+     *
+     * @param intendedNanos the intended send times of the lines of the batch.
+     * @param lines the number of lines in the batch.
+     * @param bytes the size of the batch in bytes.
+     * @param cause the cause of the failure, or null if the batch was written.
+     */
+    private void onBatchComplete(long[] intendedNanos, int lines, int bytes, Throwable cause) {
+        if (cause != null) {
+            this.failed.add(lines);
+            return;
+        }
+
+        long nowNanos = System.nanoTime();
+        this.sent.add(lines);
+        this.sentBytes.add(bytes);
+        for (int i = 0; i < lines; i++) {
+            this.latency.recordValue(this.toRecordedMicros(nowNanos - intendedNanos[i]));
+        }
+    }
+
+    /**
+     * Convert a duration to microseconds bounded to the trackable range.
+     *
+     * @param nanos the duration in nanoseconds.
+     * @return the duration in microseconds.
+     */
+    private long toRecordedMicros(long nanos) {
+        return Math.max(0, Math.min(TimeUnit.NANOSECONDS.toMicros(nanos),
+            HIGHEST_TRACKABLE_MICROS));
+    }
+
+    /**
+     * Log the achieved rate, send lag and latency since the previous report.
+     */
+    private synchronized void report() {
+        long nowNanos = System.nanoTime();
+        double seconds = (nowNanos - this.reportedNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+
+        this.intervalSendLag = this.sendLag.getIntervalHistogram(this.intervalSendLag);
+        this.intervalLatency = this.latency.getIntervalHistogram(this.intervalLatency);
+        this.totalSendLag.add(this.intervalSendLag);
+        this.totalLatency.add(this.intervalLatency);
+
+        long sentNow = this.sent.sum();
+        long bytesNow = this.sentBytes.sum();
+        long blockedNanosNow = 0;
+        for (CoalescingWriter writer : this.writers) {
+            blockedNanosNow += writer.getBlockedNanos();
+        }
+
+        logger.info("Target {} msg/s, sent {} msg/s, {} MB/s, failed {}, blocked by "
+                + "back-pressure {} ms, send lag {}, latency {}",
+            String.format(Locale.ROOT, "%.1f", this.profile.rateAt(nowNanos - this.startNanos)),
+            String.format(Locale.ROOT, "%.1f", (sentNow - this.reportedSent) / seconds),
+            String.format(Locale.ROOT, "%.3f", (bytesNow - this.reportedBytes) / seconds / 1e6),
+            this.failed.sum(),
+            TimeUnit.NANOSECONDS.toMillis(blockedNanosNow - this.reportedBlockedNanos),
+            describe(this.intervalSendLag), describe(this.intervalLatency));
+
+        this.reportedSent = sentNow;
+        this.reportedBytes = bytesNow;
+        this.reportedBlockedNanos = blockedNanosNow;
+        this.reportedNanos = nowNanos;
+    }
+
+    /**
+     * Log a summary of the whole load test.
+     */
+    private synchronized void summarize() {
+        double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+
+        logger.info("Load test finished after {} s: sent {} messages ({} bytes), failed {}, "
+                + "mean rate {} msg/s", String.format(Locale.ROOT, "%.1f", seconds),
+            this.sent.sum(), this.sentBytes.sum(), this.failed.sum(),
+            String.format(Locale.ROOT, "%.1f", this.sent.sum() / seconds));
+        logger.info("Send lag over the whole test: {}", describe(this.totalSendLag));
+        logger.info("Latency over the whole test: {}", describe(this.totalLatency));
+    }
+
+    /**
+     * Describe the percentiles of a histogram.
+     *
+     * @param histogram the histogram of durations in microseconds.
+     * @return the percentiles and maximum of the histogram in milliseconds.
+     */
+    private static String describe(Histogram histogram) {
+        return String.format(Locale.ROOT, "p50=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+            histogram.getValueAtPercentile(50) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getValueAtPercentile(99.9) / 1000.0,
+            histogram.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Get the current time in microseconds since the epoch.
+     *
+     * @return the current time in microseconds.
+     */
+    private static long currentMicros() {
+        Instant now = Instant.now();
+
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+}
@@ -0,0 +1,125 @@
+package com.autostreams.pulsar.dataprovider;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Target message rate of a load test over time.
+ * <ul>
+ *     <li>CONSTANT holds the start rate, for the whole duration or until stopped, as a
+ *     soak test.</li>
+ *     <li>RAMP changes the rate linearly from the start rate to the end rate over the
+ *     duration.</li>
+ *     <li>STEP changes the rate by the step rate every step, from the start rate until it
+ *     reaches the end rate, and holds it there for the rest of the duration.</li>
+ * </ul>
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class LoadProfile {
+    private final Type type;
+    private final double startRate;
+    private final double endRate;
+    private final double stepRate;
+    private final long stepNanos;
+    private final long durationNanos;
+
+    /**
+     * The shape of a load profile.
+     */
+    enum Type {
+        CONSTANT,
+        RAMP,
+        STEP
+    }
+
+    /**
+     * Create a load profile.
+     *
+     * @param type the shape of the profile.
+     * @param startRate the rate at the start in messages per second.
+     * @param endRate the rate at the end in messages per second, ignored by CONSTANT.
+     * @param stepRate the change of the rate every step in messages per second, used by STEP.
+     * @param stepSeconds the length of every step in seconds, used by STEP.
+     * @param durationSeconds the length of the test in seconds, or 0 to run a CONSTANT
+     *                        profile until stopped.
+     */
+    LoadProfile(Type type, double startRate, double endRate, double stepRate, long stepSeconds,
+                long durationSeconds) {
+        if (startRate <= 0) {
+            throw new IllegalArgumentException("Rate needs to be above 0");
+        }
+        if (type != Type.CONSTANT && (endRate <= 0 || durationSeconds <= 0)) {
+            throw new IllegalArgumentException(
+                type + " profiles need an end rate and a duration above 0");
+        }
+        if (type == Type.STEP && (stepRate == 0 || stepSeconds <= 0)) {
+            throw new IllegalArgumentException(
+                "STEP profiles need a step rate and a step length above 0");
+        }
+
+        this.type = type;
+        this.startRate = startRate;
+        this.endRate = endRate;
+        this.stepRate = stepRate;
+        this.stepNanos = TimeUnit.SECONDS.toNanos(stepSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    /**
+     * Get the target rate at a point in the test.
+     *
+     * @param elapsedNanos the time since the start of the test in nanoseconds.
+     * @return the target rate in messages per second.
+     */
+    double rateAt(long elapsedNanos) {
+        switch (this.type) {
+            case RAMP:
+                double progress = Math.min(1.0, (double) elapsedNanos / this.durationNanos);
+                return this.startRate + (this.endRate - this.startRate) * progress;
+            case STEP:
+                double rate = this.startRate + (elapsedNanos / this.stepNanos) * this.stepRate;
+                return Math.max(Math.min(this.startRate, this.endRate),
+                    Math.min(Math.max(this.startRate, this.endRate), rate));
+            default:
+                return this.startRate;
+        }
+    }
+
+    /**
+     * Check whether a point in time is past the end of the test.
+     *
+     * @param elapsedNanos the time since the start of the test in nanoseconds.
+     * @return true if the test is over.
+     */
+    boolean isFinished(long elapsedNanos) {
+        return this.durationNanos > 0 && elapsedNanos >= this.durationNanos;
+    }
+
+    /**
+     * Describe the profile for the log.
+     *
+     * @return a description of the profile.
+     */
+    @Override
+    public String toString() {
+        String duration = this.durationNanos > 0
+            ? TimeUnit.NANOSECONDS.toSeconds(this.durationNanos) + " s"
+            : "until stopped";
+
+        switch (this.type) {
+            case RAMP:
+                return String.format(Locale.ROOT, "RAMP from %.1f to %.1f msg/s over %s",
+                    this.startRate, this.endRate, duration);
+            case STEP:
+                return String.format(Locale.ROOT,
+                    "STEP from %.1f to %.1f msg/s by %.1f msg/s every %d s, for %s",
+                    this.startRate, this.endRate, this.stepRate,
+                    TimeUnit.NANOSECONDS.toSeconds(this.stepNanos), duration);
+            default:
+                return String.format(Locale.ROOT, "CONSTANT %.1f msg/s, %s", this.startRate,
+                    duration);
+        }
+    }
+}
@@ -15,8 +15,8 @@ public class Main {
      */
     public static void main(String[] args) {
         DataProvider dataProvider = new DataProvider();
+        Runtime.getRuntime().addShutdownHook(new Thread(dataProvider::shutdown));
         if (dataProvider.initialize()) {
-            dataProvider.setMessagesPerSecond(1);
             dataProvider.run();
         }
     }
@@ -0,0 +1,124 @@
+package com.autostreams.pulsar.dataprovider;
+
+import com.thedeanda.lorem.Lorem;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Pool of lines generated before a load test starts, so that generating payloads does not
+ * slow down sending them. Lines are handed out in turn, and are stored encoded, with their
+ * line delimiter already appended.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class PayloadPool {
+    static final int LINE_DELIMITER_BYTES = 2;
+    private static final String LINE_DELIMITER = "\r\n";
+    private final byte[][] lines;
+    private final double meanBytes;
+
+    /**
+     * Create a pool of lines.
+     *
+     * @param payloads the payloads of the lines, without line delimiters.
+     */
+    private PayloadPool(String[] payloads) {
+        this.lines = new byte[payloads.length][];
+
+        long totalBytes = 0;
+        for (int i = 0; i < payloads.length; i++) {
+            this.lines[i] = (payloads[i] + LINE_DELIMITER).getBytes(StandardCharsets.UTF_8);
+            totalBytes += this.lines[i].length - LINE_DELIMITER.length();
+        }
+        this.meanBytes = (double) totalBytes / payloads.length;
+    }
+
+    /**
+     * Create a pool of lorem ipsum lines with a random number of words each.
+     *
+     * @param lorem the generator of lorem ipsum words.
+     * @param size the number of lines in the pool.
+     * @param minWords the minimum number of words of a line.
+     * @param maxWords the maximum number of words of a line.
+     * @return the created pool.
+     */
+    static PayloadPool ofWords(Lorem lorem, int size, int minWords, int maxWords) {
+        String[] payloads = new String[checkSize(size)];
+        for (int i = 0; i < size; i++) {
+            payloads[i] = lorem.getWords(minWords, maxWords);
+        }
+
+        return new PayloadPool(payloads);
+    }
+
+    /**
+     * Create a pool of lorem ipsum lines with sizes drawn from a distribution.
+     *
+     * @param lorem the generator of lorem ipsum words.
+     * @param size the number of lines in the pool.
+     * @param sizes the distribution of the sizes of the lines in bytes.
+     * @param random the source of randomness of the sizes.
+     * @return the created pool.
+     */
+    static PayloadPool ofSizes(Lorem lorem, int size, PayloadSizeDistribution sizes,
+                               Random random) {
+        String[] payloads = new String[checkSize(size)];
+        for (int i = 0; i < size; i++) {
+            int bytes = sizes.nextSize(random);
+            StringBuilder text = new StringBuilder(bytes + 64);
+            while (text.length() < bytes) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(lorem.getWords(8));
+            }
+            text.setLength(bytes);
+            payloads[i] = text.toString();
+        }
+
+        return new PayloadPool(payloads);
+    }
+
+    /**
+     * Check the number of lines of a pool.
+     *
+     * @param size the number of lines in the pool.
+     * @return the number of lines.
+     */
+    private static int checkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Payload pool size needs to be above 0");
+        }
+
+        return size;
+    }
+
+    /**
+     * Get a line of the pool, cycling through the pool.
+     *
+     * @param sequence the sequence number of the message to send.
+     * @return the encoded line, including its line delimiter.
+     */
+    byte[] get(long sequence) {
+        return this.lines[(int) Math.floorMod(sequence, (long) this.lines.length)];
+    }
+
+    /**
+     * Get the number of lines in the pool.
+     *
+     * @return the number of lines.
+     */
+    int size() {
+        return this.lines.length;
+    }
+
+    /**
+     * Get the mean size of the payloads in the pool.
+     *
+     * @return the mean size in bytes, without line delimiters.
+     */
+    double getMeanBytes() {
+        return this.meanBytes;
+    }
+}
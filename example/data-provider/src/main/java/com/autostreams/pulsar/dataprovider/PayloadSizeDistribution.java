@@ -0,0 +1,62 @@
+package com.autostreams.pulsar.dataprovider;
+
+import java.util.Random;
+
+/**
+ * Distribution of the sizes of generated payloads in bytes.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@FunctionalInterface
+interface PayloadSizeDistribution {
+
+    /**
+     * Draw the size of a payload.
+     *
+     * @param random the source of randomness.
+     * @return the size of the payload in bytes.
+     */
+    int nextSize(Random random);
+
+    /**
+     * Create a size distribution. Drawn sizes are bounded by the minimum and maximum size.
+     *
+     * @param type the type of distribution: FIXED, UNIFORM, NORMAL or EXPONENTIAL.
+     * @param bytes the size of FIXED payloads, or the mean size of NORMAL and EXPONENTIAL
+     *              payloads.
+     * @param minBytes the minimum size of a payload.
+     * @param maxBytes the maximum size of a payload.
+     * @param stddevBytes the standard deviation of the size of NORMAL payloads.
+     * @return the created size distribution.
+     */
+    static PayloadSizeDistribution create(String type, int bytes, int minBytes, int maxBytes,
+                                          int stddevBytes) {
+        if (minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException(
+                "Payload sizes need to satisfy 0 < minimum size <= maximum size");
+        }
+
+        PayloadSizeDistribution distribution;
+        switch (type) {
+            case "FIXED":
+                distribution = random -> bytes;
+                break;
+            case "UNIFORM":
+                distribution = random -> minBytes + random.nextInt(maxBytes - minBytes + 1);
+                break;
+            case "NORMAL":
+                distribution = random ->
+                    (int) Math.round(bytes + random.nextGaussian() * stddevBytes);
+                break;
+            case "EXPONENTIAL":
+                distribution = random ->
+                    (int) Math.round(-bytes * Math.log(1.0 - random.nextDouble()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload size distribution " + type);
+        }
+
+        return random -> Math.max(minBytes, Math.min(maxBytes, distribution.nextSize(random)));
+    }
+}
@@ -0,0 +1,78 @@
+package com.autostreams.pulsar.cluster;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A Pulsar cluster the producer can send to.
+ *
+ * @param name the name of the cluster, used in logs and metrics.
+ * @param serviceUrl the service URL of the cluster, such as
+ *                   "pulsar://broker-1:6650,broker-2:6650".
+ * @param weight the share of the messages sent to the cluster when spreading messages over
+ *               clusters, relative to the weights of the other clusters.
+ * @version 1.0
+ * @since 1.0
+ */
+public record Cluster(String name, String serviceUrl, int weight) {
+
+    /**
+     * Create a cluster.
+     */
+    public Cluster {
+        if (serviceUrl == null || serviceUrl.isBlank()) {
+            throw new IllegalArgumentException("Cluster " + name + " has no service URL");
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight of cluster " + name + " is negative");
+        }
+    }
+
+    /**
+     * Get the addresses of the brokers named by the service URL. Ports left out default to
+     * the default port of the scheme of the URL.
+     *
+     * @return the unresolved addresses of the brokers.
+     */
+    public List<InetSocketAddress> brokerAddresses() {
+        String url = this.serviceUrl.trim();
+        int schemeEnd = url.indexOf("://");
+        String scheme = schemeEnd < 0 ? "pulsar" : url.substring(0, schemeEnd);
+        String hosts = schemeEnd < 0 ? url : url.substring(schemeEnd + 3);
+        int pathStart = hosts.indexOf('/');
+        if (pathStart >= 0) {
+            hosts = hosts.substring(0, pathStart);
+        }
+
+        int defaultPort = defaultPort(scheme.toLowerCase(Locale.ROOT));
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            int portStart = host.lastIndexOf(':');
+            if (portStart < 0 || host.endsWith("]")) {
+                addresses.add(InetSocketAddress.createUnresolved(host, defaultPort));
+            } else {
+                addresses.add(InetSocketAddress.createUnresolved(host.substring(0, portStart),
+                    Integer.parseInt(host.substring(portStart + 1))));
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Get the port Pulsar listens on by default for a scheme.
+     *
+     * @param scheme the scheme of a service URL, in lower case.
+     * @return the default port.
+     */
+    private static int defaultPort(String scheme) {
+        return switch (scheme) {
+            case "pulsar+ssl" -> 6651;
+            case "http" -> 8080;
+            case "https" -> 8443;
+            default -> 6650;
+        };
+    }
+}
@@ -0,0 +1,171 @@
+package com.autostreams.pulsar.cluster;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.ServiceUrlProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service URL provider switching a Pulsar client between clusters in order of priority, in
+ * the way of the automatic cluster failover of the Pulsar client. The client starts on the
+ * first cluster. Once the active cluster has been unhealthy for the failover delay, the
+ * client fails over to the first healthy cluster. Once a cluster of higher priority than the
+ * active one has been healthy for the switch back delay, the client switches back to it.
+ * Producers of the client reconnect to the new cluster on their own.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ClusterFailover implements ServiceUrlProvider {
+    private final Logger logger = LoggerFactory.getLogger(ClusterFailover.class);
+    private final ClusterMonitor monitor;
+    private final List<Cluster> clusters;
+    private final long failoverDelayNanos;
+    private final long switchBackDelayNanos;
+    private final LongConsumer failoverLatency;
+    private final LongAdder switches = new LongAdder();
+    private volatile PulsarClient client;
+    private volatile Cluster active;
+
+    /**
+     * Create a cluster failover.
+     *
+     * @param monitor the monitor checking the health of the clusters, in order of priority.
+     * @param failoverDelayMillis the time the active cluster needs to be unhealthy for before
+     *                            failing over.
+     * @param switchBackDelayMillis the time a cluster of higher priority needs to be healthy
+     *                              for before switching back to it.
+     * @param failoverLatency receives the time from the active cluster turning unhealthy
+     *                        until the client was switched away from it, in nanoseconds.
+     */
+    public ClusterFailover(ClusterMonitor monitor, long failoverDelayMillis,
+                           long switchBackDelayMillis, LongConsumer failoverLatency) {
+        this.monitor = monitor;
+        this.clusters = monitor.getClusters();
+        this.failoverDelayNanos = TimeUnit.MILLISECONDS.toNanos(failoverDelayMillis);
+        this.switchBackDelayNanos = TimeUnit.MILLISECONDS.toNanos(switchBackDelayMillis);
+        this.failoverLatency = failoverLatency;
+        this.active = this.clusters.get(0);
+    }
+
+    /**
+     * Start switching the client between clusters. Called by the client once it is built.
+     * If the client is rebuilt after a failed connection attempt, the new client is switched
+     * instead.
+     *
+     * @param client the client to switch.
+     */
+    @Override
+    public void initialize(PulsarClient client) {
+        if (this.client == null) {
+            this.monitor.addListener(this::evaluate);
+        }
+        this.client = client;
+    }
+
+    /**
+     * Get the service URL of the active cluster.
+     *
+     * @return the service URL the client connects to.
+     */
+    @Override
+    public String getServiceUrl() {
+        return this.active.serviceUrl();
+    }
+
+    /**
+     * Get the clusters failed over between.
+     *
+     * @return the clusters, in order of priority.
+     */
+    public List<Cluster> getClusters() {
+        return this.clusters;
+    }
+
+    /**
+     * Get the cluster the client is connected to.
+     *
+     * @return the active cluster.
+     */
+    public Cluster getActive() {
+        return this.active;
+    }
+
+    /**
+     * Get the number of times the client was switched to another cluster, including
+     * switches back.
+     *
+     * @return the number of switches.
+     */
+    public long getSwitches() {
+        return this.switches.sum();
+    }
+
+    /**
+     * Fail over or switch back if the health of the clusters calls for it. Called after every
+     * round of health checks.
+     */
+    private void evaluate() {
+        if (this.client == null) {
+            return;
+        }
+
+        Cluster current = this.active;
+        if (!this.monitor.isHealthy(current)) {
+            long unhealthyNanos = this.monitor.getNanosInState(current);
+            if (unhealthyNanos < this.failoverDelayNanos) {
+                return;
+            }
+
+            for (Cluster cluster : this.clusters) {
+                if (cluster != current && this.monitor.isHealthy(cluster)) {
+                    if (this.switchTo(cluster, "failing over")) {
+                        this.failoverLatency.accept(unhealthyNanos);
+                    }
+                    return;
+                }
+            }
+            return;
+        }
+
+        for (Cluster cluster : this.clusters) {
+            if (cluster == current) {
+                return;
+            }
+            if (this.monitor.isHealthy(cluster)
+                && this.monitor.getNanosInState(cluster) >= this.switchBackDelayNanos) {
+                this.switchTo(cluster, "switching back");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Switch the client to a cluster.
+     *
+     * @param cluster the cluster to switch to.
+     * @param reason why the client is switched, for the log.
+     * @return true if the client was switched.
+     */
+    private boolean switchTo(Cluster cluster, String reason) {
+        logger.warn("Cluster {} is active, {} to cluster {}", this.active.name(), reason,
+            cluster.name());
+        try {
+            this.client.updateServiceUrl(cluster.serviceUrl());
+        } catch (PulsarClientException e) {
+            logger.error("Unable to switch to cluster {}", cluster.name());
+            e.printStackTrace();
+            return false;
+        }
+
+        this.active = cluster;
+        this.switches.increment();
+
+        return true;
+    }
+}
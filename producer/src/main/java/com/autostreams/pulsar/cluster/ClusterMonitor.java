@@ -0,0 +1,207 @@
+package com.autostreams.pulsar.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the health of Pulsar clusters in the background. A cluster is healthy while at least
+ * one of its brokers accepts a TCP connection within the probe timeout. Listeners are called
+ * after every round of checks, on the thread of the monitor.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ClusterMonitor implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(ClusterMonitor.class);
+    private final List<Cluster> clusters;
+    private final Map<String, Health> health = new LinkedHashMap<>();
+    private final int probeTimeoutMillis;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create a cluster monitor and check every cluster once. Until the first check of a
+     * cluster, it is considered healthy.
+     *
+     * @param clusters the clusters to check.
+     * @param intervalMillis the time between two rounds of checks.
+     * @param probeTimeoutMillis the time a broker is given to accept a connection.
+     */
+    public ClusterMonitor(List<Cluster> clusters, long intervalMillis, int probeTimeoutMillis) {
+        if (clusters.isEmpty()) {
+            throw new IllegalArgumentException("No clusters to monitor");
+        }
+        if (intervalMillis <= 0 || probeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Check interval and probe timeout need to be "
+                + "above 0");
+        }
+
+        this.clusters = List.copyOf(clusters);
+        this.probeTimeoutMillis = probeTimeoutMillis;
+        long now = System.nanoTime();
+        for (Cluster cluster : this.clusters) {
+            this.health.put(cluster.name(), new Health(now));
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::checkClusters, 0, intervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the monitored clusters.
+     *
+     * @return the clusters, in the order they were configured in.
+     */
+    public List<Cluster> getClusters() {
+        return this.clusters;
+    }
+
+    /**
+     * Add a listener called after every round of checks.
+     *
+     * @param listener the listener to add.
+     */
+    public void addListener(Runnable listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Check whether a cluster was healthy in its last check.
+     *
+     * @param cluster the cluster to check.
+     * @return true if a broker of the cluster accepted a connection.
+     */
+    public boolean isHealthy(Cluster cluster) {
+        return this.health.get(cluster.name()).healthy;
+    }
+
+    /**
+     * Get how long a cluster has been in its current state.
+     *
+     * @param cluster the cluster to get the time in its state of.
+     * @return the time since the cluster became healthy or unhealthy, in nanoseconds.
+     */
+    public long getNanosInState(Cluster cluster) {
+        return System.nanoTime() - this.health.get(cluster.name()).sinceNanos;
+    }
+
+    /**
+     * Get the time the first broker of a cluster took to accept a connection in the last
+     * check.
+     *
+     * @param cluster the cluster to get the probe latency of.
+     * @return the latency in nanoseconds, or the probe timeout if no broker accepted.
+     */
+    public long getProbeLatencyNanos(Cluster cluster) {
+        return this.health.get(cluster.name()).latencyNanos;
+    }
+
+    /**
+     * Check every cluster, and call the listeners.
+     */
+    private void checkClusters() {
+        for (Cluster cluster : this.clusters) {
+            this.checkCluster(cluster);
+        }
+
+        for (Runnable listener : this.listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.error("Cluster health listener failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Probe the brokers of a cluster in order until one accepts a connection, and record the
+     * outcome.
+     *
+     * @param cluster the cluster to check.
+     */
+    private void checkCluster(Cluster cluster) {
+        Health state = this.health.get(cluster.name());
+        long startNanos = System.nanoTime();
+        boolean healthy = false;
+        for (InetSocketAddress broker : cluster.brokerAddresses()) {
+            if (this.probe(broker)) {
+                healthy = true;
+                break;
+            }
+        }
+        long now = System.nanoTime();
+
+        state.latencyNanos = healthy
+            ? now - startNanos
+            : TimeUnit.MILLISECONDS.toNanos(this.probeTimeoutMillis);
+        if (healthy != state.healthy) {
+            state.healthy = healthy;
+            state.sinceNanos = now;
+            if (healthy) {
+                logger.info("Cluster {} is healthy again", cluster.name());
+            } else {
+                logger.warn("Cluster {} is unhealthy, no broker of {} accepts connections",
+                    cluster.name(), cluster.serviceUrl());
+            }
+        }
+    }
+
+    /**
+     * Try to open a TCP connection to a broker.
+     *
+     * @param broker the unresolved address of the broker.
+     * @return true if the broker accepted the connection within the probe timeout.
+     */
+    private boolean probe(InetSocketAddress broker) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(broker.getHostString(), broker.getPort()),
+                this.probeTimeoutMillis);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop checking the clusters.
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Outcome of the checks of a cluster, written by the monitor thread only.
+     */
+    private static final class Health {
+        private volatile boolean healthy = true;
+        private volatile long sinceNanos;
+        private volatile long latencyNanos;
+
+        /**
+         * Create the health of a cluster not checked yet.
+         *
+         * @param sinceNanos the time the monitor was created.
+         */
+        private Health(long sinceNanos) {
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
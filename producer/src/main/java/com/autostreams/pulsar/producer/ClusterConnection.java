@@ -0,0 +1,225 @@
+package com.autostreams.pulsar.producer;
+
+import com.autostreams.pulsar.cluster.Cluster;
+import com.autostreams.pulsar.routing.ProducerCache;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection of the producer to a Pulsar cluster: the client, the producer of the default
+ * topic, and the cache of the producers of routed topics, all created from the same
+ * producer builder.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class ClusterConnection {
+    private static final long REPLACED_PRODUCER_GRACE_MILLIS = 1000;
+    private final Logger logger = LoggerFactory.getLogger(ClusterConnection.class);
+    private final Cluster cluster;
+    private final PulsarClient client;
+    private final Function<ClusterConnection, ProducerCache> cacheFactory;
+    private final LongAdder selected = new LongAdder();
+    private volatile ProducerBuilder<byte[]> builder;
+    private volatile Producer<byte[]> producer;
+    private volatile CompletableFuture<Producer<byte[]>> selectedDefault;
+    private volatile ProducerCache cache;
+
+    /**
+     * Connect to a cluster by creating the producer of the default topic.
+     *
+     * @param cluster the cluster connected to.
+     * @param client the client connected to the cluster.
+     * @param builder the builder of the producers.
+     * @param cacheFactory creates the cache of the producers of routed topics, or null if
+     *                     payloads are not routed.
+     * @throws PulsarClientException if the producer could not be created.
+     */
+    ClusterConnection(Cluster cluster, PulsarClient client, ProducerBuilder<byte[]> builder,
+                      Function<ClusterConnection, ProducerCache> cacheFactory)
+        throws PulsarClientException {
+        this.cluster = cluster;
+        this.client = client;
+        this.cacheFactory = cacheFactory;
+        this.builder = builder;
+        this.producer = builder.clone().create();
+        this.selectedDefault = CompletableFuture.completedFuture(this.producer);
+        if (cacheFactory != null) {
+            this.cache = cacheFactory.apply(this);
+        }
+    }
+
+    /**
+     * Wrap an already created producer, without a client or builder. Used by the benchmarks.
+     *
+     * @param cluster the cluster the producer is connected to.
+     * @param producer the producer of the default topic.
+     */
+    ClusterConnection(Cluster cluster, Producer<byte[]> producer) {
+        this.cluster = cluster;
+        this.client = null;
+        this.cacheFactory = null;
+        this.producer = producer;
+        this.selectedDefault = CompletableFuture.completedFuture(producer);
+    }
+
+    /**
+     * Get the cluster connected to.
+     *
+     * @return the cluster.
+     */
+    Cluster getCluster() {
+        return this.cluster;
+    }
+
+    /**
+     * Get the client connected to the cluster.
+     *
+     * @return the client, or null if the connection wraps a producer created elsewhere.
+     */
+    PulsarClient getClient() {
+        return this.client;
+    }
+
+    /**
+     * Get the builder the current producers are created from.
+     *
+     * @return the builder, or null if the connection wraps a producer created elsewhere.
+     */
+    ProducerBuilder<byte[]> getBuilder() {
+        return this.builder;
+    }
+
+    /**
+     * Get the producer of the default topic.
+     *
+     * @return the producer.
+     */
+    Producer<byte[]> getProducer() {
+        return this.producer;
+    }
+
+    /**
+     * Get the number of payloads sent to the cluster.
+     *
+     * @return the number of times the connection was selected for a payload.
+     */
+    long getSelected() {
+        return this.selected.sum();
+    }
+
+    /**
+     * Check whether the producer of the default topic is connected to the cluster.
+     *
+     * @return true if messages can be sent to the cluster.
+     */
+    boolean isConnected() {
+        return this.producer.isConnected();
+    }
+
+    /**
+     * Select the producer of a topic. Payloads that are not routed, and payloads whose topic
+     * producer could not be created, go to the default topic. The producer of a topic is
+     * created in the background, and payloads routed to it meanwhile wait for it.
+     *
+     * @param topic the topic a payload is routed to, or null if it is not routed.
+     * @return the future of the producer to send the payload with, which never completes
+     *         exceptionally. It is completed already unless the producer is being created.
+     */
+    CompletableFuture<Producer<byte[]>> selectProducer(String topic) {
+        this.selected.increment();
+        ProducerCache current = this.cache;
+        if (topic == null || current == null) {
+            return this.selectedDefault;
+        }
+
+        CompletableFuture<Producer<byte[]>> cached = current.get(topic);
+        if (cached == null || cached.isCompletedExceptionally()) {
+            return this.selectedDefault;
+        }
+        if (cached.isDone()) {
+            return cached;
+        }
+
+        return cached.exceptionally(throwable -> this.producer);
+    }
+
+    /**
+     * Replace the producers by producers created from a new builder. The default producer is
+     * replaced right away, and the producers of routed topics are recreated on their next
+     * use. Replaced producers are flushed and closed after a grace period, so that sends that
+     * picked them just before the switch are still accepted. If the new producer cannot be
+     * created, the current one is kept.
+     *
+     * @param builder the builder of the new producers.
+     * @return true if the producers were replaced.
+     */
+    synchronized boolean replace(ProducerBuilder<byte[]> builder) {
+        Producer<byte[]> replaced = this.producer;
+        try {
+            this.producer = builder.clone().create();
+            this.selectedDefault = CompletableFuture.completedFuture(this.producer);
+        } catch (PulsarClientException e) {
+            logger.error("Unable to create the replacing producer, keeping the current one");
+            e.printStackTrace();
+            return false;
+        }
+        this.builder = builder;
+        logger.info("Replaced the producer of {} on cluster {}", this.producer.getTopic(),
+            this.cluster.name());
+
+        ProducerCache replacedCache = this.cache;
+        if (replacedCache != null) {
+            this.cache = this.cacheFactory.apply(this);
+        }
+
+        CompletableFuture.runAsync(() -> {
+            replaced.flushAsync()
+                .thenCompose(ignored -> replaced.closeAsync())
+                .exceptionally(throwable -> {
+                    logger.warn("Unable to close the replaced producer: {}",
+                        throwable.getMessage());
+                    return null;
+                });
+            if (replacedCache != null) {
+                replacedCache.close();
+            }
+        }, CompletableFuture.delayedExecutor(REPLACED_PRODUCER_GRACE_MILLIS,
+            TimeUnit.MILLISECONDS));
+
+        return true;
+    }
+
+    /**
+     * Flush the messages batched by the producer of the default topic.
+     */
+    void flush() {
+        this.producer.flushAsync();
+    }
+
+    /**
+     * Close the producers and the client.
+     */
+    void close() {
+        if (this.cache != null) {
+            this.cache.close();
+        }
+
+        try {
+            this.producer.close();
+            if (this.client != null) {
+                this.client.close();
+            }
+        } catch (PulsarClientException e) {
+            e.printStackTrace();
+        }
+    }
+}
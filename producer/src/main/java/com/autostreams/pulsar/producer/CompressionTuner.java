@@ -0,0 +1,481 @@
+package com.autostreams.pulsar.producer;
+
+import com.github.luben.zstd.Zstd;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.pulsar.client.api.CompressionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Picks the compression codec and batch delay of the producer from the payloads it sends.
+ * A sample of the payloads is kept, and every interval batches of the size each candidate
+ * batch delay would collect at the current input rate are compressed with every codec, to
+ * measure the compression ratio and the compression cost of the codec.
+ *
+ * <p>The throughput of a choice is bounded by how fast one thread compresses and by how many
+ * compressed bytes the link to the broker carries, and its latency is the batch delay plus
+ * the time to compress and transmit a batch. The choice with the highest throughput within
+ * the latency budget is handed to the listener, once it beats the applied choice by the
+ * minimum gain, so that noise in the measurements does not make the producer flap.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class CompressionTuner {
+    private static final CompressionType[] CODECS = {
+        CompressionType.NONE, CompressionType.LZ4, CompressionType.ZSTD, CompressionType.SNAPPY
+    };
+    private static final long[] CANDIDATE_DELAYS_MICROS = {
+        100, 250, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000
+    };
+    private static final int ZSTD_LEVEL = 3;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int MIN_SAMPLES = 16;
+    private static final double MIN_GAIN = 0.1;
+    private static final double TIE = 0.02;
+
+    private final Logger logger = LoggerFactory.getLogger(CompressionTuner.class);
+    private final LZ4Compressor lz4 = LZ4Factory.fastestInstance().fastCompressor();
+    private final LongAdder inputBytes = new LongAdder();
+    private final int sampleInterval;
+    private final byte[][] samples;
+    private final long latencyBudgetMicros;
+    private final double bandwidthBytesPerSecond;
+    private final boolean batching;
+    private final int maxBatchBytes;
+    private final int maxBatchMessages;
+    private final long intervalSeconds;
+    private final Consumer<Estimate> listener;
+    private final ScheduledExecutorService scheduler;
+    private int sampled = 0;
+    private long lastInputBytes = 0;
+    private long lastEvaluationNanos = System.nanoTime();
+    private volatile Map<CompressionType, Estimate> estimates = new EnumMap<>(
+        CompressionType.class);
+    private volatile Estimate applied;
+
+    /**
+     * An estimate of the performance of a codec and batch delay.
+     *
+     * @param codec the compression codec.
+     * @param delayMicros the batch delay in microseconds.
+     * @param batchBytes the size of the batches collected within the delay.
+     * @param ratio the compressed size of a batch relative to its uncompressed size.
+     * @param compressNanos the time to compress a batch in nanoseconds.
+     * @param throughput the highest throughput in uncompressed bytes per second.
+     * @param latencyMicros the latency added by batching, compressing and transmitting in
+     *                      microseconds.
+     */
+    record Estimate(CompressionType codec, long delayMicros, int batchBytes, double ratio,
+                    long compressNanos, double throughput, long latencyMicros) {
+
+        /**
+         * Describe the estimate for the log.
+         *
+         * @return a description of the estimate.
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%s with %d us batch delay: %d byte batches, ratio %.3f, %.1f MB/s, %d us",
+                this.codec, this.delayMicros, this.batchBytes, this.ratio,
+                this.throughput / 1_000_000, this.latencyMicros);
+        }
+
+        /**
+         * Create the estimate of a configured codec and batch delay, before it is measured.
+         *
+         * @param codec the compression codec.
+         * @param delayMicros the batch delay in microseconds.
+         * @return the estimate.
+         */
+        static Estimate configured(CompressionType codec, long delayMicros) {
+            return new Estimate(codec, delayMicros, 0, Double.NaN, 0, Double.NaN, 0);
+        }
+    }
+
+    /**
+     * Create a compression tuner. Call {@link #start()} to start evaluating.
+     *
+     * @param initial the codec and batch delay the producer starts with.
+     * @param sampleInterval keep one in this many payloads on average.
+     * @param sampleSize the number of payloads kept.
+     * @param latencyBudgetMillis the latency budget of batching and compression in
+     *                            milliseconds.
+     * @param bandwidthBytesPerSecond the bandwidth of the link to the broker.
+     * @param batching whether batching is enabled, otherwise only the codec is tuned.
+     * @param maxBatchBytes the maximum size of a batch in bytes.
+     * @param maxBatchMessages the maximum number of messages in a batch.
+     * @param intervalSeconds the time between evaluations in seconds.
+     * @param listener receives the choices to apply.
+     */
+    CompressionTuner(Estimate initial, int sampleInterval, int sampleSize,
+                     long latencyBudgetMillis, double bandwidthBytesPerSecond, boolean batching,
+                     int maxBatchBytes, int maxBatchMessages, long intervalSeconds,
+                     Consumer<Estimate> listener) {
+        if (sampleInterval <= 0 || sampleSize < MIN_SAMPLES) {
+            throw new IllegalArgumentException(
+                "Compression sample interval needs to be above 0, and sample size at least "
+                    + MIN_SAMPLES);
+        }
+        if (latencyBudgetMillis <= 0 || bandwidthBytesPerSecond <= 0 || intervalSeconds <= 0) {
+            throw new IllegalArgumentException(
+                "Latency budget, bandwidth and tuning interval need to be above 0");
+        }
+
+        this.applied = initial;
+        this.sampleInterval = sampleInterval;
+        this.samples = new byte[sampleSize][];
+        this.latencyBudgetMicros = TimeUnit.MILLISECONDS.toMicros(latencyBudgetMillis);
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        this.batching = batching;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchMessages = maxBatchMessages;
+        this.intervalSeconds = intervalSeconds;
+        this.listener = listener;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compression-tuner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start evaluating the codecs every interval.
+     */
+    void start() {
+        this.scheduler.scheduleWithFixedDelay(this::evaluateSafely, this.intervalSeconds,
+            this.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop evaluating the codecs.
+     */
+    void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Count a payload towards the input rate, and keep it as a sample once in a sample
+     * interval on average. Once the samples are full, a random sample is replaced, so the
+     * samples follow the payloads as they change.
+     *
+     * @param payload the payload about to be sent.
+     */
+    void offer(byte[] payload) {
+        this.inputBytes.add(payload.length);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (this.sampleInterval > 1 && random.nextInt(this.sampleInterval) != 0) {
+            return;
+        }
+
+        synchronized (this.samples) {
+            if (this.sampled < this.samples.length) {
+                this.samples[this.sampled++] = payload;
+            } else {
+                this.samples[random.nextInt(this.samples.length)] = payload;
+            }
+        }
+    }
+
+    /**
+     * Evaluate the codecs, logging instead of throwing any failure so that later evaluations
+     * still run.
+     */
+    private void evaluateSafely() {
+        try {
+            this.evaluate();
+        } catch (RuntimeException | IOException e) {
+            logger.error("Unable to evaluate the compression codecs");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Measure every codec and candidate batch delay on the current samples and input rate,
+     * and hand the best choice to the listener if it is worth switching to.
+     *
+     * @throws IOException if a codec fails to compress a batch.
+     */
+    private void evaluate() throws IOException {
+        byte[][] payloads;
+        synchronized (this.samples) {
+            payloads = new byte[this.sampled][];
+            System.arraycopy(this.samples, 0, payloads, 0, this.sampled);
+        }
+        if (payloads.length < MIN_SAMPLES) {
+            logger.debug("Only {} payloads sampled, not tuning compression yet",
+                payloads.length);
+            return;
+        }
+
+        long nowNanos = System.nanoTime();
+        long totalBytes = this.inputBytes.sum();
+        double inputBytesPerSecond = (totalBytes - this.lastInputBytes) * 1e9
+            / Math.max(1, nowNanos - this.lastEvaluationNanos);
+        this.lastInputBytes = totalBytes;
+        this.lastEvaluationNanos = nowNanos;
+
+        long meanBytes = 0;
+        for (byte[] payload : payloads) {
+            meanBytes += payload.length;
+        }
+        meanBytes = Math.max(1, meanBytes / payloads.length);
+
+        Map<CompressionType, Estimate> bestPerCodec = new EnumMap<>(CompressionType.class);
+        Estimate best = null;
+        Estimate current = null;
+        for (long delayMicros : this.candidateDelays()) {
+            int batchBytes = this.batchBytes(delayMicros, inputBytesPerSecond, meanBytes);
+            byte[] batch = buildBatch(payloads, batchBytes);
+
+            for (CompressionType codec : CODECS) {
+                Estimate estimate = this.estimate(codec, delayMicros, batch);
+                if (codec == this.applied.codec() && delayMicros == this.nearestDelay()) {
+                    current = estimate;
+                }
+                if (estimate.latencyMicros() > this.latencyBudgetMicros) {
+                    continue;
+                }
+
+                bestPerCodec.merge(codec, estimate, CompressionTuner::better);
+                best = best == null ? estimate : better(best, estimate);
+            }
+        }
+        this.estimates = bestPerCodec;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Input {} bytes/s, {} bytes per payload on average",
+                Math.round(inputBytesPerSecond), meanBytes);
+            bestPerCodec.values().forEach(estimate -> logger.debug("  {}", estimate));
+        }
+
+        if (best == null) {
+            logger.warn("No codec and batch delay fits the latency budget of {} us",
+                this.latencyBudgetMicros);
+            return;
+        }
+
+        boolean currentFits = current != null
+            && current.latencyMicros() <= this.latencyBudgetMicros;
+        boolean changed = best.codec() != this.applied.codec()
+            || best.delayMicros() != this.applied.delayMicros();
+        if (changed
+            && (!currentFits || best.throughput() >= current.throughput() * (1 + MIN_GAIN))) {
+            logger.info("Switching compression to {}", best);
+            this.applied = best;
+            this.listener.accept(best);
+        } else {
+            logger.info("Keeping compression {}, best choice {}", current, best);
+        }
+    }
+
+    /**
+     * Get the batch delays to evaluate. Without batching only the configured delay is
+     * evaluated, with a batch of a single payload.
+     *
+     * @return the candidate batch delays in microseconds.
+     */
+    private long[] candidateDelays() {
+        if (!this.batching) {
+            return new long[] {this.applied.delayMicros()};
+        }
+
+        return CANDIDATE_DELAYS_MICROS;
+    }
+
+    /**
+     * Get the candidate delay closest to the applied delay, so that the applied choice is
+     * evaluated even when it was configured to a delay that is not a candidate.
+     *
+     * @return the candidate batch delay in microseconds.
+     */
+    private long nearestDelay() {
+        long nearest = this.candidateDelays()[0];
+        for (long delayMicros : this.candidateDelays()) {
+            if (Math.abs(delayMicros - this.applied.delayMicros())
+                < Math.abs(nearest - this.applied.delayMicros())) {
+                nearest = delayMicros;
+            }
+        }
+
+        return nearest;
+    }
+
+    /**
+     * Get the size of the batches collected within a batch delay. A batch is sent once it
+     * holds the maximum number of bytes or messages, even before the delay has passed.
+     *
+     * @param delayMicros the batch delay in microseconds.
+     * @param inputBytesPerSecond the rate of payloads to send.
+     * @param meanBytes the mean size of a payload.
+     * @return the size of a batch in bytes.
+     */
+    private int batchBytes(long delayMicros, double inputBytesPerSecond, long meanBytes) {
+        if (!this.batching) {
+            return (int) meanBytes;
+        }
+
+        double collected = inputBytesPerSecond * delayMicros / 1_000_000;
+        double limit = Math.min(this.maxBatchBytes, (double) meanBytes * this.maxBatchMessages);
+
+        return (int) Math.max(meanBytes, Math.min(limit, collected));
+    }
+
+    /**
+     * Build a batch of a size from the sampled payloads, in a random order.
+     *
+     * @param payloads the sampled payloads.
+     * @param batchBytes the size of the batch in bytes.
+     * @return the batch.
+     */
+    private static byte[] buildBatch(byte[][] payloads, int batchBytes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] batch = new byte[batchBytes];
+
+        int position = 0;
+        while (position < batchBytes) {
+            byte[] payload = payloads[random.nextInt(payloads.length)];
+            int length = Math.min(payload.length, batchBytes - position);
+            System.arraycopy(payload, 0, batch, position, length);
+            position += length;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Estimate the throughput and latency of a codec and batch delay, by compressing a batch
+     * a few times after warming the codec up, keeping the fastest time.
+     *
+     * @param codec the compression codec.
+     * @param delayMicros the batch delay in microseconds.
+     * @param batch the batch collected within the delay.
+     * @return the estimate.
+     * @throws IOException if the codec fails to compress the batch.
+     */
+    private Estimate estimate(CompressionType codec, long delayMicros, byte[] batch)
+        throws IOException {
+        int compressedBytes = batch.length;
+        long compressNanos = 0;
+
+        if (codec != CompressionType.NONE) {
+            compressNanos = Long.MAX_VALUE;
+            for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+                long startNanos = System.nanoTime();
+                compressedBytes = this.compress(codec, batch);
+                long elapsedNanos = System.nanoTime() - startNanos;
+                if (round >= WARMUP_ROUNDS) {
+                    compressNanos = Math.min(compressNanos, elapsedNanos);
+                }
+            }
+        }
+
+        double ratio = (double) compressedBytes / batch.length;
+        double wireLimit = this.bandwidthBytesPerSecond / ratio;
+        double cpuLimit = compressNanos == 0
+            ? Double.POSITIVE_INFINITY
+            : batch.length * 1e9 / compressNanos;
+        long transmitMicros = (long) (compressedBytes * 1e6 / this.bandwidthBytesPerSecond);
+        long latencyMicros = delayMicros + TimeUnit.NANOSECONDS.toMicros(compressNanos)
+            + transmitMicros;
+
+        return new Estimate(codec, delayMicros, batch.length, ratio, compressNanos,
+            Math.min(wireLimit, cpuLimit), latencyMicros);
+    }
+
+    /**
+     * Compress a batch with a codec, at the settings the Pulsar client uses.
+     *
+     * @param codec the compression codec.
+     * @param batch the batch to compress.
+     * @return the compressed size in bytes.
+     * @throws IOException if the codec fails to compress the batch.
+     */
+    private int compress(CompressionType codec, byte[] batch) throws IOException {
+        switch (codec) {
+            case LZ4:
+                return this.lz4.compress(batch).length;
+            case ZSTD:
+                return Zstd.compress(batch, ZSTD_LEVEL).length;
+            case SNAPPY:
+                return Snappy.compress(batch).length;
+            default:
+                return batch.length;
+        }
+    }
+
+    /**
+     * Pick the better of two estimates: the one with the higher throughput, or the one with
+     * the lower latency when their throughput is about the same.
+     *
+     * @param first an estimate.
+     * @param second another estimate.
+     * @return the better estimate.
+     */
+    private static Estimate better(Estimate first, Estimate second) {
+        if (Math.abs(first.throughput() - second.throughput())
+            <= TIE * Math.max(first.throughput(), second.throughput())) {
+            return second.latencyMicros() < first.latencyMicros() ? second : first;
+        }
+
+        return second.throughput() > first.throughput() ? second : first;
+    }
+
+    /**
+     * Get the compression ratio of a codec from the last evaluation.
+     *
+     * @param codec the compression codec.
+     * @return the ratio, or NaN if the codec has not been evaluated within the budget.
+     */
+    double getRatio(CompressionType codec) {
+        Estimate estimate = this.estimates.get(codec);
+
+        return estimate == null ? Double.NaN : estimate.ratio();
+    }
+
+    /**
+     * Get the estimated throughput of a codec from the last evaluation.
+     *
+     * @param codec the compression codec.
+     * @return the throughput in uncompressed bytes per second, or NaN if the codec has not
+     *         been evaluated within the budget.
+     */
+    double getThroughput(CompressionType codec) {
+        Estimate estimate = this.estimates.get(codec);
+
+        return estimate == null ? Double.NaN : estimate.throughput();
+    }
+
+    /**
+     * Get the codec and batch delay applied to the producer.
+     *
+     * @return the applied choice.
+     */
+    Estimate getApplied() {
+        return this.applied;
+    }
+
+    /**
+     * Get the codecs the tuner evaluates.
+     *
+     * @return the compression codecs.
+     */
+    static CompressionType[] getCodecs() {
+        return CODECS.clone();
+    }
+}
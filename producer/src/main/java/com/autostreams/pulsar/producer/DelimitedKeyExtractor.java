@@ -0,0 +1,81 @@
+package com.autostreams.pulsar.producer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Key extractor for delimited lines, such as CSV, using one field of the line as the key.
+ * The payload is scanned as bytes, and only the key field is decoded.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class DelimitedKeyExtractor implements KeyExtractor {
+    private final byte[] delimiter;
+    private final int field;
+
+    /**
+     * Create a delimited key extractor.
+     *
+     * @param delimiter the delimiter between the fields of a line.
+     * @param field the zero based index of the field holding the key.
+     */
+    public DelimitedKeyExtractor(String delimiter, int field) {
+        if (delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Key delimiter cannot be empty");
+        }
+        if (field < 0) {
+            throw new IllegalArgumentException("Key field index cannot be negative");
+        }
+
+        this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
+        this.field = field;
+    }
+
+    /**
+     * Extract the key field of a line.
+     *
+     * @param payload the line to extract the key of.
+     * @return the key field, or null if the line has too few fields.
+     */
+    @Override
+    public String extractKey(byte[] payload) {
+        int start = 0;
+        for (int i = 0; i < this.field; i++) {
+            int next = this.indexOfDelimiter(payload, start);
+            if (next < 0) {
+                return null;
+            }
+            start = next + this.delimiter.length;
+        }
+
+        int end = this.indexOfDelimiter(payload, start);
+        if (end < 0) {
+            end = payload.length;
+        }
+
+        return new String(payload, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the next delimiter in a payload.
+     *
+     * @param payload the payload to search.
+     * @param from the index to start searching from.
+     * @return the index of the next delimiter, or -1 if there is none.
+     */
+    private int indexOfDelimiter(byte[] payload, int from) {
+        int last = payload.length - this.delimiter.length;
+
+        search:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < this.delimiter.length; j++) {
+                if (payload[i + j] != this.delimiter[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,70 @@
+package com.autostreams.pulsar.producer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+
+/**
+ * Key extractor for JSON objects, using the value at a dotted path such as "order.customerId"
+ * as the key. The payload is read with a streaming parser that skips everything off the path
+ * and stops as soon as the value is found, so no object tree is built.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class JsonKeyExtractor implements KeyExtractor {
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final String[] path;
+
+    /**
+     * Create a JSON key extractor.
+     *
+     * @param path the dotted path of the field holding the key.
+     */
+    public JsonKeyExtractor(String path) {
+        if (path.isBlank()) {
+            throw new IllegalArgumentException("Key path cannot be empty");
+        }
+
+        this.path = path.split("\\.");
+    }
+
+    /**
+     * Extract the value at the path of a JSON object.
+     *
+     * @param payload the JSON object to extract the key of.
+     * @return the text of the value, or null if the payload is not a JSON object, or the
+     *         value is missing, null or not a scalar.
+     */
+    @Override
+    public String extractKey(byte[] payload) {
+        try (JsonParser parser = this.jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            int depth = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (!this.path[depth].equals(name)) {
+                    parser.skipChildren();
+                } else if (depth == this.path.length - 1) {
+                    return value.isScalarValue() && value != JsonToken.VALUE_NULL
+                        ? parser.getText()
+                        : null;
+                } else if (value == JsonToken.START_OBJECT) {
+                    depth++;
+                } else {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+package com.autostreams.pulsar.producer;
+
+/**
+ * Extracts the message key from an incoming payload. The key routes the message to a
+ * partition and, as the ordering key, keeps messages with the same key in order across
+ * Key_Shared consumers. Custom extractors are loaded by class name and need a public no-arg
+ * constructor.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@FunctionalInterface
+public interface KeyExtractor {
+    /**
+     * Extractor for payloads that are sent without a key.
+     */
+    KeyExtractor NONE = payload -> null;
+
+    /**
+     * Extract the key of a payload. Called on the thread sending the payload, so it must be
+     * cheap and thread safe.
+     *
+     * @param payload the payload to extract the key of, which must not be modified.
+     * @return the key of the payload, or null to send the payload without a key.
+     */
+    String extractKey(byte[] payload);
+}
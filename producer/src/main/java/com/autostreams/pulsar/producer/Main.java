@@ -1,8 +1,8 @@
-package com.autostreams.pulsar;
+package com.autostreams.pulsar.producer;
 
 
-import com.autostreams.pulsar.producer.PulsarProducer;
 import com.autostreams.pulsar.receiver.DataReceiverCreator;
+import com.autostreams.pulsar.receiver.IngestServer;
 import com.autostreams.utils.datareceiver.DataReceiver;
 
 /**
@@ -21,6 +21,18 @@ public final class Main {
         PulsarProducer pulsarProducer = new PulsarProducer();
         pulsarProducer.initialize();
 
+        if (DataReceiverCreator.isIngestServerEnabled()) {
+            IngestServer ingestServer = DataReceiverCreator.createIngestServer(pulsarProducer);
+            pulsarProducer.bindIngestQuotas(ingestServer.getQuotas());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                ingestServer.close();
+                pulsarProducer.onShutdown();
+            }));
+            ingestServer.run();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(pulsarProducer::onShutdown));
         DataReceiver dataReceiver = DataReceiverCreator.createReceiver(pulsarProducer);
         dataReceiver.run();
     }
@@ -0,0 +1,37 @@
+package com.autostreams.pulsar.producer;
+
+import org.apache.pulsar.client.api.Schema;
+
+/**
+ * The schemas the Pulsar producer can publish payloads with. Both send the payload bytes
+ * without re-encoding them.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public enum PayloadSchema {
+    /**
+     * Publish UTF-8 payloads under the string schema, readable by string consumers.
+     */
+    STRING(new Utf8BytesSchema()),
+
+    /**
+     * Publish raw payloads under the bytes schema.
+     */
+    BYTES(Schema.BYTES);
+
+    private final Schema<byte[]> schema;
+
+    PayloadSchema(Schema<byte[]> schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Get the Pulsar schema to create producers with.
+     *
+     * @return the Pulsar schema.
+     */
+    public Schema<byte[]> getSchema() {
+        return this.schema;
+    }
+}
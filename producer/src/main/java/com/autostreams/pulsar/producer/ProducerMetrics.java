@@ -0,0 +1,398 @@
+package com.autostreams.pulsar.producer;
+
+import com.autostreams.pulsar.cluster.Cluster;
+import com.autostreams.pulsar.cluster.ClusterFailover;
+import com.autostreams.pulsar.cluster.ClusterMonitor;
+import com.autostreams.pulsar.receiver.IngestQuotas;
+import com.autostreams.pulsar.spill.SpillLog;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import org.apache.pulsar.client.api.CompressionType;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerStats;
+import org.apache.pulsar.client.api.PulsarClientException;
+
+/**
+ * Metrics of the Pulsar producer: sends, failures, timeouts, send latency and the depth of
+ * the send window, along with the statistics the Pulsar client collects itself, the health
+ * of the Pulsar clusters sent to and the throttling of the ingest server.
+ * Send latency is measured on a sample of the sends, so that unsampled sends keep sharing a
+ * single completion callback.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ProducerMetrics {
+    private final MeterRegistry registry;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Timer sendLatency;
+    private volatile int latencySampleInterval;
+    private final Map<String, List<Meter>> producerStatsMeters = new HashMap<>();
+    private volatile Timer failoverLatency;
+
+    /**
+     * Create the producer metrics and register them.
+     *
+     * @param registry the registry to register the metrics in.
+     * @param latencySampleInterval measure the latency of one in this many sends on average.
+     */
+    public ProducerMetrics(MeterRegistry registry, int latencySampleInterval) {
+        if (latencySampleInterval <= 0) {
+            throw new IllegalArgumentException("Latency sample interval needs to be above 0");
+        }
+
+        this.registry = registry;
+        this.latencySampleInterval = latencySampleInterval;
+
+        FunctionCounter.builder("pulsar.producer.sent", this.sent, LongAdder::sum)
+            .description("Messages acknowledged by the broker")
+            .register(registry);
+        FunctionCounter.builder("pulsar.producer.send.failed", this.failed, LongAdder::sum)
+            .description("Messages the broker failed to acknowledge, including timeouts")
+            .register(registry);
+        FunctionCounter.builder("pulsar.producer.send.timeouts", this.timedOut, LongAdder::sum)
+            .description("Messages not acknowledged within the send timeout")
+            .register(registry);
+        FunctionCounter.builder("pulsar.producer.send.dropped", this.dropped, LongAdder::sum)
+            .description("Messages dropped after a send failed in a way retrying cannot fix")
+            .register(registry);
+
+        this.sendLatency = Timer.builder("pulsar.producer.send.latency")
+            .description("Time from handing a message to the client until the broker "
+                + "acknowledged it, on a sample of the sends")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(registry);
+    }
+
+    /**
+     * Create producer metrics that are not published anywhere.
+     *
+     * @return the created metrics.
+     */
+    public static ProducerMetrics noop() {
+        return new ProducerMetrics(new CompositeMeterRegistry(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Publish the depth of a send window.
+     *
+     * @param sendWindow the send window to publish the depth of.
+     */
+    public void bindSendWindow(SendWindow sendWindow) {
+        Gauge.builder("pulsar.producer.pending", sendWindow, SendWindow::getInFlight)
+            .description("Messages handed to the client and not yet acknowledged")
+            .register(this.registry);
+        Gauge.builder("pulsar.producer.pending.capacity", sendWindow, SendWindow::getCapacity)
+            .description("Maximum number of messages allowed in flight")
+            .register(this.registry);
+    }
+
+    /**
+     * Publish the size of a spill log.
+     *
+     * @param spillLog the spill log to publish the size of.
+     */
+    public void bindSpillLog(SpillLog spillLog) {
+        Gauge.builder("pulsar.producer.spill.records", spillLog, SpillLog::getRecords)
+            .description("Messages spilled to disk and not yet acknowledged by the broker")
+            .register(this.registry);
+        Gauge.builder("pulsar.producer.spill.size", spillLog, SpillLog::getSizeBytes)
+            .description("Size of the spill segment files")
+            .baseUnit("bytes")
+            .register(this.registry);
+    }
+
+    /**
+     * Publish the connections and throttling of every tenant of the ingest server.
+     *
+     * @param quotas the rate limits of the ingest server.
+     */
+    public void bindIngestQuotas(IngestQuotas quotas) {
+        for (String tenant : quotas.getTenants()) {
+            Gauge.builder("pulsar.producer.ingest.connections", quotas,
+                    q -> q.getConnections(tenant))
+                .description("Open connections to the ingest server")
+                .tag("tenant", tenant)
+                .register(this.registry);
+            FunctionCounter.builder("pulsar.producer.ingest.throttles", quotas,
+                    q -> q.getThrottles(tenant))
+                .description("Times reading from a connection was paused to keep within the "
+                    + "rate limits")
+                .tag("tenant", tenant)
+                .register(this.registry);
+            FunctionCounter.builder("pulsar.producer.ingest.throttled", quotas,
+                    q -> q.getThrottledSeconds(tenant))
+                .description("Time reading from connections was paused to keep within the "
+                    + "rate limits")
+                .tag("tenant", tenant)
+                .baseUnit("seconds")
+                .register(this.registry);
+        }
+    }
+
+    /**
+     * Publish the statistics collected by the Pulsar client for the producer of a cluster.
+     * The client only refreshes them once per stats interval. The statistics of a producer
+     * previously bound for the same cluster are no longer published.
+     *
+     * @param cluster the name of the cluster the producer sends to.
+     * @param producer the producer to publish the statistics of.
+     */
+    public synchronized void bindProducerStats(String cluster, Producer<?> producer) {
+        List<Meter> meters = this.producerStatsMeters.computeIfAbsent(cluster,
+            ignored -> new ArrayList<>());
+        meters.forEach(this.registry::remove);
+        meters.clear();
+
+        this.statsGauge(meters, "pulsar.producer.stats.send.rate", cluster, producer,
+            ProducerStats::getSendMsgsRate);
+        this.statsGauge(meters, "pulsar.producer.stats.send.bytes.rate", cluster, producer,
+            ProducerStats::getSendBytesRate);
+        this.statsGauge(meters, "pulsar.producer.stats.send.latency.p50", cluster, producer,
+            ProducerStats::getSendLatencyMillis50pct);
+        this.statsGauge(meters, "pulsar.producer.stats.send.latency.p99", cluster, producer,
+            ProducerStats::getSendLatencyMillis99pct);
+        this.statsGauge(meters, "pulsar.producer.stats.send.latency.max", cluster, producer,
+            ProducerStats::getSendLatencyMillisMax);
+
+        meters.add(FunctionCounter.builder("pulsar.producer.stats.sent",
+                producer, p -> p.getStats().getTotalMsgsSent())
+            .description("Messages sent, as counted by the Pulsar client")
+            .tag("cluster", cluster)
+            .register(this.registry));
+        meters.add(FunctionCounter.builder(
+                "pulsar.producer.stats.send.failed", producer,
+                p -> p.getStats().getTotalSendFailed())
+            .description("Failed sends, as counted by the Pulsar client")
+            .tag("cluster", cluster)
+            .register(this.registry));
+    }
+
+    /**
+     * Register a gauge reading a value off the statistics of the Pulsar client.
+     *
+     * @param meters the meters of the statistics of the producer to add the gauge to.
+     * @param name the name of the gauge.
+     * @param cluster the name of the cluster the producer sends to.
+     * @param producer the producer to read the statistics of.
+     * @param value the value of the statistics to publish.
+     */
+    private void statsGauge(List<Meter> meters, String name, String cluster,
+                            Producer<?> producer, ToDoubleFunction<ProducerStats> value) {
+        meters.add(
+            Gauge.builder(name, producer, p -> value.applyAsDouble(p.getStats()))
+                .description("Statistics of the last stats interval of the Pulsar client")
+                .tag("cluster", cluster)
+                .register(this.registry));
+    }
+
+    /**
+     * Publish the health of the Pulsar clusters checked by a monitor.
+     *
+     * @param monitor the monitor to publish the health checks of.
+     */
+    public void bindClusterMonitor(ClusterMonitor monitor) {
+        for (Cluster cluster : monitor.getClusters()) {
+            Gauge.builder("pulsar.producer.cluster.healthy", monitor,
+                    m -> m.isHealthy(cluster) ? 1 : 0)
+                .description("Whether a broker of the cluster accepted a connection in the "
+                    + "last health check")
+                .tag("cluster", cluster.name())
+                .register(this.registry);
+            Gauge.builder("pulsar.producer.cluster.probe.latency", monitor,
+                    m -> m.getProbeLatencyNanos(cluster) / 1e9)
+                .description("Time a broker of the cluster took to accept a connection in the "
+                    + "last health check, or the probe timeout if none did")
+                .tag("cluster", cluster.name())
+                .baseUnit("seconds")
+                .register(this.registry);
+        }
+    }
+
+    /**
+     * Publish the cluster a failover has made active, and how often and how fast it
+     * switched clusters.
+     *
+     * @param failover the failover to publish the switches of.
+     */
+    public void bindClusterFailover(ClusterFailover failover) {
+        for (Cluster cluster : failover.getClusters()) {
+            Gauge.builder("pulsar.producer.cluster.active", failover,
+                    f -> f.getActive() == cluster ? 1 : 0)
+                .description("Whether the producer is failed over to the cluster")
+                .tag("cluster", cluster.name())
+                .register(this.registry);
+        }
+        FunctionCounter.builder("pulsar.producer.cluster.switches", failover,
+                ClusterFailover::getSwitches)
+            .description("Times the producer was switched to another cluster, including "
+                + "switches back")
+            .register(this.registry);
+
+        this.failoverLatency = Timer.builder("pulsar.producer.cluster.failover.latency")
+            .description("Time from the active cluster failing its health checks until the "
+                + "producer was failed over to another cluster")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(100))
+            .maximumExpectedValue(Duration.ofMinutes(5))
+            .register(this.registry);
+    }
+
+    /**
+     * Publish the number of payloads sent to a cluster.
+     *
+     * @param connection the connection to the cluster.
+     */
+    void bindClusterConnection(ClusterConnection connection) {
+        FunctionCounter.builder("pulsar.producer.cluster.selected", connection,
+                ClusterConnection::getSelected)
+            .description("Payloads sent to the cluster")
+            .tag("cluster", connection.getCluster().name())
+            .register(this.registry);
+    }
+
+    /**
+     * Record a failover to another cluster.
+     *
+     * @param latencyNanos the time from the active cluster turning unhealthy until the
+     *                     producer was failed over, in nanoseconds.
+     */
+    void recordFailover(long latencyNanos) {
+        Timer timer = this.failoverLatency;
+        if (timer != null) {
+            timer.record(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Publish the measurements of a compression tuner: the compression ratio and estimated
+     * throughput of every codec, and the codec and batch delay applied to the producer.
+     *
+     * @param tuner the compression tuner to publish the measurements of.
+     */
+    void bindCompressionTuner(CompressionTuner tuner) {
+        for (CompressionType codec : CompressionTuner.getCodecs()) {
+            String name = codec.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("pulsar.producer.compression.ratio", tuner, t -> t.getRatio(codec))
+                .description("Compressed size of a batch relative to its uncompressed size")
+                .tag("codec", name)
+                .register(this.registry);
+            Gauge.builder("pulsar.producer.compression.throughput", tuner,
+                    t -> t.getThroughput(codec))
+                .description("Estimated throughput within the latency budget, in "
+                    + "uncompressed bytes per second")
+                .tag("codec", name)
+                .baseUnit("bytes")
+                .register(this.registry);
+            Gauge.builder("pulsar.producer.compression.selected", tuner,
+                    t -> t.getApplied().codec() == codec ? 1 : 0)
+                .description("Whether the codec is applied to the producer")
+                .tag("codec", name)
+                .register(this.registry);
+        }
+        Gauge.builder("pulsar.producer.batch.delay", tuner,
+                t -> t.getApplied().delayMicros() / 1e6)
+            .description("Batch delay applied to the producer")
+            .baseUnit("seconds")
+            .register(this.registry);
+    }
+
+    /**
+     * Change how many sends the latency is measured on.
+     *
+     * @param latencySampleInterval measure the latency of one in this many sends on average.
+     */
+    void setLatencySampleInterval(int latencySampleInterval) {
+        if (latencySampleInterval <= 0) {
+            throw new IllegalArgumentException("Latency sample interval needs to be above 0");
+        }
+
+        this.latencySampleInterval = latencySampleInterval;
+    }
+
+    /**
+     * Decide whether to measure the latency of the next send.
+     *
+     * @return true if the latency of the next send should be measured.
+     */
+    boolean sampleLatency() {
+        int interval = this.latencySampleInterval;
+
+        return interval == 1 || ThreadLocalRandom.current().nextInt(interval) == 0;
+    }
+
+    /**
+     * Record a completed send.
+     *
+     * @param throwable the cause of the failure, or null if the send succeeded.
+     */
+    void recordSend(Throwable throwable) {
+        if (throwable == null) {
+            this.sent.increment();
+            return;
+        }
+
+        this.failed.increment();
+
+        Throwable cause = throwable instanceof CompletionException
+            ? throwable.getCause()
+            : throwable;
+        if (cause instanceof PulsarClientException.TimeoutException) {
+            this.timedOut.increment();
+        }
+    }
+
+    /**
+     * Record a message dropped because its send failed in a way retrying cannot fix.
+     */
+    void recordDropped() {
+        this.dropped.increment();
+    }
+
+    /**
+     * Record the latency of a sampled send that succeeded.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the send was started.
+     */
+    void recordSendLatency(long startNanos) {
+        this.sendLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of sends that have succeeded.
+     *
+     * @return the number of successful sends.
+     */
+    long getSentSends() {
+        return this.sent.sum();
+    }
+
+    /**
+     * Get the number of sends that have failed.
+     *
+     * @return the number of failed sends.
+     */
+    long getFailedSends() {
+        return this.failed.sum();
+    }
+}
@@ -6,22 +6,58 @@
 
 package com.autostreams.pulsar.producer;
 
-import static com.autostreams.utils.fileutils.FileUtils.loadPropertiesFromFile;
-
+import com.autostreams.pulsar.cluster.Cluster;
+import com.autostreams.pulsar.cluster.ClusterFailover;
+import com.autostreams.pulsar.cluster.ClusterMonitor;
+import com.autostreams.pulsar.config.ConfigSnapshot;
+import com.autostreams.pulsar.config.ConfigWatcher;
+import com.autostreams.pulsar.metrics.MetricsServer;
+import com.autostreams.pulsar.receiver.IngestQuotas;
+import com.autostreams.pulsar.receiver.IngestRecord;
+import com.autostreams.pulsar.receiver.RawStreamsServer;
+import com.autostreams.pulsar.routing.FieldRule;
+import com.autostreams.pulsar.routing.PrefixRule;
+import com.autostreams.pulsar.routing.ProducerCache;
+import com.autostreams.pulsar.routing.RegexRule;
+import com.autostreams.pulsar.routing.TopicRouter;
+import com.autostreams.pulsar.routing.TopicRule;
+import com.autostreams.pulsar.spill.SpillLog;
+import com.autostreams.pulsar.spill.SpillReplayer;
 import com.autostreams.utils.datareceiver.StreamsServer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import org.apache.pulsar.client.api.BatcherBuilder;
+import org.apache.pulsar.client.api.ClientBuilder;
 import org.apache.pulsar.client.api.CompressionType;
 import org.apache.pulsar.client.api.HashingScheme;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.MessageRoutingMode;
 import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.ProducerCryptoFailureAction;
 import org.apache.pulsar.client.api.PulsarClient;
 import org.apache.pulsar.client.api.PulsarClientException;
-import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,21 +67,341 @@ import org.slf4j.LoggerFactory;
  * @version 0.1
  * @since 0.1
  */
-public class PulsarProducer implements StreamsServer<String> {
+public class PulsarProducer implements StreamsServer<String>, RawStreamsServer {
     private static final String CONFIG_PROPERTIES = "config.properties";
     private static final String PRODUCER_PROPERTIES = "producer.properties";
+    private static final String DEFAULT_CLUSTER = "default";
+    private static final String FAILOVER_CLUSTER = "failover";
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
     private final Logger logger = LoggerFactory.getLogger(PulsarProducer.class);
-    private PulsarClient pulsarClient;
-    private Producer<String> producer;
+    private final BiConsumer<MessageId, Throwable> sendCallback = this::onSendComplete;
+    private volatile List<ClusterConnection> connections = List.of();
+    private ClusterMonitor clusterMonitor;
+    private ClusterFailover clusterFailover;
+    private SendWindow sendWindow;
+    private PayloadSchema payloadSchema;
+    private volatile KeyExtractor keyExtractor = KeyExtractor.NONE;
+    private volatile boolean orderingKeys = false;
+    private volatile boolean keyBasedBatching = false;
+    private volatile boolean tracing = false;
+    private ConfigWatcher config;
+    private ProducerMetrics metrics = ProducerMetrics.noop();
+    private MetricsServer metricsServer;
+    private SpillLog spillLog;
+    private SpillReplayer spillReplayer;
+    private TopicRouter topicRouter;
+    private CompressionTuner compressionTuner;
+    private long drainTimeoutMillis = 30000;
+    private volatile boolean accepting = true;
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger retrying = new AtomicInteger();
+
+    /**
+     * Create a Pulsar producer. Call {@link #initialize()} to connect it to the broker.
+     */
+    public PulsarProducer() {
+    }
+
+    /**
+     * Create a Pulsar producer around an already created producer, bypassing configuration
+     * and the connection to the broker. Used by the benchmarks.
+     *
+     * @param producer the producer to send messages with.
+     * @param sendWindow the send window to bound the messages in flight with.
+     * @param metrics the metrics to record sends in.
+     */
+    PulsarProducer(Producer<byte[]> producer, SendWindow sendWindow, ProducerMetrics metrics) {
+        this.connections = List.of(new ClusterConnection(
+            new Cluster(DEFAULT_CLUSTER, "pulsar://localhost:6650", 1), producer));
+        this.sendWindow = sendWindow;
+        this.metrics = metrics;
+    }
 
     /**
      * Initialize the Pulsar producer.
      */
     public void initialize() {
+        this.config = this.loadConfig();
         String host = loadAndGetHostPropertyVariable();
         Map<String, Object> producerProperties = loadAndGetProducerPropertyVariables();
 
-        connectToBroker(host, producerProperties);
+        this.sendWindow = new SendWindow(Integer.parseInt(
+            loadAndGetConfigVariable("PRODUCER_SEND_WINDOW", "producer.send.window", "1000")
+        ));
+        this.payloadSchema = PayloadSchema.valueOf(
+            loadAndGetConfigVariable("PRODUCER_PAYLOAD_SCHEMA", "producer.payload.schema", "STRING")
+        );
+        logger.info("Send window: {} messages, payload schema: {}",
+            this.sendWindow.getCapacity(), this.payloadSchema);
+        this.drainTimeoutMillis = Long.parseLong(loadAndGetConfigVariable(
+            "PRODUCER_DRAIN_TIMEOUT_MILLIS", "producer.drain.timeout.millis", "30000"));
+
+        this.configureKeys();
+        this.topicRouter = this.createTopicRouter();
+        this.configureTracing();
+
+        startMetrics();
+        List<Cluster> clusters = this.configureClusters(host);
+        this.compressionTuner = this.createCompressionTuner(producerProperties);
+        this.spillLog = openSpillLog();
+        this.config.addListener(this::onConfigChanged);
+
+        if (this.spillLog == null) {
+            connectToClusters(clusters);
+            return;
+        }
+
+        this.metrics.bindSpillLog(this.spillLog);
+        this.spillReplayer = new SpillReplayer(this.spillLog, this::canReplay,
+            this::replay, Integer.parseInt(
+                loadAndGetConfigVariable("PRODUCER_SPILL_REPLAY_RATE",
+                    "producer.spill.replay.rate", "0")
+            ));
+        this.spillReplayer.start();
+
+        Thread connector = new Thread(() -> connectToClusters(clusters), "broker-connector");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * Publish the throttling of the ingest server payloads are received by.
+     *
+     * @param quotas the rate limits of the ingest server.
+     */
+    public void bindIngestQuotas(IngestQuotas quotas) {
+        this.metrics.bindIngestQuotas(quotas);
+    }
+
+    /**
+     * Load the configuration files, and start watching the configuration directory for
+     * changes.
+     *
+     * @return the configuration watcher.
+     */
+    private ConfigWatcher loadConfig() {
+        try {
+            ConfigWatcher watcher = new ConfigWatcher(ConfigWatcher.getConfigDirectory(),
+                List.of(CONFIG_PROPERTIES, PRODUCER_PROPERTIES));
+            watcher.start();
+            return watcher;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load the configuration", e);
+        }
+    }
+
+    /**
+     * Configure how message keys are extracted from payloads.
+     */
+    private void configureKeys() {
+        KeyExtractor extractor = createKeyExtractor(
+            loadAndGetConfigVariable("PRODUCER_KEY_EXTRACTOR", "producer.key.extractor", "NONE"),
+            loadAndGetConfigVariable("PRODUCER_KEY_FIELD", "producer.key.field", "0"),
+            loadAndGetConfigVariable("PRODUCER_KEY_DELIMITER", "producer.key.delimiter", ",")
+        );
+        boolean keys = extractor != KeyExtractor.NONE;
+        this.orderingKeys = keys && Boolean.parseBoolean(loadAndGetConfigVariable(
+            "PRODUCER_KEY_ORDERING", "producer.key.ordering", "true"));
+        this.keyBasedBatching = keys && Boolean.parseBoolean(loadAndGetConfigVariable(
+            "PRODUCER_KEY_BATCHING", "producer.key.batching", "true"));
+        this.keyExtractor = extractor;
+
+        if (keys) {
+            logger.info("Message keys extracted by {}, ordering keys: {}, key based batching: {}",
+                extractor.getClass().getSimpleName(), this.orderingKeys, this.keyBasedBatching);
+        }
+    }
+
+    /**
+     * Configure whether messages are traced.
+     */
+    private void configureTracing() {
+        this.tracing = Boolean.parseBoolean(
+            loadAndGetConfigVariable("PRODUCER_TRACE_ENABLED", "producer.trace.enabled", "false"));
+        if (this.tracing) {
+            logger.info("Tracing messages with timestamps in message properties");
+        }
+    }
+
+    /**
+     * Apply a reloaded configuration. Tuning settings are applied in place, and a change of
+     * the producer properties or of key based batching replaces the producer, while its
+     * messages in flight are still acknowledged. Other settings need a restart to apply.
+     *
+     * @param previous the configuration before the change.
+     * @param current the configuration after the change.
+     */
+    private void onConfigChanged(ConfigSnapshot previous, ConfigSnapshot current) {
+        boolean replace = !current.changedKeys(previous, PRODUCER_PROPERTIES).isEmpty();
+        boolean keys = false;
+
+        for (String key : current.changedKeys(previous, CONFIG_PROPERTIES)) {
+            switch (key) {
+                case "producer.send.window" -> this.sendWindow.setCapacity(Integer.parseInt(
+                    loadAndGetConfigVariable("PRODUCER_SEND_WINDOW", key, "1000")));
+                case "metrics.latency.sample.interval" -> this.metrics.setLatencySampleInterval(
+                    Integer.parseInt(loadAndGetConfigVariable(
+                        "METRICS_LATENCY_SAMPLE_INTERVAL", key, "16")));
+                case "producer.spill.replay.rate" -> {
+                    if (this.spillReplayer != null) {
+                        this.spillReplayer.setRate(Integer.parseInt(loadAndGetConfigVariable(
+                            "PRODUCER_SPILL_REPLAY_RATE", key, "10000")));
+                    }
+                }
+                case "producer.trace.enabled" -> this.configureTracing();
+                case "producer.key.extractor", "producer.key.field", "producer.key.delimiter",
+                    "producer.key.ordering" -> keys = true;
+                case "producer.key.batching" -> {
+                    keys = true;
+                    replace = true;
+                }
+                default -> logger.warn("Restart the producer to apply the change of {}", key);
+            }
+        }
+
+        if (keys) {
+            this.configureKeys();
+        }
+        if (replace) {
+            this.replaceProducers(
+                connection -> this.createProducerBuilder(connection.getClient()));
+        }
+    }
+
+    /**
+     * Open the spill log, if spilling is enabled. While the spill log is open, the producer
+     * connects to the broker in the background and messages are spilled until it is
+     * connected.
+     *
+     * @return the opened spill log, or null if spilling is disabled or the log could not be
+     *         opened.
+     */
+    private SpillLog openSpillLog() {
+        if (!Boolean.parseBoolean(loadAndGetConfigVariable(
+            "PRODUCER_SPILL_ENABLED", "producer.spill.enabled", "false"))) {
+            return null;
+        }
+
+        Path directory = Path.of(loadAndGetConfigVariable(
+            "PRODUCER_SPILL_DIRECTORY", "producer.spill.directory", "spill"));
+        int segmentBytes = Integer.parseInt(loadAndGetConfigVariable(
+            "PRODUCER_SPILL_SEGMENT_BYTES", "producer.spill.segment.bytes", "67108864"));
+        long maxBytes = Long.parseLong(loadAndGetConfigVariable(
+            "PRODUCER_SPILL_MAX_BYTES", "producer.spill.max.bytes", "1073741824"));
+
+        try {
+            SpillLog spillLog = new SpillLog(directory, segmentBytes, maxBytes);
+            logger.info("Spilling to {}, at most {} bytes in segments of {} bytes",
+                directory.toAbsolutePath(), maxBytes, segmentBytes);
+            return spillLog;
+        } catch (IOException e) {
+            logger.error("Unable to open the spill log, messages will not be spilled");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Create and start the tuner of the compression codec and batch delay, if tuning is
+     * enabled. The codec and batch delay in the producer properties are used until the tuner
+     * has found a better choice.
+     *
+     * @param producerProperties the producer properties.
+     * @return the started tuner, or null if tuning is disabled.
+     */
+    private CompressionTuner createCompressionTuner(Map<String, Object> producerProperties) {
+        if (!Boolean.parseBoolean(loadAndGetConfigVariable("PRODUCER_COMPRESSION_TUNE_ENABLED",
+            "producer.compression.tune.enabled", "false"))) {
+            return null;
+        }
+
+        CompressionTuner tuner = new CompressionTuner(
+            CompressionTuner.Estimate.configured(
+                (CompressionType) producerProperties.get("compressionType"),
+                (Long) producerProperties.get("batchingMaxPublishDelayMicros")),
+            Integer.parseInt(loadAndGetConfigVariable(
+                "PRODUCER_COMPRESSION_TUNE_SAMPLE_INTERVAL",
+                "producer.compression.tune.sample.interval", "100")),
+            Integer.parseInt(loadAndGetConfigVariable(
+                "PRODUCER_COMPRESSION_TUNE_SAMPLE_SIZE",
+                "producer.compression.tune.sample.size", "1000")),
+            Long.parseLong(loadAndGetConfigVariable(
+                "PRODUCER_COMPRESSION_TUNE_LATENCY_BUDGET_MILLIS",
+                "producer.compression.tune.latency.budget.millis", "20")),
+            Double.parseDouble(loadAndGetConfigVariable(
+                "PRODUCER_COMPRESSION_TUNE_BANDWIDTH_BYTES_PER_SECOND",
+                "producer.compression.tune.bandwidth.bytes.per.second", "125000000")),
+            (Boolean) producerProperties.get("batchingEnabled"),
+            (Integer) producerProperties.get("batchingMaxBytes"),
+            (Integer) producerProperties.get("batchingMaxMessages"),
+            Long.parseLong(loadAndGetConfigVariable(
+                "PRODUCER_COMPRESSION_TUNE_INTERVAL_SECONDS",
+                "producer.compression.tune.interval.seconds", "60")),
+            this::applyCompression
+        );
+        this.metrics.bindCompressionTuner(tuner);
+        tuner.start();
+        logger.info("Tuning compression, starting from {}", tuner.getApplied());
+
+        return tuner;
+    }
+
+    /**
+     * Switch the producers to a compression codec and batch delay. The codec of a producer is
+     * fixed when it is created, so the producers are replaced by producers with the new
+     * settings.
+     *
+     * @param choice the codec and batch delay to switch to.
+     */
+    private void applyCompression(CompressionTuner.Estimate choice) {
+        this.replaceProducers(connection -> connection.getBuilder().clone()
+            .compressionType(choice.codec())
+            .batchingMaxPublishDelay(choice.delayMicros(), TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * Replace the producers of every connected cluster by producers created from new
+     * builders, as {@link ClusterConnection#replace(ProducerBuilder)} describes.
+     *
+     * @param builders creates the builder of the new producers of a connection.
+     */
+    private void replaceProducers(
+        Function<ClusterConnection, ProducerBuilder<byte[]>> builders) {
+        for (ClusterConnection connection : this.connections) {
+            if (connection.getBuilder() != null && connection.replace(builders.apply(connection))) {
+                this.metrics.bindProducerStats(connection.getCluster().name(),
+                    connection.getProducer());
+            }
+        }
+    }
+
+    /**
+     * Register the producer metrics and start serving them, if metrics are enabled.
+     */
+    private void startMetrics() {
+        if (!Boolean.parseBoolean(
+            loadAndGetConfigVariable("METRICS_ENABLED", "metrics.enabled", "true"))) {
+            return;
+        }
+
+        PrometheusMeterRegistry registry = MetricsServer.createRegistry();
+        this.metrics = new ProducerMetrics(registry, Integer.parseInt(
+            loadAndGetConfigVariable("METRICS_LATENCY_SAMPLE_INTERVAL",
+                "metrics.latency.sample.interval", "16")
+        ));
+        this.metrics.bindSendWindow(this.sendWindow);
+
+        try {
+            this.metricsServer = new MetricsServer(registry, Integer.parseInt(
+                loadAndGetConfigVariable("METRICS_PORT", "metrics.port", "9464")
+            ));
+            this.metricsServer.start();
+        } catch (IOException e) {
+            logger.error("Unable to start the metrics server");
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -54,12 +410,111 @@ public class PulsarProducer implements StreamsServer<String> {
      *
      * @return a string representing the host on the form "pulsar://[IP]:[PORT].
      */
-    private static String loadAndGetHostPropertyVariable() {
-        Properties configProperties = loadPropertiesFromFile(CONFIG_PROPERTIES);
+    private String loadAndGetHostPropertyVariable() {
+        return loadAndGetConfigVariable("PULSAR_BROKER_URL", "pulsar.broker.url",
+            "pulsar://127.0.0.1:6650");
+    }
 
-        return System.getenv().getOrDefault("PULSAR_BROKER_URL",
-            configProperties.getProperty("pulsar.broker.url", "pulsar://127.0.0.1:6650")
-        );
+    /**
+     * Load a variable from environment or the property configuration file.
+     * Note: The environment variable is prioritized over the property configuration file variable.
+     *
+     * @param environmentName the name of the environment variable.
+     * @param propertyName the name of the variable in the property configuration file.
+     * @param defaultValue the value to use if the variable is set in neither place.
+     * @return the value of the variable.
+     */
+    private String loadAndGetConfigVariable(String environmentName, String propertyName,
+                                            String defaultValue) {
+        return System.getenv().getOrDefault(environmentName,
+            this.config.current().getString(CONFIG_PROPERTIES, propertyName, defaultValue)
+        ).trim();
+    }
+
+    /**
+     * Create the extractor of message keys.
+     *
+     * @param type the type of extractor: NONE, DELIMITED, JSON, or the fully qualified name of
+     *             a {@link KeyExtractor} implementation.
+     * @param field the index of the key field for delimited lines, or the dotted path of the
+     *              key field for JSON objects.
+     * @param delimiter the delimiter between the fields of delimited lines.
+     * @return the created key extractor.
+     */
+    private static KeyExtractor createKeyExtractor(String type, String field, String delimiter) {
+        switch (type) {
+            case "NONE":
+                return KeyExtractor.NONE;
+            case "DELIMITED":
+                return new DelimitedKeyExtractor(delimiter, Integer.parseInt(field));
+            case "JSON":
+                return new JsonKeyExtractor(field);
+            default:
+                break;
+        }
+
+        try {
+            return Class.forName(type)
+                .asSubclass(KeyExtractor.class)
+                .getDeclaredConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Could not load key extractor " + type, e);
+        }
+    }
+
+    /**
+     * Create the router of payloads to topics from the rules named by
+     * "producer.routing.rules". Every setting of a rule, such as
+     * "producer.routing.rule.orders.topic", can be overridden by the environment variable
+     * named like it in upper case with dots replaced by underscores.
+     *
+     * @return the created router, or null if no rules are configured.
+     */
+    private TopicRouter createTopicRouter() {
+        String ruleNames = loadAndGetConfigVariable("PRODUCER_ROUTING_RULES",
+            "producer.routing.rules", "");
+        if (ruleNames.isEmpty()) {
+            return null;
+        }
+
+        List<TopicRule> rules = new ArrayList<>();
+        for (String name : ruleNames.split(",")) {
+            String prefix = "producer.routing.rule." + name.trim() + ".";
+            String type = loadAndGetDerivedVariable(prefix + "type", "");
+            String match = loadAndGetDerivedVariable(prefix + "match", "");
+            String topic = loadAndGetDerivedVariable(prefix + "topic", "");
+
+            switch (type) {
+                case "PREFIX" -> rules.add(new PrefixRule(match, topic));
+                case "REGEX" -> rules.add(new RegexRule(match, topic));
+                case "FIELD" -> rules.add(new FieldRule(createKeyExtractor(
+                    loadAndGetDerivedVariable(prefix + "extractor", "DELIMITED"),
+                    loadAndGetDerivedVariable(prefix + "field", "0"),
+                    loadAndGetDerivedVariable(prefix + "delimiter", ",")
+                ), topic));
+                default -> throw new IllegalStateException(
+                    "Unknown type '" + type + "' of routing rule " + name.trim());
+            }
+        }
+
+        logger.info("Routing messages to topics by {} rule(s)", rules.size());
+
+        return new TopicRouter(rules);
+    }
+
+    /**
+     * Load a routing or cluster variable from environment or the property configuration file.
+     * The name of the environment variable is derived from the name of the property.
+     *
+     * @param propertyName the name of the variable in the property configuration file.
+     * @param defaultValue the value to use if the variable is set in neither place.
+     * @return the value of the variable.
+     */
+    private String loadAndGetDerivedVariable(String propertyName, String defaultValue) {
+        String environmentName = propertyName.toUpperCase(Locale.ROOT).replace('.', '_');
+
+        return loadAndGetConfigVariable(environmentName, propertyName, defaultValue);
     }
 
     /**
@@ -68,8 +523,8 @@ public class PulsarProducer implements StreamsServer<String> {
      *
      * @return a map of property keys to property values.
      */
-    private static Map<String, Object> loadAndGetProducerPropertyVariables() {
-        Properties producerProperties = loadPropertiesFromFile(PRODUCER_PROPERTIES);
+    private Map<String, Object> loadAndGetProducerPropertyVariables() {
+        Properties producerProperties = this.config.current().getProperties(PRODUCER_PROPERTIES);
         Map<String, String> producerPropertiesMap =
             PulsarProducer.convertPropertiesToMap(producerProperties);
 
@@ -77,11 +532,77 @@ public class PulsarProducer implements StreamsServer<String> {
     }
 
     /**
-     * Tries to connect to the Pulsar broker.
+     * Configure the Pulsar clusters named by "pulsar.clusters". Without clusters, the producer
+     * sends to the single broker URL. Otherwise the health of the clusters is checked in the
+     * background, and depending on "pulsar.cluster.mode" the producer either fails over
+     * between the clusters in the order they are named, or spreads messages over the healthy
+     * clusters by weight. Every setting of a cluster, such as "pulsar.cluster.east.url", can
+     * be overridden by the environment variable named like it in upper case with dots
+     * replaced by underscores.
+     *
+     * @param host the service URL of the broker, used if no clusters are configured.
+     * @return the clusters to connect to, one client each.
+     */
+    private List<Cluster> configureClusters(String host) {
+        String names = loadAndGetConfigVariable("PULSAR_CLUSTERS", "pulsar.clusters", "");
+        if (names.isBlank()) {
+            return List.of(new Cluster(DEFAULT_CLUSTER, host, 1));
+        }
+
+        List<Cluster> clusters = new ArrayList<>();
+        for (String name : names.split(",")) {
+            String prefix = "pulsar.cluster." + name.trim() + ".";
+            clusters.add(new Cluster(name.trim(),
+                loadAndGetDerivedVariable(prefix + "url", ""),
+                Integer.parseInt(loadAndGetDerivedVariable(prefix + "weight", "1"))));
+        }
+
+        this.clusterMonitor = new ClusterMonitor(clusters,
+            Long.parseLong(loadAndGetConfigVariable("PULSAR_CLUSTER_CHECK_INTERVAL_MILLIS",
+                "pulsar.cluster.check.interval.millis", "1000")),
+            Integer.parseInt(loadAndGetConfigVariable("PULSAR_CLUSTER_PROBE_TIMEOUT_MILLIS",
+                "pulsar.cluster.probe.timeout.millis", "1000")));
+        this.metrics.bindClusterMonitor(this.clusterMonitor);
+
+        String mode = loadAndGetConfigVariable("PULSAR_CLUSTER_MODE", "pulsar.cluster.mode",
+            "FAILOVER");
+        switch (mode) {
+            case "FAILOVER" -> {
+                this.clusterFailover = new ClusterFailover(this.clusterMonitor,
+                    Long.parseLong(loadAndGetConfigVariable(
+                        "PULSAR_CLUSTER_FAILOVER_DELAY_MILLIS",
+                        "pulsar.cluster.failover.delay.millis", "5000")),
+                    Long.parseLong(loadAndGetConfigVariable(
+                        "PULSAR_CLUSTER_SWITCH_BACK_DELAY_MILLIS",
+                        "pulsar.cluster.switch.back.delay.millis", "30000")),
+                    this.metrics::recordFailover);
+                this.metrics.bindClusterFailover(this.clusterFailover);
+                logger.info("Failing over between clusters {} in this order", names);
+
+                return List.of(new Cluster(FAILOVER_CLUSTER, clusters.get(0).serviceUrl(), 1));
+            }
+            case "SPREAD" -> {
+                if (clusters.stream().mapToInt(Cluster::weight).sum() == 0) {
+                    throw new IllegalStateException("Every cluster has a weight of 0");
+                }
+                logger.info("Spreading messages over clusters {} by weight", names);
+
+                return clusters;
+            }
+            default -> throw new IllegalStateException("Unknown cluster mode '" + mode + "'");
+        }
+    }
+
+    /**
+     * Tries to connect to the Pulsar clusters.
      * The connection is retried every 5 seconds on failure for an unlimited amount of tries.
+     * Once a cluster is connected, the remaining clusters are connected to in the background.
+     *
+     * @param clusters the clusters to connect to.
      */
-    private void connectToBroker(String host, Map<String, Object> producerProperties) {
-        while (!establishConnection(host, producerProperties)) {
+    private void connectToClusters(List<Cluster> clusters) {
+        List<Cluster> pending = new ArrayList<>(clusters);
+        while (!pending.removeIf(this::establishConnection)) {
             int secondsToSleep = 5;
             logger.warn(
                 "Failed to initialize PulsarProducer, retrying in {} seconds",
@@ -90,34 +611,141 @@ public class PulsarProducer implements StreamsServer<String> {
 
             sleepForSeconds(secondsToSleep);
         }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Thread connector = new Thread(() -> {
+            while (!pending.isEmpty() && this.accepting) {
+                int secondsToSleep = 5;
+                logger.warn("{} cluster(s) not connected, retrying in {} seconds",
+                    pending.size(), secondsToSleep);
+
+                sleepForSeconds(secondsToSleep);
+                pending.removeIf(this::establishConnection);
+            }
+        }, "cluster-connector");
+        connector.setDaemon(true);
+        connector.start();
     }
 
     /**
-     * Tries to establish a connection to the Pulsar broker.
+     * Create the cache of the producers of routed topics of a cluster, created from the
+     * current producer builder of the cluster.
      *
-     * @param host the ip and port of the Pulsar broker in the form "pulsar://[IP]:[PORT].
-     *             Example: "pulsar://127.0.0.1:6650"
-     * @param properties a map of property names to properties.
+     * @param connection the connection to the cluster.
+     * @return the created cache.
      */
-    private boolean establishConnection(String host, Map<String, Object> properties) {
-        logger.info("Establishing connection to {}", host);
+    private ProducerCache createProducerCache(ClusterConnection connection) {
+        return new ProducerCache(
+            topic -> connection.getBuilder().clone().topic(topic).createAsync(),
+            Integer.parseInt(loadAndGetConfigVariable("PRODUCER_ROUTING_MAX_PRODUCERS",
+                "producer.routing.max.producers", "100")),
+            Long.parseLong(loadAndGetConfigVariable("PRODUCER_ROUTING_IDLE_SECONDS",
+                "producer.routing.idle.seconds", "300")),
+            Long.parseLong(loadAndGetConfigVariable("PRODUCER_ROUTING_RETRY_SECONDS",
+                "producer.routing.retry.seconds", "30"))
+        );
+    }
 
+    /**
+     * Tries to establish a connection to a Pulsar cluster. While failing over between
+     * clusters, the client follows the active cluster instead of the service URL of the
+     * cluster.
+     *
+     * @param cluster the cluster to connect to, with a service URL in the form
+     *                "pulsar://[IP]:[PORT]". Example: "pulsar://127.0.0.1:6650"
+     * @return true if the connection was established.
+     */
+    private boolean establishConnection(Cluster cluster) {
+        logger.info("Establishing connection to {}", cluster.serviceUrl());
+
+        PulsarClient client = null;
+        ClusterConnection connection;
         try {
-            this.pulsarClient = PulsarClient.builder()
-                .serviceUrl(host)
-                .build();
+            ClientBuilder clientBuilder = PulsarClient.builder()
+                .statsInterval(Long.parseLong(
+                    loadAndGetConfigVariable("PULSAR_STATS_INTERVAL_SECONDS",
+                        "pulsar.stats.interval.seconds", "10")
+                ), TimeUnit.SECONDS);
+            if (this.clusterFailover != null) {
+                clientBuilder.serviceUrlProvider(this.clusterFailover);
+            } else {
+                clientBuilder.serviceUrl(cluster.serviceUrl());
+            }
+            client = clientBuilder.build();
 
-            this.producer = this.pulsarClient.newProducer(Schema.STRING)
-                .loadConf(properties)
-                .create();
+            connection = new ClusterConnection(cluster, client,
+                this.createProducerBuilder(client),
+                this.topicRouter == null ? null : this::createProducerCache);
         } catch (PulsarClientException e) {
             e.printStackTrace();
+            closeClient(client);
             return false;
         }
 
+        this.addConnection(connection);
+        this.metrics.bindProducerStats(cluster.name(), connection.getProducer());
+        this.metrics.bindClusterConnection(connection);
+
         return true;
     }
 
+    /**
+     * Start sending to a connected cluster.
+     *
+     * @param connection the connection to the cluster.
+     */
+    private synchronized void addConnection(ClusterConnection connection) {
+        List<ClusterConnection> updated = new ArrayList<>(this.connections);
+        updated.add(connection);
+        this.connections = List.copyOf(updated);
+    }
+
+    /**
+     * Create the builder of the producers from the current producer properties. While
+     * compression is tuned, the codec and batch delay chosen by the tuner are used instead
+     * of the configured ones.
+     *
+     * @param client the client to create the producers with.
+     * @return the created builder.
+     */
+    private ProducerBuilder<byte[]> createProducerBuilder(PulsarClient client) {
+        ProducerBuilder<byte[]> builder = client
+            .newProducer(this.payloadSchema.getSchema())
+            .loadConf(loadAndGetProducerPropertyVariables());
+
+        if (this.keyBasedBatching) {
+            builder.batcherBuilder(BatcherBuilder.KEY_BASED);
+        }
+
+        if (this.compressionTuner != null) {
+            CompressionTuner.Estimate applied = this.compressionTuner.getApplied();
+            builder.compressionType(applied.codec())
+                .batchingMaxPublishDelay(applied.delayMicros(), TimeUnit.MICROSECONDS);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Close the Pulsar client left by a failed connection attempt.
+     *
+     * @param client the client to close, or null if it was not created.
+     */
+    private static void closeClient(PulsarClient client) {
+        if (client == null) {
+            return;
+        }
+
+        try {
+            client.close();
+        } catch (PulsarClientException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Sleep for a specified amount of time in seconds.
      *
@@ -139,7 +767,7 @@ public class PulsarProducer implements StreamsServer<String> {
      * @param producerPropertiesMap the producer properties map to sanitize.
      * @return a transformed producer properties map.
      */
-    private static HashMap<String, Object> transformProducerPropertiesMap(
+    static HashMap<String, Object> transformProducerPropertiesMap(
         Map<String, String> producerPropertiesMap) {
         HashMap<String, Object> transformedMap = new HashMap<>();
 
@@ -191,6 +819,38 @@ public class PulsarProducer implements StreamsServer<String> {
             ))
         );
 
+        transformedMap.put(
+            "batchingEnabled",
+            Boolean.parseBoolean(System.getenv().getOrDefault(
+                "BATCHING_ENABLED",
+                producerPropertiesMap.get("batchingEnabled")
+            ))
+        );
+
+        transformedMap.put(
+            "batchingMaxMessages",
+            Integer.parseInt(System.getenv().getOrDefault(
+                "BATCHING_MAX_MESSAGES",
+                producerPropertiesMap.get("batchingMaxMessages")
+            ))
+        );
+
+        transformedMap.put(
+            "batchingMaxBytes",
+            Integer.parseInt(System.getenv().getOrDefault(
+                "BATCHING_MAX_BYTES",
+                producerPropertiesMap.get("batchingMaxBytes")
+            ))
+        );
+
+        transformedMap.put(
+            "batchingMaxPublishDelayMicros",
+            Long.parseLong(System.getenv().getOrDefault(
+                "BATCHING_MAX_PUBLISH_DELAY_MICROS",
+                producerPropertiesMap.get("batchingMaxPublishDelayMicros")
+            ))
+        );
+
         transformedMap.put(
             "messageRoutingMode",
             MessageRoutingMode.valueOf(System.getenv().getOrDefault(
@@ -233,7 +893,7 @@ public class PulsarProducer implements StreamsServer<String> {
      * @param properties the properties
      * @return a has map containing the properties
      */
-    private static HashMap<String, String> convertPropertiesToMap(Properties properties) {
+    static HashMap<String, String> convertPropertiesToMap(Properties properties) {
         return properties.entrySet().stream().collect(
             Collectors.toMap(
                 e -> String.valueOf(e.getKey()),
@@ -244,29 +904,722 @@ public class PulsarProducer implements StreamsServer<String> {
 
     /**
      * Send a message to a Pulsar broker through a record.
+     * The message is encoded to UTF-8 once and then sent as is.
      *
      * @param message the message to send to the Pulsar broker.
      */
     @Override
     public void onMessage(String message) {
-        this.producer.sendAsync(message)
-            .thenAcceptAsync(msgId -> logger.debug("{} sent to broker", msgId));
+        this.send(message.getBytes(StandardCharsets.UTF_8), null);
     }
 
     /**
-     * Shutdown the Pulsar producer.
+     * Send a raw payload to a Pulsar broker through a record, without decoding it.
+     * A heap buffer whose backing array holds exactly the payload is sent without copying,
+     * and must then not be modified afterwards. Any other buffer is copied once.
+     *
+     * @param payload the payload to send to the Pulsar broker.
+     */
+    @Override
+    public void onMessage(ByteBuffer payload) {
+        this.send(toByteArray(payload), null);
+    }
+
+    /**
+     * Send a record to a Pulsar broker with the key, properties and event time it was
+     * received with. A key received with the record takes precedence over an extracted key.
+     *
+     * @param record the record to send to the Pulsar broker.
+     */
+    @Override
+    public void onRecord(IngestRecord record) {
+        this.send(toByteArray(record.value()), RecordMetadata.of(record));
+    }
+
+    /**
+     * Check whether the send window has room for more payloads.
+     *
+     * @return true if fewer payloads than the capacity of the send window are in flight.
+     */
+    @Override
+    public boolean isReady() {
+        return this.sendWindow.getInFlight() < this.sendWindow.getCapacity();
+    }
+
+    /**
+     * Get the bytes of a buffer, avoiding a copy when the backing array holds exactly the
+     * remaining bytes of the buffer.
+     *
+     * @param buffer the buffer to get the bytes of.
+     * @return the remaining bytes of the buffer.
+     */
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer.hasArray()
+            && buffer.arrayOffset() == 0
+            && buffer.position() == 0
+            && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Send a payload to a Pulsar broker.
+     * Without a spill log, blocks the caller while the send window is full, which in turn
+     * stops the data receiver from reading more data off the network until the broker has
+     * caught up. When tracing, the trace header of the data provider is removed from the
+     * payload, and its time and the time the payload was received are carried in the metadata
+     * of the payload instead. When tuning compression, the payload is offered to the tuner as
+     * a sample.
+     * Once the producer is shutting down, payloads are rejected and counted instead.
+     *
+     * @param received the payload to send to the Pulsar broker.
+     * @param metadata the metadata the payload was received with, or null if it has none.
+     */
+    private void send(byte[] received, RecordMetadata metadata) {
+        if (!this.accepting) {
+            this.rejected.increment();
+            return;
+        }
+
+        if (this.compressionTuner != null) {
+            this.compressionTuner.offer(received);
+        }
+
+        byte[] payload = received;
+        RecordMetadata sent = metadata;
+        if (this.tracing) {
+            long receivedMicros = TraceHeader.currentMicros();
+            TraceHeader trace = TraceHeader.parse(received);
+            if (trace != null) {
+                payload = trace.getBody();
+            }
+            sent = RecordMetadata.traced(metadata,
+                trace == null ? 0 : trace.getProviderSentMicros(), receivedMicros);
+        }
+
+        if (this.spillLog != null) {
+            this.sendOrSpill(payload, sent);
+            return;
+        }
+
+        try {
+            this.sendWindow.acquire();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the send window, message dropped");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        this.sendAcquired(payload, sent, this.sendCallback);
+    }
+
+    /**
+     * Send a payload to a Pulsar broker if it is reachable, and spill it to disk while it is
+     * not. While the broker is reachable, a full send window blocks the caller, as it does
+     * without a spill log. So does a spill log that is still being replayed, or a failed send
+     * that is being retried, so that payloads reach the broker in order. While the broker is
+     * unreachable, the caller is only blocked while the spill log is full.
+     *
+     * @param payload the payload to send to the Pulsar broker.
+     * @param metadata the metadata of the payload, or null if it has none.
+     */
+    private void sendOrSpill(byte[] payload, RecordMetadata metadata) {
+        boolean warned = false;
+
+        try {
+            while (true) {
+                if (!this.isBrokerReachable()) {
+                    if (this.spill(payload, metadata)) {
+                        return;
+                    }
+                    if (!warned) {
+                        logger.warn("Spill log is full, waiting for the broker to catch up");
+                        warned = true;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } else if (this.retrying.get() == 0 && this.spillLog.isEmpty()) {
+                    if (this.sendWindow.tryAcquire(10)) {
+                        this.sendAcquired(payload, metadata, (messageId, throwable) ->
+                            this.onRetriedSendComplete(payload, metadata, null, 0, messageId,
+                                throwable));
+                        return;
+                    }
+                } else {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting to send, message dropped");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Append a payload to the spill log, wrapped with its metadata if it has any.
+     *
+     * @param payload the payload to spill.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @return true if the payload was spilled, false if the spill log is full.
+     */
+    private boolean spill(byte[] payload, RecordMetadata metadata) {
+        if (metadata == null) {
+            return this.spillLog.append(payload);
+        }
+
+        return this.spillLog.append(metadata.wrap(payload), true);
+    }
+
+    /**
+     * Replay a spilled payload, blocking while the send window is full. The payload is
+     * completed in the spill log once the broker has acknowledged it, and retried in place
+     * if the send failed. A payload spilled with metadata is sent with it.
+     *
+     * @param entry the spilled payload to replay.
+     */
+    private void replay(SpillLog.Entry entry) {
+        try {
+            this.sendWindow.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        byte[] spilled = entry.getPayload();
+        ByteBuffer buffer = ByteBuffer.wrap(spilled);
+        RecordMetadata metadata = entry.hasMetadata() ? RecordMetadata.read(buffer) : null;
+        byte[] payload = metadata == null ? spilled : toByteArray(buffer);
+        this.sendAcquired(payload, metadata, (messageId, throwable) ->
+            this.onRetriedSendComplete(payload, metadata, entry, 0, messageId, throwable));
+    }
+
+    /**
+     * Completion callback of the sends of a producer with a spill log. A failed send keeps
+     * its slot in the send window and is sent again after a growing delay, instead of being
+     * spilled behind the payloads received after it. While any send is retried, new payloads
+     * wait, or are spilled while the broker is unreachable, and spill replay pauses, so that
+     * the retried payload keeps its place in order. Sends already in flight behind it are not
+     * held back. Once the producer is shutting down, a failed send is no longer retried: a
+     * spilled payload is left in the spill log, and any other payload is spilled, to be
+     * replayed on the next start. A send failing because its producer was closed after it
+     * was selected, by the producer cache evicting it or by the producer being replaced, is
+     * retried right away on the producer selected anew. A send failing in a way retrying
+     * cannot fix, such as a message that is too large or a topic the producer may not write
+     * to, is not retried but dropped, and counted.
+     *
+     * @param payload the payload that was sent.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @param entry the spilled payload being replayed, or null if it was sent directly.
+     * @param attempt the number of times the send has been retried.
+     * @param messageId the id of the sent message, or null if the send failed.
+     * @param throwable the cause of the failure, or null if the send succeeded.
+     */
+    private void onRetriedSendComplete(byte[] payload, RecordMetadata metadata,
+                                       SpillLog.Entry entry, int attempt, MessageId messageId,
+                                       Throwable throwable) {
+        if (throwable == null) {
+            if (attempt > 0) {
+                this.retrying.decrementAndGet();
+            }
+            this.onSendComplete(messageId, null);
+            if (entry != null) {
+                this.spillLog.complete(entry);
+            }
+            return;
+        }
+
+        this.metrics.recordSend(throwable);
+        if (!isRetriable(throwable)) {
+            if (attempt > 0) {
+                this.retrying.decrementAndGet();
+            }
+            this.sendWindow.release();
+            this.metrics.recordDropped();
+            logger.error("Failed to send message to broker, message dropped: {}",
+                throwable.getMessage());
+            if (entry != null) {
+                this.spillLog.complete(entry);
+            }
+            return;
+        }
+
+        if (attempt == 0) {
+            this.retrying.incrementAndGet();
+        }
+
+        if (!this.accepting) {
+            this.retrying.decrementAndGet();
+            this.sendWindow.release();
+            logger.warn("Failed to send message to broker while shutting down: {}",
+                throwable.getMessage());
+            if (entry == null && !this.spill(payload, metadata)) {
+                logger.error("Spill log is full, failed message dropped");
+            }
+            return;
+        }
+
+        long delayMillis = attempt == 0 && isProducerClosed(throwable)
+            ? 0
+            : Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(attempt, 6));
+        logger.warn("Failed to send message to broker, retrying in {} ms: {}", delayMillis,
+            throwable.getMessage());
+        CompletableFuture.runAsync(() -> this.sendAcquired(payload, metadata,
+                (retriedId, retriedThrowable) -> this.onRetriedSendComplete(payload, metadata,
+                    entry, attempt + 1, retriedId, retriedThrowable)),
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Check whether a failed send may succeed when retried. Failures caused by the message,
+     * the topic or the permissions of the producer fail again on every retry.
+     *
+     * @param throwable the cause of the failure.
+     * @return true if the send is worth retrying.
+     */
+    private static boolean isRetriable(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException
+            ? throwable.getCause()
+            : throwable;
+
+        return !(cause instanceof PulsarClientException.InvalidMessageException
+            || cause instanceof PulsarClientException.NotAllowedException
+            || cause instanceof PulsarClientException.AuthenticationException
+            || cause instanceof PulsarClientException.AuthorizationException
+            || cause instanceof PulsarClientException.TopicTerminatedException
+            || cause instanceof PulsarClientException.TopicDoesNotExistException
+            || cause instanceof PulsarClientException.NotFoundException
+            || cause instanceof PulsarClientException.IncompatibleSchemaException
+            || cause instanceof PulsarClientException.InvalidTopicNameException
+            || cause instanceof PulsarClientException.ProducerFencedException);
+    }
+
+    /**
+     * Check whether a send failed because its producer was closed.
+     *
+     * @param throwable the cause of the failure.
+     * @return true if the producer of the send was closed.
+     */
+    private static boolean isProducerClosed(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException
+            ? throwable.getCause()
+            : throwable;
+
+        return cause instanceof PulsarClientException.AlreadyClosedException;
+    }
+
+    /**
+     * Check whether spilled payloads can be replayed: the broker is reachable, and no failed
+     * send is being retried, which would otherwise be overtaken.
+     *
+     * @return true if spilled payloads can be replayed.
+     */
+    private boolean canReplay() {
+        return this.retrying.get() == 0 && this.isBrokerReachable();
+    }
+
+    /**
+     * Check whether the producer is connected to a broker of any cluster.
+     *
+     * @return true if messages can be sent to a broker.
+     */
+    private boolean isBrokerReachable() {
+        for (ClusterConnection connection : this.connections) {
+            if (connection.isConnected()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Send a payload to a Pulsar broker once a slot in the send window has been acquired.
+     * The latency of a sample of the sends is measured.
+     *
+     * @param payload the payload to send to the Pulsar broker.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @param callback the completion callback of the send, releasing the slot.
+     */
+    private void sendAcquired(byte[] payload, RecordMetadata metadata,
+                              BiConsumer<MessageId, Throwable> callback) {
+        if (!this.metrics.sampleLatency()) {
+            this.sendAsync(payload, metadata).whenComplete(callback);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        this.sendAsync(payload, metadata).whenComplete((messageId, throwable) -> {
+            if (throwable == null) {
+                this.metrics.recordSendLatency(startNanos);
+            }
+            callback.accept(messageId, throwable);
+        });
+    }
+
+    /**
+     * Hand a payload to the Pulsar client, with the key it was received with or extracted
+     * from it if there is one, and with the trace times and properties of its metadata.
+     *
+     * @param payload the payload to send to the Pulsar broker.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @return a future completed when the broker has acknowledged the message.
+     */
+    private CompletableFuture<MessageId> sendAsync(byte[] payload, RecordMetadata metadata) {
+        String key = metadata != null && metadata.getKey() != null
+            ? metadata.getKey()
+            : this.keyExtractor.extractKey(payload);
+
+        return this.sendToSelected(payload, key, metadata);
+    }
+
+    /**
+     * Hand a payload to the Pulsar client on the producer selected for it. A payload routed to
+     * a topic whose producer is still being created is sent once the producer is created.
+     *
+     * @param payload the payload to send to the Pulsar broker.
+     * @param key the key of the payload, or null if it has none.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @return a future completed when the broker has acknowledged the message.
+     */
+    private CompletableFuture<MessageId> sendToSelected(byte[] payload, String key,
+                                                        RecordMetadata metadata) {
+        CompletableFuture<Producer<byte[]>> target = this.selectProducer(payload, key);
+        if (target.isDone()) {
+            return this.sendAsync(target.join(), payload, key, metadata);
+        }
+
+        return target.thenCompose(producer -> this.sendAsync(producer, payload, key, metadata));
+    }
+
+    /**
+     * Hand a payload to the Pulsar client on a producer.
+     *
+     * @param target the producer to send the payload with.
+     * @param payload the payload to send to the Pulsar broker.
+     * @param key the key of the payload, or null if it has none.
+     * @param metadata the metadata of the payload, or null if it has none.
+     * @return a future completed when the broker has acknowledged the message.
+     */
+    private CompletableFuture<MessageId> sendAsync(Producer<byte[]> target, byte[] payload,
+                                                   String key, RecordMetadata metadata) {
+        if (key == null && metadata == null) {
+            return target.sendAsync(payload);
+        }
+
+        TypedMessageBuilder<byte[]> message = target.newMessage().value(payload);
+        if (key != null) {
+            message.key(key);
+            if (this.orderingKeys) {
+                message.orderingKey(key.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (metadata != null) {
+            metadata.apply(message);
+        }
+
+        return message.sendAsync();
+    }
+
+    /**
+     * Select the producer of the topic a payload is routed to, on the cluster the payload is
+     * sent to. Payloads that no routing rule matches, and payloads whose topic producer could
+     * not be created, go to the default topic.
+     *
+     * @param payload the payload to route.
+     * @param key the key of the payload, or null if it has none.
+     * @return the future of the producer to send the payload with, which never completes
+     *         exceptionally.
+     */
+    private CompletableFuture<Producer<byte[]>> selectProducer(byte[] payload, String key) {
+        ClusterConnection connection = this.selectConnection(key);
+        String topic = this.topicRouter == null ? null : this.topicRouter.route(payload);
+
+        return connection.selectProducer(topic);
+    }
+
+    /**
+     * Select the cluster to send a payload to. When spreading messages over clusters, a
+     * cluster is picked by weight among the connected clusters that passed their last health
+     * check, or among all connected clusters if none did. Payloads with a key are sent to the
+     * cluster the key hashes to, so that they stay in order while the eligible clusters do
+     * not change, and payloads without a key go to a cluster picked at random.
+     *
+     * @param key the key of the payload, or null if it has none.
+     * @return the connection to the selected cluster.
+     */
+    private ClusterConnection selectConnection(String key) {
+        List<ClusterConnection> current = this.connections;
+        if (current.size() == 1) {
+            return current.get(0);
+        }
+
+        ClusterConnection selected = key == null
+            ? this.pickByWeight(current, true)
+            : this.pickByKey(current, key, true);
+        if (selected == null) {
+            selected = key == null
+                ? this.pickByWeight(current, false)
+                : this.pickByKey(current, key, false);
+        }
+
+        return selected != null ? selected : current.get(0);
+    }
+
+    /**
+     * Pick a connected cluster for a key by weighted rendezvous hashing. Every eligible cluster
+     * scores the key, and the cluster with the lowest score is picked, which is a given
+     * cluster for a share of the keys proportional to its weight. A cluster becoming eligible
+     * or not only moves the keys it gains or loses.
+     *
+     * @param candidates the connections to pick from.
+     * @param key the key of the payload.
+     * @param healthyOnly whether to only pick clusters that passed their last health check.
+     * @return the picked connection, or null if no cluster with a weight is eligible.
+     */
+    private ClusterConnection pickByKey(List<ClusterConnection> candidates, String key,
+                                        boolean healthyOnly) {
+        ClusterConnection picked = null;
+        double lowestScore = Double.MAX_VALUE;
+        for (ClusterConnection candidate : candidates) {
+            int weight = candidate.getCluster().weight();
+            if (weight <= 0 || !this.isEligible(candidate, healthyOnly)) {
+                continue;
+            }
+
+            double score = rendezvousScore(key, candidate.getCluster());
+            if (score < lowestScore) {
+                lowestScore = score;
+                picked = candidate;
+            }
+        }
+
+        return picked;
+    }
+
+    /**
+     * Score a key for a cluster by weighted rendezvous hashing. The lowest score of the
+     * eligible clusters picks the cluster of the key.
+     *
+     * @param key the key of the payload.
+     * @param cluster the cluster to score the key for, with a weight above 0.
+     * @return the score of the key for the cluster.
+     */
+    static double rendezvousScore(String key, Cluster cluster) {
+        return -Math.log(toUnitInterval(mix(key.hashCode() * 31L + cluster.name().hashCode())))
+            / cluster.weight();
+    }
+
+    /**
+     * Mix the bits of a hash, so that similar inputs give unrelated outputs.
+     *
+     * @param hash the hash to mix.
+     * @return the mixed hash.
+     */
+    private static long mix(long hash) {
+        long mixed = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        mixed = (mixed ^ (mixed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+        return mixed ^ (mixed >>> 33);
+    }
+
+    /**
+     * Map a hash to a number between 0 and 1, excluding both.
+     *
+     * @param hash the hash to map.
+     * @return the number the hash maps to.
+     */
+    private static double toUnitInterval(long hash) {
+        return ((hash >>> 11) + 0.5) / (1L << 53);
+    }
+
+    /**
+     * Pick a connected cluster at random, with a chance proportional to its weight.
+     *
+     * @param candidates the connections to pick from.
+     * @param healthyOnly whether to only pick clusters that passed their last health check.
+     * @return the picked connection, or null if no cluster with a weight is eligible.
+     */
+    private ClusterConnection pickByWeight(List<ClusterConnection> candidates,
+                                           boolean healthyOnly) {
+        int totalWeight = 0;
+        for (ClusterConnection candidate : candidates) {
+            if (this.isEligible(candidate, healthyOnly)) {
+                totalWeight += candidate.getCluster().weight();
+            }
+        }
+        if (totalWeight == 0) {
+            return null;
+        }
+
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (ClusterConnection candidate : candidates) {
+            if (this.isEligible(candidate, healthyOnly)) {
+                pick -= candidate.getCluster().weight();
+                if (pick < 0) {
+                    return candidate;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Check whether a cluster can be picked to send to.
+     *
+     * @param connection the connection to the cluster.
+     * @param healthyOnly whether the cluster needs to have passed its last health check.
+     * @return true if the cluster can be picked.
+     */
+    private boolean isEligible(ClusterConnection connection, boolean healthyOnly) {
+        return connection.isConnected()
+            && (!healthyOnly || this.clusterMonitor.isHealthy(connection.getCluster()));
+    }
+
+    /**
+     * Completion callback shared by all sends that are not spilled on failure. Frees the slot
+     * held in the send window and records the outcome of the send.
+     *
+     * @param messageId the id of the sent message, or null if the send failed.
+     * @param throwable the cause of the failure, or null if the send succeeded.
+     */
+    private void onSendComplete(MessageId messageId, Throwable throwable) {
+        this.sendWindow.release();
+        this.metrics.recordSend(throwable);
+
+        if (throwable != null) {
+            logger.warn("Failed to send message to broker: {}", throwable.getMessage());
+        } else if (logger.isTraceEnabled()) {
+            logger.trace("{} sent to broker", messageId);
+        }
+    }
+
+    /**
+     * Get the number of sends that have failed since the producer was started.
+     *
+     * @return the number of failed sends.
+     */
+    public long getFailedSends() {
+        return this.metrics.getFailedSends();
+    }
+
+    /**
+     * Shutdown the Pulsar producer, draining it first. The producer stops accepting payloads,
+     * waits up to the drain timeout for the sends in flight to be acknowledged by the broker,
+     * and then closes the producers and the client. The time and counts of every phase are
+     * logged. Only the first call shuts down the producer.
      */
     @Override
     public void onShutdown() {
-        logger.info("Attempting to shut down the Pulsar producer");
+        if (!this.shutDown.compareAndSet(false, true)) {
+            return;
+        }
+
+        logger.info("Draining the Pulsar producer within {} ms", this.drainTimeoutMillis);
+        long drainStartNanos = System.nanoTime();
+
+        long phaseStartNanos = System.nanoTime();
+        this.stopInput();
+        logger.info("Stopped input in {} ms, {} messages in flight",
+            elapsedMillis(phaseStartNanos), this.sendWindow.getInFlight());
+
+        phaseStartNanos = System.nanoTime();
+        int inFlight = this.sendWindow.getInFlight();
+        long sent = this.metrics.getSentSends();
+        long failed = this.metrics.getFailedSends();
+        boolean flushed = this.flushPendingSends();
+        logger.info("Flushed pending sends in {} ms: {} sent, {} failed, {} of {} left in flight",
+            elapsedMillis(phaseStartNanos), this.metrics.getSentSends() - sent,
+            this.metrics.getFailedSends() - failed, this.sendWindow.getInFlight(), inFlight);
+        if (!flushed) {
+            logger.warn("Timed out flushing pending sends, unsent messages are lost");
+        }
+
+        phaseStartNanos = System.nanoTime();
+        this.closeClients();
+        logger.info("Closed the producers in {} ms, {} payloads rejected while draining",
+            elapsedMillis(phaseStartNanos), this.rejected.sum());
+
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+        }
+
+        logger.info("Pulsar producer shut down in {} ms", elapsedMillis(drainStartNanos));
+    }
+
+    /**
+     * Stop accepting payloads, and stop the background tasks that would otherwise send or
+     * replace producers while draining.
+     */
+    private void stopInput() {
+        this.accepting = false;
+
+        if (this.spillReplayer != null) {
+            this.spillReplayer.stop();
+        }
+
+        if (this.compressionTuner != null) {
+            this.compressionTuner.stop();
+        }
+
+        if (this.config != null) {
+            this.config.close();
+        }
+    }
 
-        if (this.producer != null) {
+    /**
+     * Flush the messages batched by the Pulsar client, and wait for the sends in flight to
+     * complete.
+     *
+     * @return true if every send completed within the drain timeout.
+     */
+    private boolean flushPendingSends() {
+        for (ClusterConnection connection : this.connections) {
+            connection.flush();
+        }
+
+        try {
+            return this.sendWindow.awaitEmpty(this.drainTimeoutMillis);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while flushing pending sends");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Close the producers, the Pulsar clients, the cluster monitor and the spill log.
+     */
+    private void closeClients() {
+        for (ClusterConnection connection : this.connections) {
+            connection.close();
+        }
+
+        if (this.clusterMonitor != null) {
+            this.clusterMonitor.close();
+        }
+
+        if (this.spillLog != null) {
             try {
-                this.producer.close();
-                this.pulsarClient.close();
-            } catch (PulsarClientException e) {
+                this.spillLog.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the spill log");
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * Get the time passed since a point in time.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} at the point in time.
+     * @return the time passed in milliseconds.
+     */
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
 }
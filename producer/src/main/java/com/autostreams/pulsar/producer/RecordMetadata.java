@@ -0,0 +1,245 @@
+package com.autostreams.pulsar.producer;
+
+import com.autostreams.pulsar.receiver.IngestRecord;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+/**
+ * Key, properties and event time a record was received with, and the trace times of a traced
+ * record, carried along with its payload until it is handed to the Pulsar client. Payloads
+ * spilled to disk are wrapped with their metadata in the layout of a record of the binary
+ * ingest protocol: a byte of flags, the key, the properties and the event time as the flags
+ * name them, then the time the data provider sent the record and the time the producer
+ * received it if the record is traced, and then the payload.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class RecordMetadata {
+    private static final int FLAG_KEY = 1;
+    private static final int FLAG_PROPERTIES = 2;
+    private static final int FLAG_EVENT_TIME = 4;
+    private static final int FLAG_TRACE = 8;
+
+    private final String key;
+    private final Map<String, String> properties;
+    private final long eventTime;
+    private final long providerSentMicros;
+    private final long producerReceivedMicros;
+
+    /**
+     * Create the metadata of a record.
+     *
+     * @param key the key of the record, or null if it has none.
+     * @param properties the properties of the record, empty if it has none.
+     * @param eventTime the event time in milliseconds since the epoch, or 0 if it has none.
+     * @param providerSentMicros the time the data provider sent the record, or 0 if unknown.
+     * @param producerReceivedMicros the time the producer received the record, or 0 if the
+     *                               record is not traced.
+     */
+    private RecordMetadata(String key, Map<String, String> properties, long eventTime,
+                           long providerSentMicros, long producerReceivedMicros) {
+        this.key = key;
+        this.properties = properties;
+        this.eventTime = eventTime;
+        this.providerSentMicros = providerSentMicros;
+        this.producerReceivedMicros = producerReceivedMicros;
+    }
+
+    /**
+     * Get the metadata of a received record.
+     *
+     * @param record the received record.
+     * @return the metadata of the record, or null if it has none.
+     */
+    static RecordMetadata of(IngestRecord record) {
+        if (!record.hasMetadata()) {
+            return null;
+        }
+
+        return new RecordMetadata(record.key(), record.properties(), record.eventTime(), 0, 0);
+    }
+
+    /**
+     * Get the metadata of a traced record.
+     *
+     * @param metadata the metadata the record was received with, or null if it has none.
+     * @param providerSentMicros the time the data provider sent the record, or 0 if unknown.
+     * @param producerReceivedMicros the time the producer received the record.
+     * @return the metadata with the trace times.
+     */
+    static RecordMetadata traced(RecordMetadata metadata, long providerSentMicros,
+                                 long producerReceivedMicros) {
+        if (metadata == null) {
+            return new RecordMetadata(null, Map.of(), 0, providerSentMicros,
+                producerReceivedMicros);
+        }
+
+        return new RecordMetadata(metadata.key, metadata.properties, metadata.eventTime,
+            providerSentMicros, producerReceivedMicros);
+    }
+
+    /**
+     * Get the key of the record.
+     *
+     * @return the key, or null if the record has none.
+     */
+    String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Check whether the record is traced.
+     *
+     * @return true if the record carries the time the producer received it.
+     */
+    boolean isTraced() {
+        return this.producerReceivedMicros > 0;
+    }
+
+    /**
+     * Set the trace times, properties and event time of the record on a message. The trace
+     * times are sent as message properties, along with the time the message is handed to the
+     * Pulsar client, and the event time is set to the time the data provider sent the record,
+     * or the producer received it if that is unknown. The properties and event time the record
+     * was received with are set last, so they take precedence over the trace.
+     *
+     * @param message the message to set the metadata on.
+     */
+    void apply(TypedMessageBuilder<byte[]> message) {
+        if (this.isTraced()) {
+            if (this.providerSentMicros > 0) {
+                message.property(TraceHeader.PROVIDER_SENT_PROPERTY,
+                    Long.toString(this.providerSentMicros));
+            }
+            message.property(TraceHeader.PRODUCER_RECEIVED_PROPERTY,
+                Long.toString(this.producerReceivedMicros));
+            message.property(TraceHeader.PRODUCER_SENT_PROPERTY,
+                Long.toString(TraceHeader.currentMicros()));
+            message.eventTime(TimeUnit.MICROSECONDS.toMillis(this.providerSentMicros > 0
+                ? this.providerSentMicros : this.producerReceivedMicros));
+        }
+        if (!this.properties.isEmpty()) {
+            message.properties(this.properties);
+        }
+        if (this.eventTime > 0) {
+            message.eventTime(this.eventTime);
+        }
+    }
+
+    /**
+     * Wrap a payload with the metadata.
+     *
+     * @param payload the payload of the record.
+     * @return the metadata followed by the payload.
+     */
+    byte[] wrap(byte[] payload) {
+        byte[] key = this.key == null ? null : this.key.getBytes(StandardCharsets.UTF_8);
+        int flags = (key != null ? FLAG_KEY : 0)
+            | (this.properties.isEmpty() ? 0 : FLAG_PROPERTIES)
+            | (this.eventTime > 0 ? FLAG_EVENT_TIME : 0)
+            | (this.isTraced() ? FLAG_TRACE : 0);
+
+        int bytes = 1 + payload.length;
+        if (key != null) {
+            bytes += Short.BYTES + key.length;
+        }
+        if (!this.properties.isEmpty()) {
+            bytes += Short.BYTES;
+            for (Map.Entry<String, String> property : this.properties.entrySet()) {
+                bytes += 2 * Short.BYTES
+                    + property.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + property.getValue().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        if (this.eventTime > 0) {
+            bytes += Long.BYTES;
+        }
+        if (this.isTraced()) {
+            bytes += 2 * Long.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        buffer.put((byte) flags);
+        if (key != null) {
+            buffer.putShort((short) key.length).put(key);
+        }
+        if (!this.properties.isEmpty()) {
+            buffer.putShort((short) this.properties.size());
+            for (Map.Entry<String, String> property : this.properties.entrySet()) {
+                putString(buffer, property.getKey());
+                putString(buffer, property.getValue());
+            }
+        }
+        if (this.eventTime > 0) {
+            buffer.putLong(this.eventTime);
+        }
+        if (this.isTraced()) {
+            buffer.putLong(this.providerSentMicros).putLong(this.producerReceivedMicros);
+        }
+        buffer.put(payload);
+
+        return buffer.array();
+    }
+
+    /**
+     * Read the metadata in front of a wrapped payload, leaving the buffer at the payload.
+     *
+     * @param buffer the wrapped payload.
+     * @return the metadata of the payload.
+     */
+    static RecordMetadata read(ByteBuffer buffer) {
+        int flags = buffer.get();
+
+        String key = (flags & FLAG_KEY) != 0 ? getString(buffer) : null;
+
+        Map<String, String> properties = Map.of();
+        if ((flags & FLAG_PROPERTIES) != 0) {
+            int count = Short.toUnsignedInt(buffer.getShort());
+            properties = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                properties.put(getString(buffer), getString(buffer));
+            }
+        }
+
+        long eventTime = (flags & FLAG_EVENT_TIME) != 0 ? buffer.getLong() : 0;
+
+        long providerSentMicros = 0;
+        long producerReceivedMicros = 0;
+        if ((flags & FLAG_TRACE) != 0) {
+            providerSentMicros = buffer.getLong();
+            producerReceivedMicros = buffer.getLong();
+        }
+
+        return new RecordMetadata(key, properties, eventTime, providerSentMicros,
+            producerReceivedMicros);
+    }
+
+    /**
+     * Put a string as a 2 byte length and UTF-8 bytes.
+     *
+     * @param buffer the buffer to put the string in.
+     * @param value the string to put.
+     */
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * Get a string of a 2 byte length and UTF-8 bytes.
+     *
+     * @param buffer the buffer to get the string from.
+     * @return the string.
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
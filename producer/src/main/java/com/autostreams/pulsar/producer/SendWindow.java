@@ -0,0 +1,150 @@
+package com.autostreams.pulsar.producer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded window over the messages that have been handed to the Pulsar client but not yet
+ * acknowledged by the broker. A full window blocks the calling thread, which pushes back on
+ * the data receiver instead of overflowing the producer's pending queue.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class SendWindow {
+    private final Permits permits;
+    private volatile int capacity;
+
+    /**
+     * Semaphore whose permits can be taken away, even while they are held.
+     */
+    private static final class Permits extends Semaphore {
+
+        /**
+         * Create the permits of a window.
+         *
+         * @param permits the initial number of permits.
+         */
+        Permits(int permits) {
+            super(permits);
+        }
+
+        /**
+         * Take permits away, possibly leaving fewer than zero available.
+         *
+         * @param reduction the number of permits to take away.
+         */
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * Create a send window.
+     *
+     * @param capacity the maximum number of messages allowed in flight at the same time.
+     */
+    public SendWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Send window capacity needs to be above 0");
+        }
+
+        this.capacity = capacity;
+        this.permits = new Permits(capacity);
+    }
+
+    /**
+     * Reserve a slot in the window, blocking until one is available.
+     *
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    public void acquire() throws InterruptedException {
+        this.permits.acquire();
+    }
+
+    /**
+     * Reserve a slot in the window if one is available, without blocking.
+     *
+     * @return true if a slot was reserved.
+     */
+    public boolean tryAcquire() {
+        return this.permits.tryAcquire();
+    }
+
+    /**
+     * Reserve a slot in the window, waiting at most a given time for one to be available.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if a slot was reserved, false if the wait timed out.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    public boolean tryAcquire(long timeoutMillis) throws InterruptedException {
+        return this.permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Release a slot in the window after a send has completed.
+     */
+    public void release() {
+        this.permits.release();
+    }
+
+    /**
+     * Get the number of messages currently in flight.
+     *
+     * @return the number of messages currently in flight.
+     */
+    public int getInFlight() {
+        return this.capacity - this.permits.availablePermits();
+    }
+
+    /**
+     * Wait for every message in flight to be acknowledged or to fail. Messages sent while
+     * waiting are waited for as well, so stop sending first.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if no messages are in flight, false if the wait timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (this.getInFlight() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+
+        return true;
+    }
+
+    /**
+     * Change the capacity of the window. Shrinking it does not wait for messages in flight:
+     * sends are held back until the messages in flight are below the new capacity.
+     *
+     * @param capacity the maximum number of messages allowed in flight at the same time.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Send window capacity needs to be above 0");
+        }
+
+        int change = capacity - this.capacity;
+        if (change > 0) {
+            this.permits.release(change);
+        } else if (change < 0) {
+            this.permits.reducePermits(-change);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the capacity of the window.
+     *
+     * @return the maximum number of messages allowed in flight.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+}
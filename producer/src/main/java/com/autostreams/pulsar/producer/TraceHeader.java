@@ -0,0 +1,97 @@
+package com.autostreams.pulsar.producer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Trace header the data provider writes in front of a line, of the form "~t:[SENT];", where
+ * SENT is the time the data provider sent the line in microseconds since the epoch. The
+ * header is removed from the line when it is received, and its time is carried along with the
+ * line in its {@link RecordMetadata} instead, together with the time the producer received it.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class TraceHeader {
+    static final String PROVIDER_SENT_PROPERTY = "trace.provider.sent";
+    static final String PRODUCER_RECEIVED_PROPERTY = "trace.producer.received";
+    static final String PRODUCER_SENT_PROPERTY = "trace.producer.sent";
+
+    private static final byte[] PREFIX = "~t:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte END = ';';
+    private static final int MAX_DIGITS = 19;
+
+    private final long providerSentMicros;
+    private final byte[] body;
+
+    /**
+     * Create a parsed trace header.
+     *
+     * @param providerSentMicros the time the data provider sent the line.
+     * @param body the line without the header.
+     */
+    private TraceHeader(long providerSentMicros, byte[] body) {
+        this.providerSentMicros = providerSentMicros;
+        this.body = body;
+    }
+
+    /**
+     * Get the current time in microseconds since the epoch.
+     *
+     * @return the current time in microseconds.
+     */
+    static long currentMicros() {
+        Instant now = Instant.now();
+
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    /**
+     * Parse the trace header written by the data provider. Only a header made of the prefix,
+     * digits and the end byte is taken as one, so any other line is left as it is.
+     *
+     * @param payload the line as received.
+     * @return the parsed header, or null if the line has no header.
+     */
+    static TraceHeader parse(byte[] payload) {
+        if (payload.length < PREFIX.length
+            || !Arrays.equals(payload, 0, PREFIX.length, PREFIX, 0, PREFIX.length)) {
+            return null;
+        }
+
+        long sent = 0;
+        int limit = Math.min(payload.length, PREFIX.length + MAX_DIGITS + 1);
+        for (int i = PREFIX.length; i < limit; i++) {
+            byte digit = payload[i];
+            if (digit == END) {
+                return i == PREFIX.length ? null
+                    : new TraceHeader(sent, Arrays.copyOfRange(payload, i + 1, payload.length));
+            }
+            if (digit < '0' || digit > '9') {
+                return null;
+            }
+            sent = sent * 10 + (digit - '0');
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the time the data provider sent the line.
+     *
+     * @return the time in microseconds since the epoch.
+     */
+    long getProviderSentMicros() {
+        return this.providerSentMicros;
+    }
+
+    /**
+     * Get the line without its trace header.
+     *
+     * @return the line without the header.
+     */
+    byte[] getBody() {
+        return this.body;
+    }
+}
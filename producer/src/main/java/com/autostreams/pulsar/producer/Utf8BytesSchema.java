@@ -0,0 +1,56 @@
+package com.autostreams.pulsar.producer;
+
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+/**
+ * Schema for payloads that are already UTF-8 encoded. Registers the same schema information as
+ * {@link Schema#STRING}, so the topic and its consumers see a string topic, but passes the
+ * payload bytes through as-is instead of encoding a String.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class Utf8BytesSchema implements Schema<byte[]> {
+    /**
+     * Pass the payload through unchanged.
+     *
+     * @param message the UTF-8 encoded payload.
+     * @return the same payload.
+     */
+    @Override
+    public byte[] encode(byte[] message) {
+        return message;
+    }
+
+    /**
+     * Pass the payload through unchanged.
+     *
+     * @param bytes the UTF-8 encoded payload.
+     * @return the same payload.
+     */
+    @Override
+    public byte[] decode(byte[] bytes) {
+        return bytes;
+    }
+
+    /**
+     * Get the schema information, which is the one of the string schema.
+     *
+     * @return the schema information of the string schema.
+     */
+    @Override
+    public SchemaInfo getSchemaInfo() {
+        return Schema.STRING.getSchemaInfo();
+    }
+
+    /**
+     * Get a copy of this schema. The schema is stateless, so the same instance is returned.
+     *
+     * @return this schema.
+     */
+    @Override
+    public Schema<byte[]> clone() {
+        return this;
+    }
+}
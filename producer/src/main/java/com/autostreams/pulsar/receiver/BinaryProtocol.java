@@ -0,0 +1,140 @@
+package com.autostreams.pulsar.receiver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary ingest protocol, negotiated between a data provider and the ingest server.
+ *
+ * <p>On connect, the server offers the protocol by sending the line {@link #OFFER}. A data
+ * provider taking the offer sends the hello, {@link #MAGIC} followed by {@link #VERSION} as a
+ * single byte, and then binary frames. A client that never sends the hello keeps using the
+ * text protocol. Commands from the server to the client stay lines in both protocols.
+ *
+ * <p>All numbers are big endian. A frame is a 4 byte length followed by that many bytes: a
+ * 1 byte type and the body. The body of a {@link #RECORD} frame is a single record. The body
+ * of a {@link #BATCH} frame is a 4 byte record count, followed by every record as a 4 byte
+ * length and the record. A record is a 1 byte set of flags, then the parts the flags name,
+ * in this order, and then the payload, which takes up the rest of the record:
+ * <ul>
+ *     <li>{@link #FLAG_KEY}: a 2 byte length and the UTF-8 key.</li>
+ *     <li>{@link #FLAG_PROPERTIES}: a 2 byte count, and for every property a 2 byte length
+ *     and the UTF-8 name, then a 2 byte length and the UTF-8 value.</li>
+ *     <li>{@link #FLAG_EVENT_TIME}: the 8 byte event time in milliseconds since the
+ *     epoch.</li>
+ * </ul>
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class BinaryProtocol {
+    static final String OFFER = "streams_protocol binary/1";
+    static final byte[] MAGIC = {0, 'A', 'S', 'B'};
+    static final int VERSION = 1;
+    static final int HELLO_BYTES = MAGIC.length + 1;
+    static final int RECORD = 1;
+    static final int BATCH = 2;
+    static final int FLAG_KEY = 1;
+    static final int FLAG_PROPERTIES = 2;
+    static final int FLAG_EVENT_TIME = 4;
+
+    private BinaryProtocol() {}
+
+    /**
+     * Check whether a buffer starts with the hello of the binary protocol.
+     *
+     * @param buffer the buffer holding at least {@link #MAGIC} from its reader index.
+     * @return true if the buffer starts with {@link #MAGIC}.
+     */
+    static boolean startsWithMagic(ByteBuf buffer) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.getByte(buffer.readerIndex() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode the records of a frame, in order. The payloads of the records are views of the
+     * frame, so the frame must not be released while they are used.
+     *
+     * @param frame the frame without its length.
+     * @param records the list to add the decoded records to.
+     * @throws CorruptedFrameException if the frame is malformed. Records before the malformed
+     *                                 one have been added to the list.
+     */
+    static void decode(ByteBuf frame, List<IngestRecord> records) {
+        try {
+            int type = frame.readUnsignedByte();
+            if (type == RECORD) {
+                records.add(readRecord(frame));
+                return;
+            }
+
+            if (type != BATCH) {
+                throw new CorruptedFrameException("Unknown frame type " + type);
+            }
+
+            int count = frame.readInt();
+            for (int i = 0; i < count; i++) {
+                int length = frame.readInt();
+                records.add(readRecord(frame.readSlice(length)));
+            }
+            if (frame.isReadable()) {
+                throw new CorruptedFrameException(frame.readableBytes()
+                    + " bytes left after the last record of a batch");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptedFrameException("Frame ends inside a record");
+        }
+    }
+
+    /**
+     * Read a record, taking the rest of the buffer as its payload.
+     *
+     * @param record the buffer holding the record.
+     * @return the read record.
+     */
+    private static IngestRecord readRecord(ByteBuf record) {
+        int flags = record.readUnsignedByte();
+
+        String key = null;
+        if ((flags & FLAG_KEY) != 0) {
+            key = readString(record);
+        }
+
+        Map<String, String> properties = Map.of();
+        if ((flags & FLAG_PROPERTIES) != 0) {
+            int count = record.readUnsignedShort();
+            properties = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                properties.put(readString(record), readString(record));
+            }
+        }
+
+        long eventTime = 0;
+        if ((flags & FLAG_EVENT_TIME) != 0) {
+            eventTime = record.readLong();
+        }
+
+        return new IngestRecord(record.nioBuffer(), key, properties, eventTime);
+    }
+
+    /**
+     * Read a string of a 2 byte length and UTF-8 bytes.
+     *
+     * @param buffer the buffer to read from.
+     * @return the read string.
+     */
+    private static String readString(ByteBuf buffer) {
+        int length = buffer.readUnsignedShort();
+
+        return buffer.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -4,12 +4,16 @@ import static com.autostreams.utils.fileutils.FileUtils.loadPropertiesFromFile;
 
 import com.autostreams.utils.datareceiver.DataReceiver;
 import com.autostreams.utils.datareceiver.StreamsServer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class that can create a Data receiver from configuration variables.
+ * Class that can create a Data receiver or an ingest server from configuration variables.
  */
 public class DataReceiverCreator {
     private static int port;
@@ -33,6 +37,125 @@ public class DataReceiverCreator {
         return new DataReceiver(streamsServer, port);
     }
 
+    /**
+     * Check whether payloads are received by the ingest server rather than the data receiver.
+     *
+     * @return true if the ingest server is enabled.
+     */
+    public static boolean isIngestServerEnabled() {
+        return Boolean.parseBoolean(getConfigValue("INGEST_ENABLED", "ingest.enabled", "true"));
+    }
+
+    /**
+     * Creates a new ingest server from environment or properties configuration.
+     * Environment variables are prioritized over properties variables.
+     *
+     * @param server the server which the ingest server should hand payloads to.
+     * @return a newly created ingest server.
+     */
+    public static IngestServer createIngestServer(RawStreamsServer server) {
+        loadConfigurationVariables();
+        printConfigurationVariables();
+
+        IngestServer.Settings settings = new IngestServer.Settings(
+            port,
+            IngestServer.Transport.valueOf(
+                getConfigValue("INGEST_TRANSPORT", "ingest.transport", "AUTO")
+                    .toUpperCase(Locale.ROOT)),
+            Integer.parseInt(getConfigValue("INGEST_BOSS_THREADS", "ingest.boss.threads", "1")),
+            Integer.parseInt(
+                getConfigValue("INGEST_WORKER_THREADS", "ingest.worker.threads", "0")),
+            Integer.parseInt(
+                getConfigValue("INGEST_SENDER_THREADS", "ingest.sender.threads", "0")),
+            IngestServer.Framing.valueOf(
+                getConfigValue("INGEST_FRAMING", "ingest.framing", "LINE")
+                    .toUpperCase(Locale.ROOT)),
+            Boolean.parseBoolean(
+                getConfigValue("INGEST_BINARY_ENABLED", "ingest.binary.enabled", "true")),
+            Integer.parseInt(
+                getConfigValue("INGEST_MAX_FRAME_BYTES", "ingest.max.frame.bytes", "65536")),
+            Integer.parseInt(getConfigValue("INGEST_RECEIVE_BUFFER_BYTES",
+                "ingest.receive.buffer.bytes", "0")),
+            Long.parseLong(getConfigValue("INGEST_CLOSE_TIMEOUT_MILLIS",
+                "ingest.close.timeout.millis", "5000"))
+        );
+        logger.info("Ingest: {}", settings);
+
+        return new IngestServer(server, settings, createIngestQuotas());
+    }
+
+    /**
+     * Creates the rate limits of the ingest server from environment or properties
+     * configuration. Tenants are named by "ingest.tenants", and every setting of a tenant,
+     * such as "ingest.tenant.analytics.addresses", can be overridden by the environment
+     * variable named like it in upper case with dots replaced by underscores.
+     *
+     * @return the rate limits of the connections to the ingest server.
+     */
+    private static IngestQuotas createIngestQuotas() {
+        IngestQuotas.Limits connectionLimits = new IngestQuotas.Limits(
+            Long.parseLong(getConfigValue("INGEST_LIMIT_MESSAGES_PER_SECOND",
+                "ingest.limit.messages.per.second", "0")),
+            Long.parseLong(getConfigValue("INGEST_LIMIT_BYTES_PER_SECOND",
+                "ingest.limit.bytes.per.second", "0"))
+        );
+
+        List<IngestQuotas.TenantSettings> tenants = new ArrayList<>();
+        String names = getConfigValue("INGEST_TENANTS", "ingest.tenants", "");
+        for (String name : names.isEmpty() ? new String[0] : names.split(",")) {
+            String prefix = "ingest.tenant." + name.trim() + ".";
+            String addresses = getDerivedConfigValue(prefix + "addresses", "");
+            tenants.add(new IngestQuotas.TenantSettings(
+                name.trim(),
+                addresses.isEmpty() ? List.of() : Arrays.asList(addresses.split(",")),
+                new IngestQuotas.Limits(
+                    Long.parseLong(getDerivedConfigValue(prefix + "messages.per.second", "0")),
+                    Long.parseLong(getDerivedConfigValue(prefix + "bytes.per.second", "0"))
+                )
+            ));
+        }
+
+        long burstMillis = Long.parseLong(getConfigValue("INGEST_LIMIT_BURST_MILLIS",
+            "ingest.limit.burst.millis", "1000"));
+        logger.info("Ingest limits: {} per connection, tenants {}, burst of {} ms",
+            connectionLimits, tenants, burstMillis);
+
+        return new IngestQuotas(connectionLimits, tenants, burstMillis);
+    }
+
+    /**
+     * Get a configuration value from environment or properties configuration.
+     *
+     * @param environmentName the name of the environment variable.
+     * @param propertyName the name of the variable in the properties file.
+     * @param defaultValue the value to use if the variable is set in neither place.
+     * @return the value of the variable.
+     */
+    private static String getConfigValue(String environmentName, String propertyName,
+                                         String defaultValue) {
+        String value = System.getenv(environmentName);
+        if (value == null) {
+            value = loadPropertiesFromFile(CONFIG_PROPERTIES)
+                .getProperty(propertyName, defaultValue);
+        }
+
+        return value.trim();
+    }
+
+    /**
+     * Get a configuration value from environment or properties configuration, where the
+     * name of the environment variable is derived from the name of the property.
+     *
+     * @param propertyName the name of the variable in the properties file.
+     * @param defaultValue the value to use if the variable is set in neither place.
+     * @return the value of the variable.
+     */
+    private static String getDerivedConfigValue(String propertyName, String defaultValue) {
+        String environmentName = propertyName.toUpperCase(Locale.ROOT).replace('.', '_');
+
+        return getConfigValue(environmentName, propertyName, defaultValue);
+    }
+
     /**
      * Prints the configuration variables.
      */
@@ -0,0 +1,215 @@
+package com.autostreams.pulsar.receiver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handler of a connection to the ingest server. Frames of the binary protocol are decoded
+ * into records on the event loop, and every frame is then handed to the server on the sender
+ * of the connection, in order, and released afterwards. The server may block while it hands
+ * a frame over, so doing that on the event loop would stall every connection of the loop.
+ *
+ * <p>Before a frame is handed over, reading from the connection is paused if the connection
+ * is over its rate limits, too many of its frames wait for the sender, or the server is not
+ * ready for more payloads. The handler then checks on the event loop when reading can be
+ * resumed.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class IngestHandler extends ChannelInboundHandlerAdapter {
+    private static final long RESUME_CHECK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int MAX_PENDING_FRAMES = 16;
+    private final Logger logger = LoggerFactory.getLogger(IngestHandler.class);
+    private final RawStreamsServer server;
+    private final LongAdder frames;
+    private final boolean binary;
+    private final IngestQuotas.Quota quota;
+    private final Executor sender;
+    private final AtomicInteger pending = new AtomicInteger();
+    private boolean paused = false;
+
+    /**
+     * Create the handler of a connection.
+     *
+     * @param server the server to hand received frames to.
+     * @param frames the counter of received frames.
+     * @param binary true if the frames are frames of the binary protocol.
+     * @param quota the rate limits of the connection.
+     * @param sender the single thread executor handing the frames of the connection to the
+     *               server.
+     */
+    IngestHandler(RawStreamsServer server, LongAdder frames, boolean binary,
+                  IngestQuotas.Quota quota, Executor sender) {
+        this.server = server;
+        this.frames = frames;
+        this.binary = binary;
+        this.quota = quota;
+        this.sender = sender;
+    }
+
+    /**
+     * Decode a frame and hand it to the sender of the connection. The records decoded before
+     * a malformed record of a binary frame are still handed over.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param message the received frame.
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext context, Object message) {
+        ByteBuf frame = (ByteBuf) message;
+        int bytes = frame.readableBytes();
+        if (!this.binary) {
+            this.dispatch(context, frame, null, bytes);
+            return;
+        }
+
+        List<IngestRecord> records = new ArrayList<>();
+        try {
+            BinaryProtocol.decode(frame, records);
+        } catch (CorruptedFrameException e) {
+            this.dispatch(context, frame, records, bytes);
+            throw e;
+        }
+        this.dispatch(context, frame, records, bytes);
+    }
+
+    /**
+     * Charge a frame to the rate limits of the connection, pause reading if needed, and hand
+     * the frame to the sender of the connection, which releases it.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param frame the received frame.
+     * @param records the records decoded from a binary frame, or null for a text frame.
+     * @param bytes the size of the frame in bytes.
+     */
+    private void dispatch(ChannelHandlerContext context, ByteBuf frame,
+                          List<IngestRecord> records, int bytes) {
+        long throttleNanos = this.quota.charge(records == null ? 1 : records.size(), bytes);
+        int queued = this.pending.incrementAndGet();
+
+        if (!this.paused) {
+            if (throttleNanos > 0) {
+                this.quota.recordThrottle(throttleNanos, false);
+                this.pause(context, throttleNanos);
+            } else if (queued >= MAX_PENDING_FRAMES || !this.server.isReady()) {
+                this.pause(context, RESUME_CHECK_NANOS);
+            }
+        }
+
+        try {
+            this.sender.execute(() -> this.handOver(frame, records));
+        } catch (RejectedExecutionException e) {
+            this.pending.decrementAndGet();
+            frame.release();
+            logger.warn("Discarded frame from {}, the ingest server is closed",
+                context.channel().remoteAddress());
+        }
+    }
+
+    /**
+     * Hand a frame to the server on the sender of the connection, and release it.
+     *
+     * @param frame the received frame.
+     * @param records the records decoded from a binary frame, or null for a text frame.
+     */
+    private void handOver(ByteBuf frame, List<IngestRecord> records) {
+        try {
+            if (records == null) {
+                this.server.onMessage(frame.nioBuffer());
+            } else {
+                for (IngestRecord record : records) {
+                    this.server.onRecord(record);
+                }
+            }
+            this.frames.increment();
+        } catch (RuntimeException e) {
+            logger.error("Unable to hand a frame to the server", e);
+        } finally {
+            frame.release();
+            this.pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stop reading from the connection until it is within its rate limits, its frames have
+     * been handed over, and the server is ready again.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param delayNanos the time until the first check whether reading can be resumed.
+     */
+    private void pause(ChannelHandlerContext context, long delayNanos) {
+        this.paused = true;
+        context.channel().config().setAutoRead(false);
+        this.scheduleResume(context, delayNanos);
+    }
+
+    /**
+     * Check on the event loop whether reading can be resumed. Other connections of the same
+     * tenant may have used up the limits of the tenant meanwhile, extending the pause.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param delayNanos the time until the check.
+     */
+    private void scheduleResume(ChannelHandlerContext context, long delayNanos) {
+        context.executor().schedule(() -> {
+            if (!context.channel().isActive()) {
+                return;
+            }
+
+            long throttleNanos = this.quota.getWaitNanos();
+            if (throttleNanos > 0) {
+                this.quota.recordThrottle(throttleNanos, true);
+                this.scheduleResume(context, throttleNanos);
+            } else if (this.pending.get() < MAX_PENDING_FRAMES && this.server.isReady()) {
+                this.paused = false;
+                context.channel().config().setAutoRead(true);
+            } else {
+                this.scheduleResume(context, RESUME_CHECK_NANOS);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Log the disconnection of a data provider.
+     *
+     * @param context the interaction context to the pipeline.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext context) {
+        this.quota.release();
+        logger.info("Data provider of tenant {} disconnected from {}", this.quota.getTenant(),
+            context.channel().remoteAddress());
+    }
+
+    /**
+     * Handle exception. A frame that is too long or malformed is discarded, and any other
+     * failure closes the connection.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param cause the cause of the exception.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+        if (cause instanceof TooLongFrameException || cause instanceof CorruptedFrameException) {
+            logger.warn("Discarded frame from {}: {}", context.channel().remoteAddress(),
+                cause.getMessage());
+            return;
+        }
+
+        logger.error("Closing connection from {}", context.channel().remoteAddress(), cause);
+        context.close();
+    }
+}
@@ -0,0 +1,414 @@
+package com.autostreams.pulsar.receiver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate limits of the connections to the ingest server. Every connection has token buckets
+ * of its own, and shares the token buckets of its tenant with the other connections of the
+ * tenant. A connection belongs to the first tenant with an address range containing its
+ * remote address, or else to the tenant without address ranges, if there is one. Limits
+ * are counted in messages and in bytes per second, and a limit of 0 does not limit.
+ *
+ * <p>Limits are enforced by the caller pausing reads from a connection for as long as
+ * {@link Quota#charge(int, long)} says, so nothing is dropped, and TCP flow control slows
+ * the data provider down.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class IngestQuotas {
+    private static final String UNASSIGNED = "none";
+    private final Limits connectionLimits;
+    private final long burstMillis;
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+    private final Tenant fallback;
+
+    /**
+     * Rate limits, where 0 does not limit.
+     *
+     * @param messagesPerSecond the maximum number of messages per second.
+     * @param bytesPerSecond the maximum number of bytes per second.
+     */
+    public record Limits(long messagesPerSecond, long bytesPerSecond) {
+
+        /**
+         * Create rate limits.
+         */
+        public Limits {
+            if (messagesPerSecond < 0 || bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Rate limits need to be at least 0");
+            }
+        }
+    }
+
+    /**
+     * Settings of a tenant.
+     *
+     * @param name the name of the tenant.
+     * @param addresses the address ranges of the connections of the tenant, as addresses or
+     *                  networks in CIDR notation such as "10.1.0.0/16". Empty for the tenant
+     *                  of the connections no other tenant claims.
+     * @param limits the limits shared by all connections of the tenant.
+     */
+    public record TenantSettings(String name, List<String> addresses, Limits limits) {
+    }
+
+    /**
+     * Create the rate limits of the ingest server.
+     *
+     * @param connectionLimits the limits of every connection.
+     * @param tenants the tenants, in the order their address ranges are matched in.
+     * @param burstMillis the burst allowed above a limit, as the time the limit takes to
+     *                    allow it.
+     * @throws IllegalArgumentException if an address range is malformed.
+     */
+    public IngestQuotas(Limits connectionLimits, List<TenantSettings> tenants,
+                        long burstMillis) {
+        if (burstMillis <= 0) {
+            throw new IllegalArgumentException("Burst needs to be above 0");
+        }
+
+        this.connectionLimits = connectionLimits;
+        this.burstMillis = burstMillis;
+
+        Tenant catchAll = null;
+        for (TenantSettings settings : tenants) {
+            Tenant tenant = new Tenant(settings, burstMillis);
+            this.tenants.put(settings.name(), tenant);
+            if (settings.addresses().isEmpty() && catchAll == null) {
+                catchAll = tenant;
+            }
+        }
+        if (catchAll == null) {
+            catchAll = new Tenant(
+                new TenantSettings(UNASSIGNED, List.of(), new Limits(0, 0)), burstMillis);
+            this.tenants.put(UNASSIGNED, catchAll);
+        }
+        this.fallback = catchAll;
+    }
+
+    /**
+     * Create the quota of a new connection.
+     *
+     * @param remoteAddress the remote address of the connection.
+     * @return the quota of the connection.
+     */
+    Quota forConnection(SocketAddress remoteAddress) {
+        InetAddress address = remoteAddress instanceof InetSocketAddress inet
+            ? inet.getAddress()
+            : null;
+
+        Tenant tenant = this.fallback;
+        for (Tenant candidate : this.tenants.values()) {
+            if (address != null && candidate.contains(address)) {
+                tenant = candidate;
+                break;
+            }
+        }
+
+        return new Quota(tenant, createBuckets(this.connectionLimits, this.burstMillis));
+    }
+
+    /**
+     * Get the names of the tenants, including the tenant of unassigned connections.
+     *
+     * @return the names of the tenants.
+     */
+    public Set<String> getTenants() {
+        return this.tenants.keySet();
+    }
+
+    /**
+     * Get the number of open connections of a tenant.
+     *
+     * @param tenant the name of the tenant.
+     * @return the number of connections.
+     */
+    public int getConnections(String tenant) {
+        return this.tenants.get(tenant).connections.get();
+    }
+
+    /**
+     * Get the number of times reading from a connection of a tenant was paused to keep
+     * within the limits.
+     *
+     * @param tenant the name of the tenant.
+     * @return the number of pauses.
+     */
+    public long getThrottles(String tenant) {
+        return this.tenants.get(tenant).throttles.sum();
+    }
+
+    /**
+     * Get the total time reading from the connections of a tenant was paused to keep within
+     * the limits.
+     *
+     * @param tenant the name of the tenant.
+     * @return the paused time in seconds.
+     */
+    public double getThrottledSeconds(String tenant) {
+        return this.tenants.get(tenant).throttledNanos.sum() / 1e9;
+    }
+
+    /**
+     * Create the token buckets of limits.
+     *
+     * @param limits the limits to create the token buckets of.
+     * @param burstMillis the burst allowed above a limit.
+     * @return the message and byte buckets, null where there is no limit.
+     */
+    private static TokenBucket[] createBuckets(Limits limits, long burstMillis) {
+        return new TokenBucket[] {
+            limits.messagesPerSecond() > 0
+                ? new TokenBucket(limits.messagesPerSecond(), burstMillis)
+                : null,
+            limits.bytesPerSecond() > 0
+                ? new TokenBucket(limits.bytesPerSecond(), burstMillis)
+                : null
+        };
+    }
+
+    /**
+     * Charge messages and bytes to a message and a byte bucket.
+     *
+     * @param buckets the message and byte buckets, null where there is no limit.
+     * @param messages the number of messages.
+     * @param bytes the number of bytes.
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     * @return the time until both buckets are out of debt, in nanoseconds.
+     */
+    private static long charge(TokenBucket[] buckets, int messages, long bytes,
+                               long nowNanos) {
+        long waitNanos = 0;
+        if (buckets[0] != null) {
+            waitNanos = buckets[0].charge(messages, nowNanos);
+        }
+        if (buckets[1] != null) {
+            waitNanos = Math.max(waitNanos, buckets[1].charge(bytes, nowNanos));
+        }
+
+        return waitNanos;
+    }
+
+    /**
+     * Get the time until a message and a byte bucket are out of debt.
+     *
+     * @param buckets the message and byte buckets, null where there is no limit.
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     * @return the time in nanoseconds, or 0 if neither bucket is in debt.
+     */
+    private static long getWaitNanos(TokenBucket[] buckets, long nowNanos) {
+        long waitNanos = 0;
+        for (TokenBucket bucket : buckets) {
+            if (bucket != null) {
+                waitNanos = Math.max(waitNanos, bucket.getWaitNanos(nowNanos));
+            }
+        }
+
+        return waitNanos;
+    }
+
+    /**
+     * Quota of a single connection, used on the event loop of the connection.
+     */
+    static final class Quota {
+        private final Tenant tenant;
+        private final TokenBucket[] buckets;
+        private final boolean limited;
+
+        /**
+         * Create the quota of a connection, and count it as a connection of its tenant.
+         *
+         * @param tenant the tenant of the connection.
+         * @param buckets the message and byte buckets of the connection.
+         */
+        private Quota(Tenant tenant, TokenBucket[] buckets) {
+            this.tenant = tenant;
+            this.buckets = buckets;
+            this.limited = buckets[0] != null || buckets[1] != null
+                || tenant.buckets[0] != null || tenant.buckets[1] != null;
+            tenant.connections.incrementAndGet();
+        }
+
+        /**
+         * Get the name of the tenant of the connection.
+         *
+         * @return the name of the tenant.
+         */
+        String getTenant() {
+            return this.tenant.name;
+        }
+
+        /**
+         * Charge received messages to the connection and its tenant.
+         *
+         * @param messages the number of received messages.
+         * @param bytes the number of received bytes.
+         * @return the time to pause reading for to keep within the limits, in nanoseconds,
+         *         or 0 if reading can go on.
+         */
+        long charge(int messages, long bytes) {
+            if (!this.limited) {
+                return 0;
+            }
+
+            long now = System.nanoTime();
+            return Math.max(IngestQuotas.charge(this.buckets, messages, bytes, now),
+                IngestQuotas.charge(this.tenant.buckets, messages, bytes, now));
+        }
+
+        /**
+         * Get the time until reading can go on within the limits.
+         *
+         * @return the time in nanoseconds, or 0 if reading can go on.
+         */
+        long getWaitNanos() {
+            if (!this.limited) {
+                return 0;
+            }
+
+            long now = System.nanoTime();
+            return Math.max(IngestQuotas.getWaitNanos(this.buckets, now),
+                IngestQuotas.getWaitNanos(this.tenant.buckets, now));
+        }
+
+        /**
+         * Record a pause of reading to keep within the limits.
+         *
+         * @param pauseNanos the length of the pause in nanoseconds.
+         * @param resumed true if the pause extends a pause that was just over.
+         */
+        void recordThrottle(long pauseNanos, boolean resumed) {
+            if (!resumed) {
+                this.tenant.throttles.increment();
+            }
+            this.tenant.throttledNanos.add(pauseNanos);
+        }
+
+        /**
+         * Stop counting the connection as a connection of its tenant.
+         */
+        void release() {
+            this.tenant.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * A tenant, with the token buckets shared by its connections and its throttling
+     * counters.
+     */
+    private static final class Tenant {
+        private final String name;
+        private final List<AddressRange> ranges = new ArrayList<>();
+        private final TokenBucket[] buckets;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final LongAdder throttles = new LongAdder();
+        private final LongAdder throttledNanos = new LongAdder();
+
+        /**
+         * Create a tenant.
+         *
+         * @param settings the settings of the tenant.
+         * @param burstMillis the burst allowed above a limit.
+         */
+        private Tenant(TenantSettings settings, long burstMillis) {
+            this.name = settings.name();
+            for (String range : settings.addresses()) {
+                this.ranges.add(AddressRange.parse(range));
+            }
+            this.buckets = createBuckets(settings.limits(), burstMillis);
+        }
+
+        /**
+         * Check whether an address is in an address range of the tenant.
+         *
+         * @param address the address to check.
+         * @return true if the address belongs to the tenant.
+         */
+        private boolean contains(InetAddress address) {
+            for (AddressRange range : this.ranges) {
+                if (range.contains(address)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A range of addresses sharing a prefix.
+     *
+     * @param network the address bytes of the network.
+     * @param prefixBits the number of leading bits shared by the addresses in the range.
+     */
+    private record AddressRange(byte[] network, int prefixBits) {
+
+        /**
+         * Parse an address, or a network in CIDR notation.
+         *
+         * @param range the address or network.
+         * @return the parsed range.
+         * @throws IllegalArgumentException if the range is malformed.
+         */
+        private static AddressRange parse(String range) {
+            String trimmed = range.trim();
+            int slash = trimmed.indexOf('/');
+            String host = slash < 0 ? trimmed : trimmed.substring(0, slash);
+
+            byte[] network;
+            try {
+                network = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown address in range " + trimmed, e);
+            }
+
+            int prefixBits = slash < 0
+                ? network.length * Byte.SIZE
+                : Integer.parseInt(trimmed.substring(slash + 1));
+            if (prefixBits < 0 || prefixBits > network.length * Byte.SIZE) {
+                throw new IllegalArgumentException("Invalid prefix length in range " + trimmed);
+            }
+
+            return new AddressRange(network, prefixBits);
+        }
+
+        /**
+         * Check whether an address is in the range.
+         *
+         * @param address the address to check.
+         * @return true if the address shares the prefix of the range.
+         */
+        private boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length != this.network.length) {
+                return false;
+            }
+
+            int fullBytes = this.prefixBits / Byte.SIZE;
+            for (int i = 0; i < fullBytes; i++) {
+                if (bytes[i] != this.network[i]) {
+                    return false;
+                }
+            }
+
+            int remainingBits = this.prefixBits % Byte.SIZE;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xff << (Byte.SIZE - remainingBits);
+
+            return (bytes[fullBytes] & mask) == (this.network[fullBytes] & mask);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.autostreams.pulsar.receiver;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A record received over the binary ingest protocol: a payload with an optional key,
+ * properties and event time.
+ *
+ * @param value the payload, from its position to its limit. It is only valid until the call
+ *              it is handed to returns.
+ * @param key the key of the record, or null if it has none.
+ * @param properties the properties of the record, empty if it has none.
+ * @param eventTime the event time in milliseconds since the epoch, or 0 if it has none.
+ * @version 1.0
+ * @since 1.0
+ */
+public record IngestRecord(ByteBuffer value, String key, Map<String, String> properties,
+                           long eventTime) {
+
+    /**
+     * Check whether the record carries anything besides its payload.
+     *
+     * @return true if the record has a key, properties or an event time.
+     */
+    public boolean hasMetadata() {
+        return this.key != null || !this.properties.isEmpty() || this.eventTime > 0;
+    }
+}
@@ -0,0 +1,396 @@
+package com.autostreams.pulsar.receiver;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server receiving payloads from data providers over TCP, and handing every frame to a
+ * {@link RawStreamsServer} as a buffer, without decoding it to a string. Frames are read into
+ * pooled direct buffers and split by line or by a length prefix. Every connection is assigned
+ * a sender thread, which hands its frames to the server in order, so a server blocking while
+ * it takes a frame never blocks the event loop. Reading from a connection is paused while its
+ * sender is behind, while the server is not ready for more payloads, and while the connection
+ * is over the rate limits of {@link IngestQuotas}, which pushes back on the data provider
+ * through TCP flow control instead of dropping payloads.
+ *
+ * <p>When the binary protocol is enabled, it is offered to every client, and a client taking
+ * the offer sends length-prefixed frames of records instead, as described in
+ * {@link BinaryProtocol}. Clients that do not take the offer keep using the text protocol.
+ *
+ * <p>The epoll transport is used where it is available, and NIO otherwise.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class IngestServer implements AutoCloseable {
+    static final String SHUTDOWN_COMMAND = "streams_command_shutdown";
+    private final Logger logger = LoggerFactory.getLogger(IngestServer.class);
+    private final RawStreamsServer server;
+    private final Settings settings;
+    private final IngestQuotas quotas;
+    private final Set<Channel> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Channel> commandReaders = ConcurrentHashMap.newKeySet();
+    private final LongAdder frames = new LongAdder();
+    private final ExecutorService[] senders;
+    private final AtomicInteger nextSender = new AtomicInteger();
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private volatile Channel serverChannel;
+
+    /**
+     * How the server splits the received bytes into frames.
+     */
+    public enum Framing {
+        /**
+         * Frames end with a line feed, optionally preceded by a carriage return.
+         */
+        LINE,
+
+        /**
+         * Frames start with their length as a 4 byte big endian integer.
+         */
+        LENGTH
+    }
+
+    /**
+     * Which transport the server uses.
+     */
+    public enum Transport {
+        /**
+         * Epoll where it is available, and NIO otherwise.
+         */
+        AUTO,
+
+        /**
+         * Epoll, falling back to NIO with a warning where it is not available.
+         */
+        EPOLL,
+
+        /**
+         * NIO on every platform.
+         */
+        NIO
+    }
+
+    /**
+     * Settings of an ingest server.
+     *
+     * @param port the port to listen on.
+     * @param transport the transport to use.
+     * @param bossThreads the number of threads accepting connections.
+     * @param workerThreads the number of threads reading connections, or 0 for twice the
+     *                      number of processors.
+     * @param senderThreads the number of threads handing frames to the server, or 0 for the
+     *                      number of processors.
+     * @param framing how received bytes are split into frames by the text protocol.
+     * @param binaryEnabled true to offer the binary protocol to clients.
+     * @param maxFrameBytes the size of the largest frame, not counting its delimiter or
+     *                      length prefix. Longer frames are discarded.
+     * @param receiveBufferBytes the size of the socket receive buffer, or 0 for the default
+     *                           of the operating system.
+     * @param closeTimeoutMillis the longest time to wait for connected data providers to
+     *                           finish sending when the server is closed.
+     */
+    public record Settings(int port, Transport transport, int bossThreads, int workerThreads,
+                           int senderThreads, Framing framing, boolean binaryEnabled,
+                           int maxFrameBytes, int receiveBufferBytes, long closeTimeoutMillis) {
+    }
+
+    /**
+     * Create an ingest server. Call {@link #run()} to start it.
+     *
+     * @param server the server to hand received frames to.
+     * @param settings the settings of the ingest server.
+     * @param quotas the rate limits of the connections.
+     */
+    public IngestServer(RawStreamsServer server, Settings settings, IngestQuotas quotas) {
+        if (settings.bossThreads() <= 0 || settings.workerThreads() < 0
+            || settings.senderThreads() < 0 || settings.maxFrameBytes() <= 0) {
+            throw new IllegalArgumentException("Ingest boss threads and max frame size need to "
+                + "be above 0, and worker and sender threads at least 0");
+        }
+
+        this.server = server;
+        this.settings = settings;
+        this.quotas = quotas;
+
+        int senderThreads = settings.senderThreads() > 0
+            ? settings.senderThreads()
+            : Runtime.getRuntime().availableProcessors();
+        this.senders = new ExecutorService[senderThreads];
+        for (int i = 0; i < senderThreads; i++) {
+            String name = "ingest-sender-" + i;
+            this.senders[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Start listening, and block until the server is closed.
+     */
+    public void run() {
+        boolean epoll = this.useEpoll();
+        Class<? extends ServerChannel> channelClass;
+        if (epoll) {
+            this.bossGroup = new EpollEventLoopGroup(this.settings.bossThreads());
+            this.workerGroup = new EpollEventLoopGroup(this.settings.workerThreads());
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            this.bossGroup = new NioEventLoopGroup(this.settings.bossThreads());
+            this.workerGroup = new NioEventLoopGroup(this.settings.workerThreads());
+            channelClass = NioServerSocketChannel.class;
+        }
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+            .group(this.bossGroup, this.workerGroup)
+            .channel(channelClass)
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator())
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    IngestServer.this.initConnection(channel);
+                }
+            });
+        if (this.settings.receiveBufferBytes() > 0) {
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, this.settings.receiveBufferBytes());
+        }
+
+        try {
+            this.serverChannel = bootstrap.bind(this.settings.port()).sync().channel();
+            logger.info("Ingest server listening on port {} with {} transport, {} framing{}",
+                this.settings.port(), epoll ? "epoll" : "NIO", this.settings.framing(),
+                !this.settings.binaryEnabled() ? ""
+                    : this.settings.framing() == Framing.LINE ? ", offering the binary protocol"
+                    : ", accepting the binary protocol");
+            this.serverChannel.closeFuture().sync();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while running the ingest server");
+            Thread.currentThread().interrupt();
+        } finally {
+            this.shutdownGroups();
+        }
+    }
+
+    /**
+     * Check whether to use the epoll transport.
+     *
+     * @return true if the epoll transport is used.
+     */
+    private boolean useEpoll() {
+        if (this.settings.transport() == Transport.NIO) {
+            return false;
+        }
+
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+
+        if (this.settings.transport() == Transport.EPOLL) {
+            logger.warn("Epoll is not available, falling back to NIO: {}",
+                Epoll.unavailabilityCause().getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Set up the pipeline of an accepted connection.
+     *
+     * @param channel the accepted connection.
+     */
+    private void initConnection(SocketChannel channel) {
+        if (this.settings.binaryEnabled()) {
+            channel.pipeline().addLast(new ProtocolDetector(this,
+                this.settings.framing() == Framing.LINE));
+        } else {
+            this.addTextPipeline(channel.pipeline());
+        }
+
+        this.connections.add(channel);
+        channel.closeFuture().addListener(future -> this.connections.remove(channel));
+        logger.info("Data provider connected from {}", channel.remoteAddress());
+    }
+
+    /**
+     * Add the handlers of the text protocol to the pipeline of a connection.
+     *
+     * @param pipeline the pipeline of the connection.
+     */
+    void addTextPipeline(ChannelPipeline pipeline) {
+        if (this.settings.framing() == Framing.LENGTH) {
+            pipeline.addLast(this.createLengthFrameDecoder());
+        } else {
+            pipeline.addLast(new LineBasedFrameDecoder(this.settings.maxFrameBytes(), true, true));
+            this.addCommandReader(pipeline.channel());
+        }
+        pipeline.addLast(new IngestHandler(this.server, this.frames, false,
+            this.quotas.forConnection(pipeline.channel().remoteAddress()), this.nextSender()));
+    }
+
+    /**
+     * Add the handlers of the binary protocol to the pipeline of a connection.
+     *
+     * @param pipeline the pipeline of the connection.
+     */
+    void addBinaryPipeline(ChannelPipeline pipeline) {
+        pipeline.addLast(this.createLengthFrameDecoder());
+        pipeline.addLast(new IngestHandler(this.server, this.frames, true,
+            this.quotas.forConnection(pipeline.channel().remoteAddress()), this.nextSender()));
+        this.addCommandReader(pipeline.channel());
+    }
+
+    /**
+     * Remember that a connection reads commands from the server, which holds for connections
+     * using the binary protocol or line framed text.
+     *
+     * @param channel the connection reading commands.
+     */
+    private void addCommandReader(Channel channel) {
+        this.commandReaders.add(channel);
+        channel.closeFuture().addListener(future -> this.commandReaders.remove(channel));
+    }
+
+    /**
+     * Assign a sender to a new connection, taking turns among the senders.
+     *
+     * @return the sender of the connection.
+     */
+    private ExecutorService nextSender() {
+        return this.senders[Math.floorMod(this.nextSender.getAndIncrement(),
+            this.senders.length)];
+    }
+
+    /**
+     * Create a decoder of frames prefixed by their length as a 4 byte integer.
+     *
+     * @return the created decoder, stripping the length from every frame.
+     */
+    private LengthFieldBasedFrameDecoder createLengthFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(this.settings.maxFrameBytes() + Integer.BYTES,
+            0, Integer.BYTES, 0, Integer.BYTES);
+    }
+
+    /**
+     * Get the rate limits of the connections.
+     *
+     * @return the rate limits.
+     */
+    public IngestQuotas getQuotas() {
+        return this.quotas;
+    }
+
+    /**
+     * Get the number of frames received since the server was started.
+     *
+     * @return the number of received frames.
+     */
+    public long getFrames() {
+        return this.frames.sum();
+    }
+
+    /**
+     * Close the server. It stops accepting connections and asks the connected data providers
+     * to shut down, if they negotiated the binary protocol or send line framed text. Data
+     * providers sending length-prefixed text frames may not read lines, and are not asked.
+     * Frames they send meanwhile are still received, until they disconnect or the close
+     * timeout runs out. The remaining connections are then closed.
+     */
+    @Override
+    public void close() {
+        Channel channel = this.serverChannel;
+        if (channel == null) {
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos
+            + TimeUnit.MILLISECONDS.toNanos(this.settings.closeTimeoutMillis());
+        channel.close().awaitUninterruptibly();
+
+        int connected = this.connections.size();
+        for (Channel connection : this.commandReaders) {
+            connection.writeAndFlush(Unpooled.copiedBuffer(SHUTDOWN_COMMAND + "\r\n",
+                StandardCharsets.US_ASCII));
+        }
+
+        try {
+            for (Channel connection : this.connections) {
+                long remainingMillis =
+                    TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0
+                    || !connection.closeFuture().await(remainingMillis, TimeUnit.MILLISECONDS)) {
+                    connection.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for data providers to disconnect");
+            Thread.currentThread().interrupt();
+        }
+
+        this.shutdownGroups();
+        logger.info("Ingest server closed in {} ms, {} connection(s) closed, {} frames received",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), connected,
+            this.getFrames());
+    }
+
+    /**
+     * Shut down the event loop groups, waiting for them to terminate, and then the senders,
+     * waiting up to the close timeout for them to hand the frames already read to the server.
+     */
+    private synchronized void shutdownGroups() {
+        if (this.workerGroup != null) {
+            this.workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            this.workerGroup = null;
+        }
+
+        if (this.bossGroup != null) {
+            this.bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            this.bossGroup = null;
+        }
+
+        for (ExecutorService sender : this.senders) {
+            sender.shutdown();
+        }
+        try {
+            for (ExecutorService sender : this.senders) {
+                if (!sender.awaitTermination(this.settings.closeTimeoutMillis(),
+                    TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out handing received frames to the server");
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while handing received frames to the server");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.autostreams.pulsar.receiver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * First handler of a connection to the ingest server when the binary protocol is enabled.
+ * With line framing, it offers the binary protocol once the connection is active. Clients
+ * framing text by length would take the offer for part of their first frame, so they are not
+ * sent it, but may still send the hello unasked. The handler decides on the protocol
+ * from the first bytes the client sends: the hello of the binary protocol, or anything else
+ * for the text protocol. It then sets up the pipeline for that protocol and removes itself,
+ * handing the bytes received after the hello on to the new pipeline.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class ProtocolDetector extends ByteToMessageDecoder {
+    private final Logger logger = LoggerFactory.getLogger(ProtocolDetector.class);
+    private final IngestServer server;
+    private final boolean offer;
+
+    /**
+     * Create the protocol detector of a connection.
+     *
+     * @param server the ingest server setting up the pipeline of the chosen protocol.
+     * @param offer true to offer the binary protocol to the client.
+     */
+    ProtocolDetector(IngestServer server, boolean offer) {
+        this.server = server;
+        this.offer = offer;
+    }
+
+    /**
+     * Offer the binary protocol to the client, if it is to be offered.
+     *
+     * @param context the interaction context to the pipeline.
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext context) {
+        if (this.offer) {
+            context.writeAndFlush(Unpooled.copiedBuffer(BinaryProtocol.OFFER + "\r\n",
+                StandardCharsets.US_ASCII));
+        }
+        context.fireChannelActive();
+    }
+
+    /**
+     * Decide on the protocol once enough bytes have been received. A first byte that does not
+     * start the hello decides on the text protocol right away.
+     *
+     * @param context the interaction context to the pipeline.
+     * @param in the bytes received so far.
+     * @param out the decoded messages, which stays empty.
+     */
+    @Override
+    protected void decode(ChannelHandlerContext context, ByteBuf in, List<Object> out) {
+        if (!in.isReadable()) {
+            return;
+        }
+
+        if (in.getByte(in.readerIndex()) != BinaryProtocol.MAGIC[0]) {
+            this.server.addTextPipeline(context.pipeline());
+            context.pipeline().remove(this);
+            return;
+        }
+
+        if (in.readableBytes() < BinaryProtocol.HELLO_BYTES) {
+            return;
+        }
+
+        if (!BinaryProtocol.startsWithMagic(in)) {
+            this.server.addTextPipeline(context.pipeline());
+            context.pipeline().remove(this);
+            return;
+        }
+
+        int version = in.getByte(in.readerIndex() + BinaryProtocol.MAGIC.length);
+        in.skipBytes(BinaryProtocol.HELLO_BYTES);
+        if (version != BinaryProtocol.VERSION) {
+            logger.warn("Closing connection from {}, unsupported binary protocol version {}",
+                context.channel().remoteAddress(), version);
+            context.close();
+            return;
+        }
+
+        logger.info("Data provider at {} uses the binary protocol",
+            context.channel().remoteAddress());
+        this.server.addBinaryPipeline(context.pipeline());
+        context.pipeline().remove(this);
+    }
+}
@@ -0,0 +1,45 @@
+package com.autostreams.pulsar.receiver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Server that receives raw payloads from a data receiver, for receivers that frame data
+ * without decoding it to strings.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public interface RawStreamsServer {
+    /**
+     * Handle a received payload.
+     *
+     * @param payload the received payload, from its position to its limit.
+     */
+    void onMessage(ByteBuffer payload);
+
+    /**
+     * Handle a record received with its metadata. By default the metadata is dropped and the
+     * payload is handled as any other payload.
+     *
+     * @param record the received record.
+     */
+    default void onRecord(IngestRecord record) {
+        this.onMessage(record.value());
+    }
+
+    /**
+     * Check whether the server is ready for more payloads. Receivers that can pause reading
+     * stop reading while the server is not ready, rather than blocking in
+     * {@link #onMessage(ByteBuffer)}.
+     *
+     * @return true if the server is ready for more payloads.
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Handle shutdown of the data receiver.
+     */
+    void onShutdown();
+}
@@ -0,0 +1,86 @@
+package com.autostreams.pulsar.receiver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled at a fixed rate up to a burst capacity. Charges are taken in full
+ * even when they exceed the tokens left, leaving the bucket in debt, and the caller waits
+ * until the debt has been refilled. This lets a frame that is larger than the burst pass,
+ * while the average rate stays bounded.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledNanos;
+
+    /**
+     * Create a full token bucket.
+     *
+     * @param ratePerSecond the number of tokens added per second.
+     * @param burstMillis the capacity of the bucket, as the time it takes to fill it.
+     */
+    TokenBucket(long ratePerSecond, long burstMillis) {
+        if (ratePerSecond <= 0 || burstMillis <= 0) {
+            throw new IllegalArgumentException("Rate and burst need to be above 0");
+        }
+
+        this.tokensPerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, ratePerSecond * burstMillis / 1000.0);
+        this.tokens = this.capacity;
+        this.refilledNanos = System.nanoTime();
+    }
+
+    /**
+     * Take tokens from the bucket.
+     *
+     * @param amount the number of tokens to take.
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     * @return the time until the bucket is out of debt, in nanoseconds, or 0 if it is not in
+     *         debt.
+     */
+    synchronized long charge(long amount, long nowNanos) {
+        this.refill(nowNanos);
+        this.tokens -= amount;
+
+        return this.debtNanos();
+    }
+
+    /**
+     * Get the time until the bucket is out of debt.
+     *
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     * @return the time in nanoseconds, or 0 if the bucket is not in debt.
+     */
+    synchronized long getWaitNanos(long nowNanos) {
+        this.refill(nowNanos);
+
+        return this.debtNanos();
+    }
+
+    /**
+     * Add the tokens accumulated since the last refill.
+     *
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     */
+    private void refill(long nowNanos) {
+        long elapsedNanos = nowNanos - this.refilledNanos;
+        if (elapsedNanos > 0) {
+            this.tokens = Math.min(this.capacity,
+                this.tokens + elapsedNanos * this.tokensPerNano);
+            this.refilledNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Get the time it takes to refill the debt of the bucket.
+     *
+     * @return the time in nanoseconds, or 0 if the bucket is not in debt.
+     */
+    private long debtNanos() {
+        return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNano);
+    }
+}
@@ -0,0 +1,44 @@
+package com.autostreams.pulsar.routing;
+
+import com.autostreams.pulsar.producer.KeyExtractor;
+
+/**
+ * Routes payloads by the value of one of their fields. The topic refers to the value as
+ * {value}, such as "events-{value}".
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class FieldRule implements TopicRule {
+    private static final String VALUE = "{value}";
+    private final KeyExtractor fieldExtractor;
+    private final String topic;
+
+    /**
+     * Create a field rule.
+     *
+     * @param fieldExtractor extracts the value of the field from a payload.
+     * @param topic the topic to route payloads to, referring to the value of the field.
+     */
+    public FieldRule(KeyExtractor fieldExtractor, String topic) {
+        this.fieldExtractor = fieldExtractor;
+        this.topic = topic;
+    }
+
+    /**
+     * Route the payload to the topic for the value of its field.
+     *
+     * @param payload the payload to route.
+     * @return the topic for the value, or null if the field is missing or its value is not a
+     *         valid topic name.
+     */
+    @Override
+    public String route(byte[] payload) {
+        String value = this.fieldExtractor.extractKey(payload);
+        if (!TopicRouter.isValidTopicPart(value)) {
+            return null;
+        }
+
+        return this.topic.replace(VALUE, value);
+    }
+}
@@ -0,0 +1,47 @@
+package com.autostreams.pulsar.routing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Routes payloads starting with a prefix to a topic. The prefix is compared as bytes, so the
+ * payload is not decoded.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class PrefixRule implements TopicRule {
+    private final byte[] prefix;
+    private final String topic;
+
+    /**
+     * Create a prefix rule.
+     *
+     * @param prefix the prefix of the payloads to route.
+     * @param topic the topic to route matching payloads to.
+     */
+    public PrefixRule(String prefix, String topic) {
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.topic = topic;
+    }
+
+    /**
+     * Route the payload to the topic if it starts with the prefix.
+     *
+     * @param payload the payload to route.
+     * @return the topic, or null if the payload does not start with the prefix.
+     */
+    @Override
+    public String route(byte[] payload) {
+        if (payload.length < this.prefix.length) {
+            return null;
+        }
+
+        for (int i = 0; i < this.prefix.length; i++) {
+            if (payload[i] != this.prefix[i]) {
+                return null;
+            }
+        }
+
+        return this.topic;
+    }
+}
@@ -0,0 +1,249 @@
+package com.autostreams.pulsar.routing;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of producers per topic, created asynchronously on first use, so that the caller is
+ * never blocked while a producer is created. The least recently used producer is closed when
+ * the cache grows beyond its bound, and producers that have not been used for a while are
+ * closed in the background. Closing a producer waits for its pending messages to be
+ * acknowledged, without blocking the caller, and only starts after a grace period, so that a
+ * producer handed out just before it was evicted can still be sent with. A topic whose
+ * producer could not be created is not tried again until its retry delay has passed.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class ProducerCache implements Closeable {
+    private static final long EVICTED_PRODUCER_GRACE_MILLIS = 1000;
+    private final Logger logger = LoggerFactory.getLogger(ProducerCache.class);
+    private final ProducerFactory factory;
+    private final int maxProducers;
+    private final long idleNanos;
+    private final long retryNanos;
+    private final Map<String, CachedProducer> producers = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> failedTopics = new HashMap<>();
+    private final ScheduledExecutorService idleSweeper;
+    private boolean closed = false;
+
+    /**
+     * Create a producer cache.
+     *
+     * @param factory creates the producer of a topic.
+     * @param maxProducers the maximum number of producers kept open.
+     * @param idleSeconds the time after which an unused producer is closed.
+     * @param retrySeconds the time before creating the producer of a topic is tried again
+     *                     after it failed.
+     */
+    public ProducerCache(ProducerFactory factory, int maxProducers, long idleSeconds,
+                         long retrySeconds) {
+        if (maxProducers <= 0) {
+            throw new IllegalArgumentException("Producer cache size needs to be above 0");
+        }
+
+        this.factory = factory;
+        this.maxProducers = maxProducers;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.retryNanos = TimeUnit.SECONDS.toNanos(retrySeconds);
+
+        this.idleSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "producer-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepSeconds = Math.max(1, idleSeconds / 2);
+        this.idleSweeper.scheduleWithFixedDelay(this::closeIdle, sweepSeconds, sweepSeconds,
+            TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the producer of a topic, starting to create it if it is not cached. The future of a
+     * created producer is completed already, and the same future is returned on every call.
+     *
+     * @param topic the topic to get the producer of.
+     * @return the future of the producer of the topic, completed exceptionally if it could not
+     *         be created, or null if creating it failed within the retry delay or the cache is
+     *         closed.
+     */
+    public synchronized CompletableFuture<Producer<byte[]>> get(String topic) {
+        if (this.closed) {
+            return null;
+        }
+
+        CachedProducer cached = this.producers.get(topic);
+        if (cached != null) {
+            cached.lastUsedNanos = System.nanoTime();
+            return cached.producer;
+        }
+
+        Long retryAtNanos = this.failedTopics.get(topic);
+        if (retryAtNanos != null) {
+            if (System.nanoTime() - retryAtNanos < 0) {
+                return null;
+            }
+            this.failedTopics.remove(topic);
+        }
+
+        CachedProducer created = new CachedProducer(this.factory.create(topic));
+        this.producers.put(topic, created);
+        created.producer.whenComplete((producer, throwable) ->
+            this.onCreated(topic, created, throwable));
+
+        List<CachedProducer> evicted = new ArrayList<>();
+        Iterator<CachedProducer> eldest = this.producers.values().iterator();
+        while (this.producers.size() > this.maxProducers) {
+            evicted.add(eldest.next());
+            eldest.remove();
+        }
+        closeAll(evicted);
+
+        return created.producer;
+    }
+
+    /**
+     * Record the outcome of creating the producer of a topic. A topic whose producer could not
+     * be created is removed from the cache and not tried again until the retry delay passed.
+     *
+     * @param topic the topic of the producer.
+     * @param created the cache entry of the producer.
+     * @param throwable the cause of the failure, or null if the producer was created.
+     */
+    private void onCreated(String topic, CachedProducer created, Throwable throwable) {
+        if (throwable == null) {
+            logger.info("Created producer for topic {}", topic);
+            return;
+        }
+
+        logger.error("Unable to create producer for topic {}, not retrying for {} seconds: {}",
+            topic, TimeUnit.NANOSECONDS.toSeconds(this.retryNanos), throwable.getMessage());
+        synchronized (this) {
+            this.producers.remove(topic, created);
+            this.failedTopics.put(topic, System.nanoTime() + this.retryNanos);
+        }
+    }
+
+    /**
+     * Close the producers that have not been used for longer than the idle time.
+     */
+    private void closeIdle() {
+        List<CachedProducer> idle = new ArrayList<>();
+        long now = System.nanoTime();
+
+        synchronized (this) {
+            Iterator<CachedProducer> iterator = this.producers.values().iterator();
+            while (iterator.hasNext()) {
+                CachedProducer cached = iterator.next();
+                if (now - cached.lastUsedNanos > this.idleNanos) {
+                    idle.add(cached);
+                    iterator.remove();
+                }
+            }
+            this.failedTopics.values().removeIf(retryAtNanos -> now - retryAtNanos >= 0);
+        }
+
+        closeAll(idle);
+    }
+
+    /**
+     * Close evicted producers in the background once they are created and their grace period
+     * has passed, and once their pending messages are acknowledged.
+     *
+     * @param producers the cache entries of the producers to close.
+     */
+    private void closeAll(List<CachedProducer> producers) {
+        for (CachedProducer cached : producers) {
+            cached.producer.thenAcceptAsync(producer -> {
+                logger.info("Closing producer for topic {}", producer.getTopic());
+                producer.closeAsync().exceptionally(throwable -> {
+                    logger.warn("Failed to close producer for topic {}: {}", producer.getTopic(),
+                        throwable.getMessage());
+                    return null;
+                });
+            }, CompletableFuture.delayedExecutor(EVICTED_PRODUCER_GRACE_MILLIS,
+                TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Get the number of cached producers, including producers still being created.
+     *
+     * @return the number of cached producers.
+     */
+    public synchronized int size() {
+        return this.producers.size();
+    }
+
+    /**
+     * Stop closing idle producers and close every cached producer.
+     */
+    @Override
+    public void close() {
+        this.idleSweeper.shutdownNow();
+
+        List<CachedProducer> all;
+        synchronized (this) {
+            all = new ArrayList<>(this.producers.values());
+            this.producers.clear();
+            this.closed = true;
+        }
+
+        for (CachedProducer cached : all) {
+            if (!cached.producer.isDone()) {
+                this.closeAll(List.of(cached));
+                continue;
+            }
+            try {
+                cached.producer.join().close();
+            } catch (PulsarClientException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                logger.debug("Producer was never created: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the producer of a topic.
+     */
+    @FunctionalInterface
+    public interface ProducerFactory {
+        /**
+         * Start creating the producer of a topic, without blocking.
+         *
+         * @param topic the topic to create the producer of.
+         * @return the future of the created producer.
+         */
+        CompletableFuture<Producer<byte[]>> create(String topic);
+    }
+
+    /**
+     * A cached producer and when it was last used.
+     */
+    private static final class CachedProducer {
+        private final CompletableFuture<Producer<byte[]>> producer;
+        private long lastUsedNanos = System.nanoTime();
+
+        /**
+         * Create a cache entry for a producer.
+         *
+         * @param producer the future of the cached producer.
+         */
+        private CachedProducer(CompletableFuture<Producer<byte[]>> producer) {
+            this.producer = producer;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.autostreams.pulsar.routing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes payloads matching a regular expression to a topic. The topic may refer to groups of
+ * the match as $1 to $9, or $0 for the whole match, such as "metrics-$1".
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class RegexRule implements TopicRule {
+    private final Pattern pattern;
+    private final String topic;
+
+    /**
+     * Create a regular expression rule.
+     *
+     * @param regex the regular expression to find in the payloads.
+     * @param topic the topic to route matching payloads to, possibly referring to groups.
+     */
+    public RegexRule(String regex, String topic) {
+        this.pattern = Pattern.compile(regex);
+        this.topic = topic;
+    }
+
+    /**
+     * Route the payload to the topic if the regular expression is found in it.
+     *
+     * @param payload the payload to route.
+     * @return the topic with group references replaced, or null if the regular expression is
+     *         not found, or a referenced group is not a valid topic name.
+     */
+    @Override
+    public String route(byte[] payload) {
+        Matcher matcher = this.pattern.matcher(new String(payload, StandardCharsets.UTF_8));
+        if (!matcher.find()) {
+            return null;
+        }
+
+        int length = this.topic.length();
+        StringBuilder topic = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = this.topic.charAt(i);
+            if (c == '$' && i + 1 < length && Character.isDigit(this.topic.charAt(i + 1))) {
+                int group = this.topic.charAt(++i) - '0';
+                String value = group <= matcher.groupCount() ? matcher.group(group) : null;
+                if (!TopicRouter.isValidTopicPart(value)) {
+                    return null;
+                }
+                topic.append(value);
+            } else {
+                topic.append(c);
+            }
+        }
+
+        return topic.toString();
+    }
+}
@@ -0,0 +1,54 @@
+package com.autostreams.pulsar.routing;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Maps incoming payloads to topics through an ordered list of rules. The first rule that
+ * matches a payload decides its topic, and payloads no rule matches go to the default topic.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class TopicRouter {
+    private static final Pattern VALID_TOPIC_PART = Pattern.compile("[A-Za-z0-9_.\\-]+");
+    private final List<TopicRule> rules;
+
+    /**
+     * Create a topic router.
+     *
+     * @param rules the rules to try on every payload, in order.
+     */
+    public TopicRouter(List<TopicRule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    /**
+     * Get the topic of a payload.
+     *
+     * @param payload the payload to route.
+     * @return the topic of the first matching rule, or null to use the default topic.
+     */
+    public String route(byte[] payload) {
+        for (TopicRule rule : this.rules) {
+            String topic = rule.route(payload);
+            if (topic != null) {
+                return topic;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Check whether a value taken from a payload can be used as part of a topic name.
+     * Values with characters such as "/" or ":" would change the tenant, namespace or domain
+     * of the topic, and are rejected.
+     *
+     * @param value the value to check.
+     * @return true if the value can be used in a topic name.
+     */
+    static boolean isValidTopicPart(String value) {
+        return value != null && VALID_TOPIC_PART.matcher(value).matches();
+    }
+}
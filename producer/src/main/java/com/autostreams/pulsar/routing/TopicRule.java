@@ -0,0 +1,19 @@
+package com.autostreams.pulsar.routing;
+
+/**
+ * Rule mapping an incoming payload to the topic it is sent to.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+@FunctionalInterface
+public interface TopicRule {
+    /**
+     * Get the topic of a payload. Called on the thread sending the payload, so it must be
+     * cheap and thread safe.
+     *
+     * @param payload the payload to route, which must not be modified.
+     * @return the topic to send the payload to, or null if the rule does not match.
+     */
+    String route(byte[] payload);
+}
@@ -0,0 +1,282 @@
+package com.autostreams.pulsar.spill;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, disk-backed log of payloads that could not be sent to the broker right away.
+ * The log is split into fixed size, memory-mapped segment files, and rolls over to a new
+ * segment when the last one is full, up to a bounded total size. Records are read back in
+ * the order they were appended, and a segment file is deleted once all its records have been
+ * read and completed.
+ *
+ * <p>Every segment persists the position up to which its records are completed in a row.
+ * Records that are not completed survive a restart and are read again from that position,
+ * so a record completed after an earlier one that was not may be delivered more than once,
+ * but no record is lost.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class SpillLog implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private final Logger logger = LoggerFactory.getLogger(SpillLog.class);
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Deque<SpillSegment> segments = new ArrayDeque<>();
+    private long nextSegmentId = 0;
+    private long records = 0;
+
+    /**
+     * Open a spill log, recovering the records left in its directory by a previous run.
+     *
+     * @param directory the directory of the segment files, created if it does not exist.
+     * @param segmentBytes the size of every segment file in bytes.
+     * @param maxBytes the maximum total size of the segment files in bytes.
+     * @throws IOException if the directory or the segment files could not be opened.
+     */
+    public SpillLog(Path directory, int segmentBytes, long maxBytes) throws IOException {
+        if (segmentBytes <= SpillSegment.FIRST_RECORD + SpillSegment.HEADER_BYTES
+            || maxBytes < segmentBytes) {
+            throw new IllegalArgumentException(
+                "Spill segments need room for a record, and the spill log for a segment");
+        }
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes);
+
+        Files.createDirectories(directory);
+        this.recover();
+    }
+
+    /**
+     * Open the segment files left by a previous run, in order, and delete the empty ones.
+     *
+     * @throws IOException if a segment file could not be opened.
+     */
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .forEach(paths::add);
+        }
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            SpillSegment segment = SpillSegment.open(id, path, this.segmentBytes);
+
+            if (segment.getRecords() == 0) {
+                segment.delete();
+            } else {
+                this.segments.addLast(segment);
+                this.records += segment.getRecords();
+            }
+            this.nextSegmentId = id + 1;
+        }
+
+        if (this.records > 0) {
+            logger.info("Recovered {} spilled messages in {} segment(s)",
+                this.records, this.segments.size());
+        }
+    }
+
+    /**
+     * Append a payload to the end of the log, rolling over to a new segment if the last one
+     * is full.
+     *
+     * @param payload the payload to append.
+     * @return true if the payload was appended, false if the log is full, or the payload does
+     *         not fit in a segment.
+     */
+    public synchronized boolean append(byte[] payload) {
+        return this.append(payload, false);
+    }
+
+    /**
+     * Append a payload to the end of the log, rolling over to a new segment if the last one
+     * is full.
+     *
+     * @param payload the payload to append.
+     * @param hasMetadata true if the payload is a record with its metadata, which is read
+     *                    back along with the payload.
+     * @return true if the payload was appended, false if the log is full, or the payload does
+     *         not fit in a segment.
+     */
+    public synchronized boolean append(byte[] payload, boolean hasMetadata) {
+        SpillSegment last = this.segments.peekLast();
+
+        if (last == null || !last.hasRoom(payload.length)) {
+            if (SpillSegment.FIRST_RECORD + SpillSegment.HEADER_BYTES + payload.length
+                > this.segmentBytes
+                || payload.length > SpillSegment.MAX_PAYLOAD_BYTES
+                || this.segments.size() >= this.maxSegments) {
+                return false;
+            }
+
+            try {
+                last = this.createSegment();
+            } catch (IOException e) {
+                logger.error("Unable to create spill segment");
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        last.append(payload, hasMetadata);
+        this.records++;
+
+        return true;
+    }
+
+    /**
+     * Create a new segment at the end of the log.
+     *
+     * @return the created segment.
+     * @throws IOException if the segment file could not be created.
+     */
+    private SpillSegment createSegment() throws IOException {
+        long id = this.nextSegmentId++;
+        Path path = this.directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        SpillSegment segment = SpillSegment.open(id, path, this.segmentBytes);
+        this.segments.addLast(segment);
+
+        return segment;
+    }
+
+    /**
+     * Read the next unread record of the log. The record stays in the log until it is
+     * completed with {@link #complete(Entry)}.
+     *
+     * @return the next unread record, or null if every record has been read.
+     */
+    public synchronized Entry read() {
+        for (SpillSegment segment : this.segments) {
+            if (segment.hasUnread()) {
+                boolean hasMetadata = segment.nextHasMetadata();
+                byte[] payload = segment.read();
+                return new Entry(segment, segment.getReadPosition(), hasMetadata, payload);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Complete a record that has been read, removing it from the log. Segments are deleted
+     * once all their records are completed, including the last segment, which is created
+     * again by the next append.
+     *
+     * @param entry the record to complete.
+     */
+    public synchronized void complete(Entry entry) {
+        entry.segment.complete(entry.end);
+        this.records--;
+
+        while (!this.segments.isEmpty() && this.segments.peekFirst().isDrained()) {
+            SpillSegment drained = this.segments.removeFirst();
+            try {
+                drained.delete();
+            } catch (IOException e) {
+                logger.error("Unable to delete spill segment {}", drained.getId());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Check whether every record appended to the log has been completed.
+     *
+     * @return true if the log holds no records.
+     */
+    public synchronized boolean isEmpty() {
+        return this.records == 0;
+    }
+
+    /**
+     * Get the number of records in the log, including records read but not completed.
+     *
+     * @return the number of records in the log.
+     */
+    public synchronized long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Get the size of the segment files of the log.
+     *
+     * @return the size of the segment files in bytes.
+     */
+    public synchronized long getSizeBytes() {
+        return (long) this.segments.size() * this.segmentBytes;
+    }
+
+    /**
+     * Flush and close the segment files. Records that are not completed are kept for the
+     * next run.
+     *
+     * @throws IOException if a segment file could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (SpillSegment segment : this.segments) {
+            segment.close();
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * A record read from the log.
+     */
+    public static final class Entry {
+        private final SpillSegment segment;
+        private final int end;
+        private final boolean hasMetadata;
+        private final byte[] payload;
+
+        /**
+         * Create a record read from a segment.
+         *
+         * @param segment the segment the record was read from.
+         * @param end the position the record ends at in the segment.
+         * @param hasMetadata true if the payload is a record with its metadata.
+         * @param payload the payload of the record.
+         */
+        private Entry(SpillSegment segment, int end, boolean hasMetadata, byte[] payload) {
+            this.segment = segment;
+            this.end = end;
+            this.hasMetadata = hasMetadata;
+            this.payload = payload;
+        }
+
+        /**
+         * Check whether the payload is a record with its metadata.
+         *
+         * @return true if the payload was appended with metadata.
+         */
+        public boolean hasMetadata() {
+            return this.hasMetadata;
+        }
+
+        /**
+         * Get the payload of the record.
+         *
+         * @return the payload of the record.
+         */
+        public byte[] getPayload() {
+            return this.payload;
+        }
+    }
+}
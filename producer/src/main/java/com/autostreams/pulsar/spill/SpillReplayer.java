@@ -0,0 +1,112 @@
+package com.autostreams.pulsar.spill;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the records of a spill log in order, at a bounded rate, while the broker is
+ * reachable. Every record is handed to a sender, which is responsible for completing it in
+ * the spill log once the broker has acknowledged it.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class SpillReplayer implements Runnable {
+    private static final long IDLE_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private final Logger logger = LoggerFactory.getLogger(SpillReplayer.class);
+    private final SpillLog spillLog;
+    private final BooleanSupplier brokerReachable;
+    private final Consumer<SpillLog.Entry> sender;
+    private volatile long intervalNanos;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * Create a spill replayer. Call {@link #start()} to start replaying.
+     *
+     * @param spillLog the spill log to replay.
+     * @param brokerReachable tells whether the broker can currently be sent to.
+     * @param sender sends a record to the broker, blocking while too many are in flight.
+     * @param ratePerSecond the maximum number of records to replay per second, or 0 for no
+     *                      limit.
+     */
+    public SpillReplayer(SpillLog spillLog, BooleanSupplier brokerReachable,
+                         Consumer<SpillLog.Entry> sender, int ratePerSecond) {
+        this.spillLog = spillLog;
+        this.brokerReachable = brokerReachable;
+        this.sender = sender;
+        this.setRate(ratePerSecond);
+    }
+
+    /**
+     * Change the rate records are replayed at, taking effect from the next record.
+     *
+     * @param ratePerSecond the maximum number of records to replay per second, or 0 for no
+     *                      limit.
+     */
+    public void setRate(int ratePerSecond) {
+        this.intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+    }
+
+    /**
+     * Start replaying on a daemon thread.
+     */
+    public void start() {
+        this.thread = new Thread(this, "spill-replayer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop replaying. Records that have not been replayed stay in the spill log.
+     */
+    public void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Replay records while running, pausing while the broker is unreachable or there is
+     * nothing to replay.
+     */
+    @Override
+    public void run() {
+        long nextSendNanos = System.nanoTime();
+        boolean replaying = false;
+
+        while (this.running && !Thread.currentThread().isInterrupted()) {
+            SpillLog.Entry entry = this.brokerReachable.getAsBoolean()
+                ? this.spillLog.read()
+                : null;
+
+            if (entry == null) {
+                if (replaying) {
+                    logger.info("All spilled messages handed to the broker");
+                }
+                replaying = false;
+                LockSupport.parkNanos(IDLE_PAUSE_NANOS);
+                nextSendNanos = System.nanoTime();
+                continue;
+            }
+
+            if (!replaying) {
+                logger.info("Replaying {} spilled messages", this.spillLog.getRecords());
+                replaying = true;
+            }
+
+            long waitNanos = nextSendNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            nextSendNanos += this.intervalNanos;
+
+            this.sender.accept(entry);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.autostreams.pulsar.spill;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A fixed size, memory-mapped segment file of a spill log. The file starts with the commit
+ * position, the offset of the first record that has not been completed, as a 4 byte integer.
+ * Records follow one after the other as a 4 byte header holding the payload length plus one,
+ * followed by the payload. Bit 30 of the header is set when the payload is a record with its
+ * metadata. The file is zero filled when created, so a zero header marks the end of the
+ * written records. The header is written after the payload, so a record cut short by a crash
+ * is not read back.
+ *
+ * <p>Records may be completed out of order. The commit position only moves past a record
+ * once it and every record before it are completed, so records completed before a restart
+ * are not read again, and the others are.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+final class SpillSegment {
+    static final int HEADER_BYTES = Integer.BYTES;
+    static final int FIRST_RECORD = Integer.BYTES;
+    static final int MAX_PAYLOAD_BYTES = (1 << 30) - 2;
+    private static final int METADATA_FLAG = 1 << 30;
+
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final Deque<Integer> readEnds = new ArrayDeque<>();
+    private final Set<Integer> completedEnds = new HashSet<>();
+    private int writePosition = FIRST_RECORD;
+    private int readPosition = FIRST_RECORD;
+    private int records = 0;
+
+    /**
+     * Create a segment around an opened and mapped segment file.
+     *
+     * @param id the id of the segment, ordering it among the other segments.
+     * @param path the path of the segment file.
+     * @param channel the channel of the segment file.
+     * @param buffer the mapping of the segment file.
+     */
+    private SpillSegment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Open a segment file, creating it if it does not exist, and find the end of the records
+     * already written to it.
+     *
+     * @param id the id of the segment.
+     * @param path the path of the segment file.
+     * @param capacity the size of the segment file in bytes.
+     * @return the opened segment.
+     * @throws IOException if the file could not be opened or mapped.
+     */
+    static SpillSegment open(long id, Path path, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SpillSegment segment = new SpillSegment(id, path, channel,
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        segment.recover();
+
+        return segment;
+    }
+
+    /**
+     * Scan the records of the segment to find where the next record is to be written, and
+     * resume reading at the commit position. A commit position that is not at the start of a
+     * record is ignored, and every record is read again.
+     */
+    private void recover() {
+        int commitPosition = this.buffer.getInt(0);
+        int committed = 0;
+        boolean commitFound = commitPosition == 0 || commitPosition == FIRST_RECORD;
+
+        while (this.writePosition + HEADER_BYTES <= this.capacity) {
+            int header = this.buffer.getInt(this.writePosition);
+            int end = this.writePosition + HEADER_BYTES + (header & ~METADATA_FLAG) - 1;
+            if (header <= 0 || end > this.capacity) {
+                break;
+            }
+
+            this.writePosition = end;
+            this.records++;
+            if (!commitFound) {
+                committed++;
+                commitFound = end == commitPosition;
+            }
+        }
+
+        if (commitFound && committed > 0) {
+            this.readPosition = commitPosition;
+            this.records -= committed;
+        }
+    }
+
+    /**
+     * Check whether a payload fits in the remaining room of the segment.
+     *
+     * @param payloadBytes the size of the payload in bytes.
+     * @return true if the payload fits.
+     */
+    boolean hasRoom(int payloadBytes) {
+        return this.writePosition + HEADER_BYTES + payloadBytes <= this.capacity;
+    }
+
+    /**
+     * Append a record to the segment. The caller must check that it fits first.
+     *
+     * @param payload the payload of the record.
+     * @param hasMetadata true if the payload is a record with its metadata.
+     */
+    void append(byte[] payload, boolean hasMetadata) {
+        this.buffer.put(this.writePosition + HEADER_BYTES, payload);
+        this.buffer.putInt(this.writePosition,
+            (payload.length + 1) | (hasMetadata ? METADATA_FLAG : 0));
+        this.writePosition += HEADER_BYTES + payload.length;
+        this.records++;
+    }
+
+    /**
+     * Check whether the segment has records that have not been read yet.
+     *
+     * @return true if there are unread records.
+     */
+    boolean hasUnread() {
+        return this.readPosition < this.writePosition;
+    }
+
+    /**
+     * Check whether the payload of the next unread record is a record with its metadata.
+     *
+     * @return true if the next unread record has metadata.
+     */
+    boolean nextHasMetadata() {
+        return (this.buffer.getInt(this.readPosition) & METADATA_FLAG) != 0;
+    }
+
+    /**
+     * Read the next unread record. The record is pending until it is completed.
+     *
+     * @return the payload of the record.
+     */
+    byte[] read() {
+        int length = (this.buffer.getInt(this.readPosition) & ~METADATA_FLAG) - 1;
+        byte[] payload = new byte[length];
+        this.buffer.get(this.readPosition + HEADER_BYTES, payload);
+
+        this.readPosition += HEADER_BYTES + length;
+        this.readEnds.addLast(this.readPosition);
+
+        return payload;
+    }
+
+    /**
+     * Get the position the next unread record starts at, which is where the last read record
+     * ends.
+     *
+     * @return the read position in bytes.
+     */
+    int getReadPosition() {
+        return this.readPosition;
+    }
+
+    /**
+     * Complete a record read from the segment, and move the commit position past every
+     * record completed in a row from it.
+     *
+     * @param end the position the record ends at.
+     */
+    void complete(int end) {
+        this.completedEnds.add(end);
+        this.records--;
+
+        int commitPosition = -1;
+        while (!this.readEnds.isEmpty() && this.completedEnds.remove(this.readEnds.peekFirst())) {
+            commitPosition = this.readEnds.removeFirst();
+        }
+        if (commitPosition >= 0) {
+            this.buffer.putInt(0, commitPosition);
+        }
+    }
+
+    /**
+     * Check whether every record of the segment has been read and completed.
+     *
+     * @return true if the segment is drained.
+     */
+    boolean isDrained() {
+        return !this.hasUnread() && this.readEnds.isEmpty();
+    }
+
+    /**
+     * Get the number of records that have not been completed.
+     *
+     * @return the number of records left in the segment.
+     */
+    int getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Get the id of the segment.
+     *
+     * @return the id of the segment.
+     */
+    long getId() {
+        return this.id;
+    }
+
+    /**
+     * Flush written records to disk and close the segment file.
+     *
+     * @throws IOException if the file could not be closed.
+     */
+    void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    /**
+     * Close and delete the segment file.
+     *
+     * @throws IOException if the file could not be deleted.
+     */
+    void delete() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.path);
+    }
+}
@@ -0,0 +1,101 @@
+package com.autostreams.pulsar.producer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.autostreams.pulsar.cluster.Cluster;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of spreading keyed messages over clusters by weighted rendezvous hashing.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class ClusterSelectionTest {
+    private static final int KEYS = 20_000;
+    private static final Cluster EAST = new Cluster("east", "pulsar://east:6650", 1);
+    private static final Cluster WEST = new Cluster("west", "pulsar://west:6650", 1);
+    private static final Cluster NORTH = new Cluster("north", "pulsar://north:6650", 2);
+
+    /**
+     * A key is always sent to the same cluster while the clusters do not change.
+     */
+    @Test
+    void keyStaysOnItsCluster() {
+        List<Cluster> clusters = List.of(EAST, WEST, NORTH);
+        for (int i = 0; i < 100; i++) {
+            String key = "key-" + i;
+            assertEquals(pick(clusters, key), pick(clusters, key));
+            assertEquals(pick(clusters, key), pick(List.of(NORTH, WEST, EAST), key));
+        }
+    }
+
+    /**
+     * Every cluster gets a share of the keys proportional to its weight.
+     */
+    @Test
+    void keysAreSpreadByWeight() {
+        List<Cluster> clusters = List.of(EAST, WEST, NORTH);
+        Map<Cluster, Integer> keysPerCluster = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            keysPerCluster.merge(pick(clusters, "key-" + i), 1, Integer::sum);
+        }
+
+        assertShare(0.25, keysPerCluster.get(EAST));
+        assertShare(0.25, keysPerCluster.get(WEST));
+        assertShare(0.5, keysPerCluster.get(NORTH));
+    }
+
+    /**
+     * A cluster dropping out only moves its own keys, and the other keys stay where they
+     * were.
+     */
+    @Test
+    void droppedClusterOnlyMovesItsOwnKeys() {
+        List<Cluster> all = List.of(EAST, WEST, NORTH);
+        List<Cluster> withoutNorth = List.of(EAST, WEST);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            Cluster before = pick(all, key);
+            if (before != NORTH) {
+                assertEquals(before, pick(withoutNorth, key));
+            }
+        }
+    }
+
+    /**
+     * Pick the cluster of a key, as the producer does among its eligible clusters.
+     *
+     * @param clusters the eligible clusters.
+     * @param key the key of the payload.
+     * @return the cluster with the lowest score for the key.
+     */
+    private static Cluster pick(List<Cluster> clusters, String key) {
+        Cluster picked = null;
+        double lowestScore = Double.MAX_VALUE;
+        for (Cluster cluster : clusters) {
+            double score = PulsarProducer.rendezvousScore(key, cluster);
+            if (score < lowestScore) {
+                lowestScore = score;
+                picked = cluster;
+            }
+        }
+
+        return picked;
+    }
+
+    /**
+     * Check that a cluster got about the expected share of the keys.
+     *
+     * @param expected the expected share of the keys.
+     * @param keys the number of keys the cluster got.
+     */
+    private static void assertShare(double expected, int keys) {
+        double share = keys / (double) KEYS;
+        assertTrue(Math.abs(share - expected) < 0.02);
+    }
+}
@@ -0,0 +1,197 @@
+package com.autostreams.pulsar.receiver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of decoding the frames of the binary ingest protocol.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class BinaryProtocolTest {
+
+    /**
+     * A single record is decoded with its key, properties, event time and payload.
+     */
+    @Test
+    void recordKeepsItsMetadata() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(BinaryProtocol.RECORD);
+        writeRecord(frame, "key", Map.of("origin", "test"), 1234, "payload");
+
+        List<IngestRecord> records = new ArrayList<>();
+        BinaryProtocol.decode(frame, records);
+
+        assertEquals(1, records.size());
+        IngestRecord record = records.get(0);
+        assertEquals("key", record.key());
+        assertEquals(Map.of("origin", "test"), record.properties());
+        assertEquals(1234, record.eventTime());
+        assertEquals("payload", text(record.value()));
+    }
+
+    /**
+     * The records of a batch are decoded in order, each with only the parts it has.
+     */
+    @Test
+    void batchKeepsTheOrderOfItsRecords() {
+        ByteBuf frame = batch(3);
+        writeBatchRecord(frame, "first", null);
+        writeBatchRecord(frame, "second", "key");
+        writeBatchRecord(frame, "third", null);
+
+        List<IngestRecord> records = new ArrayList<>();
+        BinaryProtocol.decode(frame, records);
+
+        assertEquals(3, records.size());
+        assertEquals("first", text(records.get(0).value()));
+        assertNull(records.get(0).key());
+        assertEquals("second", text(records.get(1).value()));
+        assertEquals("key", records.get(1).key());
+        assertEquals("third", text(records.get(2).value()));
+    }
+
+    /**
+     * A batch whose records run past the end of the frame is rejected, keeping the records
+     * before the malformed one.
+     */
+    @Test
+    void malformedBatchKeepsTheRecordsBeforeIt() {
+        ByteBuf frame = batch(3);
+        writeBatchRecord(frame, "first", null);
+        frame.writeInt(100);
+        frame.writeByte(0);
+
+        List<IngestRecord> records = new ArrayList<>();
+        assertThrows(CorruptedFrameException.class,
+            () -> BinaryProtocol.decode(frame, records));
+
+        assertEquals(1, records.size());
+        assertEquals("first", text(records.get(0).value()));
+    }
+
+    /**
+     * Bytes left after the last record of a batch reject the batch, keeping its records.
+     */
+    @Test
+    void bytesAfterTheLastRecordRejectTheBatch() {
+        ByteBuf frame = batch(1);
+        writeBatchRecord(frame, "first", null);
+        frame.writeByte(0);
+
+        List<IngestRecord> records = new ArrayList<>();
+        assertThrows(CorruptedFrameException.class,
+            () -> BinaryProtocol.decode(frame, records));
+
+        assertEquals(1, records.size());
+    }
+
+    /**
+     * A frame of an unknown type is rejected without records.
+     */
+    @Test
+    void unknownFrameTypeIsRejected() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(9);
+
+        List<IngestRecord> records = new ArrayList<>();
+        assertThrows(CorruptedFrameException.class,
+            () -> BinaryProtocol.decode(frame, records));
+
+        assertEquals(0, records.size());
+    }
+
+    /**
+     * Start a batch frame.
+     *
+     * @param count the number of records the batch says it has.
+     * @return the frame, to write the records to.
+     */
+    private static ByteBuf batch(int count) {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(BinaryProtocol.BATCH);
+        frame.writeInt(count);
+
+        return frame;
+    }
+
+    /**
+     * Write a record of a batch, prefixed with its length.
+     *
+     * @param frame the frame to write to.
+     * @param payload the payload of the record.
+     * @param key the key of the record, or null if it has none.
+     */
+    private static void writeBatchRecord(ByteBuf frame, String payload, String key) {
+        ByteBuf record = Unpooled.buffer();
+        writeRecord(record, key, Map.of(), 0, payload);
+        frame.writeInt(record.readableBytes());
+        frame.writeBytes(record);
+    }
+
+    /**
+     * Write a record, with the flags of the parts it has.
+     *
+     * @param buffer the buffer to write to.
+     * @param key the key of the record, or null if it has none.
+     * @param properties the properties of the record.
+     * @param eventTime the event time of the record, or 0 if it has none.
+     * @param payload the payload of the record.
+     */
+    private static void writeRecord(ByteBuf buffer, String key, Map<String, String> properties,
+                                    long eventTime, String payload) {
+        int flags = (key != null ? BinaryProtocol.FLAG_KEY : 0)
+            | (properties.isEmpty() ? 0 : BinaryProtocol.FLAG_PROPERTIES)
+            | (eventTime > 0 ? BinaryProtocol.FLAG_EVENT_TIME : 0);
+        buffer.writeByte(flags);
+
+        if (key != null) {
+            writeString(buffer, key);
+        }
+        if (!properties.isEmpty()) {
+            buffer.writeShort(properties.size());
+            properties.forEach((name, value) -> {
+                writeString(buffer, name);
+                writeString(buffer, value);
+            });
+        }
+        if (eventTime > 0) {
+            buffer.writeLong(eventTime);
+        }
+        buffer.writeBytes(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a string as a 2 byte length and UTF-8 bytes.
+     *
+     * @param buffer the buffer to write to.
+     * @param value the string to write.
+     */
+    private static void writeString(ByteBuf buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.writeShort(bytes.length);
+        buffer.writeBytes(bytes);
+    }
+
+    /**
+     * Read a payload as text.
+     *
+     * @param value the payload, from its position to its limit.
+     * @return the payload as text.
+     */
+    private static String text(ByteBuffer value) {
+        return StandardCharsets.UTF_8.decode(value.duplicate()).toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.autostreams.pulsar.receiver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the token bucket limiting the rate of a connection.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class TokenBucketTest {
+    private static final long RATE_PER_SECOND = 1000;
+    private static final long BURST_MILLIS = 100;
+    private static final double TOLERANCE_NANOS = 1000;
+
+    /**
+     * A full bucket lets a burst of its capacity pass without waiting.
+     */
+    @Test
+    void fullBucketLetsABurstPass() {
+        TokenBucket bucket = new TokenBucket(RATE_PER_SECOND, BURST_MILLIS);
+        long now = System.nanoTime();
+
+        assertEquals(0, bucket.charge(100, now));
+        assertEquals(0, bucket.getWaitNanos(now));
+    }
+
+    /**
+     * A charge larger than the tokens left is taken in full, and the caller waits until the
+     * debt is refilled.
+     */
+    @Test
+    void chargeBeyondTheTokensLeftWaitsForTheDebt() {
+        TokenBucket bucket = new TokenBucket(RATE_PER_SECOND, BURST_MILLIS);
+        long now = System.nanoTime();
+
+        assertEquals(millisToNanos(50), bucket.charge(150, now), TOLERANCE_NANOS);
+    }
+
+    /**
+     * The debt shrinks as the bucket refills over time.
+     */
+    @Test
+    void debtIsRefilledOverTime() {
+        TokenBucket bucket = new TokenBucket(RATE_PER_SECOND, BURST_MILLIS);
+        long now = System.nanoTime();
+
+        assertEquals(millisToNanos(100), bucket.charge(200, now), TOLERANCE_NANOS);
+        assertEquals(millisToNanos(40), bucket.getWaitNanos(now + millisToNanos(60)),
+            TOLERANCE_NANOS);
+        assertEquals(0, bucket.getWaitNanos(now + millisToNanos(101)));
+    }
+
+    /**
+     * An idle bucket refills up to its capacity only, so a long pause does not allow a
+     * larger burst.
+     */
+    @Test
+    void idleBucketRefillsUpToItsCapacity() {
+        TokenBucket bucket = new TokenBucket(RATE_PER_SECOND, BURST_MILLIS);
+        long now = System.nanoTime();
+        bucket.charge(100, now);
+
+        long later = now + TimeUnit.SECONDS.toNanos(10);
+        assertEquals(millisToNanos(50), bucket.charge(150, later), TOLERANCE_NANOS);
+    }
+
+    /**
+     * A bucket without a rate or a burst is rejected.
+     */
+    @Test
+    void bucketNeedsARateAndABurst() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, BURST_MILLIS));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(RATE_PER_SECOND, 0));
+    }
+
+    /**
+     * Convert milliseconds to nanoseconds.
+     *
+     * @param millis the time in milliseconds.
+     * @return the time in nanoseconds.
+     */
+    private static long millisToNanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
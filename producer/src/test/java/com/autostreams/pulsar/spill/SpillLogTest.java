@@ -0,0 +1,137 @@
+package com.autostreams.pulsar.spill;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the spill log surviving a restart.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+class SpillLogTest {
+    private static final int SEGMENT_BYTES = 64;
+    private static final long MAX_BYTES = 4 * SEGMENT_BYTES;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Records completed before a restart are not read again, and the others are.
+     */
+    @Test
+    void reopenedLogResumesAfterCompletedRecords() throws IOException {
+        SpillLog log = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(log.append(payload(i)));
+        }
+
+        log.complete(log.read());
+        SpillLog.Entry second = log.read();
+        assertArrayEquals(payload(1), second.getPayload());
+        log.close();
+
+        SpillLog reopened = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        assertEquals(2, reopened.getRecords());
+        assertArrayEquals(payload(1), reopened.read().getPayload());
+        assertArrayEquals(payload(2), reopened.read().getPayload());
+        assertNull(reopened.read());
+        reopened.close();
+    }
+
+    /**
+     * A record completed after an earlier record that was not completed is read again, so
+     * the earlier record is not lost.
+     */
+    @Test
+    void recordCompletedOutOfOrderDoesNotSkipEarlierRecord() throws IOException {
+        SpillLog log = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        log.append(payload(0));
+        log.append(payload(1));
+
+        log.read();
+        log.complete(log.read());
+        log.close();
+
+        SpillLog reopened = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        assertArrayEquals(payload(0), reopened.read().getPayload());
+        reopened.close();
+    }
+
+    /**
+     * Records spanning several segments are read back in order after a restart.
+     */
+    @Test
+    void reopenedLogKeepsOrderAcrossSegments() throws IOException {
+        SpillLog log = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        int appended = 0;
+        while (log.getSizeBytes() < 2 * SEGMENT_BYTES) {
+            assertTrue(log.append(payload(appended++)));
+        }
+
+        log.complete(log.read());
+        log.close();
+
+        SpillLog reopened = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        for (int i = 1; i < appended; i++) {
+            assertArrayEquals(payload(i), reopened.read().getPayload());
+        }
+        assertNull(reopened.read());
+        reopened.close();
+    }
+
+    /**
+     * A drained log deletes its last segment, so nothing is replayed after a restart.
+     */
+    @Test
+    void drainedLogDeletesLastSegment() throws IOException {
+        SpillLog log = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        log.append(payload(0));
+        log.append(payload(1));
+
+        log.complete(log.read());
+        log.complete(log.read());
+        assertTrue(log.isEmpty());
+        assertEquals(0, countSegmentFiles());
+
+        assertTrue(log.append(payload(2)));
+        log.close();
+
+        SpillLog reopened = new SpillLog(this.directory, SEGMENT_BYTES, MAX_BYTES);
+        assertEquals(1, reopened.getRecords());
+        assertArrayEquals(payload(2), reopened.read().getPayload());
+        reopened.close();
+    }
+
+    /**
+     * Count the segment files in the directory of the log.
+     *
+     * @return the number of segment files.
+     * @throws IOException if the directory could not be listed.
+     */
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.filter(path -> path.toString().endsWith(".spill")).count();
+        }
+    }
+
+    /**
+     * Create the payload of a test record.
+     *
+     * @param index the index of the record.
+     * @return the payload.
+     */
+    private static byte[] payload(int index) {
+        return ("record-" + index).getBytes(StandardCharsets.UTF_8);
+    }
+}